@@ -28,6 +28,7 @@ package fi.helsinki.cs.bsmr.fs;
  */
 
 import java.io.File;
+import java.io.FileNotFoundException;
 
 
 import java.io.RandomAccessFile;
@@ -84,6 +85,9 @@ public class FsServlet extends HttpServlet
 {
 private static final long serialVersionUID = 1L;
 
+/** Context attribute holding the servlet, the master asks it for the size of job input */
+public static final String ATTRIBUTE_FS = "fi.helsinki.cs.bsmr.fs.FsServletInstance";
+
 private static Logger logger = Logger.getLogger(FsServlet.class.getCanonicalName());
 	
 
@@ -94,6 +98,7 @@ String workingDir = null;
 public void init(ServletConfig config) throws ServletException 
 	{
 	super.init(config);
+	config.getServletContext().setAttribute(ATTRIBUTE_FS, this);
 		
 	String loadPath = config.getInitParameter("loadPath");
 	
@@ -356,6 +361,25 @@ finally
 	}
 }
 
+/**
+ * Tells the size of a file in the file system.
+ * 
+ * @param filename The name of the file relative to the loadPath
+ * @return The size of the file in bytes
+ * @throws IOException If the file does not exist or loading is disabled
+ */
+public long sizeof(String filename) throws IOException
+	{
+	if (this.workingDir == null)
+		throw new IOException("Loading is disabled");
+	
+	File file = new File(this.workingDir+File.separator+Util.fixPathSeparators(filename));
+	if (!file.isFile())
+		throw new FileNotFoundException(file.getPath());
+	
+	return file.length();
+	}
+
 @Override
 protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException 
 	{
@@ -149,33 +149,30 @@ public class AsyncSender implements Runnable
 	}
 
 	/**
-	 * Queue a message for sending. Once the thread starts working on this message, it will
-	 * delay for the amount of milliseconds given. This means the delay is cumulative over all the 
-	 * queued messages.
+	 * Queue a message for sending. The message will be sent immediately once the AsyncSender processes this
+	 * task.
 	 * 
 	 * @param msg The message to send
 	 * @param out The socket to send the message to
-	 * @param cumulativeDelay Amount of milliseconds to wait after starting to process this message but before sending it 
 	 */
-	public void sendAsyncMessage(String msg, Connection out, long cumulativeDelay)
+	public void sendAsyncMessage(String msg, Connection out)
 	{
 		synchronized (messageQueue) {			
-			messageQueue.addLast( new Task(msg, out, cumulativeDelay));
+			messageQueue.addLast( new Task(msg, out));
 			messageQueue.notify();
 		}
 	}
 	
 	/**
-	 * Queue a message for sending. The message will be sent immediately once the AsyncSender processes this
-	 * task.
+	 * Queue a binary frame to be sent.
 	 * 
-	 * @param msg The message to send
-	 * @param out The socket to send the message to
+	 * @param data The frame
+	 * @param out The connection
 	 */
-	public void sendAsyncMessage(String msg, Connection out)
+	public void sendAsyncMessage(byte[] data, Connection out)
 	{
 		synchronized (messageQueue) {			
-			messageQueue.addLast( new Task(msg, out));
+			messageQueue.addLast( new Task(data, out));
 			messageQueue.notify();
 		}
 	}
@@ -267,36 +264,34 @@ public class AsyncSender implements Runnable
 	private class Task
 	{
 		String message;
+		byte[] data;
 		Connection out;
-		long delay;
 		
 		public Task(String message, Connection out)
 		{
-			this(message,out,0);
+			this.message = message;
+			this.out = out;
 		}
 		
-		public Task(String message, Connection out, long delay)
+		public Task(byte[] data, Connection out)
 		{
-			this.message = message;
+			this.data = data;
 			this.out = out;
-			this.delay = delay;
 		}
 		
 		public void run() throws TaskFailedException
 		{
 			
 			try {
-				if (delay > 0) {
-					Thread.sleep(delay);
-				}
-				
 				synchronized (out) {
-					out.sendMessage(message);
+					if (data != null) {
+						out.sendMessage(data, 0, data.length);
+					} else {
+						out.sendMessage(message);
+					}
 				}
 			} catch (IOException ie) {
 				throw new TaskFailedException(out, ie);
-			} catch (InterruptedException ie) {
-				throw new TaskFailedException(ie);
 			}
 		}
 	}
@@ -311,12 +306,6 @@ public class AsyncSender implements Runnable
 			super(cause);
 			this.out = out;
 		}
-		
-		public TaskFailedException(Throwable cause)
-		{
-			super(cause);
-			this.out = null;
-		}
 	}
 
 	/**
@@ -27,6 +27,8 @@ package fi.helsinki.cs.bsmr.master;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +36,7 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import fi.helsinki.cs.bsmr.fs.FsServlet;
 import fi.helsinki.cs.bsmr.master.console.Console;
 import fi.helsinki.cs.bsmr.master.console.ConsoleNotifier;
 
@@ -41,8 +44,8 @@ import fi.helsinki.cs.bsmr.master.console.ConsoleNotifier;
  * An object responsible for starting and stopping the master. This object is registered as a listener class
  * so it receives events for when the server starts and stops this web application.
  * 
- * At startup this creates the MasterImpl, the ConsoleNotifier and Worker AsyncSender threads. The MasterImpl
- * and ConsoleNotifier are store in the ServletContext. At shutdown all threads are stopped and WebSocket clients
+ * At startup this creates the MasterImpl, the ConsoleNotifier, LivenessTicker and Worker AsyncSender threads. 
+ * The MasterImpl, ConsoleNotifier and LivenessTicker are store in the ServletContext. At shutdown all threads are stopped and WebSocket clients
  * (Workers and Consoles) are disconnected.
  * 
  * 
@@ -55,6 +58,16 @@ public class BSMRContext implements ServletContextListener
 	
 	private static final String ATTRIBUTE_MASTER = "fi.helsinki.cs.bsmr.master.MasterInstance";
 	private static final String ATTRIBUTE_CONSOLENOTIFIER = "fi.helsinki.cs.bsmr.master.console.ConsoleNotifierInstance";
+	private static final String ATTRIBUTE_LIVENESSTICKER = "fi.helsinki.cs.bsmr.master.LivenessTickerInstance";
+	private static final String ATTRIBUTE_JOBSTARTDISPATCHER = "fi.helsinki.cs.bsmr.master.JobStartDispatcherInstance";
+	private static final String ATTRIBUTE_JOBJOURNAL = "fi.helsinki.cs.bsmr.master.JobJournalInstance";
+	
+	private static final String PARAMETER_MAX_RUNNING_JOBS = "maxRunningJobs";
+	private static final String PARAMETER_JOB_SCHEDULER = "jobScheduler";
+	private static final String PARAMETER_JOB_START_RATE = "jobStartRate";
+	private static final String PARAMETER_JOB_START_THREADS = "jobStartThreads";
+	private static final String PARAMETER_JOURNAL_DIRECTORY = "journalDirectory";
+	private static final String PARAMETER_MASTER_SHARDS = "masterShards";
 	
 
 	@Override
@@ -62,15 +75,42 @@ public class BSMRContext implements ServletContextListener
 	{
 		TimeContext.markTime();
 		
-		ServletContext sctx = evt.getServletContext();
+		final ServletContext sctx = evt.getServletContext();
 		
 		logger.info("Starting BSMR Master");
 		
 		
 		logger.info("Creating Master");
 		MasterImpl master = new MasterImpl();
+		configureMaster(sctx, master);
 		setMaster(sctx, master);
 		
+		// Jobs without M or R are sized from their input in the FS
+		master.setJobSizer(new JobSizer(new JobSizer.InputSizes() {
+			public long getSize(String filename) throws IOException
+			{
+				FsServlet fs = (FsServlet)sctx.getAttribute(FsServlet.ATTRIBUTE_FS);
+				if (fs == null) {
+					throw new IOException("The FS servlet is not running");
+				}
+				return fs.sizeof(filename);
+			}
+		}));
+		
+		String journalDirectory = sctx.getInitParameter(PARAMETER_JOURNAL_DIRECTORY);
+		if (journalDirectory != null) {
+			logger.info("Restoring jobs from the journal in "+journalDirectory);
+			JobJournal journal = new JobJournal(new File(journalDirectory.trim()));
+			try {
+				master.restoreJobs(journal.replay());
+				journal.start();
+				master.setJournal(journal);
+				sctx.setAttribute(ATTRIBUTE_JOBJOURNAL, journal);
+			} catch(IOException ioe) {
+				logger.log(Level.SEVERE, "Could not open the job journal, jobs are not journaled", ioe);
+			}
+		}
+		
 		
 		logger.info("Starting ConsoleNotifier thread");
 		ConsoleNotifier cn = new ConsoleNotifier();
@@ -78,11 +118,72 @@ public class BSMRContext implements ServletContextListener
 		cn.start();
 		setConsoleNotifier(sctx, cn);
 		
+		logger.info("Starting LivenessTicker thread");
+		LivenessTicker lt = new LivenessTicker(master);
+		lt.start();
+		sctx.setAttribute(ATTRIBUTE_LIVENESSTICKER, lt);
+		
 		logger.info("Starting AsyncSender for workers");
 		AsyncSender.getSender(master, "Worker AsyncSender");
 	}
 	
 	
+	/**
+	 * Apply the optional context parameters "maxRunningJobs" (number of jobs running at once),
+	 * "jobScheduler" (class name of a JobScheduler implementation), "jobStartRate" (first tasks 
+	 * sent per second when a job starts), "jobStartThreads" (threads sending them) and "masterShards"
+	 * (shards the workers and splits are divided into) to the master.
+	 */
+	private void configureMaster(ServletContext sctx, MasterImpl master)
+	{
+		String maxRunningJobs = sctx.getInitParameter(PARAMETER_MAX_RUNNING_JOBS);
+		if (maxRunningJobs != null) {
+			try {
+				master.setMaxRunningJobs(Integer.parseInt(maxRunningJobs.trim()));
+			} catch(IllegalArgumentException iae) {
+				logger.log(Level.SEVERE, "Illegal value for "+PARAMETER_MAX_RUNNING_JOBS+": "+maxRunningJobs, iae);
+			}
+		}
+		logger.info("Running at most "+master.getMaxRunningJobs()+" jobs at once");
+		
+		String scheduler = sctx.getInitParameter(PARAMETER_JOB_SCHEDULER);
+		if (scheduler != null) {
+			try {
+				Class<?> c = Class.forName(scheduler.trim());
+				master.setJobScheduler((JobScheduler)c.getDeclaredConstructor().newInstance());
+			} catch(Exception e) {
+				// Class lookup, constructor and cast failures all mean the class name is not usable
+				logger.log(Level.SEVERE, "Illegal value for "+PARAMETER_JOB_SCHEDULER+": "+scheduler, e);
+			}
+		}
+		logger.info("Using job scheduler "+master.getJobScheduler().getClass().getName());
+		
+		String rate = sctx.getInitParameter(PARAMETER_JOB_START_RATE);
+		String threads = sctx.getInitParameter(PARAMETER_JOB_START_THREADS);
+		if (rate != null || threads != null) {
+			try {
+				master.setJobStartDispatcher(new JobStartDispatcher(
+						rate == null ? JobStartDispatcher.DEFAULT_RATE : Double.parseDouble(rate.trim()), 
+						threads == null ? JobStartDispatcher.DEFAULT_THREADS : Integer.parseInt(threads.trim())));
+			} catch(IllegalArgumentException iae) {
+				logger.log(Level.SEVERE, "Illegal value for "+PARAMETER_JOB_START_RATE+" or "+PARAMETER_JOB_START_THREADS, iae);
+			}
+		}
+		JobStartDispatcher dispatcher = master.getJobStartDispatcher();
+		sctx.setAttribute(ATTRIBUTE_JOBSTARTDISPATCHER, dispatcher);
+		logger.info("Sending the first tasks of started jobs at "+dispatcher.getRate()+" messages per second using "+dispatcher.getThreads()+" threads");
+		
+		String shards = sctx.getInitParameter(PARAMETER_MASTER_SHARDS);
+		if (shards != null) {
+			try {
+				master.setShardCount(Integer.parseInt(shards.trim()));
+			} catch(IllegalArgumentException iae) {
+				logger.log(Level.SEVERE, "Illegal value for "+PARAMETER_MASTER_SHARDS+": "+shards, iae);
+			}
+		}
+		logger.info("Dividing workers and splits into "+master.getShardCount()+" shards");
+	}
+	
 	@Override
 	public void contextDestroyed(ServletContextEvent evt) 
 	{
@@ -96,6 +197,20 @@ public class BSMRContext implements ServletContextListener
 			logger.log(Level.SEVERE, "Could not stop ConsoleNotifier thread!", e);
 		}
 		
+		logger.info("Stopping LivenessTicker thread");
+		try {
+			((LivenessTicker)evt.getServletContext().getAttribute(ATTRIBUTE_LIVENESSTICKER)).stop();
+		} catch (InterruptedException e) {
+			logger.log(Level.SEVERE, "Could not stop LivenessTicker thread!", e);
+		}
+		
+		logger.info("Stopping JobStartDispatcher threads");
+		try {
+			((JobStartDispatcher)evt.getServletContext().getAttribute(ATTRIBUTE_JOBSTARTDISPATCHER)).stop();
+		} catch (InterruptedException e) {
+			logger.log(Level.SEVERE, "Could not stop JobStartDispatcher threads!", e);
+		}
+		
 		// NOTE: sync on master to prohibit disconnecting workers from modifying
 		// the structures this block iterates over
 		synchronized (master) {
@@ -110,6 +225,16 @@ public class BSMRContext implements ServletContextListener
 			}			
 		}
 		
+		JobJournal journal = (JobJournal)evt.getServletContext().getAttribute(ATTRIBUTE_JOBJOURNAL);
+		if (journal != null) {
+			logger.info("Stopping JobJournal writer thread");
+			try {
+				journal.stop();
+			} catch (InterruptedException e) {
+				logger.log(Level.SEVERE, "Could not stop JobJournal writer thread!", e);
+			}
+		}
+		
 		logger.info("Stopping all AsyncSenders");
 		AsyncSender.stopAll();
 
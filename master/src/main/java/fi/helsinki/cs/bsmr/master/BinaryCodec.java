@@ -0,0 +1,255 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The compact binary encoding of the messages between the master and workers
+ * which connect with the "worker-binary" WebSocket subprotocol. A message is
+ * one binary frame: a header byte with the ordinal of the Message.Type in the
+ * high and the ordinal of the Message.Action in the low four bits, followed by
+ * the rest of the payload as the entries of a map.
+ * 
+ * Values start with a type byte. Integers are zigzag varints, strings are a
+ * varint byte length followed by UTF-8, lists and maps a varint count followed
+ * by their elements. A map key is the index of a known field name plus one, or
+ * 0 followed by the name as a string. Byte strings are read back as hex, the
+ * master sends code hashes this way. Workers name other workers by their ID.
+ * 
+ * The field names and the order of Message.Type and Message.Action are part of
+ * the protocol, new ones go to the end. static/worker/host/bincodec.js is the
+ * worker side of this class.
+ * 
+ * @see BinaryParser
+ */
+public class BinaryCodec
+{
+	public static final String PROTOCOL = "worker-binary";
+	
+	static final int NULL = 0;
+	static final int FALSE = 1;
+	static final int TRUE = 2;
+	static final int INT = 3;
+	static final int DOUBLE = 4;
+	static final int STRING = 5;
+	static final int BYTES = 6;
+	static final int LIST = 7;
+	static final int MAP = 8;
+	
+	private static final String[] FIELDS = {
+		Message.FIELD_JOBID, Message.FIELD_JOB_MAP, Message.FIELD_RUNNING_JOBIDS,
+		Message.FIELD_MAPSTATUS, Message.FIELD_REDUCESTATUS, Message.FIELD_UNREACHABLE,
+		Message.FIELD_NUM_REDUCETASKS, Message.FIELD_NUM_MAPTASKS, Message.FIELD_SPLITID,
+		Message.FIELD_SPLITIDS, Message.FIELD_BUCKETID, Message.FIELD_PART, Message.FIELD_PARTS,
+		Message.FIELD_BUCKET_RECORDS, Message.FIELD_BUCKET_BYTES, Message.FIELD_REDUCE_LOCATION,
+		Message.FIELD_RETRY_AFTER, Message.FIELD_CODE, Message.FIELD_CODE_HASH,
+		Message.FIELD_INTERURL, Message.FIELD_MAX_BATCH, Message.FIELD_SLOTS, Message.FIELD_SPEED,
+		Job.FIELD_UPSTREAM, Message.FIELD_WORKER_URLS
+	};
+	
+	private static final Map<String, Integer> fieldIndex = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < FIELDS.length; i++) {
+			fieldIndex.put(FIELDS[i], i + 1);
+		}
+	}
+	
+	private byte[] buf;
+	private int length;
+	
+	private BinaryCodec()
+	{
+		this.buf = new byte[64];
+		this.length = 0;
+	}
+	
+	/**
+	 * Encode a message.
+	 * 
+	 * @param type The type of the message
+	 * @param action The action of the message
+	 * @param payload The payload without the action
+	 * @return The frame
+	 * @throws IllegalArgumentException If the payload contains a value which cannot be encoded
+	 */
+	public static byte[] encode(Message.Type type, Message.Action action, Map<?, ?> payload)
+	{
+		BinaryCodec out = new BinaryCodec();
+		out.writeByte(type.ordinal() << 4 | action.ordinal());
+		out.writeMapBody(payload);
+		
+		byte[] ret = new byte[out.length];
+		System.arraycopy(out.buf, 0, ret, 0, out.length);
+		return ret;
+	}
+	
+	/**
+	 * @param index A key read from a frame
+	 * @return The field name of the key or null if the key is not known
+	 */
+	static String getField(int index)
+	{
+		return index >= 1 && index <= FIELDS.length ? FIELDS[index - 1] : null;
+	}
+	
+	private void writeValue(Object o)
+	{
+		if (o == null) {
+			writeByte(NULL);
+		} else if (o instanceof Boolean) {
+			writeByte(((Boolean)o).booleanValue() ? TRUE : FALSE);
+		} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			writeByte(INT);
+			long n = ((Number)o).longValue();
+			writeVarLong((n << 1) ^ (n >> 63));
+		} else if (o instanceof Number) {
+			writeByte(DOUBLE);
+			long bits = Double.doubleToLongBits(((Number)o).doubleValue());
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				writeByte((int)(bits >>> shift));
+			}
+		} else if (o instanceof String) {
+			writeByte(STRING);
+			writeString((String)o);
+		} else if (o instanceof byte[]) {
+			byte[] b = (byte[])o;
+			writeByte(BYTES);
+			writeVarLong(b.length);
+			writeBytes(b);
+		} else if (o instanceof Collection) {
+			Collection<?> c = (Collection<?>)o;
+			writeByte(LIST);
+			writeVarLong(c.size());
+			for (Object e : c) {
+				writeValue(e);
+			}
+		} else if (o instanceof Object[]) {
+			Object[] a = (Object[])o;
+			writeByte(LIST);
+			writeVarLong(a.length);
+			for (Object e : a) {
+				writeValue(e);
+			}
+		} else if (o instanceof Map) {
+			writeByte(MAP);
+			writeMapBody((Map<?, ?>)o);
+		} else {
+			throw new IllegalArgumentException("Cannot encode "+o.getClass().getName());
+		}
+	}
+	
+	private void writeMapBody(Map<?, ?> map)
+	{
+		writeVarLong(map.size());
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			String key = String.valueOf(e.getKey());
+			Integer index = fieldIndex.get(key);
+			if (index != null) {
+				writeVarLong(index);
+			} else {
+				writeByte(0);
+				writeString(key);
+			}
+			writeValue(e.getValue());
+		}
+	}
+	
+	private void writeString(String s)
+	{
+		byte[] b;
+		try {
+			b = s.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not available", uee);
+		}
+		writeVarLong(b.length);
+		writeBytes(b);
+	}
+	
+	private void writeVarLong(long n)
+	{
+		while ((n & ~0x7fL) != 0) {
+			writeByte((int)((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		writeByte((int)n);
+	}
+	
+	private void writeBytes(byte[] b)
+	{
+		ensureCapacity(b.length);
+		System.arraycopy(b, 0, buf, length, b.length);
+		length += b.length;
+	}
+	
+	private void writeByte(int b)
+	{
+		ensureCapacity(1);
+		buf[length++] = (byte)b;
+	}
+	
+	private void ensureCapacity(int n)
+	{
+		if (length + n > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length * 2, length + n)];
+			System.arraycopy(buf, 0, tmp, 0, length);
+			buf = tmp;
+		}
+	}
+	
+	/**
+	 * @param hex A string of hex digits, such as a code hash
+	 * @return The bytes of the hex string
+	 * @throws NumberFormatException If the string is not hex digits
+	 */
+	static byte[] fromHex(String hex)
+	{
+		if (hex.length() % 2 != 0) {
+			throw new NumberFormatException("Odd number of hex digits in "+hex);
+		}
+		byte[] ret = new byte[hex.length() / 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return ret;
+	}
+	
+	static String toHex(byte[] data, int offset, int length)
+	{
+		StringBuilder ret = new StringBuilder(length * 2);
+		for (int i = offset; i < offset + length; i++) {
+			ret.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+			ret.append(Character.forDigit(data[i] & 0xf, 16));
+		}
+		return ret.toString();
+	}
+}
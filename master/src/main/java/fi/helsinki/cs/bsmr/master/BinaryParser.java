@@ -0,0 +1,463 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.codehaus.jackson.Base64Variant;
+import org.codehaus.jackson.JsonLocation;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonStreamContext;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.ObjectCodec;
+import org.codehaus.jackson.impl.JsonParserMinimalBase;
+
+/**
+ * Reads a frame encoded by BinaryCodec as if it was the JSON message
+ * {"type": ..., "payload": {"action": ..., ...}}, so that Message decodes both
+ * subprotocols with the same code. Byte strings are read as hex strings.
+ * 
+ * @see BinaryCodec
+ */
+public class BinaryParser extends JsonParserMinimalBase
+{
+	private static final int MAX_DEPTH = 32;
+	
+	// The synthetic tokens around the payload entries
+	private static final int ROOT_START = 0;
+	private static final int TYPE_FIELD = 1;
+	private static final int TYPE_VALUE = 2;
+	private static final int PAYLOAD_FIELD = 3;
+	private static final int PAYLOAD_START = 4;
+	private static final int ACTION_FIELD = 5;
+	private static final int ACTION_VALUE = 6;
+	private static final int BODY = 7;
+	private static final int ROOT_END = 8;
+	private static final int DONE = 9;
+	
+	private final byte[] data;
+	private int pos;
+	private final int end;
+	private int state;
+	private boolean closed;
+	
+	private String type;
+	private String action;
+	
+	// The open containers of the payload, the payload being the first
+	private int depth;
+	private final boolean[] isMap = new boolean[MAX_DEPTH];
+	private final int[] remaining = new int[MAX_DEPTH];
+	private final String[] names = new String[MAX_DEPTH];
+	private String rootName;
+	private boolean expectValue;
+	
+	private String text;
+	private long longValue;
+	private double doubleValue;
+	
+	/**
+	 * Create a parser for a frame.
+	 * 
+	 * @param data The buffer holding the frame
+	 * @param offset Where the frame starts in the buffer
+	 * @param length The length of the frame
+	 */
+	public BinaryParser(byte[] data, int offset, int length)
+	{
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+		this.state = ROOT_START;
+	}
+	
+	@Override
+	public JsonToken nextToken() throws IOException, JsonParseException
+	{
+		switch (state) {
+		case ROOT_START:
+			int header = readByte();
+			Message.Type[] types = Message.Type.values();
+			Message.Action[] actions = Message.Action.values();
+			if ((header >> 4) >= types.length || (header & 0xf) >= actions.length) {
+				_reportError("Unknown message type or action in header "+header);
+			}
+			type = types[header >> 4].toString();
+			action = actions[header & 0xf].toString();
+			state = TYPE_FIELD;
+			return token(JsonToken.START_OBJECT);
+		case TYPE_FIELD:
+			rootName = Message.FIELD_TYPE;
+			state = TYPE_VALUE;
+			return token(JsonToken.FIELD_NAME);
+		case TYPE_VALUE:
+			text = type;
+			state = PAYLOAD_FIELD;
+			return token(JsonToken.VALUE_STRING);
+		case PAYLOAD_FIELD:
+			rootName = Message.FIELD_PAYLOAD;
+			state = PAYLOAD_START;
+			return token(JsonToken.FIELD_NAME);
+		case PAYLOAD_START:
+			push(true, readCount());
+			state = ACTION_FIELD;
+			return token(JsonToken.START_OBJECT);
+		case ACTION_FIELD:
+			names[0] = Message.FIELD_ACTION;
+			state = ACTION_VALUE;
+			return token(JsonToken.FIELD_NAME);
+		case ACTION_VALUE:
+			text = action;
+			state = BODY;
+			return token(JsonToken.VALUE_STRING);
+		case BODY:
+			return nextBodyToken();
+		case ROOT_END:
+			rootName = null;
+			state = DONE;
+			if (pos != end) {
+				_reportError("Trailing bytes after the message");
+			}
+			return token(JsonToken.END_OBJECT);
+		default:
+			return token(null);
+		}
+	}
+	
+	private JsonToken nextBodyToken() throws IOException
+	{
+		int top = depth - 1;
+		if (!expectValue && remaining[top] == 0) {
+			depth--;
+			if (depth == 0) {
+				state = ROOT_END;
+			}
+			return token(isMap[top] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY);
+		}
+		
+		if (isMap[top] && !expectValue) {
+			remaining[top]--;
+			long key = readVarLong();
+			names[top] = key == 0 ? readString() : BinaryCodec.getField((int)Math.min(key, Integer.MAX_VALUE));
+			if (names[top] == null) {
+				_reportError("Unknown field "+key);
+			}
+			expectValue = true;
+			return token(JsonToken.FIELD_NAME);
+		}
+		
+		if (!isMap[top]) {
+			remaining[top]--;
+		}
+		expectValue = false;
+		
+		int t = readByte();
+		switch (t) {
+		case BinaryCodec.NULL:
+			return token(JsonToken.VALUE_NULL);
+		case BinaryCodec.FALSE:
+			return token(JsonToken.VALUE_FALSE);
+		case BinaryCodec.TRUE:
+			return token(JsonToken.VALUE_TRUE);
+		case BinaryCodec.INT:
+			long n = readVarLong();
+			longValue = (n >>> 1) ^ -(n & 1);
+			return token(JsonToken.VALUE_NUMBER_INT);
+		case BinaryCodec.DOUBLE:
+			long bits = 0;
+			for (int i = 0; i < 8; i++) {
+				bits = (bits << 8) | readByte();
+			}
+			doubleValue = Double.longBitsToDouble(bits);
+			return token(JsonToken.VALUE_NUMBER_FLOAT);
+		case BinaryCodec.STRING:
+			text = readString();
+			return token(JsonToken.VALUE_STRING);
+		case BinaryCodec.BYTES:
+			int length = readCount();
+			text = BinaryCodec.toHex(data, pos, length);
+			pos += length;
+			return token(JsonToken.VALUE_STRING);
+		case BinaryCodec.LIST:
+			push(false, readCount());
+			return token(JsonToken.START_ARRAY);
+		case BinaryCodec.MAP:
+			push(true, readCount());
+			return token(JsonToken.START_OBJECT);
+		default:
+			_reportError("Unknown value type "+t);
+			return null;
+		}
+	}
+	
+	private JsonToken token(JsonToken t)
+	{
+		_currToken = t;
+		return t;
+	}
+	
+	private void push(boolean map, int count) throws JsonParseException
+	{
+		if (depth == MAX_DEPTH) {
+			_reportError("Message nested too deep");
+		}
+		isMap[depth] = map;
+		remaining[depth] = count;
+		names[depth] = null;
+		depth++;
+	}
+	
+	private int readByte() throws JsonParseException
+	{
+		if (pos >= end) {
+			_reportInvalidEOF();
+		}
+		return data[pos++] & 0xff;
+	}
+	
+	private long readVarLong() throws JsonParseException
+	{
+		long ret = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			ret |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return ret;
+			}
+		}
+		_reportError("Malformed varint");
+		return 0;
+	}
+	
+	/**
+	 * Read a count or length. Each element takes at least a byte, so larger counts than the bytes
+	 * left are rejected.
+	 */
+	private int readCount() throws JsonParseException
+	{
+		long n = readVarLong();
+		if (n < 0 || n > end - pos) {
+			_reportError("Count "+n+" exceeds the message");
+		}
+		return (int)n;
+	}
+	
+	private String readString() throws JsonParseException
+	{
+		int length = readCount();
+		String ret;
+		try {
+			ret = new String(data, pos, length, "UTF-8");
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not available", uee);
+		}
+		pos += length;
+		return ret;
+	}
+	
+	@Override
+	protected void _handleEOF() throws JsonParseException
+	{
+		_reportInvalidEOF();
+	}
+	
+	@Override
+	public String getCurrentName() throws IOException, JsonParseException
+	{
+		if (depth == 0) {
+			return rootName;
+		}
+		if (_currToken == JsonToken.START_OBJECT || _currToken == JsonToken.START_ARRAY) {
+			return depth > 1 ? names[depth - 2] : rootName;
+		}
+		return names[depth - 1];
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		state = DONE;
+	}
+	
+	@Override
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	@Override
+	public JsonStreamContext getParsingContext()
+	{
+		return null;
+	}
+	
+	@Override
+	public JsonLocation getTokenLocation()
+	{
+		return JsonLocation.NA;
+	}
+	
+	@Override
+	public JsonLocation getCurrentLocation()
+	{
+		return JsonLocation.NA;
+	}
+	
+	@Override
+	public ObjectCodec getCodec()
+	{
+		return null;
+	}
+	
+	@Override
+	public void setCodec(ObjectCodec c)
+	{
+	}
+	
+	@Override
+	public String getText() throws IOException, JsonParseException
+	{
+		if (_currToken == null) {
+			return null;
+		}
+		switch (_currToken) {
+		case FIELD_NAME:
+			return getCurrentName();
+		case VALUE_STRING:
+			return text;
+		case VALUE_NUMBER_INT:
+			return Long.toString(longValue);
+		case VALUE_NUMBER_FLOAT:
+			return Double.toString(doubleValue);
+		default:
+			return _currToken.asString();
+		}
+	}
+	
+	@Override
+	public char[] getTextCharacters() throws IOException, JsonParseException
+	{
+		String s = getText();
+		return s == null ? null : s.toCharArray();
+	}
+	
+	@Override
+	public boolean hasTextCharacters()
+	{
+		return false;
+	}
+	
+	@Override
+	public int getTextLength() throws IOException, JsonParseException
+	{
+		String s = getText();
+		return s == null ? 0 : s.length();
+	}
+	
+	@Override
+	public int getTextOffset() throws IOException, JsonParseException
+	{
+		return 0;
+	}
+	
+	@Override
+	public byte[] getBinaryValue(Base64Variant b64variant) throws IOException, JsonParseException
+	{
+		_reportError("Byte strings are read as hex strings");
+		return null;
+	}
+	
+	@Override
+	public Number getNumberValue() throws IOException, JsonParseException
+	{
+		if (getNumberType() == NumberType.INT) {
+			return Integer.valueOf((int)longValue);
+		}
+		if (getNumberType() == NumberType.LONG) {
+			return Long.valueOf(longValue);
+		}
+		return Double.valueOf(doubleValue);
+	}
+	
+	@Override
+	public NumberType getNumberType() throws IOException, JsonParseException
+	{
+		if (_currToken == JsonToken.VALUE_NUMBER_INT) {
+			return longValue == (int)longValue ? NumberType.INT : NumberType.LONG;
+		}
+		if (_currToken == JsonToken.VALUE_NUMBER_FLOAT) {
+			return NumberType.DOUBLE;
+		}
+		_reportError("Current token ("+_currToken+") not numeric");
+		return null;
+	}
+	
+	@Override
+	public int getIntValue() throws IOException, JsonParseException
+	{
+		long n = getLongValue();
+		if (n != (int)n) {
+			_reportError("Numeric value "+n+" out of range of int");
+		}
+		return (int)n;
+	}
+	
+	@Override
+	public long getLongValue() throws IOException, JsonParseException
+	{
+		return getNumberType() == NumberType.DOUBLE ? (long)doubleValue : longValue;
+	}
+	
+	@Override
+	public BigInteger getBigIntegerValue() throws IOException, JsonParseException
+	{
+		return BigInteger.valueOf(getLongValue());
+	}
+	
+	@Override
+	public float getFloatValue() throws IOException, JsonParseException
+	{
+		return (float)getDoubleValue();
+	}
+	
+	@Override
+	public double getDoubleValue() throws IOException, JsonParseException
+	{
+		return getNumberType() == NumberType.DOUBLE ? doubleValue : longValue;
+	}
+	
+	@Override
+	public BigDecimal getDecimalValue() throws IOException, JsonParseException
+	{
+		return getNumberType() == NumberType.DOUBLE ? BigDecimal.valueOf(doubleValue) : BigDecimal.valueOf(longValue);
+	}
+}
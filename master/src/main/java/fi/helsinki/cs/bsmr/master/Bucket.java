@@ -30,35 +30,88 @@ package fi.helsinki.cs.bsmr.master;
 import java.io.Serializable;
 
 /**
- * A bucket for reducing. 
+ * A bucket for reducing. A bucket split because of skew is reduced in parts, 
+ * part i of n reduces the chunks of the splits s with s % n == i. Once every 
+ * part is done, the parts are merged, which is represented by the bucket 
+ * with the number of parts and no part.
  * 
  * @author stsavola
- *
+ * @see BucketStore
  */
 public class Bucket implements Serializable
 {
 	private static final long serialVersionUID = 1L;
 	
 	private int id;
+	// -1 for the whole bucket or the merge of its parts
+	private int part;
+	// 0 for a bucket which is not split
+	private int parts;
 	
 	public Bucket(int id)
+	{
+		this(id, -1, 0);
+	}
+	
+	/**
+	 * Create a part of a split bucket or the merge of its parts.
+	 * 
+	 * @param id The bucket
+	 * @param part The part, or -1 for the merge
+	 * @param parts The number of parts the bucket is split into
+	 */
+	public Bucket(int id, int part, int parts)
 	{
 		this.id = id;
+		this.part = part;
+		this.parts = parts;
 	}
 	
 	public int getId()
 	{
 		return id;
 	}
+	
+	public int getPart()
+	{
+		return part;
+	}
+	
+	public int getParts()
+	{
+		return parts;
+	}
+	
+	/**
+	 * @return True if this is a part of a split bucket
+	 */
+	public boolean isPart()
+	{
+		return parts > 0 && part >= 0;
+	}
+	
+	/**
+	 * @return True if this merges the parts of a split bucket
+	 */
+	public boolean isMerge()
+	{
+		return parts > 0 && part < 0;
+	}
 
 	public String toString()
 	{
+		if (isPart()) {
+			return "BuckId: "+id+" part "+part+"/"+parts;
+		}
+		if (isMerge()) {
+			return "BuckId: "+id+" merge of "+parts;
+		}
 		return "BuckId: "+id;
 	}
 	
 	@Override
 	public int hashCode() {
-		return Bucket.class.hashCode() ^ id;
+		return Bucket.class.hashCode() ^ id ^ (part << 16) ^ (parts << 24);
 	}
 	
 	@Override
@@ -66,6 +119,6 @@ public class Bucket implements Serializable
 		if (! (obj instanceof Bucket)) return false;
 		Bucket b = (Bucket)obj;
 		
-		return b.id == id;
+		return b.id == id && b.part == part && b.parts == parts;
 	}
 }
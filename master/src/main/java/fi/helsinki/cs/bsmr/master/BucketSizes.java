@@ -0,0 +1,240 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The amount of intermediate data in each bucket of a job, summed from the sizes the 
+ * workers report when they acknowledge mapped splits. Each split is counted once, 
+ * later attempts of a split are ignored. All buckets have been counted for the same 
+ * splits, so the sizes can be compared before the map phase is complete.
+ * 
+ * The sizes each worker reported for the splits it mapped are also summed per worker. This
+ * is the input of each bucket the worker has locally, which the master uses to choose 
+ * reducers.
+ * 
+ * The shards of the master acknowledge splits at the same time, so counting is synchronized.
+ * The sizes are read by the master while it holds its coordinator lock, when no shard counts.
+ * 
+ * @see BucketStore
+ * @see MasterStoreImpl#getShardCount()
+ */
+public class BucketSizes implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	private long[] records;
+	private long[] bytes;
+	private long totalRecords;
+	private long totalBytes;
+	
+	// Splits whose sizes have been counted
+	private BitSet counted;
+	
+	// Worker ID -> bytes in each bucket of the splits the worker has mapped
+	private Map<Integer, long[]> localBytes;
+	
+	/**
+	 * @param buckets The number of buckets of the job
+	 */
+	public BucketSizes(int buckets)
+	{
+		this.records = new long[buckets];
+		this.bytes = new long[buckets];
+		this.counted = new BitSet();
+		this.localBytes = new HashMap<Integer, long[]>();
+	}
+	
+	/**
+	 * Count the sizes of the buckets in mapped splits. 
+	 * 
+	 * @param splits The splits which were mapped
+	 * @param splitRecords Records in each bucket of the splits
+	 * @param splitBytes Bytes in each bucket of the splits
+	 * @return False if the sizes were not counted, because one of the splits has been 
+	 *         counted already or the sizes are not given for every bucket.
+	 */
+	public synchronized boolean add(List<Split> splits, long[] splitRecords, long[] splitBytes)
+	{
+		if (splitRecords.length != records.length || splitBytes.length != bytes.length) {
+			return false;
+		}
+		for (Split s : splits) {
+			if (s.getId() < 0 || counted.get(s.getId())) {
+				return false;
+			}
+		}
+		
+		for (Split s : splits) {
+			counted.set(s.getId());
+		}
+		for (int i = 0; i < records.length; i++) {
+			records[i] += splitRecords[i];
+			bytes[i] += splitBytes[i];
+			totalRecords += splitRecords[i];
+			totalBytes += splitBytes[i];
+		}
+		return true;
+	}
+	
+	/**
+	 * Count the sizes of the buckets in splits mapped by a worker as input the worker has 
+	 * locally. Unlike add(), a split mapped by several workers is counted for each of them.
+	 * 
+	 * @param w The worker who mapped the splits
+	 * @param splitBytes Bytes in each bucket of the splits
+	 * @return False if the sizes were not counted as they are not given for every bucket
+	 */
+	public synchronized boolean addLocal(Worker w, long[] splitBytes)
+	{
+		if (splitBytes.length != bytes.length) {
+			return false;
+		}
+		
+		long[] local = localBytes.get(w.getId());
+		if (local == null) {
+			local = new long[bytes.length];
+			localBytes.put(w.getId(), local);
+		}
+		for (int i = 0; i < local.length; i++) {
+			local[i] += splitBytes[i];
+		}
+		return true;
+	}
+	
+	/**
+	 * @param w The worker
+	 * @param bucket The bucket
+	 * @return The bytes of the bucket in the splits the worker has mapped, 0 if the worker has 
+	 *         not reported any sizes
+	 */
+	public synchronized long getLocalBytes(Worker w, int bucket)
+	{
+		long[] local = localBytes.get(w.getId());
+		return local == null ? 0 : local[bucket];
+	}
+	
+	/**
+	 * Forget the sizes counted for a worker who has left.
+	 */
+	public synchronized void removeWorker(Worker w)
+	{
+		localBytes.remove(w.getId());
+	}
+	
+	/**
+	 * @return The number of buckets
+	 */
+	public int size()
+	{
+		return bytes.length;
+	}
+	
+	public long getRecords(int bucket)
+	{
+		return records[bucket];
+	}
+	
+	public long getBytes(int bucket)
+	{
+		return bytes[bucket];
+	}
+	
+	public long getTotalRecords()
+	{
+		return totalRecords;
+	}
+	
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+	
+	/**
+	 * @return The number of splits whose sizes have been counted
+	 */
+	public int getSplitsCounted()
+	{
+		return counted.cardinality();
+	}
+	
+	/**
+	 * @param bucket The bucket
+	 * @return How many times the mean bucket size the bucket is, 0 if nothing has been counted
+	 */
+	public double getSkew(int bucket)
+	{
+		if (totalBytes == 0) {
+			return 0;
+		}
+		return (double)bytes[bucket] * bytes.length / totalBytes;
+	}
+	
+	/**
+	 * @return The size of the largest bucket in bytes
+	 */
+	public long getMaxBytes()
+	{
+		long max = 0;
+		for (long b : bytes) {
+			max = Math.max(max, b);
+		}
+		return max;
+	}
+	
+	/**
+	 * Count the buckets by size. Bin i holds the buckets of i * binBytes up to but not 
+	 * including (i + 1) * binBytes bytes.
+	 * 
+	 * @param bins The number of bins
+	 * @param binBytes The width of a bin in bytes, see getBinBytes()
+	 * @return The number of buckets in each bin
+	 */
+	public int[] getHistogram(int bins, long binBytes)
+	{
+		int[] ret = new int[bins];
+		for (long b : bytes) {
+			ret[(int)Math.min(bins - 1, b / binBytes)]++;
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param bins The number of bins
+	 * @return The width of a bin covering every bucket in the given number of bins
+	 */
+	public long getBinBytes(int bins)
+	{
+		return Math.max(1, (getMaxBytes() + bins) / bins);
+	}
+}
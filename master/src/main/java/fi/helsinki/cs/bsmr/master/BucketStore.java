@@ -29,15 +29,21 @@ package fi.helsinki.cs.bsmr.master;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Keeps the state of buckets for a single job.
  * 
+ * Buckets are reduced as tasks. Tasks 0 .. R-1 are the buckets. A bucket which is several 
+ * times larger than the mean bucket, as told by the skew factor of the job, is split into 
+ * parts when it is first handed out. The parts and the merge of each split bucket are 
+ * added as tasks after the buckets, the merge is handed out once every part is done.
+ * 
  * @author stsavola
  *
  */
@@ -45,34 +51,95 @@ public class BucketStore implements Serializable
 {
 	private static final long serialVersionUID = 1L;
 	
-	private List<Set<Worker>> bucketsQueued;
-	private List<Set<Integer>> bucketsDone2;
+	// Worker IDs per task. Reducer IDs stay valid after the reducer disconnects, as IDs are never reused
+	private WorkerSetTable bucketsQueued;
+	private WorkerSetTable bucketsDone;
+	
+	// Reverse index of bucketsQueued: worker ID -> tasks queued for the worker
+	private Map<Integer, IntList> queuedForWorker;
 
-	private boolean allBucketsDone; 
+	private int reduceTasks;
+	private BucketSizes sizes;
+	
+	// Task R+i is splitTasks.get(i)
+	private List<Bucket> splitTasks;
+	// First part task of each bucket, -1 if the bucket is not split. The merge follows the parts.
+	private int[] firstPart;
+	private int[] partsLeft;
+
+	private int remainingBuckets;
+	
+	// Buckets reduced before a master restart, they are done without a worker to credit
+	private BitSet restored;
 	
-	private List<Bucket> workQueue;
+	// Tasks that are not yet done. Removal swaps the last task into the removed
+	// position, positionInWorkQueue tells where each task is (or -1 if it is not there).
+	private int[] workQueue;
+	private int workQueueSize;
+	private int[] positionInWorkQueue;
 	private int previousIndexOfWorkQueue;
 	
+	private Job job;
+	private MasterContext master;
+	private TaskTimer timer;
+	
 	/**
-	 * Create a new BucketStore for the job. The Job is only used for initializing the
-	 * data structures and is not needed to assess the state of workers.
+	 * Create a new BucketStore for the job. The Job defines the number of buckets, the availability
+	 * of workers and the speculation policy.
 	 * 
 	 * @param job The job this BucketStore is for
+	 * @param master The master the job runs on. Used to resolve worker IDs into workers.
 	 */
-	public BucketStore(Job job)
+	public BucketStore(Job job, MasterContext master)
 	{
-		this.bucketsQueued = new ArrayList<Set<Worker>>();
-		this.bucketsDone2 = new ArrayList<Set<Integer>>();
-		this.workQueue = new LinkedList<Bucket>();
+		int r = job.getReduceTasks();
+		
+		this.bucketsQueued = new WorkerSetTable(r);
+		this.bucketsDone = new WorkerSetTable(r);
+		this.queuedForWorker = new HashMap<Integer, IntList>();
+		this.workQueue = new int[r];
+		this.positionInWorkQueue = new int[r];
+		this.workQueueSize = r;
 		this.previousIndexOfWorkQueue = -1;
 		
-		for (int i = 0; i < job.getReduceTasks(); ++i) {
-			bucketsQueued.add(new HashSet<Worker>());
-			bucketsDone2.add(new HashSet<Integer>());
-			workQueue.add(new Bucket(i));
+		for (int i = 0; i < r; ++i) {
+			workQueue[i] = i;
+			positionInWorkQueue[i] = i;
+		}
+		
+		this.remainingBuckets = r;
+		this.restored = new BitSet(r);
+		
+		this.reduceTasks = r;
+		this.sizes = new BucketSizes(r);
+		this.splitTasks = new ArrayList<Bucket>();
+		this.firstPart = new int[r];
+		this.partsLeft = new int[r];
+		for (int i = 0; i < r; ++i) {
+			firstPart[i] = -1;
 		}
 		
-		this.allBucketsDone = false;
+		this.job = job;
+		this.master = master;
+		this.timer = new TaskTimer();
+	}
+	
+	/**
+	 * @return The sizes of the buckets reported by the mappers
+	 */
+	public BucketSizes getSizes()
+	{
+		return sizes;
+	}
+	
+	/**
+	 * @param w The worker
+	 * @return The number of buckets queued for the worker and not yet acknowledged.
+	 */
+	public int getNumberOfQueuedBuckets(Worker w)
+	{
+		IntList queued = queuedForWorker.get(w.getId());
+		return queued == null ? 0 : queued.size();
 	}
 	
 	/**
@@ -82,27 +149,200 @@ public class BucketStore implements Serializable
 	 */
 	public boolean areAllBucketsDone()
 	{
-		return allBucketsDone;
+		return remainingBuckets == 0;
 	}
 	
 	/**
 	 * Select next bucket to reduce. The bucket is selected by selecting a bucket
 	 * from a work queue of non-reduced buckets. The BucketStore has an index pointing to the
-	 * previously selected bucket that is updated when this call is made. The selected
-	 * bucket will be set as queued for the worker in question.
+	 * previously selected bucket that is updated when this call is made. Buckets that are being
+	 * reduced by an available worker are skipped. If all non-reduced buckets are being reduced,
+	 * a backup attempt of a straggling bucket is considered according to the job's SpeculationPolicy.
+	 * A skewed bucket is split when it is selected, and its first part is selected instead.
+	 * The selected bucket will be set as queued for the worker in question.
 	 * 
 	 * @param toWhom The worker we are selecting a Bucket for.
-	 * @return The next bucket to work on.
+	 * @return The next bucket to work on or null if there is no bucket the worker should reduce.
 	 */
 	public Bucket selectBucketToWorkOn(Worker toWhom)
 	{
-		previousIndexOfWorkQueue = (previousIndexOfWorkQueue + 1) % workQueue.size();
-
-		Bucket work = workQueue.get(previousIndexOfWorkQueue);
+		long now = TimeContext.now();
+		SpeculationPolicy policy = job.getSpeculationPolicy();
+		boolean mayBackUp = policy.isEnabled() && !timer.isSlowWorker(toWhom, policy);
+		
+		int straggler = -1;
+		long stragglerOverdue = -1;
+		int backedUp = 0;
+		
+		for (int n = workQueueSize; n > 0; n--) {
+			previousIndexOfWorkQueue = (previousIndexOfWorkQueue + 1) % workQueueSize;
+			int id = workQueue[previousIndexOfWorkQueue];
+			
+			int attempts = TaskTimer.countLiveAttempts(id, bucketsQueued, toWhom, master, job);
+			if (attempts == 0) {
+				if (id < reduceTasks && bucketsQueued.isEmpty(id)) {
+					int parts = getPartsForSkew(id);
+					if (parts > 1) {
+						splitBucket(id, parts);
+						return queueBucket(toWhom, firstPart[id], now);
+					}
+				}
+				return queueBucket(toWhom, id, now);
+			}
+			
+			if (attempts > 1) {
+				backedUp++;
+			}
+			if (!mayBackUp || attempts >= policy.getMaxAttempts()) continue;
+			
+			long overdue = timer.getOverdueTime(id, bucketsQueued, id, toWhom, master, job, now);
+			if (overdue > stragglerOverdue) {
+				straggler = id;
+				stragglerOverdue = overdue;
+			}
+		}
+		
+		if (straggler != -1 && backedUp < policy.getMaxBackedUpTasks(master.getWorkers().size())) {
+			return queueBucket(toWhom, straggler, now);
+		}
 		
-		bucketsQueued.get(work.getId()).add(toWhom);
+		return null;
+	}
+	
+	/**
+	 * Find the bucket selectBucketToWorkOn() is going to hand out next without queueing it. A 
+	 * skewed bucket which is not yet split is returned whole.
+	 * 
+	 * @return The next bucket nobody is reducing or null if every bucket is being reduced
+	 */
+	public Bucket peekBucketToWorkOn()
+	{
+		for (int n = 1; n <= workQueueSize; n++) {
+			int id = workQueue[(previousIndexOfWorkQueue + n) % workQueueSize];
+			if (TaskTimer.countLiveAttempts(id, bucketsQueued, null, master, job) == 0) {
+				return getTask(id);
+			}
+		}
+		return null;
+	}
+	
+	private Bucket queueBucket(Worker toWhom, int id, long now)
+	{
+		if (bucketsQueued.add(id, toWhom.getId())) {
+			IntList queued = queuedForWorker.get(toWhom.getId());
+			if (queued == null) {
+				queued = new IntList();
+				queuedForWorker.put(toWhom.getId(), queued);
+			}
+			queued.add(id);
+		}
+		timer.taskStarted(id, toWhom, now);
+		
+		return getTask(id);
+	}
+	
+	/**
+	 * @param id A bucket which has not been handed out
+	 * @return The number of parts to split the bucket into, 1 if it is not skewed
+	 */
+	private int getPartsForSkew(int id)
+	{
+		double factor = job.getSkewFactor();
+		if (factor <= 0) {
+			return 1;
+		}
+		
+		double skew = sizes.getSkew(id);
+		if (skew < factor) {
+			return 1;
+		}
+		
+		// Parts beyond the number of splits would be empty, parts beyond the number of workers 
+		// would not run in parallel
+		int parts = (int)Math.ceil(skew);
+		parts = Math.min(parts, job.getMapTasks());
+		parts = Math.min(parts, Math.max(2, master.getWorkers().size()));
+		return parts;
+	}
+	
+	/**
+	 * Replace a bucket in the work queue by its parts. The merge is queued once the parts are done.
+	 */
+	private void splitBucket(int id, int parts)
+	{
+		int first = reduceTasks + splitTasks.size();
+		int tasks = first + parts + 1;
+		
+		bucketsQueued.grow(tasks);
+		bucketsDone.grow(tasks);
+		workQueue = grow(workQueue, tasks, 0);
+		positionInWorkQueue = grow(positionInWorkQueue, tasks, -1);
+		
+		firstPart[id] = first;
+		partsLeft[id] = parts;
+		for (int i = 0; i < parts; i++) {
+			splitTasks.add(new Bucket(id, i, parts));
+		}
+		splitTasks.add(new Bucket(id, -1, parts));
+		
+		removeFromWorkQueue(id);
+		for (int i = 0; i < parts; i++) {
+			addToWorkQueue(first + i);
+		}
+	}
+	
+	private static int[] grow(int[] array, int length, int fill)
+	{
+		int[] ret = new int[length];
+		System.arraycopy(array, 0, ret, 0, array.length);
+		for (int i = array.length; i < length; i++) {
+			ret[i] = fill;
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param task The task
+	 * @return The bucket, part or merge the task reduces
+	 */
+	private Bucket getTask(int task)
+	{
+		return task < reduceTasks ? new Bucket(task) : splitTasks.get(task - reduceTasks);
+	}
+	
+	/**
+	 * @param b A bucket, part or merge
+	 * @return The task or -1 if the job has no such bucket, or the bucket is not split so
+	 */
+	private int getTaskId(Bucket b)
+	{
+		int id = b.getId();
+		if (id < 0 || id >= reduceTasks) {
+			return -1;
+		}
+		if (!b.isPart() && !b.isMerge()) {
+			return id;
+		}
 		
-		return work;
+		int first = firstPart[id];
+		if (first == -1 || splitTasks.get(first - reduceTasks).getParts() != b.getParts()) {
+			return -1;
+		}
+		if (b.isMerge()) {
+			return first + b.getParts();
+		}
+		return b.getPart() < b.getParts() ? first + b.getPart() : -1;
+	}
+	
+	/**
+	 * Tests whether a bucket, part or merge acknowledged or asked about by a worker belongs to the job.
+	 * 
+	 * @param b The bucket
+	 * @return True if the job has the bucket
+	 */
+	public boolean isKnownBucket(Bucket b)
+	{
+		return b != null && getTaskId(b) != -1;
 	}
 
 	/**
@@ -116,33 +356,87 @@ public class BucketStore implements Serializable
 	 */
 	public void acknowledgeWork(Worker w, Bucket b)
 	{
+		int task = getTaskId(b);
+		if (task == -1) {
+			return;
+		}
+		
+		Bucket whole = new Bucket(b.getId());
+		boolean wasDone = isBucketDone(whole);
+		boolean partWasDone = !bucketsDone.isEmpty(task);
+		bucketsDone.add(task, w.getId());
 		
-		bucketsDone2.get(b.getId()).add(w.hashCode());
+		if (bucketsQueued.remove(task, w.getId())) {
+			queuedForWorker.get(w.getId()).removeValue(task);
+			timer.taskFinished(task, w, TimeContext.now());
+		}
 		
-		boolean test = true;
-		for (Set<Integer> d : this.bucketsDone2) {
-			if (d.isEmpty()) {
-				test = false;
-				break;
+		removeFromWorkQueue(task);
+		
+		if (b.isMerge()) {
+			bucketsDone.add(b.getId(), w.getId());
+		} else if (b.isPart() && !partWasDone && --partsLeft[b.getId()] == 0 && !wasDone) {
+			addToWorkQueue(firstPart[b.getId()] + b.getParts());
+		}
+		
+		if (!wasDone && isBucketDone(whole)) {
+			remainingBuckets--;
+			
+			// A late attempt of a bucket which was split may finish it before its parts
+			int first = firstPart[b.getId()];
+			if (first != -1) {
+				for (int i = first; i <= first + splitTasks.get(first - reduceTasks).getParts(); i++) {
+					removeFromWorkQueue(i);
+				}
 			}
 		}
-		if (test) {
-			allBucketsDone = true;
+	}
+	
+	/**
+	 * Mark a bucket done which was reduced before the master was restarted. The
+	 * results of the bucket are in the FS, so it is not handed out again.
+	 * 
+	 * @param b The bucket
+	 * @see JobJournal
+	 */
+	public void restoreBucket(Bucket b)
+	{
+		if (isBucketDone(b)) {
+			return;
+		}
+		restored.set(b.getId());
+		remainingBuckets--;
+		removeFromWorkQueue(b.getId());
+	}
+	
+	private void addToWorkQueue(int task)
+	{
+		workQueue[workQueueSize] = task;
+		positionInWorkQueue[task] = workQueueSize++;
+	}
+	
+	/**
+	 * Remove a bucket from the work queue in constant time by moving the last bucket
+	 * of the queue into its place.
+	 * 
+	 * @param id The bucket to remove
+	 */
+	private void removeFromWorkQueue(int id)
+	{
+		int i = positionInWorkQueue[id];
+		if (i == -1) {
+			return;
 		}
 		
-		bucketsQueued.get(b.getId()).remove(w);
+		int last = workQueue[--workQueueSize];
+		workQueue[i] = last;
+		positionInWorkQueue[last] = i;
+		positionInWorkQueue[id] = -1;
 		
-		// Remove bucket b if it's in the work queue
-		int i = workQueue.indexOf(b);
-		if (i != -1) {
-			workQueue.remove(i);
-			// And fix work queue indexing if necessary
-			if (i <= previousIndexOfWorkQueue) {
-				previousIndexOfWorkQueue--;
-			}
+		// The moved bucket takes the place of the removed one, so let it be next in turn
+		if (i == previousIndexOfWorkQueue) {
+			previousIndexOfWorkQueue--;
 		}
-			
-			
 	}
 	
 	/**
@@ -153,37 +447,99 @@ public class BucketStore implements Serializable
 	 */
 	public void removeWorkerInformation(Worker w)
 	{
-		for (Set<Worker> workers : bucketsQueued) {
-			workers.remove(w);
+		timer.removeWorker(w);
+		sizes.removeWorker(w);
+		
+		IntList queued = queuedForWorker.remove(w.getId());
+		if (queued == null) {
+			return;
+		}
+		
+		for (int i = 0; i < queued.size(); i++) {
+			bucketsQueued.remove(queued.get(i), w.getId());
+			timer.taskCancelled(queued.get(i), w);
+		}
+	}
+
+	/**
+	 * Forget the buckets queued for all workers. This is done when the job is paused as the workers
+	 * move on to other jobs. Buckets which have been done are kept.
+	 */
+	public void cancelQueuedWork()
+	{
+		for (Map.Entry<Integer, IntList> e : queuedForWorker.entrySet()) {
+			IntList queued = e.getValue();
+			for (int i = 0; i < queued.size(); i++) {
+				bucketsQueued.remove(queued.get(i), e.getKey());
+			}
 		}
+		queuedForWorker.clear();
+		timer.cancelAllAttempts();
 	}
 
 	/**
-	 * Tells us whether a specific bucket has been reduced or not.
+	 * Tells us whether a specific bucket has been reduced or not. The parts and the merge of
+	 * a split bucket are done when they are reduced or when the bucket is.
 	 * 
 	 * @param bucket The bucket in question.
 	 * @return True if the bucket has been reduced, false if otherwise
 	 */
 	public boolean isBucketDone(Bucket bucket) 
 	{
-		Set<Integer> d = bucketsDone2.get(bucket.getId());
-		boolean incomplete = d.isEmpty();
-		return !incomplete;
+		int id = bucket.getId();
+		if (!bucketsDone.isEmpty(id) || restored.get(id)) {
+			return true;
+		}
+		
+		int task = getTaskId(bucket);
+		return task != -1 && !bucketsDone.isEmpty(task);
 	}
 	
 	/**
-	 * Returns all workers for whom a bucket has been queued for.
+	 * Tells whether a bucket was split because of skew.
+	 * 
+	 * @param bucket The bucket
+	 * @return The number of parts of the bucket or 0 if it is not split
+	 */
+	public int getParts(Bucket bucket)
+	{
+		int first = firstPart[bucket.getId()];
+		return first == -1 ? 0 : splitTasks.get(first - reduceTasks).getParts();
+	}
+	
+	/**
+	 * Returns the IDs of all workers for whom a bucket has been queued for. For a split 
+	 * bucket these are the workers reducing its parts or merging them.
 	 * 
 	 * @param bucket The bucket in question
-	 * @return An unmodifiable set of workers for whom the bucket has been queued
+	 * @return An unmodifiable set of IDs of workers for whom the bucket has been queued
 	 */
-	public Set<Worker> getAllQueuedWorkers(Bucket bucket)
+	public Set<Integer> getAllQueuedWorkers(Bucket bucket)
 	{
-		return Collections.unmodifiableSet(bucketsQueued.get(bucket.getId()));
+		int task = getTaskId(bucket);
+		if (task == -1) {
+			return Collections.emptySet();
+		}
+		Set<Integer> ret = bucketsQueued.asSet(task);
+		
+		int first = firstPart[bucket.getId()];
+		if (first != -1 && !bucket.isPart() && !bucket.isMerge()) {
+			for (int i = first; i <= first + getParts(bucket); i++) {
+				ret.addAll(bucketsQueued.asSet(i));
+			}
+		}
+		return Collections.unmodifiableSet(ret);
 	}
 
-	public Set<Integer> getAllDoneWorkers(Bucket bucket) {
-		return Collections.unmodifiableSet(bucketsDone2.get(bucket.getId()));
+	/**
+	 * Returns the IDs of all workers who have reduced a bucket.
+	 * 
+	 * @param bucket The bucket in question
+	 * @return An unmodifiable set of IDs of workers who have reduced the bucket
+	 */
+	public Set<Integer> getAllDoneWorkers(Bucket bucket)
+	{
+		return Collections.unmodifiableSet(bucketsDone.asSet(bucket.getId()));
 	}
 
 }
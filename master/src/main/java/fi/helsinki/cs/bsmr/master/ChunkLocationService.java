@@ -0,0 +1,259 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells reducers, and workers copying splits, where to fetch chunks from. For every split the SplitShard
+ * of the split keeps the list of reachable workers who have mapped it. The list is rebuilt only when 
+ * the shard sees the providers of the split change, and is kept ranked by this service so that the 
+ * best provider comes first: the one with the fewest fetches in progress, the fewest recently failed 
+ * fetches and the oldest connection.
+ * 
+ * Each reducer fetches one chunk at a time, so a fetch is in progress from the first provider handed
+ * to a reducer until the reducer asks for its next chunk or finishes its bucket. The fetch failed if 
+ * the reducer then reports the provider as unreachable.
+ * 
+ * A job has one service shared by its shards, as a provider serves chunks of the splits of every 
+ * shard and a reducer moves between them. The methods are synchronized on the service, which is 
+ * locked after the SplitShard.
+ * 
+ * @see SplitStore#getChunkLocations(Split, Worker, Set)
+ */
+public class ChunkLocationService implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * How fast fetch results are forgotten.
+	 */
+	public static final long HISTORY_HALF_LIFE = 60000;
+	
+	/**
+	 * How many fetches in progress a provider whose every fetch fails is ranked equal to.
+	 */
+	public static final double FAILURE_COST = 4;
+	
+	// Worker ID -> fetch statistics of the worker as a provider
+	private final Map<Integer, ProviderStats> stats;
+	
+	// Reducer worker ID -> the provider of the fetch in progress
+	private final Map<Integer, Worker> fetching;
+	
+	ChunkLocationService()
+	{
+		this.stats = new HashMap<Integer, ProviderStats>();
+		this.fetching = new HashMap<Integer, Worker>();
+	}
+	
+	/**
+	 * The providers of a split for a reducer, best first. 
+	 * 
+	 * @param ranked The reachable providers of the split, sorted in place. The SplitShard of the
+	 *               split keeps the list ranked from one call to the next.
+	 * @param reducer The worker asking for the chunk
+	 * @param unreachable Workers the reducer cannot contact. These are left out and the fetch in 
+	 *                    progress for the reducer failed if its provider is one of them.
+	 * @return The reachable providers the reducer can contact, might include the reducer itself
+	 */
+	synchronized List<Worker> locate(List<Worker> ranked, Worker reducer, Set<Worker> unreachable)
+	{
+		long now = TimeContext.now();
+		fetchFinished(reducer, unreachable, now);
+		rank(ranked, now);
+		
+		List<Worker> ret = new ArrayList<Worker>(ranked.size());
+		for (Worker w : ranked) {
+			if (!unreachable.contains(w)) {
+				ret.add(w);
+			}
+		}
+		
+		// A reducer which has the chunk itself does not fetch it
+		if (!ret.isEmpty() && !ret.contains(reducer)) {
+			Worker first = ret.get(0);
+			getStats(first).load++;
+			fetching.put(reducer.getId(), first);
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Finish the fetch in progress for a reducer, if any.
+	 * 
+	 * @param reducer The reducer
+	 * @param unreachable The workers the reducer reported unreachable
+	 */
+	synchronized void fetchFinished(Worker reducer, Set<Worker> unreachable)
+	{
+		fetchFinished(reducer, unreachable, TimeContext.now());
+	}
+	
+	private void fetchFinished(Worker reducer, Set<Worker> unreachable, long now)
+	{
+		Worker provider = fetching.remove(reducer.getId());
+		if (provider == null) {
+			return;
+		}
+		
+		ProviderStats s = stats.get(provider.getId());
+		if (s == null) {
+			return;
+		}
+		s.load--;
+		s.record(!unreachable.contains(provider), now);
+	}
+	
+	/**
+	 * Finish the fetch in progress for a worker without knowing whether it succeeded.
+	 * 
+	 * @param workerId The ID of the worker fetching
+	 */
+	synchronized void fetchCancelled(int workerId)
+	{
+		Worker provider = fetching.remove(workerId);
+		if (provider != null && stats.containsKey(provider.getId())) {
+			stats.get(provider.getId()).load--;
+		}
+	}
+	
+	/**
+	 * Forget a worker both as a provider and as a reducer.
+	 */
+	synchronized void removeWorker(Worker w)
+	{
+		fetchCancelled(w.getId());
+		stats.remove(w.getId());
+	}
+	
+	/**
+	 * @return How many fetches from the worker are in progress
+	 */
+	synchronized int getLoad(Worker w)
+	{
+		ProviderStats s = stats.get(w.getId());
+		return s == null ? 0 : s.load;
+	}
+	
+	private ProviderStats getStats(Worker w)
+	{
+		ProviderStats s = stats.get(w.getId());
+		if (s == null) {
+			s = new ProviderStats();
+			stats.put(w.getId(), s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Sort the providers in place. The list only changes order when the statistics of its workers 
+	 * change, so an insertion sort of the short and mostly sorted list is enough.
+	 */
+	private void rank(List<Worker> ranked, long now)
+	{
+		int n = ranked.size();
+		if (n < 2) {
+			return;
+		}
+		
+		double[] cost = new double[n];
+		for (int i = 0; i < n; i++) {
+			ProviderStats s = stats.get(ranked.get(i).getId());
+			cost[i] = s == null ? 0 : s.cost(now);
+		}
+		
+		for (int i = 1; i < n; i++) {
+			Worker w = ranked.get(i);
+			double c = cost[i];
+			int j = i - 1;
+			while (j >= 0 && isBetter(w, c, ranked.get(j), cost[j])) {
+				ranked.set(j + 1, ranked.get(j));
+				cost[j + 1] = cost[j];
+				j--;
+			}
+			ranked.set(j + 1, w);
+			cost[j + 1] = c;
+		}
+	}
+	
+	private static boolean isBetter(Worker a, double costA, Worker b, double costB)
+	{
+		if (costA != costB) {
+			return costA < costB;
+		}
+		return a.getConnectTime() < b.getConnectTime();
+	}
+	
+	/**
+	 * Fetches in progress from a provider and its recent fetch results, which decay over time.
+	 */
+	private static class ProviderStats implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		int load;
+		double succeeded;
+		double failed;
+		long updatedAt;
+		
+		void record(boolean success, long now)
+		{
+			decay(now);
+			if (success) {
+				succeeded++;
+			} else {
+				failed++;
+			}
+		}
+		
+		double cost(long now)
+		{
+			decay(now);
+			double total = succeeded + failed;
+			double failureRate = total == 0 ? 0 : failed / total;
+			return load + FAILURE_COST * failureRate;
+		}
+		
+		private void decay(long now)
+		{
+			if (now > updatedAt) {
+				double f = Math.pow(0.5, (double)(now - updatedAt) / HISTORY_HALF_LIFE);
+				succeeded *= f;
+				failed *= f;
+				updatedAt = now;
+			}
+		}
+	}
+}
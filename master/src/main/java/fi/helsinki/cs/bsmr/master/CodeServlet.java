@@ -0,0 +1,91 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the code of jobs by its hash at /code/&lt;hash&gt;. Workers are sent
+ * the code of a job once per connection, a worker which misses that message
+ * fetches the code here. The content of a hash never changes, so the responses
+ * can be cached for good.
+ * 
+ * @see Job#getCodeHash()
+ */
+public class CodeServlet extends HttpServlet
+{
+private static final long serialVersionUID = 1L;
+
+private static Logger logger = Util.getLoggerForClass(CodeServlet.class);
+
+private static final String CACHE_CONTROL = "public, max-age=31536000";
+
+@Override
+protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+		throws ServletException, IOException
+	{
+	String hash = req.getPathInfo();
+	if (hash != null && hash.startsWith("/"))
+		{
+		hash = hash.substring(1);
+		}
+
+	// Worker pages are not necessarily loaded from the master
+	resp.setHeader("Access-Control-Allow-Origin", "*");
+
+	MasterContext master = BSMRContext.getMaster(getServletContext());
+	Job job = hash == null ? null : master.getJobByCodeHash(hash);
+	if (job == null)
+		{
+		logger.fine("No job with code " + hash);
+		resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+		return;
+		}
+
+	String etag = "\"" + hash + "\"";
+	resp.setHeader("ETag", etag);
+	resp.setHeader("Cache-Control", CACHE_CONTROL);
+	if (etag.equals(req.getHeader("If-None-Match")))
+		{
+		resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		return;
+		}
+
+	Object code = job.getCode();
+	resp.setContentType("text/javascript");
+	resp.setCharacterEncoding("UTF-8");
+	resp.getWriter().write(
+			code instanceof String ? (String) code : JSON.toString(code));
+	}
+}
@@ -0,0 +1,172 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+/**
+ * A phi accrual failure detector fed by the heart beats of one worker. Instead of a fixed
+ * timeout, the detector tells how suspicious the silence of the worker is given the intervals 
+ * between its previous heart beats: phi is -log10 of the probability that the next heart beat 
+ * would arrive even later than now. Workers with regular heart beats become suspect soon after 
+ * a missed beat, while workers with jittery heart beats are given more slack.
+ * 
+ * The intervals are assumed to be normally distributed and the distribution is approximated
+ * with the logistic function, which can be inverted to get the time at which phi crosses a 
+ * threshold. The LivenessTracker uses that time as the deadline of the worker.
+ * 
+ * @see Worker#getAvailableUntil(Job)
+ */
+public class FailureDetector
+{
+	/**
+	 * How many intervals are kept.
+	 */
+	public static final int WINDOW = 100;
+	
+	/**
+	 * How many intervals are needed before the detector is used. 
+	 */
+	public static final int MIN_SAMPLES = 3;
+	
+	/**
+	 * Lower bound for the standard deviation, so that workers with very regular heart beats are
+	 * not suspected due to small delays in the network or in the master.
+	 */
+	public static final double MIN_STD_DEVIATION = 500;
+	
+	private final long[] intervals;
+	private int count;
+	private int next;
+	private double sum;
+	private double sumOfSquares;
+	
+	private long lastHeartbeat;
+	
+	public FailureDetector()
+	{
+		this.intervals = new long[WINDOW];
+		this.count = 0;
+		this.next = 0;
+		this.sum = 0;
+		this.sumOfSquares = 0;
+		this.lastHeartbeat = -1;
+	}
+	
+	/**
+	 * Record the arrival of a heart beat.
+	 * 
+	 * @param now The arrival time
+	 */
+	public synchronized void heartbeat(long now)
+	{
+		if (lastHeartbeat >= 0 && now >= lastHeartbeat) {
+			long interval = now - lastHeartbeat;
+			
+			if (count == WINDOW) {
+				long old = intervals[next];
+				sum -= old;
+				sumOfSquares -= (double)old * old;
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % WINDOW;
+			sum += interval;
+			sumOfSquares += (double)interval * interval;
+		}
+		lastHeartbeat = now;
+	}
+	
+	/**
+	 * @return Whether enough heart beats have arrived to estimate their distribution
+	 */
+	public synchronized boolean isReady()
+	{
+		return count >= MIN_SAMPLES;
+	}
+	
+	public synchronized double getMean()
+	{
+		return count == 0 ? 0 : sum / count;
+	}
+	
+	public synchronized double getStdDeviation()
+	{
+		if (count == 0) {
+			return MIN_STD_DEVIATION;
+		}
+		double mean = sum / count;
+		double variance = Math.max(0, sumOfSquares / count - mean * mean);
+		return Math.max(Math.sqrt(variance), MIN_STD_DEVIATION);
+	}
+	
+	/**
+	 * The suspicion level of a worker last heard from at the given time.
+	 * 
+	 * @param since When the worker was last heard from
+	 * @param now The current time
+	 * @return Phi, 0 if the detector is not ready
+	 */
+	public synchronized double phi(long since, long now)
+	{
+		if (!isReady()) {
+			return 0;
+		}
+		
+		double y = (now - since - getMean()) / getStdDeviation();
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (y > 0) {
+			return -Math.log10(e / (1.0 + e));
+		} else {
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+	
+	/**
+	 * The time at which phi reaches a threshold unless the worker is heard from.
+	 * 
+	 * @param since When the worker was last heard from
+	 * @param threshold The phi threshold, larger than 0
+	 * @return The time, or Long.MAX_VALUE if the detector is not ready
+	 */
+	public synchronized long getSuspicionTime(long since, double threshold)
+	{
+		if (!isReady()) {
+			return Long.MAX_VALUE;
+		}
+		
+		// phi = log10(1 + exp(u)) where u = y * (a + b * y^2), solve the cubic for y
+		double a = 1.5976, b = 0.070566;
+		double u = Math.log(Math.pow(10, threshold) - 1);
+		double p = a / b;
+		double q = -u / b;
+		double d = Math.sqrt(q * q / 4 + p * p * p / 27);
+		double y = Math.cbrt(-q / 2 + d) + Math.cbrt(-q / 2 - d);
+		
+		return since + (long)Math.ceil(getMean() + y * getStdDeviation());
+	}
+}
@@ -0,0 +1,93 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Weighted fair share scheduling of workers between running jobs. Jobs of higher priority are always
+ * offered the worker first. Among jobs of the same priority, the worker is offered to the job 
+ * which has the fewest workers compared to its weight. Jobs which already have their maximum share 
+ * of workers are left out. Ties are broken in favor of the job started first.
+ * 
+ * @author stsavola
+ * @see Job#getPriority()
+ * @see Job#getWeight()
+ * @see Job#getMaxShare()
+ */
+public class FairShareScheduler implements JobScheduler
+{
+	@Override
+	public List<Job> rankJobs(Worker worker, Job current, List<Job> runningJobs, int workers)
+	{
+		List<Share> shares = new ArrayList<Share>(runningJobs.size());
+		
+		for (Job job : runningJobs) {
+			// The worker is about to leave its current task, so it does not count towards the share
+			int others = job.getAssignedWorkers() - (job == current ? 1 : 0);
+			int cap = Math.max(1, (int)(job.getMaxShare() * workers));
+			
+			if (others < cap) {
+				shares.add(new Share(job, others / job.getWeight()));
+			}
+		}
+		
+		// Stable sort keeps the start order among equal shares
+		Collections.sort(shares, new Comparator<Share>() {
+			@Override
+			public int compare(Share a, Share b)
+			{
+				if (a.job.getPriority() != b.job.getPriority()) {
+					return a.job.getPriority() > b.job.getPriority() ? -1 : 1;
+				}
+				return Double.compare(a.load, b.load);
+			}
+		});
+		
+		List<Job> ret = new ArrayList<Job>(shares.size());
+		for (Share s : shares) {
+			ret.add(s.job);
+		}
+		return ret;
+	}
+	
+	private static class Share
+	{
+		Job job;
+		double load;
+		
+		Share(Job job, double load)
+		{
+			this.job = job;
+			this.load = load;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+
+/**
+ * A growable list of primitive ints. Used by the split and bucket stores where
+ * a List&lt;Integer&gt; would cost an object per entry.
+ * 
+ * @author stsavola
+ *
+ */
+public class IntList implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	private int[] values;
+	private int size;
+	
+	public IntList()
+	{
+		this(4);
+	}
+	
+	public IntList(int initialCapacity)
+	{
+		this.values = new int[Math.max(1, initialCapacity)];
+		this.size = 0;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	public int get(int i)
+	{
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: "+i+", size: "+size);
+		}
+		return values[i];
+	}
+	
+	public void add(int value)
+	{
+		if (size == values.length) {
+			int[] tmp = new int[values.length * 2];
+			System.arraycopy(values, 0, tmp, 0, size);
+			values = tmp;
+		}
+		values[size++] = value;
+	}
+	
+	/**
+	 * Remove the first occurrence of a value. The order of the remaining values is not
+	 * preserved: the last value is moved into the freed position.
+	 * 
+	 * @param value The value to remove
+	 * @return True if the value was found and removed
+	 */
+	public boolean removeValue(int value)
+	{
+		for (int i = 0; i < size; i++) {
+			if (values[i] == value) {
+				values[i] = values[--size];
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public boolean contains(int value)
+	{
+		for (int i = 0; i < size; i++) {
+			if (values[i] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void clear()
+	{
+		size = 0;
+	}
+}
@@ -0,0 +1,99 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of primitive ints backed by a growable ring buffer.
+ * 
+ * @author stsavola
+ *
+ */
+public class IntQueue implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	private int[] values;
+	private int head;
+	private int size;
+	
+	public IntQueue(int initialCapacity)
+	{
+		this.values = new int[Math.max(1, initialCapacity)];
+		this.head = 0;
+		this.size = 0;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	/**
+	 * Append a value to the tail of the queue.
+	 * 
+	 * @param value The value to append
+	 */
+	public void add(int value)
+	{
+		if (size == values.length) {
+			int[] tmp = new int[values.length * 2];
+			for (int i = 0; i < size; i++) {
+				tmp[i] = values[(head + i) % values.length];
+			}
+			values = tmp;
+			head = 0;
+		}
+		values[(head + size) % values.length] = value;
+		size++;
+	}
+	
+	/**
+	 * Remove and return the value at the head of the queue.
+	 * 
+	 * @return The head of the queue
+	 * @throws NoSuchElementException If the queue is empty
+	 */
+	public int poll()
+	{
+		if (size == 0) {
+			throw new NoSuchElementException("IntQueue is empty");
+		}
+		int ret = values[head];
+		head = (head + 1) % values.length;
+		size--;
+		return ret;
+	}
+}
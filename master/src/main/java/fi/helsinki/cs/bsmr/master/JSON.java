@@ -31,20 +31,39 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 
 
+/**
+ * JSON conversions shared by the master. The mapper is configured once, its
+ * readers, writers and factory are thread-safe and used from every thread.
+ */
 public class JSON 
 {
 	private static Logger logger = Logger.getLogger(JSON.class.getCanonicalName());
 	
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final ObjectReader mapReader = mapper.reader(Map.class);
+	private static final ObjectWriter writer = mapper.writer();
+	
+	/**
+	 * Return the factory for streaming parsers and generators.
+	 * 
+	 * @return The factory of the shared mapper
+	 */
+	public static JsonFactory getFactory()
+	{
+		return mapper.getJsonFactory();
+	}
+	
 	public static Map<?,?> getJSONMapForJob(String s)
 	{
-		ObjectMapper mapper = new ObjectMapper();
-		
 		Map<?, ?> ret;
 		try {
-			ret =  mapper.readValue(s, Map.class);
+			ret =  mapReader.readValue(s);
 		} catch(Exception e) {
 			logger.log(Level.SEVERE, "Could not parse JSON string '"+s+"'", e);
 			return null; 
@@ -61,12 +80,9 @@ public class JSON
 	
 	public static String toString(Object o)
 	{
-		
-		ObjectMapper mapper = new ObjectMapper();
-		
 		String ret;
 		try {
-			ret = mapper.writeValueAsString(o);
+			ret = writer.writeValueAsString(o);
 		} catch(Exception e) {
 			logger.log(Level.SEVERE, "Could not parse object to JSON '"+o+"'", e);
 			return null; 
@@ -27,6 +27,13 @@ package fi.helsinki.cs.bsmr.master;
  *
  */
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Describes one job for the BSMR cluster.
  * 
@@ -34,6 +41,24 @@ package fi.helsinki.cs.bsmr.master;
  */
 public class Job
 {
+public static final String FIELD_HEARTBEAT_TIMEOUT = "heartbeatTimeout";
+public static final String FIELD_PROGRESS_TIMEOUT = "progressTimeout";
+public static final String FIELD_WEIGHT = "weight";
+public static final String FIELD_MAX_SHARE = "maxShare";
+public static final String FIELD_PRIORITY = "priority";
+public static final String FIELD_REDUCE_SLOW_START = "reduceSlowStart";
+public static final String FIELD_UNAVAILABLE_PHI = "unavailablePhi";
+public static final String FIELD_DEAD_PHI = "deadPhi";
+public static final String FIELD_REPLICATION = "replication";
+public static final String FIELD_STAGES = "stages";
+public static final String FIELD_NAME = "name";
+public static final String FIELD_AFTER = "after";
+public static final String FIELD_UPSTREAM = "upstream";
+public static final String FIELD_INPUT = "input";
+public static final String FIELD_SPLIT_DURATION = "splitDuration";
+public static final String FIELD_INTER_RATIO = "interRatio";
+public static final String FIELD_SKEW_FACTOR = "skewFactor";
+
 /** Object fields **/
 
 private int jobId;
@@ -43,13 +68,14 @@ private BucketStore bucketStore;
 
 public enum State
 {
-NEW, RUNNING, FINISHED
+NEW, RUNNING, PAUSED, FINISHED
 };
 
 private State state;
 
-private final int maptasks;
-private final int reducetasks;
+// 0 until the master has chosen them, see needsSizing()
+private int maptasks;
+private int reducetasks;
 
 private final long heartbeatTimeout;
 private final long acknowledgeTimeout;
@@ -58,6 +84,32 @@ private long startTime;
 private long finishTime;
 
 private Object code;
+// Identifies the code, workers are sent the code once per hash
+private final String codeHash;
+
+private SpeculationPolicy speculationPolicy;
+
+private double weight;
+private double maxShare;
+private int assignedWorkers;
+private int priority;
+private double reduceSlowStart;
+private double unavailablePhi;
+private double deadPhi;
+private int replication;
+private double skewFactor;
+
+// Buckets reduced before a master restart, marked done when the job starts
+private BitSet restoredBuckets;
+
+// Jobs whose output is the input of this job, see isReady()
+private List<Job> upstreamJobs;
+
+// Used by JobSizer for jobs which leave their size to the master
+private String input;
+private long splitDuration;
+private double interRatio;
+private long inputSize;
 
 /**
  * Create a new job
@@ -65,9 +117,10 @@ private Object code;
  * @param jobId
  *            Unique identifier for this job.
  * @param maptasks
- *            The number of maptasks in this job.
+ *            The number of maptasks in this job, 0 to let the master choose.
  * @param reducetasks
- *            The number of reducetasks in this job.
+ *            The number of reducetasks in this job, 0 to let the master
+ *            choose.
  * @param heartbeatTimeout
  *            The heart beat timeout.
  * @param acknowledgeTimeout
@@ -88,24 +141,108 @@ Job(int jobId, int maptasks, int reducetasks, int heartbeatTimeout,
 	this.acknowledgeTimeout = acknowledgeTimeout;
 
 	this.code = code;
+	this.codeHash = Util.hash(code instanceof String ? (String) code : JSON
+			.toString(code));
+	this.speculationPolicy = SpeculationPolicy.defaultPolicy();
+	this.weight = 1.0;
+	this.maxShare = 1.0;
+	this.assignedWorkers = 0;
+	this.priority = 0;
+	this.reduceSlowStart = 1.0;
+	this.unavailablePhi = 8.0;
+	this.deadPhi = 12.0;
+	this.replication = 1;
+	this.skewFactor = 0;
+	this.upstreamJobs = Collections.emptyList();
+	this.input = null;
+	this.splitDuration = 0;
+	this.interRatio = 1.0;
+	this.inputSize = -1;
 	}
 
 /**
  * Start this job and initialize the SplitStore and BucketStore for this job.
+ * 
+ * @param master
+ *            The master running this job, used to resolve worker IDs
  */
-public void startJob()
+public void startJob(MasterContext master)
 	{
-	splitStore = new SplitStore(this);
-	bucketStore = new BucketStore(this);
+	splitStore = new SplitStore(this, master);
+	bucketStore = new BucketStore(this, master);
+	if (restoredBuckets != null)
+		{
+		for (int i = restoredBuckets.nextSetBit(0); i >= 0; i = restoredBuckets
+				.nextSetBit(i + 1))
+			{
+			bucketStore.restoreBucket(new Bucket(i));
+			}
+		restoredBuckets = null;
+		}
 	state = State.RUNNING;
 	startTime = TimeContext.now();
 	}
 
+/**
+ * Mark buckets which were reduced before the master was restarted. Their
+ * results are in the FS, so they are not handed out again when the job
+ * starts.
+ * 
+ * @param buckets
+ *            The IDs of the reduced buckets
+ * @see JobJournal
+ */
+void restoreBuckets(BitSet buckets)
+	{
+	restoredBuckets = (BitSet) buckets.clone();
+	}
+
+/**
+ * @return The IDs of the buckets of this job which are reduced
+ */
+public BitSet getBucketsDone()
+	{
+	if (bucketStore == null)
+		{
+		return restoredBuckets == null ? new BitSet()
+				: (BitSet) restoredBuckets.clone();
+		}
+
+	BitSet ret = new BitSet(reducetasks);
+	for (int i = 0; i < reducetasks; i++)
+		{
+		if (bucketStore.isBucketDone(new Bucket(i)))
+			{
+			ret.set(i);
+			}
+		}
+	return ret;
+	}
+
 public State getState()
 	{
 	return state;
 	}
 
+/**
+ * Pause this job to make room for a job of higher priority. Splits and buckets
+ * queued for workers are forgotten, but the work already done is kept.
+ */
+public void pauseJob()
+	{
+	splitStore.cancelQueuedWork();
+	bucketStore.cancelQueuedWork();
+	state = State.PAUSED;
+	}
+
+/**
+ * Resume a paused job where it was left off.
+ */
+public void resumeJob()
+	{
+	state = State.RUNNING;
+	}
+
 /**
  * Mark this job as finished.
  */
@@ -171,6 +308,531 @@ public Object getCode()
 	return code;
 	}
 
+/**
+ * @return A hash of the code, the same for jobs which run the same code.
+ */
+public String getCodeHash()
+	{
+	return codeHash;
+	}
+
+/**
+ * @return How backup attempts are launched for straggling tasks of this job.
+ */
+public SpeculationPolicy getSpeculationPolicy()
+	{
+	return speculationPolicy;
+	}
+
+/**
+ * Set the speculation policy. This should be done before the job is started.
+ * 
+ * @param speculationPolicy
+ *            The new policy
+ */
+public void setSpeculationPolicy(SpeculationPolicy speculationPolicy)
+	{
+	this.speculationPolicy = speculationPolicy;
+	}
+
+/**
+ * @return The weight of this job when sharing workers between running jobs.
+ * @see JobScheduler
+ */
+public double getWeight()
+	{
+	return weight;
+	}
+
+/**
+ * Set the weight of this job. A job with twice the weight of another job is
+ * entitled to twice as many workers.
+ * 
+ * @param weight
+ *            The weight, must be positive
+ */
+public void setWeight(double weight)
+	{
+	if (weight <= 0)
+		{
+		throw new IllegalArgumentException("Job weight must be positive: "
+				+ weight);
+		}
+	this.weight = weight;
+	}
+
+/**
+ * @return The maximum fraction of workers this job may occupy at once.
+ */
+public double getMaxShare()
+	{
+	return maxShare;
+	}
+
+/**
+ * Set the maximum fraction of workers this job may occupy at once. A job is
+ * always allowed at least one worker.
+ * 
+ * @param maxShare
+ *            The share, between 0 (exclusive) and 1
+ */
+public void setMaxShare(double maxShare)
+	{
+	if (maxShare <= 0 || maxShare > 1)
+		{
+		throw new IllegalArgumentException(
+				"Job max share must be within (0,1]: " + maxShare);
+		}
+	this.maxShare = maxShare;
+	}
+
+/**
+ * @return The priority of this job, jobs of higher priority are run first.
+ */
+public int getPriority()
+	{
+	return priority;
+	}
+
+/**
+ * Set the priority of this job. This should be done before the job is
+ * queued.
+ * 
+ * @param priority
+ *            The priority, the default is 0
+ */
+public void setPriority(int priority)
+	{
+	this.priority = priority;
+	}
+
+/**
+ * @return The fraction of splits which need to be mapped before buckets of
+ *         this job are handed out.
+ */
+public double getReduceSlowStart()
+	{
+	return reduceSlowStart;
+	}
+
+/**
+ * Set the fraction of splits which need to be mapped before reducing starts.
+ * Reducers started before the map phase is complete fetch the chunks of the
+ * splits which are ready and are told to retry the rest later. With the
+ * default of 1 the map and reduce phases do not overlap.
+ * 
+ * @param reduceSlowStart
+ *            The fraction, between 0 (exclusive) and 1
+ */
+public void setReduceSlowStart(double reduceSlowStart)
+	{
+	if (reduceSlowStart <= 0 || reduceSlowStart > 1)
+		{
+		throw new IllegalArgumentException(
+				"Job reduce slow start must be within (0,1]: "
+						+ reduceSlowStart);
+		}
+	this.reduceSlowStart = reduceSlowStart;
+	}
+
+/**
+ * @return The suspicion level at which workers become unavailable for this
+ *         job, 0 if the heart beat timeout is used instead.
+ * @see FailureDetector
+ */
+public double getUnavailablePhi()
+	{
+	return unavailablePhi;
+	}
+
+/**
+ * Set the suspicion level at which workers become unavailable. Once the
+ * failure detector of a worker has seen enough heart beats, this replaces the
+ * heart beat timeout of the job for the worker.
+ * 
+ * @param unavailablePhi
+ *            The phi threshold, 0 to always use the heart beat timeout
+ */
+public void setUnavailablePhi(double unavailablePhi)
+	{
+	if (unavailablePhi < 0)
+		{
+		throw new IllegalArgumentException(
+				"Job unavailable phi must not be negative: " + unavailablePhi);
+		}
+	this.unavailablePhi = unavailablePhi;
+	}
+
+/**
+ * @return The suspicion level at which workers are considered dead for this
+ *         job, 0 if only the acknowledgment timeout is used.
+ * @see FailureDetector
+ */
+public double getDeadPhi()
+	{
+	return deadPhi;
+	}
+
+/**
+ * Set the suspicion level at which workers are considered dead. A worker
+ * which has gone silent is dead once its failure detector reaches this level,
+ * a worker which keeps sending heart beats without making progress is still
+ * dead after the acknowledgment timeout.
+ * 
+ * @param deadPhi
+ *            The phi threshold, 0 to only use the acknowledgment timeout
+ */
+public void setDeadPhi(double deadPhi)
+	{
+	if (deadPhi < 0)
+		{
+		throw new IllegalArgumentException(
+				"Job dead phi must not be negative: " + deadPhi);
+		}
+	this.deadPhi = deadPhi;
+	}
+
+/**
+ * @return How many workers should hold the chunks of each mapped split.
+ */
+public int getReplication()
+	{
+	return replication;
+	}
+
+/**
+ * Set how many workers should hold the chunks of each mapped split. When a
+ * split is mapped, idle workers are asked to copy its chunks until this many
+ * reachable workers can provide it. A split with copies need not be mapped
+ * again when the worker who mapped it leaves.
+ * 
+ * @param replication
+ *            The number of workers, 1 for no copies
+ */
+public void setReplication(int replication)
+	{
+	if (replication < 1)
+		{
+		throw new IllegalArgumentException(
+				"Job replication must be at least 1: " + replication);
+		}
+	this.replication = replication;
+	}
+
+/**
+ * @return How many times the mean bucket size a bucket may grow before it is
+ *         split, 0 if buckets are never split.
+ * @see BucketStore
+ */
+public double getSkewFactor()
+	{
+	return skewFactor;
+	}
+
+/**
+ * Set how many times the mean bucket size a bucket may grow before it is
+ * split into parts reduced in parallel. The parts are merged by reducing
+ * their output again, so this is only for jobs whose reducer can reduce its
+ * own output.
+ * 
+ * @param skewFactor
+ *            The factor, more than 1, or 0 to never split buckets
+ */
+public void setSkewFactor(double skewFactor)
+	{
+	if (skewFactor != 0 && !(skewFactor > 1))
+		{
+		throw new IllegalArgumentException(
+				"Job skew factor must be 0 or more than 1: " + skewFactor);
+		}
+	this.skewFactor = skewFactor;
+	}
+
+/**
+ * Set the optional parameters of the job from an ADDJOB payload. Parameters
+ * missing from the payload keep their current values.
+ * 
+ * @param payload
+ *            The payload of the ADDJOB message
+ * @throws IllegalArgumentException
+ *             If a parameter has an illegal value
+ */
+public void setParameters(Map<?, ?> payload) throws IllegalArgumentException
+	{
+	if (payload.get(SpeculationPolicy.FIELD_SPECULATION) != null)
+		{
+		setSpeculationPolicy(SpeculationPolicy.fromJSON((Map<?, ?>) payload
+				.get(SpeculationPolicy.FIELD_SPECULATION)));
+		}
+	if (payload.get(FIELD_WEIGHT) != null)
+		{
+		setWeight(Util.getDoubleFromJSONObject(payload.get(FIELD_WEIGHT)));
+		}
+	if (payload.get(FIELD_MAX_SHARE) != null)
+		{
+		setMaxShare(Util.getDoubleFromJSONObject(payload.get(FIELD_MAX_SHARE)));
+		}
+	if (payload.get(FIELD_PRIORITY) != null)
+		{
+		setPriority(Util.getIntFromJSONObject(payload.get(FIELD_PRIORITY)));
+		}
+	if (payload.get(FIELD_REDUCE_SLOW_START) != null)
+		{
+		setReduceSlowStart(Util.getDoubleFromJSONObject(payload
+				.get(FIELD_REDUCE_SLOW_START)));
+		}
+	if (payload.get(FIELD_UNAVAILABLE_PHI) != null)
+		{
+		setUnavailablePhi(Util.getDoubleFromJSONObject(payload
+				.get(FIELD_UNAVAILABLE_PHI)));
+		}
+	if (payload.get(FIELD_DEAD_PHI) != null)
+		{
+		setDeadPhi(Util.getDoubleFromJSONObject(payload.get(FIELD_DEAD_PHI)));
+		}
+	if (payload.get(FIELD_REPLICATION) != null)
+		{
+		setReplication(Util.getIntFromJSONObject(payload
+				.get(FIELD_REPLICATION)));
+		}
+	if (payload.get(FIELD_SKEW_FACTOR) != null)
+		{
+		setSkewFactor(Util.getDoubleFromJSONObject(payload
+				.get(FIELD_SKEW_FACTOR)));
+		}
+	if (payload.get(FIELD_INPUT) != null)
+		{
+		setInput(payload.get(FIELD_INPUT).toString());
+		}
+	if (payload.get(FIELD_SPLIT_DURATION) != null)
+		{
+		setSplitDuration(Util.getIntFromJSONObject(payload
+				.get(FIELD_SPLIT_DURATION)));
+		}
+	if (payload.get(FIELD_INTER_RATIO) != null)
+		{
+		setInterRatio(Util.getDoubleFromJSONObject(payload
+				.get(FIELD_INTER_RATIO)));
+		}
+	if (needsSizing() && (input == null || splitDuration <= 0))
+		{
+		throw new IllegalArgumentException("Job " + jobId + " leaves out "
+				+ Message.FIELD_NUM_MAPTASKS + " or "
+				+ Message.FIELD_NUM_REDUCETASKS + " without " + FIELD_INPUT
+				+ " and " + FIELD_SPLIT_DURATION);
+		}
+	}
+
+/**
+ * Describe the job as an ADDJOB payload, including the code and all optional
+ * parameters. The upstream jobs are listed in "upstream" as in the DO
+ * messages, these are not read by setParameters().
+ * 
+ * @return The payload
+ * @see #setParameters(Map)
+ */
+public Map<Object, Object> getParameters()
+	{
+	Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+	ret.put(Message.FIELD_NUM_MAPTASKS, maptasks);
+	ret.put(Message.FIELD_NUM_REDUCETASKS, reducetasks);
+	ret.put(FIELD_HEARTBEAT_TIMEOUT, heartbeatTimeout);
+	ret.put(FIELD_PROGRESS_TIMEOUT, acknowledgeTimeout);
+	ret.put(Message.FIELD_CODE, code);
+	ret.put(SpeculationPolicy.FIELD_SPECULATION, speculationPolicy.toJSON());
+	ret.put(FIELD_WEIGHT, weight);
+	ret.put(FIELD_MAX_SHARE, maxShare);
+	ret.put(FIELD_PRIORITY, priority);
+	ret.put(FIELD_REDUCE_SLOW_START, reduceSlowStart);
+	ret.put(FIELD_UNAVAILABLE_PHI, unavailablePhi);
+	ret.put(FIELD_DEAD_PHI, deadPhi);
+	ret.put(FIELD_REPLICATION, replication);
+	ret.put(FIELD_SKEW_FACTOR, skewFactor);
+	if (input != null)
+		{
+		ret.put(FIELD_INPUT, input);
+		}
+	if (splitDuration > 0)
+		{
+		ret.put(FIELD_SPLIT_DURATION, splitDuration);
+		}
+	ret.put(FIELD_INTER_RATIO, interRatio);
+	if (!upstreamJobs.isEmpty())
+		{
+		ret.put(FIELD_UPSTREAM, Message.getJSONMapForJob(this).get(
+				FIELD_UPSTREAM));
+		}
+	return ret;
+	}
+
+/**
+ * @return The jobs whose output this job reads, empty for a job reading its
+ *         own input.
+ */
+public List<Job> getUpstreamJobs()
+	{
+	return upstreamJobs;
+	}
+
+/**
+ * Set the jobs whose output this job reads. This should be done before the
+ * job is queued. The job waits for these jobs to finish before it is queued,
+ * and the workers are told where to read their output from.
+ * 
+ * @param upstreamJobs
+ *            The jobs, the order is the order workers read their output in
+ */
+public void setUpstreamJobs(List<Job> upstreamJobs)
+	{
+	this.upstreamJobs = Collections.unmodifiableList(new ArrayList<Job>(
+			upstreamJobs));
+	}
+
+/**
+ * @return True if every job this job reads the output of has finished.
+ */
+public boolean isReady()
+	{
+	for (Job j : upstreamJobs)
+		{
+		if (j.getState() != State.FINISHED)
+			{
+			return false;
+			}
+		}
+	return true;
+	}
+
+/**
+ * @return The input file of the job in the FS, or null if not given
+ */
+public String getInput()
+	{
+	return input;
+	}
+
+/**
+ * Set the input file of the job. The master reads its size to choose the
+ * number of splits and buckets if the job leaves them out.
+ * 
+ * @param input
+ *            The file name in the FS
+ */
+public void setInput(String input)
+	{
+	this.input = input;
+	}
+
+/**
+ * @return How long mapping a split should take in milliseconds, 0 if not
+ *         given
+ */
+public long getSplitDuration()
+	{
+	return splitDuration;
+	}
+
+/**
+ * Set how long mapping a split should take. The master chooses the size of
+ * the splits by this if the job leaves out the number of splits.
+ * 
+ * @param splitDuration
+ *            The duration in milliseconds, must be positive
+ */
+public void setSplitDuration(long splitDuration)
+	{
+	if (splitDuration <= 0)
+		{
+		throw new IllegalArgumentException(
+				"Job split duration must be positive: " + splitDuration);
+		}
+	this.splitDuration = splitDuration;
+	}
+
+/**
+ * @return The estimated bytes of intermediate data per byte of input
+ */
+public double getInterRatio()
+	{
+	return interRatio;
+	}
+
+/**
+ * Set the estimated bytes of intermediate data per byte of input. The master
+ * chooses the number of buckets by this if the job leaves it out.
+ * 
+ * @param interRatio
+ *            The ratio, must be positive
+ */
+public void setInterRatio(double interRatio)
+	{
+	if (interRatio <= 0)
+		{
+		throw new IllegalArgumentException(
+				"Job intermediate data ratio must be positive: " + interRatio);
+		}
+	this.interRatio = interRatio;
+	}
+
+/**
+ * @return The size of the input in bytes if the master sized the job by it,
+ *         -1 otherwise
+ */
+public long getInputSize()
+	{
+	return inputSize;
+	}
+
+/**
+ * @return True if the master has to choose the number of splits or buckets
+ *         before the job can start
+ * @see JobSizer
+ */
+public boolean needsSizing()
+	{
+	return maptasks <= 0 || reducetasks <= 0;
+	}
+
+/**
+ * Set the number of splits and buckets chosen by the master. This is done
+ * before the job is started.
+ * 
+ * @param maptasks
+ *            The number of splits
+ * @param reducetasks
+ *            The number of buckets
+ * @param inputSize
+ *            The size of the input they were chosen for, -1 if not known
+ */
+void resize(int maptasks, int reducetasks, long inputSize)
+	{
+	if (state != State.NEW)
+		{
+		throw new IllegalStateException("Cannot resize a started job: " + this);
+		}
+	this.maptasks = maptasks;
+	this.reducetasks = reducetasks;
+	this.inputSize = inputSize;
+	}
+
+/**
+ * @return The number of workers currently working on a task of this job.
+ */
+public int getAssignedWorkers()
+	{
+	return assignedWorkers;
+	}
+
+void workerAssigned()
+	{
+	assignedWorkers++;
+	}
+
+void workerReleased()
+	{
+	assignedWorkers--;
+	}
+
 public long getStartTime()
 	{
 	return startTime;
@@ -0,0 +1,606 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A write-ahead journal of the jobs of the master. Queued jobs, the sizes chosen for them, 
+ * acknowledged splits and buckets, finished and removed jobs are appended to a journal file as JSON records, one per line. When 
+ * the master is restarted, the journal is replayed and the unfinished jobs are queued again with 
+ * the buckets which were already reduced.
+ * 
+ * Records are appended within the "big lock", so appending only encodes the record and hands it 
+ * to a writer thread. The writer commits whatever has accumulated with a single write and fsync,
+ * so a busy master does not wait for the disk once per acknowledgment.
+ * 
+ * Every snapshotInterval records the master hands in a snapshot of its unfinished jobs. The 
+ * snapshot is written into a file of its own, after which the journal is truncated. Replaying
+ * records already contained in the snapshot does not change the result, so a crash between 
+ * these two steps loses nothing.
+ * 
+ * @see MasterStoreImpl#setJournal(JobJournal)
+ * @see MasterStoreImpl#restoreJobs(List)
+ */
+public class JobJournal
+{
+	private static Logger logger = Util.getLoggerForClass(JobJournal.class);
+	
+	public static final String JOURNAL_FILE = "journal";
+	public static final String SNAPSHOT_FILE = "snapshot";
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+	
+	private static final String FIELD_OP = "op";
+	private static final String FIELD_ID = "id";
+	private static final String FIELD_JOB = "job";
+	private static final String FIELD_IDS = "ids";
+	
+	private static final String OP_QUEUE = "queue";
+	private static final String OP_SPLITS = "splits";
+	private static final String OP_BUCKETS = "buckets";
+	private static final String OP_SIZED = "sized";
+	private static final String OP_FINISH = "finish";
+	private static final String OP_REMOVE = "remove";
+	
+	/**
+	 * A job as it was when the journal was last written.
+	 */
+	public static class JobRecord
+	{
+		private final int jobId;
+		private final Map<Object, Object> parameters;
+		private final BitSet splitsDone;
+		private final BitSet bucketsDone;
+		private boolean finished;
+		
+		private JobRecord(int jobId, Map<?, ?> parameters)
+		{
+			this.jobId = jobId;
+			this.parameters = new LinkedHashMap<Object, Object>(parameters);
+			this.splitsDone = new BitSet();
+			this.bucketsDone = new BitSet();
+			this.finished = false;
+		}
+		
+		public int getJobId()
+		{
+			return jobId;
+		}
+		
+		/**
+		 * @return The job as an ADDJOB payload
+		 * @see Job#getParameters()
+		 */
+		public Map<?, ?> getParameters()
+		{
+			return parameters;
+		}
+		
+		public BitSet getSplitsDone()
+		{
+			return splitsDone;
+		}
+		
+		public BitSet getBucketsDone()
+		{
+			return bucketsDone;
+		}
+		
+		public boolean isFinished()
+		{
+			return finished;
+		}
+	}
+	
+	private final File journalFile;
+	private final File snapshotFile;
+	private final int snapshotInterval;
+	
+	// Encoded records and snapshots (lists of encoded records) waiting for the writer
+	private final List<Object> pending;
+	private int recordsSinceSnapshot;
+	private boolean running;
+	
+	private Thread writer;
+	private FileChannel channel;
+	
+	/**
+	 * Create a journal with the default snapshot interval.
+	 * 
+	 * @param directory The directory of the journal and snapshot files, created if missing
+	 */
+	public JobJournal(File directory)
+	{
+		this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+	}
+	
+	/**
+	 * Create a journal.
+	 * 
+	 * @param directory The directory of the journal and snapshot files, created if missing
+	 * @param snapshotInterval How many records are appended between snapshots
+	 */
+	public JobJournal(File directory, int snapshotInterval)
+	{
+		if (snapshotInterval < 1) {
+			throw new IllegalArgumentException("Snapshot interval must be positive: "+snapshotInterval);
+		}
+		directory.mkdirs();
+		
+		this.journalFile = new File(directory, JOURNAL_FILE);
+		this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+		this.snapshotInterval = snapshotInterval;
+		this.pending = new ArrayList<Object>();
+		this.recordsSinceSnapshot = 0;
+		this.running = false;
+	}
+	
+	// **************************** Replay
+	
+	/**
+	 * Read the snapshot and the journal. This should be done before the journal is started.
+	 * 
+	 * @return The jobs which had not finished and were not removed, in the order they were created
+	 * @throws IOException If the files exist but cannot be read
+	 */
+	public List<JobRecord> replay() throws IOException
+	{
+		Map<Integer, JobRecord> jobs = new LinkedHashMap<Integer, JobRecord>();
+		
+		if (snapshotFile.exists()) {
+			replayFile(snapshotFile, jobs);
+		}
+		if (journalFile.exists()) {
+			replayFile(journalFile, jobs);
+		}
+		
+		List<JobRecord> ret = new ArrayList<JobRecord>();
+		for (JobRecord r : jobs.values()) {
+			if (!r.isFinished()) {
+				ret.add(r);
+			}
+		}
+		return ret;
+	}
+	
+	private void replayFile(File file, Map<Integer, JobRecord> jobs) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				
+				Map<?, ?> record;
+				try {
+					record = JSON.getJSONMapForJob(line);
+					if (record != null) {
+						replayRecord(record, jobs);
+					}
+				} catch (RuntimeException re) {
+					logger.log(Level.SEVERE, "Illegal record in "+file+": "+line, re);
+					record = null;
+				}
+				
+				// The master might have died in the middle of a write, later records cannot be trusted
+				if (record == null) {
+					logger.warning("Ignoring the rest of "+file+" after "+n+" records");
+					break;
+				}
+				n++;
+			}
+			logger.info("Replayed "+n+" records from "+file);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void replayRecord(Map<?, ?> record, Map<Integer, JobRecord> jobs)
+	{
+		Object op = record.get(FIELD_OP);
+		int jobId = Util.getIntFromJSONObject(record.get(FIELD_ID));
+		
+		if (OP_QUEUE.equals(op)) {
+			if (!jobs.containsKey(jobId)) {
+				jobs.put(jobId, new JobRecord(jobId, (Map<?, ?>)record.get(FIELD_JOB)));
+			}
+			return;
+		}
+		
+		JobRecord r = jobs.get(jobId);
+		if (r == null) {
+			return;
+		}
+		
+		if (OP_SPLITS.equals(op)) {
+			for (Object id : Util.getListFromJSONObject(record.get(FIELD_IDS))) {
+				r.splitsDone.set(Util.getIntFromJSONObject(id));
+			}
+		} else if (OP_BUCKETS.equals(op)) {
+			for (Object id : Util.getListFromJSONObject(record.get(FIELD_IDS))) {
+				r.bucketsDone.set(Util.getIntFromJSONObject(id));
+			}
+		} else if (OP_SIZED.equals(op)) {
+			r.parameters.put(Message.FIELD_NUM_MAPTASKS, record.get(Message.FIELD_NUM_MAPTASKS));
+			r.parameters.put(Message.FIELD_NUM_REDUCETASKS, record.get(Message.FIELD_NUM_REDUCETASKS));
+		} else if (OP_FINISH.equals(op)) {
+			r.finished = true;
+		} else if (OP_REMOVE.equals(op)) {
+			jobs.remove(jobId);
+		} else {
+			logger.warning("Unknown journal record: "+record);
+		}
+	}
+	
+	// **************************** Appending
+	
+	/**
+	 * Record a job which was added to the job queue, including its code and parameters.
+	 * 
+	 * @param job The job
+	 */
+	public void jobQueued(Job job)
+	{
+		Map<Object, Object> record = record(OP_QUEUE, job);
+		record.put(FIELD_JOB, job.getParameters());
+		append(record);
+	}
+	
+	/**
+	 * Record acknowledged splits. Splits outside of the job are left out.
+	 * 
+	 * @param job The job
+	 * @param splits The acknowledged splits
+	 */
+	public void splitsDone(Job job, List<Split> splits)
+	{
+		List<Integer> ids = new ArrayList<Integer>(splits.size());
+		for (Split s : splits) {
+			if (s.getId() >= 0 && s.getId() < job.getMapTasks()) {
+				ids.add(s.getId());
+			}
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+		
+		Map<Object, Object> record = record(OP_SPLITS, job);
+		record.put(FIELD_IDS, ids);
+		append(record);
+	}
+	
+	/**
+	 * Record a reduced bucket.
+	 * 
+	 * @param job The job
+	 * @param b The bucket
+	 */
+	public void bucketDone(Job job, Bucket b)
+	{
+		if (b.getId() < 0 || b.getId() >= job.getReduceTasks()) {
+			return;
+		}
+		
+		Map<Object, Object> record = record(OP_BUCKETS, job);
+		record.put(FIELD_IDS, Collections.singletonList(b.getId()));
+		append(record);
+	}
+	
+	/**
+	 * Record the number of splits and buckets the master chose for a job.
+	 * 
+	 * @param job The job
+	 * @see JobSizer
+	 */
+	public void jobSized(Job job)
+	{
+		Map<Object, Object> record = record(OP_SIZED, job);
+		record.put(Message.FIELD_NUM_MAPTASKS, job.getMapTasks());
+		record.put(Message.FIELD_NUM_REDUCETASKS, job.getReduceTasks());
+		append(record);
+	}
+	
+	/**
+	 * Record a job whose every bucket was reduced.
+	 * 
+	 * @param job The job
+	 */
+	public void jobFinished(Job job)
+	{
+		append(record(OP_FINISH, job));
+	}
+	
+	/**
+	 * Record a job which was removed from the master.
+	 * 
+	 * @param job The job
+	 */
+	public void jobRemoved(Job job)
+	{
+		append(record(OP_REMOVE, job));
+	}
+	
+	/**
+	 * @return True if enough records have been appended since the previous snapshot
+	 */
+	public boolean isSnapshotDue()
+	{
+		synchronized (pending) {
+			return recordsSinceSnapshot >= snapshotInterval;
+		}
+	}
+	
+	/**
+	 * Hand in a snapshot of the jobs. The snapshot replaces the records appended so far. The
+	 * snapshot is taken right away, the jobs must not change while this method runs.
+	 * 
+	 * @param jobs The jobs of the master, finished jobs are left out
+	 */
+	public void snapshot(Collection<Job> jobs)
+	{
+		List<Job> sorted = new ArrayList<Job>(jobs);
+		// Job IDs grow with time, so replaying the snapshot queues the jobs in their original order
+		Collections.sort(sorted, new Comparator<Job>() {
+			@Override
+			public int compare(Job a, Job b)
+			{
+				return a.getJobId() < b.getJobId() ? -1 : (a.getJobId() == b.getJobId() ? 0 : 1);
+			}
+		});
+		
+		List<String> lines = new ArrayList<String>();
+		for (Job job : sorted) {
+			if (job.getState() == Job.State.FINISHED) {
+				continue;
+			}
+			
+			Map<Object, Object> record = record(OP_QUEUE, job);
+			record.put(FIELD_JOB, job.getParameters());
+			lines.add(JSON.toString(record));
+			
+			BitSet buckets = job.getBucketsDone();
+			if (!buckets.isEmpty()) {
+				record = record(OP_BUCKETS, job);
+				record.put(FIELD_IDS, toList(buckets));
+				lines.add(JSON.toString(record));
+			}
+			
+			BitSet splits = new BitSet();
+			SplitStore ss = job.getSplitInformation();
+			if (ss != null) {
+				for (int i = 0; i < job.getMapTasks(); i++) {
+					if (ss.isSplitDone(new Split(i))) {
+						splits.set(i);
+					}
+				}
+			}
+			if (!splits.isEmpty()) {
+				record = record(OP_SPLITS, job);
+				record.put(FIELD_IDS, toList(splits));
+				lines.add(JSON.toString(record));
+			}
+		}
+		
+		synchronized (pending) {
+			pending.add(lines);
+			recordsSinceSnapshot = 0;
+			pending.notify();
+		}
+	}
+	
+	private static List<Integer> toList(BitSet bits)
+	{
+		List<Integer> ret = new ArrayList<Integer>(bits.cardinality());
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			ret.add(i);
+		}
+		return ret;
+	}
+	
+	private static Map<Object, Object> record(String op, Job job)
+	{
+		Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+		ret.put(FIELD_OP, op);
+		ret.put(FIELD_ID, job.getJobId());
+		return ret;
+	}
+	
+	private void append(Map<Object, Object> record)
+	{
+		String line = JSON.toString(record);
+		synchronized (pending) {
+			pending.add(line);
+			recordsSinceSnapshot++;
+			pending.notify();
+		}
+	}
+	
+	// **************************** Writer thread
+	
+	/**
+	 * Open the journal file and start the writer thread. New records are appended after the 
+	 * records already in the journal.
+	 * 
+	 * @throws IOException If the journal file cannot be opened
+	 */
+	public void start() throws IOException
+	{
+		channel = new RandomAccessFile(journalFile, "rw").getChannel();
+		channel.position(channel.size());
+		
+		synchronized (pending) {
+			running = true;
+		}
+		
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				writeRecords();
+			}
+		}, "JobJournal writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Write the pending records and stop the writer thread.
+	 * 
+	 * @throws InterruptedException If interrupted while waiting for the writer
+	 */
+	public void stop() throws InterruptedException
+	{
+		synchronized (pending) {
+			running = false;
+			pending.notify();
+		}
+		if (writer != null) {
+			writer.join();
+		}
+	}
+	
+	private void writeRecords()
+	{
+		while (true) {
+			List<Object> batch;
+			synchronized (pending) {
+				while (pending.isEmpty() && running) {
+					try {
+						pending.wait();
+					} catch (InterruptedException ie) {
+						logger.log(Level.WARNING, "JobJournal writer interrupted", ie);
+					}
+				}
+				if (pending.isEmpty()) {
+					break;
+				}
+				batch = new ArrayList<Object>(pending);
+				pending.clear();
+			}
+			
+			try {
+				commit(batch);
+			} catch (IOException ioe) {
+				logger.log(Level.SEVERE, "Could not write "+batch.size()+" records to the job journal", ioe);
+			}
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			logger.log(Level.SEVERE, "Could not close the job journal", ioe);
+		}
+	}
+	
+	/**
+	 * Write a batch of records with a single fsync. Records preceding a snapshot in the batch
+	 * are contained in the snapshot and are not written at all.
+	 */
+	@SuppressWarnings("unchecked")
+	private void commit(List<Object> batch) throws IOException
+	{
+		int first = 0;
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			if (batch.get(i) instanceof List) {
+				writeSnapshot((List<String>)batch.get(i));
+				first = i + 1;
+				break;
+			}
+		}
+		if (first == batch.size()) {
+			return;
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = first; i < batch.size(); i++) {
+			sb.append((String)batch.get(i)).append('\n');
+		}
+		write(channel, sb.toString());
+		channel.force(false);
+	}
+	
+	private void writeSnapshot(List<String> lines) throws IOException
+	{
+		File tmp = new File(snapshotFile.getPath()+".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (String line : lines) {
+				sb.append(line).append('\n');
+			}
+			write(out.getChannel(), sb.toString());
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		
+		if (!tmp.renameTo(snapshotFile)) {
+			// Not every platform replaces the target of a rename
+			snapshotFile.delete();
+			if (!tmp.renameTo(snapshotFile)) {
+				throw new IOException("Could not rename "+tmp+" to "+snapshotFile);
+			}
+		}
+		
+		// The snapshot contains everything in the journal
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(true);
+		
+		logger.fine("Wrote a snapshot of "+lines.size()+" records");
+	}
+	
+	private static void write(FileChannel ch, String s) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(s.getBytes("UTF-8"));
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.util.List;
+
+/**
+ * Decides how workers are shared between the jobs running at the same time. Every time a worker 
+ * asks for work, the master asks the scheduler to rank the running jobs and gives the worker a 
+ * task from the first job in the ranking which has work available.
+ * 
+ * When the master has several shards, the shards rank jobs for their workers at the same time
+ * without the "big lock", so rankJobs() may be called concurrently.
+ * 
+ * @author stsavola
+ * @see FairShareScheduler
+ */
+public interface JobScheduler
+{
+	/**
+	 * Rank the running jobs for a worker asking for work.
+	 * 
+	 * @param worker The worker asking for work
+	 * @param current The job the worker is currently working on or null if it is idle
+	 * @param runningJobs The running jobs in the order they were started
+	 * @param workers The number of workers registered to the master
+	 * @return The jobs the worker may be given work from, the job with the best claim to the worker first
+	 */
+	public List<Job> rankJobs(Worker worker, Job current, List<Job> runningJobs, int workers);
+}
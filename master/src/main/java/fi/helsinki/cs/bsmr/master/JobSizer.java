@@ -0,0 +1,176 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of splits and buckets of jobs which leave them to the master. The input 
+ * of the job is cut into splits which take about the target split duration of the job to map, 
+ * rounded up to whole waves over the slots of the connected workers, so that every worker is 
+ * busy until the last wave. The number of buckets follows from the estimated amount of 
+ * intermediate data, at most one bucket per slot.
+ * 
+ * How fast a slot maps is learned from the jobs sized so far, starting from DEFAULT_MAP_RATE.
+ * 
+ * @see Job#needsSizing()
+ */
+public class JobSizer
+{
+	private static Logger logger = Util.getLoggerForClass(JobSizer.class);
+	
+	/**
+	 * Bytes of input mapped by one slot per millisecond before anything has been measured
+	 */
+	public static final double DEFAULT_MAP_RATE = 1000;
+	
+	/**
+	 * Upper limit for the number of splits of a job
+	 */
+	public static final int MAX_MAP_TASKS = 1 << 20;
+	
+	// Weight of the latest measurement in the learned map rate
+	private static final double RATE_WEIGHT = 0.3;
+	
+	/**
+	 * Tells the size of input files.
+	 */
+	public interface InputSizes
+	{
+		/**
+		 * @param filename The input of a job
+		 * @return The size of the file in bytes
+		 * @throws IOException If the size cannot be found out
+		 */
+		public long getSize(String filename) throws IOException;
+	}
+	
+	private final InputSizes inputSizes;
+	private double mapRate;
+	
+	/**
+	 * Create a job sizer.
+	 * 
+	 * @param inputSizes Where input sizes are looked up, null if they are not known
+	 */
+	public JobSizer(InputSizes inputSizes)
+	{
+		this.inputSizes = inputSizes;
+		this.mapRate = DEFAULT_MAP_RATE;
+	}
+	
+	/**
+	 * @return The learned number of bytes mapped by one slot per millisecond
+	 */
+	public double getMapRate()
+	{
+		return mapRate;
+	}
+	
+	/**
+	 * Choose the splits and buckets of a job which left them out. If the size of the input is not 
+	 * known, the job gets one split and one bucket per slot.
+	 * 
+	 * @param job The job, it must not have been started
+	 * @param slots The total slots of the connected workers
+	 */
+	public void sizeJob(Job job, int slots)
+	{
+		long inputSize = -1;
+		if (inputSizes != null && job.getInput() != null) {
+			try {
+				inputSize = inputSizes.getSize(job.getInput());
+			} catch(IOException ioe) {
+				logger.log(Level.SEVERE, "Could not find out the size of "+job.getInput()+" for "+job, ioe);
+			}
+		} 
+		
+		int m = job.getMapTasks();
+		int r = job.getReduceTasks();
+		if (inputSize < 0) {
+			m = m > 0 ? m : Math.max(1, slots);
+			r = r > 0 ? r : Math.max(1, slots);
+		} else {
+			double splitBytes = mapRate * job.getSplitDuration();
+			m = m > 0 ? m : computeMapTasks(inputSize, splitBytes, slots);
+			r = r > 0 ? r : computeReduceTasks(inputSize * job.getInterRatio(), splitBytes, slots);
+		}
+		
+		logger.info("Sized "+job+" for "+inputSize+" bytes of input and "+slots+" slots: M="+m+", R="+r);
+		job.resize(m, r, inputSize);
+	}
+	
+	/**
+	 * @param inputSize Bytes of input
+	 * @param splitBytes Bytes of input in a split of the target duration
+	 * @param slots The total slots of the connected workers
+	 * @return The number of splits
+	 */
+	public static int computeMapTasks(long inputSize, double splitBytes, int slots)
+	{
+		long m = Math.max(1, (long)Math.ceil(inputSize / Math.max(1.0, splitBytes)));
+		
+		// Whole waves, so that the last wave does not leave most of the workers idle
+		long s = Math.max(1, slots);
+		m = (m + s - 1) / s * s;
+		
+		// A split has at least one byte
+		return (int)Math.max(1, Math.min(m, Math.min(inputSize, MAX_MAP_TASKS)));
+	}
+	
+	/**
+	 * @param interSize Estimated bytes of intermediate data
+	 * @param splitBytes Bytes of input in a split of the target duration
+	 * @param slots The total slots of the connected workers
+	 * @return The number of buckets
+	 */
+	public static int computeReduceTasks(double interSize, double splitBytes, int slots)
+	{
+		long r = (long)Math.ceil(interSize / Math.max(1.0, splitBytes));
+		return (int)Math.max(1, Math.min(r, Math.max(1, slots)));
+	}
+	
+	/**
+	 * Learn the map rate from a finished job which was sized by this sizer.
+	 * 
+	 * @param job The finished job
+	 */
+	public void jobFinished(Job job)
+	{
+		long duration = job.getSplitInformation() == null ? -1 : job.getSplitInformation().getMeanDuration();
+		if (job.getInputSize() <= 0 || duration <= 0) {
+			return;
+		}
+		
+		double rate = (double)job.getInputSize() / job.getMapTasks() / duration;
+		mapRate += RATE_WEIGHT * (rate - mapRate);
+		logger.fine("Splits of "+job+" were mapped at "+rate+" bytes/ms, map rate is now "+mapRate);
+	}
+}
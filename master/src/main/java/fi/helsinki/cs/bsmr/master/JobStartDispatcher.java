@@ -0,0 +1,186 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the first tasks of a newly started job to the idle workers. The tasks are selected within
+ * the "big lock", but encoded and sent by a pool of threads outside of it. The pace is limited by a
+ * token bucket so that a large swarm does not flood the master's network in one go, but the whole
+ * swarm is still busy within seconds instead of one worker per second.
+ * 
+ * A message given to the dispatcher is dropped if the worker is sent another message before the
+ * dispatcher gets to it, as the newer message overrides it.
+ * 
+ * @see MasterStoreImpl#startNextJob()
+ */
+public class JobStartDispatcher
+{
+	private static Logger logger = Util.getLoggerForClass(JobStartDispatcher.class);
+	
+	public static final double DEFAULT_RATE = 200;
+	public static final int DEFAULT_THREADS = 4;
+	
+	private final double rate;
+	private final int threads;
+	private final TokenBucket tokens;
+	private final ExecutorService executor;
+	
+	/**
+	 * Create a dispatcher.
+	 * 
+	 * @param rate How many messages are sent per second at most. One second worth of messages may be
+	 *             sent in a burst.
+	 * @param threads How many threads encode and send the messages
+	 */
+	public JobStartDispatcher(double rate, int threads)
+	{
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Job start rate must be positive: "+rate);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Job start threads must be at least 1: "+threads);
+		}
+		
+		this.rate = rate;
+		this.threads = threads;
+		this.tokens = new TokenBucket(rate, Math.max(1, rate));
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "JobStartDispatcher thread "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * @return How many messages are sent per second at most
+	 */
+	public double getRate()
+	{
+		return rate;
+	}
+	
+	/**
+	 * @return How many threads encode and send the messages
+	 */
+	public int getThreads()
+	{
+		return threads;
+	}
+	
+	/**
+	 * Send a message to a worker. This needs to be called within the "big lock". The running jobs of the
+	 * message need to be a copy as the message is encoded outside of the lock.
+	 * 
+	 * @param worker The worker
+	 * @param msg The message for the worker
+	 */
+	public void dispatch(final Worker worker, final Message msg)
+	{
+		worker.setPendingStart(msg);
+		
+		executor.execute(new Runnable() {
+			public void run()
+			{
+				try {
+					tokens.acquire();
+					worker.sendPendingStart(msg);
+					
+				} catch(InterruptedException ie) {
+					logger.fine("Interrupted, not sending the first task to worker "+worker.getId());
+				} catch(IOException ie) {
+					logger.log(Level.SEVERE, "Could not send the first task to worker. Terminating connection.", ie);
+					worker.disconnect();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Stop the dispatcher. Messages not sent yet are dropped.
+	 */
+	public void stop() throws InterruptedException
+	{
+		executor.shutdownNow();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * A token bucket which is refilled at a constant rate up to its capacity.
+	 */
+	static class TokenBucket
+	{
+		private final double rate;
+		private final double capacity;
+		
+		private double tokens;
+		private long lastRefill;
+		
+		TokenBucket(double rate, double capacity)
+		{
+			this.rate = rate;
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.lastRefill = System.nanoTime();
+		}
+		
+		/**
+		 * Take a token, waiting until one is available. Waiting threads are served one at a time.
+		 */
+		synchronized void acquire() throws InterruptedException
+		{
+			refill();
+			while (tokens < 1) {
+				long wait = (long)Math.ceil((1 - tokens) * 1000 / rate);
+				Thread.sleep(Math.max(1, wait));
+				refill();
+			}
+			tokens -= 1;
+		}
+		
+		private void refill()
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.util.logging.Logger;
+
+/**
+ * A thread which periodically advances the liveness timers of the master, so that workers are
+ * moved to UNAVAILABLE and DEAD even when no messages arrive.
+ * 
+ * @see MasterContext#checkWorkerLiveness()
+ */
+public class LivenessTicker implements Runnable
+{
+	private static Logger logger = Util.getLoggerForClass(LivenessTicker.class);
+	
+	public static final long TIME_BETWEEN_CHECKS = 500;
+	
+	private Thread thread;
+	private volatile boolean running;
+	
+	private MasterContext master;
+	
+	public LivenessTicker(MasterContext master)
+	{
+		this.master = master;
+		this.thread = null;
+	}
+	
+	public synchronized void start()
+	{
+		if (thread != null) throw new IllegalThreadStateException("LivenessTicker already started");
+		
+		running = true;
+		thread = new Thread(this, "LivenessTicker thread");
+		thread.start();
+	}
+	
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		thread.interrupt();
+		thread.join();
+	}
+	
+	@Override
+	public void run()
+	{
+		while (running) {
+			try {
+				Thread.sleep(TIME_BETWEEN_CHECKS);
+			} catch(InterruptedException ie) {
+				continue;
+			}
+			
+			TimeContext.markTime();
+			logger.finest("Checking worker liveness");
+			master.checkWorkerLiveness();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the liveness state of every worker for every started job. A worker moves from ALIVE to
+ * UNAVAILABLE when the heart beat timeout of the job passes and to DEAD when the acknowledgment 
+ * timeout of the job passes. The deadlines are kept in a timer wheel, so that scheduling code can
+ * read the state of a worker instead of comparing timestamps, and so that the master is told about
+ * workers dropping out as soon as it happens instead of when some scan touches them.
+ * 
+ * Messages from workers only update the timestamps of the worker. When a deadline expires, the 
+ * state is recomputed from the timestamps and the deadline is moved forward if the worker has been
+ * heard from meanwhile. A worker which is not ALIVE needs to be refreshed when it is heard from.
+ * 
+ * The tracker is used within the "big lock".
+ * 
+ * @see Worker#getState(Job)
+ */
+public class LivenessTracker
+{
+	private static Logger logger = Util.getLoggerForClass(LivenessTracker.class);
+	
+	public static final long TICK_DURATION = 100;
+	public static final int BUCKETS = 512;
+	
+	/**
+	 * Receives the state changes of workers.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param worker The worker whose state changed
+		 * @param job The job whose timeouts the state is for
+		 * @param from The previous state
+		 * @param to The new state
+		 */
+		public void workerStateChanged(Worker worker, Job job, Worker.State from, Worker.State to);
+	}
+	
+	private TimerWheel wheel;
+	private Listener listener;
+	
+	public LivenessTracker(Listener listener)
+	{
+		this.wheel = new TimerWheel(TICK_DURATION, BUCKETS, TimeContext.now());
+		this.listener = listener;
+	}
+	
+	/**
+	 * Start tracking the state of a worker for a job.
+	 */
+	public void track(Worker worker, Job job)
+	{
+		if (worker.getLiveness(job) != null) {
+			return;
+		}
+		
+		Entry e = new Entry(worker, job);
+		worker.addLiveness(e);
+		e.update(TimeContext.now(), false);
+	}
+	
+	/**
+	 * Stop tracking the state of a worker for a job.
+	 */
+	public void untrack(Worker worker, Job job)
+	{
+		Entry e = worker.removeLiveness(job);
+		if (e != null) {
+			wheel.cancel(e);
+		}
+	}
+	
+	/**
+	 * Stop tracking a worker for all jobs.
+	 */
+	public void untrack(Worker worker)
+	{
+		List<Entry> entries = worker.getLivenessEntries();
+		while (!entries.isEmpty()) {
+			untrack(worker, entries.get(0).job);
+		}
+	}
+	
+	/**
+	 * Recompute the states of a worker, e.g. after a message from a worker which was not ALIVE.
+	 * Listeners are notified of changes.
+	 */
+	public void refresh(Worker worker)
+	{
+		long now = TimeContext.now();
+		List<Entry> entries = worker.getLivenessEntries();
+		for (int i = 0; i < entries.size(); i++) {
+			entries.get(i).update(now, true);
+		}
+	}
+	
+	/**
+	 * Expire the deadlines which have passed. Listeners are notified of workers changing state.
+	 * 
+	 * @param now The current time
+	 */
+	public void advance(long now)
+	{
+		wheel.advance(now);
+	}
+	
+	/**
+	 * @return The number of deadlines being waited for
+	 */
+	public int getScheduledCount()
+	{
+		return wheel.size();
+	}
+	
+	/**
+	 * The state of one worker for one job and the next deadline at which the state might change.
+	 */
+	class Entry extends TimerWheel.Timeout
+	{
+		final Worker worker;
+		final Job job;
+		volatile Worker.State state;
+		
+		Entry(Worker worker, Job job)
+		{
+			this.worker = worker;
+			this.job = job;
+			this.state = Worker.State.ALIVE;
+		}
+		
+		@Override
+		protected void expired(long now)
+		{
+			update(now, true);
+		}
+		
+		void update(long now, boolean notify)
+		{
+			Worker.State old = state;
+			state = worker.computeState(job, now);
+			
+			long deadline;
+			switch (state) {
+			case ALIVE:
+				deadline = Math.min(worker.getAvailableUntil(job), worker.getAliveUntil(job));
+				break;
+			case UNAVAILABLE:
+				deadline = worker.getAliveUntil(job);
+				break;
+			default:
+				// Only a message from the worker can bring it back
+				deadline = -1;
+			}
+			
+			if (deadline >= 0) {
+				wheel.schedule(this, deadline);
+			} else {
+				wheel.cancel(this);
+			}
+			
+			if (notify && old != state) {
+				logger.fine("Worker "+worker.getId()+" is "+state+" for "+job);
+				listener.workerStateChanged(worker, job, old, state);
+			}
+		}
+	}
+}
@@ -57,10 +57,28 @@ public interface MasterContext
 	 * 
 	 * @param worker The worker who we are selecting work for
 	 * @param msg The message sent by the worker (required for the reduceSplit reply)
-	 * @return The message to be sent to the worker
+	 * @return The message to be sent to the worker or null if the worker is still mapping a batch of
+	 *         splits and should not be sent anything
 	 */
 	public Message selectTaskForWorker(Worker worker, Message msg);
 	
+	/**
+	 * Handle a work message of a worker: acknowledge the work and select the next task. Map and
+	 * reduce work of a running job is handled within the shard of the worker when the master has 
+	 * several shards, everything else takes the "big lock".
+	 * 
+	 * @param worker The worker who sent the message
+	 * @param msg The message
+	 * @return The message to be sent to the worker or null if nothing should be sent
+	 * @see MasterContext#getShardCount()
+	 */
+	public Message handleWork(Worker worker, Message msg);
+	
+	/**
+	 * @return The number of shards the workers and the splits of each job are divided into.
+	 */
+	public int getShardCount();
+	
 	// Worker functionality
 
 	/**
@@ -100,6 +118,37 @@ public interface MasterContext
 	 */
 	public String getWorkerURL(Worker worker);
 	
+	/**
+	 * Set how many tasks the worker runs in parallel. Workers announce this in their heart beats.
+	 * 
+	 * @param worker The worker
+	 * @param slots The number of slots, at least 1
+	 * @see Worker#getSlots()
+	 */
+	public void   setWorkerSlots(Worker worker, int slots);
+	
+	/**
+	 * @return The total number of slots of all registered workers.
+	 */
+	public int    getTotalSlots();
+	
+	/**
+	 * Recompute the liveness state of the worker. This is called when a worker which was not ALIVE 
+	 * for some job is heard from.
+	 * 
+	 * @param worker The worker
+	 * @see Worker#getState(Job)
+	 */
+	public void   refreshWorkerLiveness(Worker worker);
+	
+	/**
+	 * Move workers whose timeouts have passed to their new state and let the master react to 
+	 * workers dropping out. This is called periodically and whenever a worker is heard from.
+	 * 
+	 * @see LivenessTracker
+	 */
+	public void   checkWorkerLiveness();
+	
 	/**
 	 * Find out which worker has this URL.
 	 * 
@@ -108,6 +157,15 @@ public interface MasterContext
 	 */
 	public Worker getWorkerByURL(String url);
 	
+	/**
+	 * Find the worker with the given ID.
+	 * 
+	 * @param id The worker ID
+	 * @return The worker or null if no worker with that ID is currently registered.
+	 * @see Worker#getId()
+	 */
+	public Worker getWorkerById(int id);
+	
 	/**
 	 * @return A set of all workers who are registered to this master.
 	 */
@@ -131,7 +189,17 @@ public interface MasterContext
 	public Job     getJobById(int jobId);
 	
 	/**
-	 * Adds a job to the end of the job queue. 
+	 * Find a job which runs the code with the given hash. This can be called outside the "big lock".
+	 * 
+	 * @param codeHash The hash of the code
+	 * @return Any job with the code or null if no job has it.
+	 * @see Job#getCodeHash()
+	 */
+	public Job     getJobByCodeHash(String codeHash);
+	
+	/**
+	 * Adds a job to the job queue behind the queued jobs of the same or higher priority. A job
+	 * whose upstream jobs have not finished waits until they have.
 	 * 
 	 * @param j The job to be added to the queue.
 	 * @throws JobAlreadyRunningException This exception is thrown if the job j is already running or it is already finished.
@@ -139,11 +207,13 @@ public interface MasterContext
 	public void    queueJob(Job j) throws JobAlreadyRunningException;
 	
 	/**
-	 * If there is no current running job, the next job will be picked from the job queue and that will
-	 * be started. Notifications will be sent to all workers.
+	 * If fewer than the maximum number of jobs are running, the next job will be picked from the job queue
+	 * and started. Notifications will be sent to all idle workers. If the maximum number of jobs are running,
+	 * the running job of the lowest priority is paused to make room for the next job if the next job has a 
+	 * higher priority. A paused job is resumed when it is picked from the queue again.
 	 * 
 	 * @return True if a new job was started, false if there were no jobs queued.
-	 * @throws JobAlreadyRunningException This exception is thrown if there was an running job when this was called.
+	 * @throws JobAlreadyRunningException This exception is thrown if the maximum number of jobs are already running.
 	 */
 	public boolean startNextJob() throws JobAlreadyRunningException;
 	
@@ -164,30 +234,47 @@ public interface MasterContext
 	public List<Job> getJobQueue();
 	
 	/**
-	 * Get a list of jobs which have been finished but not removed from the master. Note that
-	 * if there is no currently running job, the active job for the master might be a finished job.
-	 * This job is not featured in this list.
+	 * Get a list of jobs which wait for their upstream jobs to finish before they are queued.
+	 * 
+	 * @return The waiting jobs.
+	 * @see Job#isReady()
+	 */
+	public List<Job> getWaitingJobs();
+	
+	/**
+	 * Get a list of jobs which have been finished but not removed from the master.
 	 * 
 	 * @return A list of finished jobs.
-	 * @see MasterContext#getActiveJob()
 	 */
 	public List<Job> getJobHistory();
 	
 	/**
-	 * Returns the current active job. Note that if there are no new jobs to start when a job
-	 * finishes, that job will stay as the active job until a new job is started. Thus the
-	 * correct way to test if there is an active job is to call isJobActive() instead of testing
-	 * whether this function returns null or not.
+	 * Returns the oldest running job. This is the job reported to consoles which do not know 
+	 * about running several jobs at once.
 	 * 
-	 * @return The current "active" job. See description for details.
+	 * @return The oldest running job or null if no job is running.
+	 * @see MasterContext#getRunningJobs()
 	 */
 	public Job       getActiveJob();
 	
 	/**
-	 * @return Whether there is a current active job
+	 * @return The running jobs in the order they were started.
+	 */
+	public List<Job> getRunningJobs();
+	
+	/**
+	 * @return Whether there is at least one running job
 	 */
 	public boolean isJobRunning();
 	
+	/**
+	 * Find out which job the worker is working on. 
+	 * 
+	 * @param worker The worker
+	 * @return The job of the task the worker was last given or null if the worker is idle.
+	 */
+	public Job     getWorkerJob(Worker worker);
+	
 	// Console
 	/**
 	 * Add a console to the master.
@@ -28,6 +28,13 @@ package fi.helsinki.cs.bsmr.master;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,131 +47,451 @@ public class MasterImpl extends MasterStoreImpl
 {
 private static Logger logger = Util.getLoggerForClass(MasterImpl.class);
 
-private synchronized void finishCurrentJobAndStartNext()
+/**
+ * How long a reducer waits before asking again for a chunk whose split is
+ * still being mapped (ms)
+ */
+public static final long CHUNK_RETRY_DELAY = 2000;
+
+/**
+ * How long a batch of splits should keep a worker busy (ms)
+ */
+public static final long BATCH_TARGET_DURATION = 5000;
+
+private JobScheduler jobScheduler;
+
+public MasterImpl()
 	{
-	getActiveJob().finishJob();
+	this.jobScheduler = new FairShareScheduler();
+	}
 
-	// if there is no next job, this block will pause all workers
-	// if there is a next job, startNextJob() will send out initial work
-	// => this function should always
-	boolean newWorkStarted;
+/**
+ * @return The scheduler sharing workers between running jobs
+ */
+public JobScheduler getJobScheduler()
+	{
+	return jobScheduler;
+	}
 
+/**
+ * Set the scheduler used to share workers between running jobs.
+ * 
+ * @param jobScheduler
+ *            The new scheduler
+ */
+public synchronized void setJobScheduler(JobScheduler jobScheduler)
+	{
+	getCoordinatorLock().writeLock().lock();
 	try
 		{
-		// startNextJob sends out messages to workers,
-		newWorkStarted = startNextJob();
+		this.jobScheduler = jobScheduler;
 		}
-	catch (JobAlreadyRunningException jare)
+	finally
+		{
+		getCoordinatorLock().writeLock().unlock();
+		}
+	}
+
+/**
+ * Handles a work message of a worker. With several shards, a map ACK or a
+ * chunk request for the running job the worker is working on is handled
+ * within the shard of the worker: the splits are acknowledged and the worker
+ * is given more splits of the job or the location of its chunk. Other
+ * messages, and shard work which leaves the worker without a task from its
+ * job, are handled by the coordinator within the "big lock", which is how
+ * every message is handled with a single shard.
+ * 
+ * Workers are not checked for timeouts by the shards, the LivenessTicker
+ * checks them periodically.
+ * 
+ * @param worker
+ *            The worker who sent the message
+ * @param msg
+ *            The message
+ * @return Reply message to the worker or null if nothing should be sent
+ * @see MasterStoreImpl#getShardCount()
+ */
+public Message handleWork(Worker worker, Message msg)
+	{
+	boolean acknowledged = false;
+
+	if (getShardCount() > 1)
 		{
-		logger
-				.log(
-						Level.SEVERE,
-						"Programming error or concurrency issue! the previous active job was marked as finished and the attempt to start the next warns that there is a job already running!",
-						jare);
-		System.exit(1);
-		return; // Never reached
+		WorkerShard shard = getShard(worker);
+
+		// Changes in the liveness of the worker are made by the coordinator
+		worker.refreshLiveness();
+
+		getCoordinatorLock().readLock().lock();
+		try
+			{
+			synchronized (shard)
+				{
+				if (isShardWork(worker, msg))
+					{
+					Job job = msg.getJob();
+					if (msg.getAction() == Message.Action.mapSplit)
+						{
+						acknowledgeSplits(worker, job, msg.getMapStatus());
+						}
+					acknowledged = true;
+
+					if (isToppingUp(worker, msg))
+						{
+						shard.messageHandled();
+						return topUpSplits(worker, job);
+						}
+
+					Message ret = selectTaskInShard(worker, msg, job);
+					if (ret != null)
+						{
+						shard.messageHandled();
+						return ret;
+						}
+					}
+
+				shard.messageEscalated();
+				}
+			}
+		finally
+			{
+			getCoordinatorLock().readLock().unlock();
+			}
 		}
 
-	if (!newWorkStarted)
+	synchronized (this)
+		{
+		getCoordinatorLock().writeLock().lock();
+		try
+			{
+			// If these tasks are not grouped together, bad things will happen..
+			refreshWorkerLiveness(worker);
+			checkWorkerLiveness();
+
+			boolean moreToBeDone = acknowledged ? checkJobDone(msg.getJob(),
+					worker) : acknowledgeWork(worker, msg);
+
+			return moreToBeDone ? selectTaskForWorker(worker, msg) : null;
+			}
+		finally
+			{
+			getCoordinatorLock().writeLock().unlock();
+			}
+		}
+	}
+
+/**
+ * Tells whether a message can be handled within the shard of the worker. This
+ * is a map ACK of valid splits or a request for a chunk of a bucket which is
+ * still being reduced, for the running job the worker was last given work
+ * from. Jobs whose splits are replicated are left to the coordinator, as the
+ * copies are made by idle workers.
+ */
+private boolean isShardWork(Worker worker, Message msg)
+	{
+	Job job = msg.getJob();
+
+	if (job == null || job.getState() != Job.State.RUNNING
+			|| job.getReplication() > 1 || getWorkerJob(worker) != job)
+		{
+		return false;
+		}
+
+	switch (msg.getAction())
+		{
+		case mapSplit:
+			{
+			if (msg.getMapStatus() == null)
+				{
+				return false;
+				}
+			for (Split s : msg.getMapStatus().splits)
+				{
+				if (s.getId() < 0 || s.getId() >= job.getMapTasks())
+					{
+					return false;
+					}
+				}
+			return true;
+			}
+
+		case reduceChunk:
+			{
+			Bucket b = msg.getReduceStatus().bucket;
+			Split s = msg.getReduceStatus().split;
+			return job.getBucketInformation().isKnownBucket(b)
+					&& !job.getBucketInformation().isBucketDone(b)
+					&& s != null && s.getId() >= 0
+					&& s.getId() < job.getMapTasks();
+			}
+
+		default:
+			return false;
+		}
+	}
+
+/**
+ * Select more splits or the location of a chunk for a worker within its
+ * shard. A mapper is only given more splits if the job scheduler still ranks
+ * its job first.
+ * 
+ * @return The message to send to the worker or null if the coordinator
+ *         should select the task.
+ */
+private Message selectTaskInShard(Worker worker, Message msg, Job job)
+	{
+	boolean chunkRequest = msg.getAction() == Message.Action.reduceChunk;
+
+	if (!chunkRequest)
+		{
+		List<Job> ranked = jobScheduler.rankJobs(worker, job, getRunningJobs(),
+				getWorkers().size());
+		if (ranked.isEmpty() || ranked.get(0) != job)
+			{
+			return null;
+			}
+		}
+
+	Message ret = selectSplitsOrChunk(worker, msg, job,
+			getUnreachableWorkers(worker, msg.getUnareachableWorkers()),
+			chunkRequest);
+
+	if (ret != null)
+		{
+		ret.setRunningJobs(getStartedJobs());
+		}
+	return ret;
+	}
+
+/**
+ * Finish a job whose every bucket is reduced and start queued jobs in its
+ * place. The workers of the finished job are given work from the other
+ * running jobs. If no job is left running, all workers are paused.
+ * 
+ * @param job
+ *            The finished job
+ * @param worker
+ *            The worker who acknowledged the last bucket
+ */
+private void finishJobAndStartNext(Job job, Worker worker)
+	{
+	List<Worker> released = retireJob(job, true);
+	int stillRunning = getRunningJobs().size();
+
+	// startNextJob() sends out initial work to the idle workers, which
+	// includes the workers of the finished job
+	startQueuedJobs();
+
+	if (!isJobRunning())
 		{
 		pauseAllWorkers();
+		return;
+		}
+
+	if (getRunningJobs().size() == stillRunning)
+		{
+		if (!released.contains(worker))
+			{
+			released.add(worker);
+			}
+
+		List<Worker> available = new ArrayList<Worker>();
+		for (Worker w : released)
+			{
+			if (w.isAvailable(job))
+				{
+				available.add(w);
+				}
+			}
+		dispatchWork(available);
 		}
 	}
 
 /**
  * Acknowledges work from the worker. If the message acknowledges the last part
- * of the current job, it will start the next job. If no new jobs are queued,
- * this will send idle messages to all workers and return false.
- * 
- * Note: This function can switch the active job!
+ * of its job, the job is finished and the next queued job is started. If no
+ * jobs are left running, all workers are paused.
  * 
  * @param worker
  *            The worker who is acknowledging work
  * @param msg
  *            The message
- * @return True if there is work to be done, false if the worker should be idle.
+ * @return True if there is work to be done, false if the worker should be
+ *         idle or was already sent new work.
  */
 public synchronized boolean acknowledgeWork(Worker worker, Message msg)
 	{
-	Job activeJob = getActiveJob();
+	getCoordinatorLock().writeLock().lock();
+	try
+		{
+		return acknowledge(worker, msg);
+		}
+	finally
+		{
+		getCoordinatorLock().writeLock().unlock();
+		}
+	}
+
+private boolean acknowledge(Worker worker, Message msg)
+	{
+	Job job = msg.getJob();
 
-	if (msg.getJob() == activeJob)
+	// Work done for a paused job is kept, a paused job is resumed where it was
+	// left off
+	if (job == null
+			|| (job.getState() != Job.State.RUNNING && job.getState() != Job.State.PAUSED))
 		{
-		// acknowledge data from worker
-		switch (msg.getAction())
+		return isJobRunning();
+		}
+
+	// acknowledge data from worker
+	switch (msg.getAction())
+		{
+		case mapSplit:
 			{
-			case mapSplit:
+			acknowledgeSplits(worker, job, msg.getMapStatus());
+			replicateSplits(job, msg.getMapStatus().splits);
+			break;
+			}
+
+		case replicateSplit:
+			{
+			Split s = msg.getMapStatus().split;
+			if (s.getId() < 0 || s.getId() >= job.getMapTasks())
 				{
-				Split s = msg.getMapStatus().split;
-				if (s == null || s.getId() < 0
-						|| s.getId() >= activeJob.getMapTasks())
-					{
-					logger
-							.severe("Worker tried to acknowledge an illegal split "
-									+ s
-									+ " ("
-									+ Message.FIELD_NUM_MAPTASKS
-									+ "="
-									+ activeJob.getMapTasks());
-					}
-				else
-					{
-					activeJob.getSplitInformation().acknowledgeWork(worker, s);
-					}
-				break;
+				logger.severe("Worker tried to acknowledge a copy of an illegal split "
+						+ s + " (" + Message.FIELD_NUM_MAPTASKS + "="
+						+ job.getMapTasks());
+				}
+			else
+				{
+				job.getSplitInformation().acknowledgeReplica(worker, s);
 				}
+			break;
+			}
 
-			case reduceBucket:
+		case reduceBucket:
+			{
+			Bucket b = msg.getReduceStatus().bucket;
+			if (!job.getBucketInformation().isKnownBucket(b))
 				{
-				Bucket b = msg.getReduceStatus().bucket;
-				if (b == null || b.getId() < 0
-						|| b.getId() >= activeJob.getReduceTasks())
-					{
-					logger
-							.severe("Worker tried to acknowledge an illegal bucket "
-									+ b
-									+ " ("
-									+ Message.FIELD_NUM_REDUCETASKS
-									+ "=" + activeJob.getReduceTasks());
-					}
-				else
+				logger.severe("Worker tried to acknowledge an illegal bucket "
+						+ b + " (" + Message.FIELD_NUM_REDUCETASKS + "="
+						+ job.getReduceTasks());
+				}
+			else
+				{
+				BucketStore buckets = job.getBucketInformation();
+				buckets.acknowledgeWork(worker, b);
+				// Parts of a split bucket are not journaled, only the merged bucket
+				if (!b.isPart())
 					{
-					activeJob.getBucketInformation().acknowledgeWork(worker,
-							b);
+					journalBucketDone(job, new Bucket(b.getId()));
 					}
-				break;
+				job.getSplitInformation().chunkFetchFinished(worker,
+						getUnreachableWorkers(worker, msg.getUnareachableWorkers()));
 				}
+			break;
 			}
 		}
 
-	// Check if all buckets are reduced
-	boolean allBucketsDone = activeJob.getBucketInformation()
-			.areAllBucketsDone();
+	return checkJobDone(job, worker);
+	}
+
+/**
+ * Mark mapped splits as done, count the sizes of their buckets and journal
+ * them. Workers mapping a batch of splits may acknowledge several at once.
+ */
+private void acknowledgeSplits(Worker worker, Job job, Message.MapStatus mapStatus)
+	{
+	SplitStore splits = job.getSplitInformation();
+	BucketSizes sizes = job.getBucketInformation().getSizes();
+	boolean mappedBefore = false;
 
-	// If the job is not yet marked as finished
-	// !activeJob.isFinished() is documentation. we don't execute this function
-	// if the job is finished
-	if (allBucketsDone && activeJob.getState() != Job.State.FINISHED)
+	for (Split s : mapStatus.splits)
 		{
-		finishCurrentJobAndStartNext();
+		if (s.getId() < 0 || s.getId() >= job.getMapTasks())
+			{
+			logger.severe("Worker tried to acknowledge an illegal split " + s
+					+ " (" + Message.FIELD_NUM_MAPTASKS + "=" + job.getMapTasks());
+			}
+		else
+			{
+			if (splits.hasSplit(worker, s))
+				{
+				mappedBefore = true;
+				}
+			splits.acknowledgeWork(worker, s);
+			}
+		}
+	// Sizes of splits mapped before by another worker are not counted again
+	if (mapStatus.bucketBytes != null
+			&& !sizes.add(mapStatus.splits, mapStatus.bucketRecords,
+					mapStatus.bucketBytes))
+		{
+		logger.fine("Bucket sizes of " + mapStatus.splits + " in " + job
+				+ " were not counted");
+		}
+	// but they are local input of this worker unless it had them already
+	if (mapStatus.bucketBytes != null && !mappedBefore)
+		{
+		sizes.addLocal(worker, mapStatus.bucketBytes);
+		}
+	journalSplitsDone(job, mapStatus.splits);
+	}
+
+/**
+ * Finish the job if all of its buckets are reduced.
+ * 
+ * @return True if there is work to be done, false if the worker should be
+ *         idle or was already sent new work.
+ */
+private boolean checkJobDone(Job job, Worker worker)
+	{
+	// A shard may have acknowledged work for a job the coordinator has since
+	// finished or removed
+	if (job.getState() != Job.State.RUNNING && job.getState() != Job.State.PAUSED)
+		{
+		return isJobRunning();
+		}
+
+	if (job.getBucketInformation().areAllBucketsDone())
+		{
+		if (job.getState() == Job.State.PAUSED)
+			{
+			retireJob(job, true);
+			// Jobs waiting for this one may have been queued
+			startQueuedJobs();
+			return isJobRunning();
+			}
+
+		finishJobAndStartNext(job, worker);
 		return false;
 		}
 
-	// This is important as there are cases when this point is entered even when
-	// the job was actually finished
-	return !allBucketsDone;
+	return isJobRunning();
 	}
 
 private void pauseAllWorkers()
 	{
-	String pause = Message.pauseMessage().encodeMessage();
+	Message msg = Message.pauseMessage();
+	msg.setRunningJobs(getStartedJobs());
+	String pause = msg.encodeMessage();
 
 	for (Worker w : getWorkers())
 		{
+		setWorkerJob(w, null);
 
 		try
 			{
-			w.sendSyncMessage(pause);
+			if (w.isBinary())
+				{
+				w.sendSyncMessage(msg);
+				}
+			else
+				{
+				w.sendSyncMessage(pause);
+				}
 			}
 		catch (IOException ie)
 			{
@@ -186,28 +513,220 @@ private void pauseAllWorkers()
  * sync on the same object multiple times. Thus it is better to have the
  * synchronization here as well to keep the code coherent.
  * 
+ * A reducer asking for a chunk is answered from the job of its bucket. A
+ * worker acknowledging a split while it is still mapping others is only sent
+ * more splits to keep its slots and batches full. Other workers are given a task from the
+ * first job in the ranking of the job scheduler which has work available.
+ * 
  * @param worker
  *            The worker who sent the message
  * @param msg
  *            The message
- * @return Reply message to the worker
+ * @return Reply message to the worker or null if the worker is still busy
+ *         with its splits and there is nothing to add to them
+ * @see JobScheduler
  */
 public synchronized Message selectTaskForWorker(Worker worker, Message msg)
 	{
-	Job activeJob = getActiveJob();
+	getCoordinatorLock().writeLock().lock();
+	try
+		{
+		return selectNextTask(worker, msg);
+		}
+	finally
+		{
+		getCoordinatorLock().writeLock().unlock();
+		}
+	}
+
+private Message selectNextTask(Worker worker, Message msg)
+	{
+	Message ret = null;
+	Job requestJob = msg.getJob();
+
+	// A worker asking for something else has given up the copy it was making
+	Job current = getWorkerJob(worker);
+	if (current != null)
+		{
+		current.getSplitInformation().cancelReplica(worker);
+		}
+
+	if (isToppingUp(worker, msg))
+		{
+		return topUpSplits(worker, requestJob);
+		}
+
+	if (requestJob != null && requestJob.getState() == Job.State.RUNNING
+			&& msg.getAction() == Message.Action.reduceChunk)
+		{
+		ret = selectTask(worker, msg, requestJob);
+		}
+
+	if (ret == null)
+		{
+		for (Job job : jobScheduler.rankJobs(worker, getWorkerJob(worker),
+				getRunningJobs(), getWorkers().size()))
+			{
+			ret = selectTask(worker, msg, job);
+			if (ret != null)
+				{
+				break;
+				}
+			}
+		}
+
+	if (ret == null)
+		{
+		ret = Message.pauseMessage();
+		}
+
+	setWorkerJob(worker, ret.getJob());
+	ret.setRunningJobs(getStartedJobs());
+
+	return ret;
+	}
+
+/**
+ * @return True if the worker acknowledged a split of a running job while it
+ *         is still mapping other splits, so that its slots and batches are
+ *         only topped up.
+ */
+private boolean isToppingUp(Worker worker, Message msg)
+	{
+	Job requestJob = msg.getJob();
+	return requestJob != null && requestJob.getState() == Job.State.RUNNING
+			&& msg.getAction() == Message.Action.mapSplit
+			&& (worker.getMaxBatch() > 1 || worker.getSlots() > 1)
+			&& requestJob.getSplitInformation().getNumberOfPendingSplits(worker) > 0;
+	}
+
+/**
+ * Send more splits to a worker which is still mapping splits, so that none of
+ * its slots waits for a round trip to the master after its batch.
+ * 
+ * @return The message with the added splits or null if the slots are full or
+ *         there are no splits nobody is working on.
+ */
+private Message topUpSplits(Worker worker, Job job)
+	{
+	SplitStore splits = job.getSplitInformation();
+	int room = splitWindow(worker, job) - splits.getNumberOfPendingSplits(worker);
+
+	if (room <= 0)
+		{
+		return null;
+		}
 
-	Split nextSplit = activeJob.getSplitInformation().selectSplitToWorkOn(
-			worker, msg.getUnareachableWorkers());
+	List<Split> more = splits.selectUnattemptedSplits(worker, room);
+	if (more.isEmpty())
+		{
+		return null;
+		}
+
+	Message ret = Message.mapTheseMessage(more, job);
+	ret.setRunningJobs(getStartedJobs());
+	return ret;
+	}
 
-	if (nextSplit != null)
+/**
+ * How many splits the worker should hold at once. Each slot of the worker
+ * gets a batch sized from how fast the worker has mapped splits, so that the
+ * slot stays busy for BATCH_TARGET_DURATION. The batch is limited by the batch
+ * size the worker announced. Workers whose speed is not known yet get one
+ * split per slot. The total is limited by the worker's share of the splits
+ * left, counted in slots.
+ */
+private int splitWindow(Worker worker, Job job)
+	{
+	SplitStore splits = job.getSplitInformation();
+	int max = worker.getMaxBatch();
+	long batch = 1;
+
+	if (max > 1)
 		{
-		return Message.mapThisMessage(nextSplit, activeJob);
+		long expected = splits.getExpectedDuration(worker);
+		if (expected == 0)
+			{
+			batch = max;
+			}
+		else if (expected > 0)
+			{
+			batch = Math.max(1, Math.min(max, BATCH_TARGET_DURATION / expected));
+			}
 		}
 
-	if (msg.getJob() == activeJob
+	int slots = Math.max(1, getTotalSlots());
+	int left = job.getMapTasks() - splits.getNumberOfSplitsProvided();
+	int share = worker.getSlots() * ((left + slots - 1) / slots);
+
+	return (int) Math.max(1, Math.min(worker.getSlots() * batch, share));
+	}
+
+/**
+ * Select a task of the given job for the worker.
+ * 
+ * @return The message to send to the worker or null if the job has no work
+ *         for the worker.
+ */
+private Message selectTask(Worker worker, Message msg, Job job)
+	{
+	SplitStore splits = job.getSplitInformation();
+	Set<Worker> unreachable = getUnreachableWorkers(worker,
+			msg.getUnareachableWorkers());
+	boolean chunkRequest = msg.getJob() == job
 			&& msg.getAction() == Message.Action.reduceChunk
-			&& !activeJob.getBucketInformation().isBucketDone(
-					msg.getIncompleteReduceBucket()))
+			&& !job.getBucketInformation().isBucketDone(
+					msg.getIncompleteReduceBucket());
+
+	Message ret = selectSplitsOrChunk(worker, msg, job, unreachable,
+			chunkRequest);
+	if (ret != null)
+		{
+		return ret;
+		}
+
+	// Splits are still being mapped by other workers and none of them is
+	// straggling enough for a backup attempt => no work in this job for now
+	// unless enough splits are done to start reducing early
+	if (!splits.areAllSplitsProvided()
+			&& splits.getNumberOfSplitsProvided() < job.getReduceSlowStart()
+					* job.getMapTasks())
+		{
+		return null;
+		}
+
+	// Enough splits are done => Assign a bucket for reducing (or the client
+	// specified a non-valid bucket or split
+
+	return assignBuckets(worker, job);
+	}
+
+/**
+ * Select splits of the job for the worker to map or, if the worker asked for
+ * a chunk, the location of the chunk.
+ * 
+ * @return The message to send to the worker or null if the worker should be
+ *         given a bucket or work from another job.
+ */
+private Message selectSplitsOrChunk(Worker worker, Message msg, Job job,
+		Set<Worker> unreachable, boolean chunkRequest)
+	{
+	SplitStore splits = job.getSplitInformation();
+
+	// A reducer started before the map phase is complete keeps reducing,
+	// the remaining splits are mapped by the other workers
+	if (!chunkRequest || splits.areAllSplitsProvided())
+		{
+		List<Split> nextSplits = splits.selectSplitsToWorkOn(worker,
+				unreachable, splitWindow(worker, job));
+
+		if (!nextSplits.isEmpty())
+			{
+			return Message.mapTheseMessage(nextSplits, job);
+			}
+		}
+
+	if (chunkRequest)
 		{
 
 		Bucket b = msg.getReduceStatus().bucket;
@@ -215,33 +734,255 @@ public synchronized Message selectTaskForWorker(Worker worker, Message msg)
 
 		boolean ok = true;
 
-		if (b == null || b.getId() < 0
-				|| b.getId() >= activeJob.getReduceTasks())
+		if (!job.getBucketInformation().isKnownBucket(b))
 			{
 			ok = false;
 			}
 
-		if (s == null || s.getId() < 0 || s.getId() >= activeJob.getMapTasks())
+		if (s == null || s.getId() < 0 || s.getId() >= job.getMapTasks())
 			{
 			ok = false;
 			}
 
 		if (ok)
 			{
-			return Message.findChunkAtMessage(msg.getReduceStatus().bucket,
-					msg.getReduceStatus().split, activeJob, msg
-							.getUnareachableWorkers());
+			Message chunkAt = Message.findChunkAtMessage(b, s, job, worker,
+					unreachable);
+
+			if (!chunkAt.getReduceStatus().location.isEmpty()
+					|| job.getSplitInformation().hasSplit(worker, s))
+				{
+				return chunkAt;
+				}
+
+			// The map phase is not complete and the split is being mapped,
+			// the reducer asks again once it is more likely to be done
+			if (splits.isSplitBeingMapped(s))
+				{
+				return Message.retryChunkMessage(b, s, job, CHUNK_RETRY_DELAY);
+				}
+
+			// Nobody the reducer can reach has the chunk and nobody is
+			// mapping the split for it. The reducer needs it now, so it maps
+			// the split itself.
+			splits.assignSplit(worker, s);
+			return Message.mapThisMessage(s, job);
+			}
+
+		}
+
+	return null;
+	}
+
+/**
+ * @return The available idle workers the job scheduler allows giving work from
+ *         the job
+ */
+private List<Worker> getIdleWorkersFor(Job job)
+	{
+	List<Worker> ret = new ArrayList<Worker>();
+	for (Worker w : getIdleWorkers())
+		{
+		if (w.isAvailable(job)
+				&& jobScheduler.rankJobs(w, null, getRunningJobs(),
+						getWorkers().size()).contains(job))
+			{
+			ret.add(w);
 			}
+		}
+	return ret;
+	}
 
+/**
+ * Hands out the tasks of a worker which dropped out of a running job to idle
+ * workers right away instead of waiting for them to ask on their idle heart
+ * beat. This includes the splits the worker has mapped, as its chunks can no
+ * longer be fetched.
+ */
+@Override
+protected void workerStateChanged(Worker worker, Job job, Worker.State from,
+		Worker.State to)
+	{
+	if (to == Worker.State.ALIVE || job.getState() != Job.State.RUNNING)
+		{
+		return;
 		}
 
-	// All splits are done => Assign a bucket for reducing (or the client
-	// specified a non-valid bucket or split
+	if (job.getSplitInformation().getNumberOfPendingSplits(worker) == 0
+			&& job.getSplitInformation().getNumberOfSplitsDone(worker) == 0
+			&& job.getBucketInformation().getNumberOfQueuedBuckets(worker) == 0)
+		{
+		return;
+		}
+
+	logger.info("Worker " + worker.getId() + " is " + to + " for " + job
+			+ ", handing out its tasks");
+	dispatchWork(getIdleWorkersFor(job));
+
+	// Workers left idle replace the copies the worker held
+	replicateSplits(job, job.getSplitInformation().getSplitsDone(worker));
+	}
+
+/**
+ * Asks idle workers to copy the chunks of splits which have fewer reachable
+ * providers than the replication factor of the job asks for. Only idle
+ * workers are used, so copying never delays mapping or reducing. Splits which
+ * nobody can provide are left to be mapped again.
+ * 
+ * @param job
+ *            The job of the splits
+ * @param candidates
+ *            The splits to check
+ * @see Job#getReplication()
+ */
+private void replicateSplits(Job job, List<Split> candidates)
+	{
+	if (job.getReplication() <= 1 || job.getState() != Job.State.RUNNING)
+		{
+		return;
+		}
+
+	SplitStore splits = job.getSplitInformation();
+	List<Worker> idle = null;
+
+	for (Split s : candidates)
+		{
+		int needed = splits.getNumberOfReplicasNeeded(s);
+		if (needed <= 0)
+			{
+			continue;
+			}
+
+		if (idle == null)
+			{
+			idle = new LinkedList<Worker>(getIdleWorkersFor(job));
+			}
 
-	Bucket nextBucket = activeJob.getBucketInformation()
-			.selectBucketToWorkOn(worker);
+		for (Iterator<Worker> i = idle.iterator(); needed > 0 && i.hasNext();)
+			{
+			Worker w = i.next();
+			if (splits.hasSplit(w, s) || w.getSocketURL() == null)
+				{
+				continue;
+				}
+
+			// Leave out the providers the copying worker could not reach before
+			List<Worker> providers = splits.assignReplica(w, s,
+					getUnreachableWorkers(w, Collections.<Worker> emptySet()));
+			if (providers.isEmpty())
+				{
+				splits.cancelReplica(w);
+				break;
+				}
+
+			i.remove();
+			needed--;
+
+			Message msg = Message.replicateSplitMessage(s, job, providers);
+			setWorkerJob(w, job);
+			msg.setRunningJobs(getStartedJobs());
+			w.sendAsyncMessage(msg);
+			}
+
+		if (idle.isEmpty())
+			{
+			break;
+			}
+		}
+	}
+
+/**
+ * Hands out buckets to the asking worker and to idle workers, preferring the
+ * workers holding most of the bucket input locally. Each bucket goes to the
+ * worker whose mapped splits hold the most bytes of the bucket, as reported
+ * by the mappers. If no sizes were reported, it goes to the worker which has
+ * mapped the most splits and thus needs to fetch the fewest chunks from its
+ * peers. The asking worker is served before idle workers with as much local
+ * input, and buckets are handed out as long as there are buckets to work on.
+ * Among workers with as much local input, workers which announced a higher
+ * speed are served first. Idle workers are only considered if the job
+ * scheduler allows giving them work from this job.
+ * 
+ * @param worker
+ *            The worker asking for work
+ * @param job
+ *            The job
+ * @return Reply message to the asking worker or null if there is no bucket
+ *         for it
+ */
+private Message assignBuckets(Worker worker, Job job)
+	{
+	BucketStore buckets = job.getBucketInformation();
+	final SplitStore splits = job.getSplitInformation();
+	final BucketSizes sizes = buckets.getSizes();
+
+	List<Worker> candidates = new ArrayList<Worker>();
+	candidates.add(worker);
+
+	for (Worker w : getIdleWorkersFor(job))
+		{
+		if (w != worker)
+			{
+			candidates.add(w);
+			}
+		}
+
+	Message reply = null;
+
+	while (!candidates.isEmpty())
+		{
+		// The candidates are ranked for the bucket handed out next
+		Bucket next = buckets.peekBucketToWorkOn();
+		final int bucket = next != null && sizes.getTotalBytes() > 0 ? next
+				.getId() : -1;
+
+		// Stable sort, the asking worker stays first among equals
+		Collections.sort(candidates, new Comparator<Worker>()
+			{
+				@Override
+				public int compare(Worker a, Worker b)
+					{
+					int ret = 0;
+					if (bucket != -1)
+						{
+						long diff = sizes.getLocalBytes(b, bucket)
+								- sizes.getLocalBytes(a, bucket);
+						ret = diff > 0 ? 1 : diff < 0 ? -1 : 0;
+						}
+					if (ret == 0)
+						{
+						ret = splits.getNumberOfSplitsDone(b)
+								- splits.getNumberOfSplitsDone(a);
+						}
+					if (ret == 0)
+						{
+						ret = Double.compare(b.getSpeed(), a.getSpeed());
+						}
+					return ret;
+					}
+			});
+
+		Worker w = candidates.remove(0);
+		Bucket nextBucket = buckets.selectBucketToWorkOn(w);
+		if (nextBucket == null)
+			{
+			break;
+			}
+
+		Message msg = Message.reduceThatMessage(nextBucket, job);
+		if (w == worker)
+			{
+			reply = msg;
+			}
+		else
+			{
+			setWorkerJob(w, job);
+			msg.setRunningJobs(getStartedJobs());
+			w.sendAsyncMessage(msg);
+			}
+		}
 
-	return Message.reduceThatMessage(nextBucket, activeJob);
+	return reply;
 	}
 
 }
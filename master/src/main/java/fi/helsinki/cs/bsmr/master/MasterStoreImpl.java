@@ -27,13 +27,21 @@ package fi.helsinki.cs.bsmr.master;
  *
  */
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +50,13 @@ import fi.helsinki.cs.bsmr.master.console.ConsoleInformation;
 
 /**
  * Implementation of object storage parts of the MasterContext interface.
+ * 
+ * The workers are divided into shards, see getShardCount(). The state of the master and of its
+ * jobs is changed by the coordinator, which holds the "big lock" and the write lock of the 
+ * coordinator lock. A shard handles the work messages of its workers holding the read lock and
+ * the lock of the shard, so that shards run at the same time but never while the coordinator 
+ * is changing the state they read. Locks are taken in the order: the "big lock", the coordinator 
+ * lock, a WorkerShard, a SplitShard.
  *  
  * @author stsavola
  *
@@ -50,12 +65,35 @@ public abstract class MasterStoreImpl implements MasterContext
 {
 	private static Logger logger = Util.getLoggerForClass(MasterStoreImpl.class);
 	
+	public static final int DEFAULT_MAX_RUNNING_JOBS = 4;
+	
 	private Set<Worker> workers;
 	
-	// Two-way map, accessed through setWorkerURL() and getWorkerURL(), removeWorker()
+	// Worker ID -> Worker, IDs are handed out in order and never reused
+	private List<Worker> workerForId;
+	
+	// Sum of the slots of all registered workers, see setWorkerSlots()
+	private int totalSlots;
+	
+	// The state of every worker for every started job
+	private LivenessTracker liveness;
+	
+	// The shards of the workers, each with the workers its workers reported unreachable
+	private WorkerShard[] shards;
+	
+	// Held for writing by the coordinator and for reading by the shards, see MasterImpl.handleWork()
+	private ReentrantReadWriteLock coordinator;
+	
+	// Two-way map, accessed through setWorkerURL() and getWorkerURL(), removeWorker(). Modified
+	// within the "big lock", but read without it as messages are encoded outside of the lock.
 	private Map<String, Worker> workerForURL;
 	private Map<Worker, String> URLForWorker;
 	
+	// Workers whose last instruction was to idle and the job each of the other
+	// workers is working on, see setWorkerJob()
+	private Set<Worker> idleWorkers;
+	private Map<Worker, Job> jobForWorker;
+	
 	// Job ID -> Job
 	private Map<Integer, Job> jobMap;
 	
@@ -64,8 +102,17 @@ public abstract class MasterStoreImpl implements MasterContext
 	private Map<Integer, Job> readOnlyJobMap; 
 	
 	private List<Job> jobQueue;
+	// Jobs waiting for the jobs whose output they read, see Job.isReady()
+	private List<Job> waitingJobs;
 	private List<Job> jobHistory;
-	private Job activeJob;
+	private List<Job> runningJobs;
+	// Running and paused jobs, workers keep the intermediate results for these
+	private List<Job> startedJobs;
+	private int maxRunningJobs;
+	private JobStartDispatcher jobStartDispatcher;
+	// Null if jobs are not journaled
+	private JobJournal journal;
+	private JobSizer jobSizer;
 	
 	// Console
 	private Set<Console> consoles;
@@ -73,12 +120,28 @@ public abstract class MasterStoreImpl implements MasterContext
 	public MasterStoreImpl()
 	{
 		workers      = new HashSet<Worker>();
-		workerForURL = new HashMap<String, Worker>();
-		URLForWorker = new HashMap<Worker, String>();
+		workerForId  = new ArrayList<Worker>();
+		totalSlots   = 0;
+		liveness     = new LivenessTracker(new LivenessTracker.Listener() {
+			public void workerStateChanged(Worker worker, Job job, Worker.State from, Worker.State to)
+			{
+				MasterStoreImpl.this.workerStateChanged(worker, job, from, to);
+			}
+		});
+		shards       = new WorkerShard[] { new WorkerShard(0) };
+		coordinator  = new ReentrantReadWriteLock();
+		idleWorkers  = new LinkedHashSet<Worker>();
+		jobForWorker = new HashMap<Worker, Job>();
+		workerForURL = new ConcurrentHashMap<String, Worker>();
+		URLForWorker = new ConcurrentHashMap<Worker, String>();
 		
-		activeJob  = null;
 		jobQueue   = new LinkedList<Job>();
+		waitingJobs = new ArrayList<Job>();
+		jobSizer   = new JobSizer(null);
 		jobHistory = new LinkedList<Job>();
+		runningJobs = new ArrayList<Job>();
+		startedJobs = new ArrayList<Job>();
+		maxRunningJobs = DEFAULT_MAX_RUNNING_JOBS;
 		
 		jobMap     = new HashMap<Integer, Job>();
 		readOnlyJobMap   = new HashMap<Integer, Job>();
@@ -98,6 +161,16 @@ public abstract class MasterStoreImpl implements MasterContext
 		return workerForURL.get(url);
 	}
 	
+	@Override
+	public Worker getWorkerById(int id)
+	{
+		if (id < 0 || id >= workerForId.size()) {
+			return null;
+		}
+		
+		return workerForId.get(id);
+	}
+	
 	@Override
 	public Set<Worker> getWorkers()
 	{
@@ -107,18 +180,29 @@ public abstract class MasterStoreImpl implements MasterContext
 	@Override
 	public void setWorkerURL(Worker worker, String socketURL)
 	{
+		// Workers announce their URL with every heart beat, it seldom changes
+		if (socketURL.equals(URLForWorker.get(worker))) {
+			return;
+		}
+		
 		synchronized (this) {
-			
-			// Remove the old URL (if there is one)
-			if (URLForWorker.keySet().contains(worker)) {
-				String oldURL = URLForWorker.remove(worker);
-				if (oldURL != null) {
-					workerForURL.remove(oldURL);
+			coordinator.writeLock().lock();
+			try {
+				// Remove the old URL (if there is one). Whoever could not reach the worker 
+				// at its old address may reach it at the new one.
+				if (URLForWorker.keySet().contains(worker)) {
+					String oldURL = URLForWorker.remove(worker);
+					if (oldURL != null) {
+						workerForURL.remove(oldURL);
+					}
+					forgetReachability(worker);
 				}
+	
+				workerForURL.put(socketURL, worker);
+				URLForWorker.put(worker, socketURL);
+			} finally {
+				coordinator.writeLock().unlock();
 			}
-
-			workerForURL.put(socketURL, worker);
-			URLForWorker.put(worker, socketURL);
 		}
 	}
 	
@@ -128,6 +212,162 @@ public abstract class MasterStoreImpl implements MasterContext
 		return URLForWorker.get(worker);
 	}
 	
+	/**
+	 * @param reporter The worker whose reports are wanted
+	 * @return The workers reported unreachable by the workers of the shard of the reporter
+	 */
+	public ReachabilityMatrix getReachability(Worker reporter)
+	{
+		return getShard(reporter).getReachability();
+	}
+	
+	private void forgetReachability(Worker worker)
+	{
+		for (WorkerShard shard : shards) {
+			shard.getReachability().removeWorker(worker.getId());
+		}
+	}
+	
+	@Override
+	public int getShardCount()
+	{
+		return shards.length;
+	}
+	
+	/**
+	 * Set how many shards the workers and the splits of each job are divided into. With a single 
+	 * shard every work message is handled within the "big lock". This is meant to be called before
+	 * any worker connects.
+	 * 
+	 * @param n The number of shards, at least 1
+	 * @throws IllegalStateException If workers are registered
+	 */
+	public synchronized void setShardCount(int n)
+	{
+		if (n < 1) {
+			throw new IllegalArgumentException("At least one shard is needed: "+n);
+		}
+		
+		coordinator.writeLock().lock();
+		try {
+			if (!workers.isEmpty()) {
+				throw new IllegalStateException("The number of shards cannot be changed while "+workers.size()+" workers are registered");
+			}
+			
+			shards = new WorkerShard[n];
+			for (int i = 0; i < n; i++) {
+				shards[i] = new WorkerShard(i);
+			}
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param worker The worker
+	 * @return The shard of the worker
+	 */
+	public WorkerShard getShard(Worker worker)
+	{
+		return shards[worker.getId() % shards.length];
+	}
+	
+	/**
+	 * @return The lock the coordinator holds for writing and the shards hold for reading
+	 */
+	protected ReentrantReadWriteLock getCoordinatorLock()
+	{
+		return coordinator;
+	}
+	
+	/**
+	 * Record the workers a worker reported it cannot reach and tell all workers it has reported 
+	 * unreachable recently. Chunk locations and splits are chosen for the worker with these.
+	 * 
+	 * @param from The reporting worker
+	 * @param reported The workers in the report, empty if the message had none
+	 * @return The workers the worker cannot reach
+	 */
+	protected Set<Worker> getUnreachableWorkers(Worker from, Set<Worker> reported)
+	{
+		ReachabilityMatrix reachability = getReachability(from);
+		long now = TimeContext.now();
+		for (Worker w : reported) {
+			reachability.report(from.getId(), w.getId(), now);
+		}
+		
+		BitSet ids = reachability.getUnreachable(from.getId(), now);
+		if (ids.cardinality() == reported.size()) {
+			return reported;
+		}
+		
+		Set<Worker> ret = new HashSet<Worker>(reported);
+		for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+			Worker w = getWorkerById(i);
+			if (w != null) {
+				ret.add(w);
+			}
+		}
+		return ret;
+	}
+	
+	@Override
+	public void setWorkerSlots(Worker worker, int slots)
+	{
+		synchronized (this) {
+			coordinator.writeLock().lock();
+			try {
+				if (workers.contains(worker)) {
+					totalSlots += slots - worker.getSlots();
+				}
+				worker.setSlots(slots);
+			} finally {
+				coordinator.writeLock().unlock();
+			}
+		}
+	}
+	
+	@Override
+	public int getTotalSlots()
+	{
+		return totalSlots;
+	}
+	
+	@Override
+	public synchronized void refreshWorkerLiveness(Worker worker)
+	{
+		coordinator.writeLock().lock();
+		try {
+			liveness.refresh(worker);
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public synchronized void checkWorkerLiveness()
+	{
+		coordinator.writeLock().lock();
+		try {
+			liveness.advance(TimeContext.now());
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Called when a worker changes state for a started job. This is called within the "big lock".
+	 * 
+	 * @param worker The worker
+	 * @param job The job whose timeouts the state is for
+	 * @param from The previous state
+	 * @param to The new state
+	 * @see LivenessTracker
+	 */
+	protected void workerStateChanged(Worker worker, Job job, Worker.State from, Worker.State to)
+	{
+	}
+	
 	@Override
 	public void removeWorker(Worker worker) throws WorkerInIllegalStateException
 	{
@@ -135,16 +375,29 @@ public abstract class MasterStoreImpl implements MasterContext
 		
 		synchronized (this) 
 		{			
-			removed = workers.remove(worker); 
+			coordinator.writeLock().lock();
+			try {
+				removed = workers.remove(worker); 
+				if (removed) {
+					workerForId.set(worker.getId(), null);
+					totalSlots -= worker.getSlots();
+				}
+				releaseWorker(worker);
+				idleWorkers.remove(worker);
+				liveness.untrack(worker);
+				forgetReachability(worker);
 			
-			String URL = URLForWorker.remove(worker);
-			if (URL != null) {
-				workerForURL.remove(URL);
-			}
+				String URL = URLForWorker.remove(worker);
+				if (URL != null) {
+					workerForURL.remove(URL);
+				}
 			
-			if (activeJob != null) {
-				activeJob.getSplitInformation().removeWorkerInformation(worker);
-				activeJob.getBucketInformation().removeWorkerInformation(worker);
+				for (Job job : startedJobs) {
+					job.getSplitInformation().removeWorkerInformation(worker);
+					job.getBucketInformation().removeWorkerInformation(worker);
+				}
+			} finally {
+				coordinator.writeLock().unlock();
 			}
 		}
 		
@@ -162,93 +415,550 @@ public abstract class MasterStoreImpl implements MasterContext
 				throw new WorkerInIllegalStateException("addWorker() worker "+worker+" already exists");
 			}
 			
-			workers.add(worker);
+			coordinator.writeLock().lock();
+			try {
+				worker.setId(workerForId.size());
+				workerForId.add(worker);
+				workers.add(worker);
+				totalSlots += worker.getSlots();
+			
+				for (Job job : startedJobs) {
+					liveness.track(worker, job);
+				}
+			} finally {
+				coordinator.writeLock().unlock();
+			}
 		}
 		
 	}
 
-	// **************************** Job functionality
+	/**
+	 * Record which job the worker is working on after it was given a task. Idle workers only ask for
+	 * work again on their idle heart beat, so the master keeps track of them to be able to hand out 
+	 * work as it appears.
+	 * 
+	 * @param worker The worker
+	 * @param job The job of the task given to the worker or null if the worker was sent a pause message
+	 */
+	protected void setWorkerJob(Worker worker, Job job)
+	{
+		releaseWorker(worker);
+		
+		if (job == null) {
+			idleWorkers.add(worker);
+		} else {
+			idleWorkers.remove(worker);
+			jobForWorker.put(worker, job);
+			job.workerAssigned();
+		}
+	}
 	
-	@Override
-	public synchronized boolean startNextJob() throws JobAlreadyRunningException
+	private void releaseWorker(Worker worker)
 	{
-		if (activeJob != null && activeJob.getState() == Job.State.RUNNING) {
-			logger.severe("Tried to start next job, but we have a running active job!");
-			throw new JobAlreadyRunningException("Tried to start next job, but we have a running active job!");
+		Job previous = jobForWorker.remove(worker);
+		if (previous != null) {
+			previous.workerReleased();
 		}
+	}
+	
+	@Override
+	public Job getWorkerJob(Worker worker)
+	{
+		return jobForWorker.get(worker);
+	}
+	
+	/**
+	 * @return The workers whose last instruction was to idle, in the order they became idle
+	 */
+	protected Set<Worker> getIdleWorkers()
+	{
+		return Collections.unmodifiableSet(idleWorkers);
+	}
+	
+	/**
+	 * Select a task for each of the workers and send it asynchronously.
+	 * 
+	 * @param toWhom The workers to send work to
+	 */
+	protected void dispatchWork(Collection<Worker> toWhom)
+	{
+		// this is needed as selectTaskForWorker depends on a request message
+		Message dummyMsg = Message.pauseMessage();
 		
-		if (jobQueue.isEmpty()) {
-			logger.fine("Tried to start next job, but no jobs in queue");
-			return false;
+		for (Worker w : toWhom) {
+			Message msg = selectTaskForWorker(w, dummyMsg);
+			w.sendAsyncMessage(msg);
 		}
+	}
+	
+	/**
+	 * Select a task for each of the workers and let the JobStartDispatcher encode and send them 
+	 * in parallel. 
+	 * 
+	 * @param toWhom The workers to send work to
+	 */
+	protected void dispatchJobStart(Collection<Worker> toWhom)
+	{
+		Message dummyMsg = Message.pauseMessage();
 		
-		if (activeJob != null) {
-			jobHistory.add(activeJob);
-			activeJob = null;
+		for (Worker w : toWhom) {
+			Message msg = selectTaskForWorker(w, dummyMsg);
+			msg.setRunningJobs(startedJobs);
+			getJobStartDispatcher().dispatch(w, msg);
 		}
+	}
+	
+	/**
+	 * @return The dispatcher sending the first tasks of started jobs. A dispatcher with the default
+	 *         rate is created on first use unless one has been set.
+	 */
+	public synchronized JobStartDispatcher getJobStartDispatcher()
+	{
+		if (jobStartDispatcher == null) {
+			jobStartDispatcher = new JobStartDispatcher(JobStartDispatcher.DEFAULT_RATE, JobStartDispatcher.DEFAULT_THREADS);
+		}
+		return jobStartDispatcher;
+	}
+	
+	/**
+	 * Set the dispatcher sending the first tasks of started jobs. This is meant to be called before
+	 * any job is started, a dispatcher which is replaced is not stopped.
+	 */
+	public synchronized void setJobStartDispatcher(JobStartDispatcher jobStartDispatcher)
+	{
+		this.jobStartDispatcher = jobStartDispatcher;
+	}
+	
+	/**
+	 * @return The sizer choosing the splits and buckets of jobs which leave them out
+	 */
+	public JobSizer getJobSizer()
+	{
+		return jobSizer;
+	}
+	
+	/**
+	 * Replace the sizer choosing the splits and buckets of jobs which leave them out.
+	 */
+	public synchronized void setJobSizer(JobSizer jobSizer)
+	{
+		this.jobSizer = jobSizer;
+	}
+	
+	/**
+	 * @return The journal the jobs are recorded in, or null
+	 */
+	public JobJournal getJournal()
+	{
+		return journal;
+	}
+	
+	/**
+	 * Start recording the jobs in a journal. The journal starts with a snapshot of the current jobs,
+	 * so jobs restored from the journal should be restored before this is called.
+	 * 
+	 * @param journal The journal, or null to stop journaling
+	 */
+	public synchronized void setJournal(JobJournal journal)
+	{
+		coordinator.writeLock().lock();
+		try {
+			this.journal = journal;
+			if (journal != null) {
+				journal.snapshot(jobMap.values());
+			}
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Queue the jobs which had not finished before the master was restarted and start as many of 
+	 * them as may run. Their buckets which were already reduced are not handed out again. The 
+	 * chunks of the mapped splits were kept by the workers of the previous master, so the splits
+	 * are mapped again.
+	 * 
+	 * @param records The jobs replayed from the journal
+	 * @see JobJournal#replay()
+	 */
+	public synchronized void restoreJobs(List<JobJournal.JobRecord> records)
+	{
+		coordinator.writeLock().lock();
+		try {
+			Map<Job, Map<?, ?>> restored = new LinkedHashMap<Job, Map<?, ?>>();
 		
-		activeJob = jobQueue.remove(0);
-		activeJob.startJob();
-		
-		// this is needed as selectTaskForWorker depends on a request message
-		Message dummyMsg = Message.pauseMessage();
+			for (JobJournal.JobRecord r : records) {
+				if (jobMap.containsKey(r.getJobId())) {
+					logger.warning("Not restoring job "+r.getJobId()+", a job with the same ID exists");
+					continue;
+				}
+			
+				Job job;
+				try {
+					Map<?, ?> p = r.getParameters();
+					job = new Job(r.getJobId(), 
+							Util.getIntFromJSONObject(p.get(Message.FIELD_NUM_MAPTASKS)),
+							Util.getIntFromJSONObject(p.get(Message.FIELD_NUM_REDUCETASKS)),
+							Util.getIntFromJSONObject(p.get(Job.FIELD_HEARTBEAT_TIMEOUT)),
+							Util.getIntFromJSONObject(p.get(Job.FIELD_PROGRESS_TIMEOUT)),
+							p.get(Message.FIELD_CODE));
+					job.setParameters(p);
+				} catch(RuntimeException re) {
+					logger.log(Level.SEVERE, "Could not restore job "+r.getJobId(), re);
+					continue;
+				}
+			
+				BitSet buckets = r.getBucketsDone();
+				buckets.clear(job.getReduceTasks(), Math.max(buckets.length(), job.getReduceTasks()));
+				job.restoreBuckets(buckets);
+				jobMap.put(job.getJobId(), job);
+				restored.put(job, r.getParameters());
+			
+				logger.info("Restored "+job+" with "+buckets.cardinality()+" buckets reduced, "+
+						r.getSplitsDone().cardinality()+" splits are mapped again");
+			}
 		
-		for (Worker w : getWorkers()) {
-			// TODO: update this comment to the year 2010. 
-			// Skip inactive workers because they might be dead and communicating with them would slow down operations
-			// if IO is async, this is not necessary! But.. Looking at Jetty 8.0.0.M2 sources, it seems (although
-			// it is difficult to verify) that sendMessage() is in fact synchronous.
-			if (!w.isAvailable(activeJob)) continue;
+			// Upstream jobs are resolved once every job has been restored
+			for (Map.Entry<Job, Map<?, ?>> e : restored.entrySet()) {
+				Job job = e.getKey();
+				job.setUpstreamJobs(restoreUpstreamJobs(e.getValue()));
 			
-			Message msg = selectTaskForWorker(w, dummyMsg);
+				// The master stopped before it could record the job as finished
+				if (job.getBucketsDone().cardinality() == job.getReduceTasks()) {
+					job.finishJob();
+					jobHistory.add(job);
+				} else if (job.isReady()) {
+					insertIntoQueue(job, false);
+				} else {
+					waitingJobs.add(job);
+				}
+			}
+		
+			copyJobMap();
+			startQueuedJobs();
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Find the upstream jobs of a restored job. An upstream job which finished and was retired 
+	 * before the restart is replaced by a finished placeholder, so that the workers still know 
+	 * where to read its output from.
+	 * 
+	 * @param parameters The parameters of the job from the journal
+	 * @return The upstream jobs
+	 */
+	private List<Job> restoreUpstreamJobs(Map<?, ?> parameters)
+	{
+		List<Job> ret = new ArrayList<Job>();
+		if (parameters.get(Job.FIELD_UPSTREAM) == null) {
+			return ret;
+		}
+		
+		for (Object o : Util.getListFromJSONObject(parameters.get(Job.FIELD_UPSTREAM))) {
+			Map<?, ?> u = (Map<?, ?>)o;
+			int id = Util.getIntFromJSONObject(u.get(Message.FIELD_JOBID));
+			Job j = jobMap.get(id);
+			if (j == null) {
+				j = new Job(id, 0, Util.getIntFromJSONObject(u.get(Message.FIELD_NUM_REDUCETASKS)), 0, 0, null);
+				j.finishJob();
+			}
+			ret.add(j);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Record acknowledged splits in the journal, if there is one. A snapshot is only taken by the 
+	 * coordinator, as other shards may be changing the splits of the jobs at the same time.
+	 */
+	protected void journalSplitsDone(Job job, List<Split> splits)
+	{
+		if (journal != null) {
+			journal.splitsDone(job, splits);
+			if (coordinator.isWriteLockedByCurrentThread()) {
+				snapshotJournalIfDue();
+			}
+		}
+	}
+	
+	/**
+	 * Record a reduced bucket in the journal, if there is one.
+	 */
+	protected void journalBucketDone(Job job, Bucket b)
+	{
+		if (journal != null) {
+			journal.bucketDone(job, b);
+			snapshotJournalIfDue();
+		}
+	}
+	
+	private void snapshotJournalIfDue()
+	{
+		if (journal.isSnapshotDue()) {
+			journal.snapshot(jobMap.values());
+		}
+	}
+	
+	// **************************** Job functionality
+	
+	@Override
+	public synchronized boolean startNextJob() throws JobAlreadyRunningException
+	{
+		coordinator.writeLock().lock();
+		try {
+			if (runningJobs.size() >= maxRunningJobs) {
+				Job victim = jobQueue.isEmpty() ? null : findPreemptableJob(jobQueue.get(0));
+				if (victim == null) {
+					logger.fine("Tried to start next job, but "+runningJobs.size()+" jobs are already running");
+					throw new JobAlreadyRunningException("Tried to start next job, but "+runningJobs.size()+" jobs are already running");
+				}
 			
-			w.sendAsyncMessage(msg, 1000); // TODO: use a static 1s ramp up for now. Add it to Job parameters if deemed necessary
+				pauseJob(victim);
+			}
+		
+			if (jobQueue.isEmpty()) {
+				logger.fine("Tried to start next job, but no jobs in queue");
+				return false;
+			}
+		
+			Job job = jobQueue.remove(0);
+			if (job.getState() == Job.State.PAUSED) {
+				logger.info("Resuming "+job);
+				job.resumeJob();
+			} else {
+				if (job.needsSizing()) {
+					jobSizer.sizeJob(job, totalSlots);
+					if (journal != null) {
+						journal.jobSized(job);
+						snapshotJournalIfDue();
+					}
+				}
+				job.startJob(this);
+				startedJobs.add(job);
+				for (Worker w : workers) {
+					liveness.track(w, job);
+				}
+			}
+			runningJobs.add(job);
+		
+			// Busy workers are shared with the new job as they finish their current tasks
+			List<Worker> idle = new ArrayList<Worker>();
+			for (Worker w : getWorkers()) {
+				// TODO: update this comment to the year 2010. 
+				// Skip inactive workers because they might be dead and communicating with them would slow down operations
+				// if IO is async, this is not necessary! But.. Looking at Jetty 8.0.0.M2 sources, it seems (although
+				// it is difficult to verify) that sendMessage() is in fact synchronous.
+				if (!w.isAvailable(job)) continue;
 			
+				if (jobForWorker.get(w) == null) {
+					idle.add(w);
+				}
+			}
+		
+			dispatchJobStart(idle);
+		
+			return true;
+		} finally {
+			coordinator.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Start queued jobs until the maximum number of jobs are running or the queue is empty.
+	 */
+	protected void startQueuedJobs()
+	{
+		try {
+			while (runningJobs.size() < maxRunningJobs && startNextJob());
+		} catch(JobAlreadyRunningException jare) {
+			logger.log(Level.SEVERE, "There was room for a job, but startNextJob() tells us too many jobs are running?!", jare);
+		}
+	}
+	
+	/**
+	 * Find the running job to pause for the given job. This is the running job of the lowest priority, 
+	 * or the most recently started one of them, if its priority is lower than the priority of the 
+	 * given job.
+	 * 
+	 * @param next The job waiting to be started
+	 * @return The job to pause or null if no running job has a lower priority
+	 */
+	private Job findPreemptableJob(Job next)
+	{
+		Job victim = null;
+		for (Job j : runningJobs) {
+			if (j.getPriority() < next.getPriority() && 
+				(victim == null || j.getPriority() <= victim.getPriority())) {
+				victim = j;
+			}
+		}
+		return victim;
+	}
+	
+	/**
+	 * Pause a running job and put it back into the job queue ahead of the queued jobs of the same
+	 * priority. Its workers are released so that they can be given work from other jobs.
+	 * 
+	 * @param job The job to pause
+	 */
+	protected void pauseJob(Job job)
+	{
+		logger.info("Pausing "+job+" to make room for a job of higher priority");
+		
+		runningJobs.remove(job);
+		releaseWorkers(job);
+		job.pauseJob();
+		
+		insertIntoQueue(job, true);
+	}
+	
+	/**
+	 * Insert a job into the job queue which is ordered by priority.
+	 * 
+	 * @param job The job to insert
+	 * @param aheadOfEqual Whether the job goes before or after the queued jobs with the same priority
+	 */
+	private void insertIntoQueue(Job job, boolean aheadOfEqual)
+	{
+		int i = 0;
+		for (Job queued : jobQueue) {
+			if (queued.getPriority() < job.getPriority() ||
+				(aheadOfEqual && queued.getPriority() == job.getPriority())) {
+				break;
+			}
+			i++;
+		}
+		jobQueue.add(i, job);
+	}
+	
+	/**
+	 * Stop a running or paused job. The job is marked as finished, removed from the running jobs 
+	 * and the workers working on it are released.
+	 * 
+	 * @param job The job to stop
+	 * @param keepInHistory Whether the job is moved into the job history
+	 * @return The workers who were working on the job
+	 */
+	protected List<Worker> retireJob(Job job, boolean keepInHistory)
+	{
+		if (job.getState() != Job.State.FINISHED) {
+			job.finishJob();
+		}
+		
+		runningJobs.remove(job);
+		startedJobs.remove(job);
+		jobQueue.remove(job);
+		for (Worker w : workers) {
+			liveness.untrack(w, job);
+		}
+		if (keepInHistory) {
+			jobHistory.add(job);
+			if (journal != null) {
+				journal.jobFinished(job);
+				snapshotJournalIfDue();
+			}
+			jobSizer.jobFinished(job);
+			releaseWaitingJobs();
+		}
+		
+		return releaseWorkers(job);
+	}
+	
+	/**
+	 * Queue the waiting jobs whose upstream jobs have all finished. They are started by the caller
+	 * along with the rest of the queue.
+	 */
+	private void releaseWaitingJobs()
+	{
+		Iterator<Job> i = waitingJobs.iterator();
+		while (i.hasNext()) {
+			Job j = i.next();
+			if (j.isReady()) {
+				i.remove();
+				logger.info("The upstream jobs of "+j+" have finished, queueing it");
+				insertIntoQueue(j, false);
+			}
+		}
+	}
+	
+	private List<Worker> releaseWorkers(Job job)
+	{
+		List<Worker> released = new ArrayList<Worker>();
+		for (Map.Entry<Worker, Job> e : jobForWorker.entrySet()) {
+			if (e.getValue() == job) {
+				released.add(e.getKey());
+			}
 		}
 		
-		return true;
+		for (Worker w : released) {
+			releaseWorker(w);
+		}
+		
+		return released;
 	}
 
 	@Override
 	public synchronized void removeJob(Job toBeRemoved)
 	{
-		logger.fine("Removing ID -> Job mapping");
-		// Remove id -> Job mapping
-		jobMap.remove(toBeRemoved.getJobId());
+		coordinator.writeLock().lock();
+		try {
+			if (journal != null) {
+				journal.jobRemoved(toBeRemoved);
+				snapshotJournalIfDue();
+			}
 		
-		if (jobQueue.contains(toBeRemoved)) {
-			logger.fine("Removing job from Job queue");
-			jobQueue.remove(toBeRemoved);
-		}
+			// Jobs waiting for the output of an unfinished job would never start
+			List<Job> downstream = new ArrayList<Job>();
+			if (toBeRemoved.getState() != Job.State.FINISHED) {
+				for (Job j : waitingJobs) {
+					if (j.getUpstreamJobs().contains(toBeRemoved)) {
+						downstream.add(j);
+					}
+				}
+			}
 		
-		if (jobHistory.contains(toBeRemoved)) {
-			logger.fine("Removing job from Job history");
-			jobHistory.remove(toBeRemoved);
-		}
+			logger.fine("Removing ID -> Job mapping");
+			// Remove id -> Job mapping
+			jobMap.remove(toBeRemoved.getJobId());
+			waitingJobs.remove(toBeRemoved);
 		
-		if (activeJob != null &&
-			activeJob.equals(toBeRemoved)) {
-			logger.fine("Removing current active job");
-			if (activeJob.getState() != Job.State.FINISHED) {
-				logger.fine(" .. mark the job as finished");
-				activeJob.finishJob();
+			if (jobQueue.contains(toBeRemoved)) {
+				logger.fine("Removing job from Job queue");
+				jobQueue.remove(toBeRemoved);
+			
+				if (toBeRemoved.getState() == Job.State.PAUSED) {
+					retireJob(toBeRemoved, false);
+				}
 			}
+		
+			if (jobHistory.contains(toBeRemoved)) {
+				logger.fine("Removing job from Job history");
+				jobHistory.remove(toBeRemoved);
+			}
+		
+			if (runningJobs.contains(toBeRemoved)) {
+				logger.fine("Removing running job");
+				// Removed jobs are not added into the job history
+				List<Worker> released = retireJob(toBeRemoved, false);
 			
-			// TODO: do not add removed job into the job history
-			//logger.fine(" .. move job into Job history");
-			//jobHistory.add(activeJob);
-			activeJob = null;
+				logger.fine(" .. giving new work to the workers of the removed job");
+				dispatchWork(released);
 			
-			logger.fine(" .. attempting to start the next job");
-			try {
-				startNextJob();
-			} catch(JobAlreadyRunningException jare) {
-				logger.log(Level.SEVERE, "We just stopped the previous job, but startNextJob() tells us there is a job running?!", jare);
+				logger.fine(" .. attempting to start the next job");
+				startQueuedJobs();
 			}
-				
-		}
 		
-		copyJobMap();
+			copyJobMap();
+		
+			for (Job j : downstream) {
+				logger.info("Removing "+j+" which was waiting for the output of "+toBeRemoved);
+				removeJob(j);
+			}
+		} finally {
+			coordinator.writeLock().unlock();
+		}
 	}
 	
 	@Override
@@ -259,7 +969,17 @@ public abstract class MasterStoreImpl implements MasterContext
 			throw new JobAlreadyRunningException("Tried to add job "+j+" to job queue, but it's in an illegal state (state != NEW)");
 		}
 		
-		jobQueue.add(j);
+		if (j.isReady()) {
+			insertIntoQueue(j, false);
+		} else {
+			logger.info(j+" waits for its upstream jobs to finish");
+			waitingJobs.add(j);
+		}
+		
+		if (journal != null) {
+			journal.jobQueued(j);
+			snapshotJournalIfDue();
+		}
 	}
 	
 	@Override
@@ -268,6 +988,12 @@ public abstract class MasterStoreImpl implements MasterContext
 		return Collections.unmodifiableList(jobQueue);
 	}
 
+	@Override
+	public List<Job> getWaitingJobs()
+	{
+		return Collections.unmodifiableList(waitingJobs);
+	}
+
 	@Override
 	public List<Job> getJobHistory() 
 	{
@@ -277,13 +1003,50 @@ public abstract class MasterStoreImpl implements MasterContext
 	@Override
 	public Job getActiveJob()
 	{
-		return activeJob;
+		return runningJobs.isEmpty() ? null : runningJobs.get(0);
+	}
+	
+	@Override
+	public List<Job> getRunningJobs()
+	{
+		return Collections.unmodifiableList(runningJobs);
+	}
+	
+	/**
+	 * @return The running and paused jobs. Workers keep the intermediate results of these jobs.
+	 */
+	public List<Job> getStartedJobs()
+	{
+		return Collections.unmodifiableList(startedJobs);
 	}
 	
 	@Override
 	public boolean isJobRunning()
 	{
-		return activeJob != null && activeJob.getState() == Job.State.RUNNING;
+		return !runningJobs.isEmpty();
+	}
+	
+	/**
+	 * @return How many jobs may be running at the same time.
+	 */
+	public int getMaxRunningJobs()
+	{
+		return maxRunningJobs;
+	}
+	
+	/**
+	 * Set how many jobs may be running at the same time. Lowering the limit does not stop
+	 * jobs which are already running.
+	 * 
+	 * @param maxRunningJobs The maximum number of running jobs, at least 1
+	 */
+	public synchronized void setMaxRunningJobs(int maxRunningJobs)
+	{
+		if (maxRunningJobs < 1) {
+			throw new IllegalArgumentException("At least one job must be allowed to run: "+maxRunningJobs);
+		}
+		this.maxRunningJobs = maxRunningJobs;
+		startQueuedJobs();
 	}
 
 	@Override
@@ -292,13 +1055,13 @@ public abstract class MasterStoreImpl implements MasterContext
 		Job ret;
 		
 		synchronized (this) {
-			// Monotonic for (2^31-1)/100/60/60/24 days (248.5), one new ID per 1/100th of a second
-			int thisJob = -1;
-			do {
-				if (thisJob > 0) { try { Thread.sleep(10); } catch(Exception e) {} }
-				thisJob = (int)((System.currentTimeMillis()/100) % Integer.MAX_VALUE);
-				
-			} while (jobMap.containsKey(thisJob));
+			// Monotonic for (2^31-1)/100/60/60/24 days (248.5). Jobs created within the same 1/100th
+			// of a second, such as the stages of a job, take the following free IDs instead of
+			// waiting with the lock held.
+			int thisJob = (int)((System.currentTimeMillis()/100) % Integer.MAX_VALUE);
+			while (jobMap.containsKey(thisJob)) {
+				thisJob++;
+			}
 			ret = new Job(thisJob, maptasks, reducetasks, heartbeatTimeout, acknowledgeTimeout, code);
 			jobMap.put(thisJob, ret); // auto-boxing
 			
@@ -324,6 +1087,17 @@ public abstract class MasterStoreImpl implements MasterContext
 		return readOnlyJobMap.get(jobId); // auto-boxing
 	}
 	
+	@Override
+	public Job getJobByCodeHash(String codeHash)
+	{
+		for (Job j : readOnlyJobMap.values()) {
+			if (j.getCodeHash().equals(codeHash)) {
+				return j;
+			}
+		}
+		return null;
+	}
+	
 	// **************************** Console functionality
 	
 	@Override
@@ -354,7 +1128,12 @@ public abstract class MasterStoreImpl implements MasterContext
 		ConsoleInformation ci;
 		
 		synchronized (this) {
-			ci = new ConsoleInformation(this);
+			coordinator.writeLock().lock();
+			try {
+				ci = new ConsoleInformation(this);
+			} finally {
+				coordinator.writeLock().unlock();
+			}
 		}
 
 		return ci;
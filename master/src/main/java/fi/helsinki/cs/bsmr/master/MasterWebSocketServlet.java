@@ -85,6 +85,12 @@ public WebSocket doWebSocketConnect(HttpServletRequest request,
 			return new Worker(master, request.getRemoteAddr());
 			}
 
+		// Workers offer the binary subprotocol first and JSON as a fallback
+		if (service.equals(BinaryCodec.PROTOCOL))
+			{
+			return new Worker(master, request.getRemoteAddr(), true);
+			}
+
 		if (service.equals("console"))
 			{
 			return new Console(master);
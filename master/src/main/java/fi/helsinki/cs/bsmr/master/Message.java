@@ -27,15 +27,19 @@ package fi.helsinki.cs.bsmr.master;
  *
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
 /**
  * The container for messages sent between workers and the master.
  * 
@@ -53,7 +57,7 @@ DO, ACK, HB
 
 public enum Action
 {
-mapSplit, reduceBucket, reduceChunk, idle
+mapSplit, reduceBucket, reduceChunk, replicateSplit, idle
 }
 
 public static final String FIELD_ACTION = "action";
@@ -62,6 +66,7 @@ public static final String FIELD_PAYLOAD = "payload";
 public static final String FIELD_TYPE = "type";
 public static final String FIELD_JOBID = "jobId";
 public static final String FIELD_JOB_MAP = "job";
+public static final String FIELD_RUNNING_JOBIDS = "runningJobIds";
 
 public static final String FIELD_MAPSTATUS = "mapStatus";
 public static final String FIELD_REDUCESTATUS = "reduceStatus";
@@ -71,22 +76,38 @@ public static final String FIELD_NUM_REDUCETASKS = "R";
 public static final String FIELD_NUM_MAPTASKS = "M";
 
 public static final String FIELD_SPLITID = "splitId";
+public static final String FIELD_SPLITIDS = "splitIds";
 public static final String FIELD_BUCKETID = "bucketId";
+public static final String FIELD_PART = "part";
+public static final String FIELD_PARTS = "parts";
+public static final String FIELD_BUCKET_RECORDS = "bucketRecords";
+public static final String FIELD_BUCKET_BYTES = "bucketBytes";
 public static final String FIELD_REDUCE_LOCATION = "locations";
+public static final String FIELD_RETRY_AFTER = "retryAfter";
 
 public static final String FIELD_CODE = "code";
+public static final String FIELD_CODE_HASH = "codeHash";
+public static final String FIELD_WORKER_URLS = "workerUrls";
 
 public static final String FIELD_INTERURL = "interUrl";
+public static final String FIELD_MAX_BATCH = "maxBatch";
+public static final String FIELD_SLOTS = "slots";
+public static final String FIELD_SPEED = "speed";
 
 private Type type;
 private Action action;
 
 private Job job;
+// Copied when set, so that the message can be encoded outside of the "big lock"
+private List<Integer> runningJobIds;
 
 private MapStatus mapStatus;
 private ReduceStatus reduceStatus;
 private Set<Worker> unreachableWorkers;
 private String interUrl = null;
+private int maxBatch = 0;
+private int slots = 0;
+private double speed = -1;
 
 private Message(Type t, Action a)
 	{
@@ -94,6 +115,7 @@ private Message(Type t, Action a)
 	this.action = a;
 
 	this.job = null;
+	this.runningJobIds = null;
 	this.mapStatus = null;
 	this.reduceStatus = null;
 	this.unreachableWorkers = null;
@@ -104,22 +126,50 @@ private Message(Type t, Action a, Job j)
 	this.type = t;
 	this.action = a;
 	this.job = j;
+	this.runningJobIds = null;
 
 	this.mapStatus = null;
 	this.reduceStatus = null;
 	this.unreachableWorkers = null;
 	}
 
-private Message(Map<Object, Object> d, MasterContext master, String remoteAddr)
-		throws IllegalMessageException
+private Message(JsonParser p, MasterContext master) throws IOException,
+		IllegalMessageException
 	{
-	Map<?, ?> payload = (Map<?, ?>) d.get(FIELD_PAYLOAD);
-	if (payload == null)
+	if (p.nextToken() != JsonToken.START_OBJECT)
+		{
+		throw new IllegalMessageException("Message is not a JSON object");
+		}
+
+	// The fields are read in the order they come in, without building a map
+	// of the message first
+	String typeField = null;
+	String actionField = null;
+	boolean hasPayload = false;
+	while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+		String field = p.getCurrentName();
+		JsonToken t = p.nextToken();
+		if (FIELD_TYPE.equals(field) && t == JsonToken.VALUE_STRING)
+			{
+			typeField = p.getText();
+			}
+		else if (FIELD_PAYLOAD.equals(field) && t == JsonToken.START_OBJECT)
+			{
+			hasPayload = true;
+			actionField = parsePayload(p, master);
+			}
+		else
+			{
+			p.skipChildren();
+			}
+		}
+
+	if (!hasPayload)
 		{
 		throw new IllegalMessageException("No payload");
 		}
 
-	String typeField = (String) d.get(FIELD_TYPE);
 	try
 		{
 		this.type = Type.valueOf(typeField);
@@ -134,7 +184,6 @@ private Message(Map<Object, Object> d, MasterContext master, String remoteAddr)
 				+ "' not recognized");
 		}
 
-	String actionField = (String) payload.get(FIELD_ACTION);
 	try
 		{
 		this.action = Action.valueOf(actionField);
@@ -148,98 +197,213 @@ private Message(Map<Object, Object> d, MasterContext master, String remoteAddr)
 		throw new IllegalMessageException("Message action '" + actionField
 				+ "' not recognized");
 		}
+	}
 
-	if (payload.containsKey(FIELD_JOBID))
+/**
+ * Fill the fields of this message from the payload object the parser is at.
+ * 
+ * @return The action of the payload or null if there is none
+ */
+private String parsePayload(JsonParser p, MasterContext master)
+		throws IOException, IllegalMessageException
+	{
+	String actionField = null;
+	while (p.nextToken() == JsonToken.FIELD_NAME)
 		{
-		Object o = payload.get(FIELD_JOBID);
-		if (o != null)
+		String field = p.getCurrentName();
+		if (p.nextToken() == JsonToken.VALUE_NULL)
 			{
-			int jobNum = Util.getIntFromJSONObject(o);
-			this.job = master.getJobById(jobNum);
+			continue;
 			}
 
-		}
-	
-	if (payload.containsKey(FIELD_INTERURL))
-		{
-		Object o = payload.get(FIELD_INTERURL);
-		if (o != null)
+		if (FIELD_ACTION.equals(field))
+			{
+			actionField = readString(p);
+			}
+		else if (FIELD_JOBID.equals(field))
+			{
+			this.job = master.getJobById(readInt(p));
+			}
+		else if (FIELD_INTERURL.equals(field))
+			{
+			this.interUrl = readString(p);
+			}
+		else if (FIELD_MAX_BATCH.equals(field))
+			{
+			this.maxBatch = readInt(p);
+			}
+		else if (FIELD_SLOTS.equals(field))
+			{
+			this.slots = readInt(p);
+			}
+		else if (FIELD_SPEED.equals(field))
+			{
+			this.speed = readDouble(p);
+			}
+		else if (FIELD_MAPSTATUS.equals(field))
+			{
+			this.mapStatus = createMapStatus(p);
+			}
+		else if (FIELD_REDUCESTATUS.equals(field))
+			{
+			this.reduceStatus = createReduceStatus(p);
+			}
+		else if (FIELD_UNREACHABLE.equals(field))
+			{
+			this.unreachableWorkers = parseWorkers(p, master);
+			}
+		else
 			{
-			this.interUrl = (String)o;
+			p.skipChildren();
 			}
 		}
-
-	//remoteAddr is the detected ip address of the worker, and could later be
-	//filled in the interUrl
-	this.mapStatus = createMapStatus((Map<?, ?>) payload.get(FIELD_MAPSTATUS));
-	this.reduceStatus = createReduceStatus((Map<?, ?>) payload
-			.get(FIELD_REDUCESTATUS));
-
-	this.unreachableWorkers = parseWorkers(payload.get(FIELD_UNREACHABLE),
-			master);
-	//Set<Worker> urlless = null;
-	//this.unreachableWorkers.addAll(urlless);
+	return actionField;
 	}
 
-@SuppressWarnings({ "unchecked", "rawtypes" })
-private static Set<Worker> parseWorkers(Object workersAsUrls,
-		MasterContext workers)
+private static Set<Worker> parseWorkers(JsonParser p, MasterContext workers)
+		throws IOException
 	{
-	if (workersAsUrls == null)
-		return null;
+	Set<Worker> ret = new HashSet<Worker>();
 
-	Collection<Object> set;
-	if (workersAsUrls instanceof Collection)
-		{
-		set = (Collection<Object>) workersAsUrls;
-		}
-	else if (workersAsUrls instanceof Map)
+	JsonToken t = p.getCurrentToken();
+	if (t == JsonToken.START_OBJECT)
 		{
 		logger
 				.fine("Parsing workers from message using a map?? Using the keys");
-		set = ((Map) workersAsUrls).keySet();
+		while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+			addWorker(ret, p.getCurrentName(), workers);
+			p.nextToken();
+			p.skipChildren();
+			}
 		}
-	else
+	else if (t == JsonToken.START_ARRAY)
 		{
-		try
+		while ((t = p.nextToken()) != JsonToken.END_ARRAY)
 			{
-			Object[] tmp = (Object[]) workersAsUrls;
-			set = new ArrayList<Object>();
-			for (Object o : tmp)
+			if (t == JsonToken.VALUE_STRING)
 				{
-				set.add(o);
+				addWorker(ret, p.getText(), workers);
 				}
-			}
-		catch (ClassCastException cce)
-			{
-			if (workersAsUrls != null)
+			else if (t == JsonToken.VALUE_NUMBER_INT)
 				{
-				logger.severe("Unable to use workersAsUrls parameter: "
-						+ workersAsUrls);
+				// Workers using the binary subprotocol send worker IDs
+				Worker w = workers.getWorkerById(p.getIntValue());
+				if (w != null)
+					{
+					ret.add(w);
+					}
+				}
+			else
+				{
+				if (t != JsonToken.VALUE_NULL)
+					{
+					logger.severe("payload contains non-string worker URLs");
+					}
+				p.skipChildren();
 				}
-			return Collections.emptySet();
 			}
+		}
+	else
+		{
+		logger.severe("Unable to use workersAsUrls parameter: " + p.getText());
+		return Collections.emptySet();
+		}
 
+	return ret;
+	}
+
+private static void addWorker(Set<Worker> set, String url,
+		MasterContext workers)
+	{
+	Worker w = workers.getWorkerByURL(url);
+	if (w != null)
+		{
+		set.add(w);
 		}
+	}
 
-	Set<Worker> ret = new HashSet<Worker>();
+private static void expectArray(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	if (p.getCurrentToken() != JsonToken.START_ARRAY)
+		{
+		throw new IllegalMessageException("Field " + p.getCurrentName()
+				+ " is not an array");
+		}
+	}
 
-	for (Object o : set)
+private static String readString(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	if (p.getCurrentToken() != JsonToken.VALUE_STRING)
 		{
-		if (o != null && !(o instanceof String))
+		throw new IllegalMessageException("Field " + p.getCurrentName()
+				+ " is not a string");
+		}
+	return p.getText();
+	}
+
+/**
+ * Read an int the way Util.getIntFromJSONObject() accepts it, either as a
+ * number or as a string.
+ */
+private static int readInt(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	JsonToken t = p.getCurrentToken();
+	try
+		{
+		if (t == JsonToken.VALUE_NUMBER_INT)
 			{
-			logger.severe("payload contains non-string worker URLs");
-			continue;
+			return p.getIntValue();
 			}
-		String url = (String) o;
-		Worker w = workers.getWorkerByURL(url);
-		if (w != null)
+		if (t == JsonToken.VALUE_STRING)
 			{
-			ret.add(w);
+			return Integer.parseInt(p.getText());
 			}
 		}
+	catch (NumberFormatException nfe)
+		{
+		// fall through
+		}
+	throw new IllegalMessageException("Field " + p.getCurrentName()
+			+ " cannot be parsed into an int: " + p.getText());
+	}
 
-	return ret;
+private static long readLong(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	JsonToken t = p.getCurrentToken();
+	if (t != JsonToken.VALUE_NUMBER_INT && t != JsonToken.VALUE_NUMBER_FLOAT)
+		{
+		throw new IllegalMessageException("Object " + p.getText()
+				+ " is not a size");
+		}
+	return p.getLongValue();
+	}
+
+private static double readDouble(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	JsonToken t = p.getCurrentToken();
+	try
+		{
+		if (t == JsonToken.VALUE_NUMBER_INT || t == JsonToken.VALUE_NUMBER_FLOAT)
+			{
+			return p.getDoubleValue();
+			}
+		if (t == JsonToken.VALUE_STRING)
+			{
+			return Double.parseDouble(p.getText());
+			}
+		}
+	catch (NumberFormatException nfe)
+		{
+		// fall through
+		}
+	throw new IllegalMessageException("Field " + p.getCurrentName()
+			+ " cannot be parsed into a double: " + p.getText());
 	}
 
 public Type getType()
@@ -280,14 +444,25 @@ public ReduceStatus getReduceStatus()
  * @throws IllegalMessageException
  *             If there is a syntax error in the message
  */
-@SuppressWarnings("unchecked")
 public static Message parseMessage(String msg, MasterContext master,
 		String remoteAddr) throws IllegalMessageException
 	{
-	Map<Object, Object> tmp = (Map<Object, Object>) JSON.parse(msg);
 	try
 		{
-		return new Message(tmp, master, remoteAddr);
+		JsonParser p = JSON.getFactory().createJsonParser(msg);
+		try
+			{
+			return new Message(p, master);
+			}
+		finally
+			{
+			p.close();
+			}
+		}
+	catch (IOException ioe)
+		{
+		throw new IllegalMessageException("Malformed JSON: "
+				+ ioe.getMessage(), msg);
 		}
 	catch (IllegalMessageException ime)
 		{
@@ -296,6 +471,44 @@ public static Message parseMessage(String msg, MasterContext master,
 		}
 	}
 
+/**
+ * Parse a binary frame of a worker using the binary subprotocol.
+ * 
+ * @param data
+ *            The buffer holding the frame
+ * @param offset
+ *            Where the frame starts in the buffer
+ * @param length
+ *            The length of the frame
+ * @param master
+ *            The master the worker for whom the message came for belongs to
+ * @param remoteAddr
+ *            The remote address of the worker
+ * @return The parsed message
+ * @throws IllegalMessageException
+ *             If the frame is malformed
+ * @see BinaryCodec
+ */
+public static Message parseMessage(byte[] data, int offset, int length,
+		MasterContext master, String remoteAddr)
+		throws IllegalMessageException
+	{
+	try
+		{
+		return new Message(new BinaryParser(data, offset, length), master);
+		}
+	catch (IOException ioe)
+		{
+		throw new IllegalMessageException("Malformed frame: "
+				+ ioe.getMessage(), BinaryCodec.toHex(data, offset, length));
+		}
+	catch (IllegalMessageException ime)
+		{
+		ime.setProblematicMessage(BinaryCodec.toHex(data, offset, length));
+		throw ime;
+		}
+	}
+
 /**
  * Construct a JSON string for this message. This method needs to be called
  * within the "big lock" as concurrent modifications to the current Job might
@@ -304,14 +517,115 @@ public static Message parseMessage(String msg, MasterContext master,
  * @return This message encoded into a JSON string
  */
 public String encodeMessage()
+	{
+	return encodeMessage(null);
+	}
+
+/**
+ * Construct a JSON string for this message to a worker. The job code is left
+ * out if the worker has been sent the code already, the worker then finds the
+ * code by its hash.
+ * 
+ * @param to
+ *            The worker the message is sent to, or null to include the code
+ * @return This message encoded into a JSON string
+ * @see Worker#markCodeSent(String)
+ */
+public String encodeMessage(Worker to)
 	{
 	Map<Object, Object> data = new HashMap<Object, Object>();
-	Map<Object, Object> payload = new HashMap<Object, Object>();
+	Map<Object, Object> payload = getPayload(to);
 
 	data.put(FIELD_TYPE, type.toString());
 	data.put(FIELD_PAYLOAD, payload);
 
 	payload.put(FIELD_ACTION, action.toString());
+
+	return JSON.toString(data);
+	}
+
+/**
+ * Encode this message to a worker using the binary subprotocol. Other workers
+ * are named by their IDs. The URL of a worker and the description of the job
+ * are included until a message including them has been delivered, which the
+ * caller tells.
+ * 
+ * @param to
+ *            The worker the message is sent to
+ * @param delivered
+ *            True if the message is sent right away. Messages which are
+ *            queued might be replaced by later ones before they are sent.
+ * @return This message encoded into a binary frame
+ * @see BinaryCodec
+ */
+@SuppressWarnings("unchecked")
+public byte[] encodeBinary(Worker to, boolean delivered)
+	{
+	Map<Object, Object> payload = getPayload(to);
+
+	// The URLs of the locations are replaced with worker IDs
+	List<Object> urls = new ArrayList<Object>();
+	if (reduceStatus != null && reduceStatus.location != null)
+		{
+		((Map<Object, Object>) payload.get(FIELD_REDUCESTATUS)).put(
+				FIELD_REDUCE_LOCATION,
+				workerIds(reduceStatus.location, to, delivered, urls));
+		}
+	if (mapStatus != null && mapStatus.location != null)
+		{
+		((Map<Object, Object>) payload.get(FIELD_MAPSTATUS)).put(
+				FIELD_REDUCE_LOCATION,
+				workerIds(mapStatus.location, to, delivered, urls));
+		}
+	if (!urls.isEmpty())
+		{
+		payload.put(FIELD_WORKER_URLS, urls);
+		}
+
+	// The worker keeps the jobs it has been described
+	Map<Object, Object> jobMap = (Map<Object, Object>) payload
+			.get(FIELD_JOB_MAP);
+	if (jobMap != null && to.markJobSent(job, delivered))
+		{
+		jobMap.put(FIELD_CODE_HASH, BinaryCodec.fromHex(job.getCodeHash()));
+		}
+	else if (jobMap != null)
+		{
+		jobMap.keySet().retainAll(Collections.singleton(FIELD_JOBID));
+		}
+
+	return BinaryCodec.encode(type, action, payload);
+	}
+
+/**
+ * @param urls
+ *            The IDs and URLs of the workers whose URLs the recipient does not
+ *            know are added here
+ * @return The IDs of the workers
+ */
+private static List<Integer> workerIds(List<Worker> workers, Worker to,
+		boolean delivered, List<Object> urls)
+	{
+	List<Integer> ret = new ArrayList<Integer>(workers.size());
+	for (Worker w : workers)
+		{
+		ret.add(w.getId());
+		if (to.markUrlSent(w, delivered) && !urls.contains(w.getId()))
+			{
+			urls.add(w.getId());
+			urls.add(w.getSocketURL());
+			}
+		}
+	return ret;
+	}
+
+/**
+ * Build the payload of this message, except for the action.
+ */
+private Map<Object, Object> getPayload(Worker to)
+	{
+	Map<Object, Object> payload = new HashMap<Object, Object>();
+
 	if (reduceStatus != null)
 		{
 		payload.put(FIELD_REDUCESTATUS, reduceStatus.asMap());
@@ -324,11 +638,45 @@ public String encodeMessage()
 	if (job != null)
 		{
 		Map<Object, Object> jobMap = getJSONMapForJob(job);
+		if (to != null && !to.markCodeSent(job.getCodeHash()))
+			{
+			jobMap.remove(FIELD_CODE);
+			}
 
 		payload.put(FIELD_JOB_MAP, jobMap);
 		}
 
-	return JSON.toString(data);
+	if (runningJobIds != null)
+		{
+		payload.put(FIELD_RUNNING_JOBIDS, runningJobIds);
+		}
+
+	return payload;
+	}
+
+/**
+ * Tell the worker which jobs are running or paused. Workers keep the
+ * intermediate results of these jobs, so they can serve chunks to reducers of
+ * a job after moving on to another job.
+ * 
+ * @param runningJobs
+ *            The running and paused jobs, or null to leave them out of the
+ *            message
+ */
+public void setRunningJobs(List<Job> runningJobs)
+	{
+	if (runningJobs == null)
+		{
+		this.runningJobIds = null;
+		return;
+		}
+
+	List<Integer> ids = new ArrayList<Integer>(runningJobs.size());
+	for (Job j : runningJobs)
+		{
+		ids.add(j.getJobId());
+		}
+	this.runningJobIds = ids;
 	}
 
 /**
@@ -346,6 +694,22 @@ public static Map<Object, Object> getJSONMapForJob(Job job)
 	jobMap.put(FIELD_NUM_MAPTASKS, job.getMapTasks());
 	jobMap.put(FIELD_NUM_REDUCETASKS, job.getReduceTasks());
 	jobMap.put(FIELD_CODE, job.getCode());
+	jobMap.put(FIELD_CODE_HASH, job.getCodeHash());
+
+	// Workers read the input of a later stage from the buckets of the
+	// earlier stages
+	if (!job.getUpstreamJobs().isEmpty())
+		{
+		List<Object> upstream = new ArrayList<Object>();
+		for (Job j : job.getUpstreamJobs())
+			{
+			Map<Object, Object> tmp = new HashMap<Object, Object>();
+			tmp.put(FIELD_JOBID, j.getJobId());
+			tmp.put(FIELD_NUM_REDUCETASKS, j.getReduceTasks());
+			upstream.add(tmp);
+			}
+		jobMap.put(Job.FIELD_UPSTREAM, upstream);
+		}
 	return jobMap;
 	}
 
@@ -385,6 +749,44 @@ public static Message mapThisMessage(Split s, Job j)
 	return ret;
 	}
 
+/**
+ * Create a message instructing a worker to map a batch of splits. The worker
+ * maps the splits in the given order.
+ * 
+ * @param splits
+ *            The splits to map, at least one
+ * @param j
+ *            The job for which this task is for
+ * @return The message
+ */
+public static Message mapTheseMessage(List<Split> splits, Job j)
+	{
+	Message ret = new Message(Type.DO, Action.mapSplit, j);
+	ret.mapStatus = ret.new MapStatus(splits);
+	return ret;
+	}
+
+/**
+ * Create a message instructing a worker to copy all chunks of a split from
+ * the workers who have it, so that the worker can provide the split too.
+ * 
+ * @param s
+ *            The split to copy
+ * @param j
+ *            The job of the split
+ * @param providers
+ *            The workers to copy from, best first
+ * @return The message
+ */
+public static Message replicateSplitMessage(Split s, Job j,
+		List<Worker> providers)
+	{
+	Message ret = new Message(Type.DO, Action.replicateSplit, j);
+	ret.mapStatus = ret.new MapStatus(s);
+	ret.mapStatus.location = providers;
+	return ret;
+	}
+
 /**
  * Create a message instructing a worker to reduce a bucket.
  * 
@@ -402,7 +804,9 @@ public static Message reduceThatMessage(Bucket b, Job j)
 	}
 
 /**
- * Create a message instructing a worker where to find certain chunk at.
+ * Create a message instructing a worker where to find certain chunk at. The
+ * locations are given best first as ranked by the ChunkLocationService of
+ * the job.
  * 
  * @param b
  *            The bucket the worker is currently reducing
@@ -410,27 +814,45 @@ public static Message reduceThatMessage(Bucket b, Job j)
  *            For which split the message contains worker socket URLs for
  * @param j
  *            The job for which this task is for
+ * @param reducer
+ *            The worker the message is for
  * @param unreachableWorkers
  *            A list of workers who are unreachable to the target of this
  *            message. The message will not contain URLs for these workers.
  * @return The message
  */
 public static Message findChunkAtMessage(Bucket b, Split s, Job j,
-		Set<Worker> unreachableWorkers)
+		Worker reducer, Set<Worker> unreachableWorkers)
 	{
 	Message ret = new Message(Type.DO, Action.reduceChunk, j);
-	Set<Worker> hasSplit = new HashSet<Worker>();
-
-	for (Worker w : j.getSplitInformation().canProvideSplit(s))
-		{
-
-		if (unreachableWorkers.contains(w) || w.getSocketURL() == null)
-			continue;
+	List<Worker> locations = j.getSplitInformation().getChunkLocations(s,
+			reducer, unreachableWorkers);
 
-		hasSplit.add(w);
-		}
+	ret.reduceStatus = ret.new ReduceStatus(b, s, locations);
+	return ret;
+	}
 
-	ret.reduceStatus = ret.new ReduceStatus(b, s, hasSplit);
+/**
+ * Create a message telling a reducer that a chunk is not available yet as
+ * the split is still being mapped. The reducer should ask for the chunk
+ * again after the given delay.
+ * 
+ * @param b
+ *            The bucket the worker is currently reducing
+ * @param s
+ *            The split the worker asked for
+ * @param j
+ *            The job for which this task is for
+ * @param retryAfter
+ *            Milliseconds the worker should wait before asking again
+ * @return The message
+ */
+public static Message retryChunkMessage(Bucket b, Split s, Job j,
+		long retryAfter)
+	{
+	Message ret = new Message(Type.DO, Action.reduceChunk, j);
+	ret.reduceStatus = ret.new ReduceStatus(b, s, null);
+	ret.reduceStatus.retryAfter = retryAfter;
 	return ret;
 	}
 
@@ -446,6 +868,40 @@ public String getInterUrl()
 	return interUrl;
 	}
 
+/**
+ * Return how many splits the worker accepts in one message. Workers which
+ * do not announce this take one split at a time.
+ * 
+ * @return The batch size announced by the worker or 0 if the message does
+ *         not contain one.
+ */
+public int getMaxBatch()
+	{
+	return maxBatch;
+	}
+
+/**
+ * Return how many tasks the worker can run in parallel.
+ * 
+ * @return The slot count announced by the worker or 0 if the message does not
+ *         contain one.
+ */
+public int getSlots()
+	{
+	return slots;
+	}
+
+/**
+ * Return the speed the worker has measured for itself. The unit is up to the
+ * worker, faster workers report larger values.
+ * 
+ * @return The speed or a negative value if the message does not contain one.
+ */
+public double getSpeed()
+	{
+	return speed;
+	}
+
 /**
  * Return which bucket the worker is reducing. This is used when the worker
  * has sent a reduceSplit message.
@@ -462,34 +918,138 @@ public class MapStatus
 public MapStatus(Split s)
 	{
 	this.split = s;
+	this.splits = Collections.singletonList(s);
+	}
+
+public MapStatus(List<Split> splits)
+	{
+	this.split = splits.get(0);
+	this.splits = splits;
 	}
 
 public Map<Object, Object> asMap()
 	{
 	Map<Object, Object> ret = new HashMap<Object, Object>();
 	ret.put(FIELD_SPLITID, split.getId());
+	if (splits.size() > 1)
+		{
+		List<Integer> ids = new ArrayList<Integer>(splits.size());
+		for (Split s : splits)
+			{
+			ids.add(s.getId());
+			}
+		ret.put(FIELD_SPLITIDS, ids);
+		}
+	if (location != null)
+		{
+		List<String> tmp = new ArrayList<String>(location.size());
+		for (Worker w : location)
+			{
+			tmp.add(w.getSocketURL());
+			}
+		ret.put(FIELD_REDUCE_LOCATION, tmp);
+		}
 	return ret;
 	}
 
+// The first split of the batch
 Split split;
+List<Split> splits;
+// Where to copy the split from when replicating
+List<Worker> location;
+// Records and bytes in each bucket of the acknowledged splits, null if not
+// reported
+long[] bucketRecords;
+long[] bucketBytes;
 }
 
-public MapStatus createMapStatus(Map<?, ?> map)
+public MapStatus createMapStatus(JsonParser p) throws IOException,
+		IllegalMessageException
 	{
-	if (map == null)
-		return null;
+	if (p.getCurrentToken() != JsonToken.START_OBJECT)
+		{
+		throw new IllegalMessageException("mapStatus is not an object");
+		}
+
+	Split split = null;
+	List<Split> splits = null;
+	long[] records = null;
+	long[] bytes = null;
+	while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+		String field = p.getCurrentName();
+		if (p.nextToken() == JsonToken.VALUE_NULL)
+			{
+			continue;
+			}
+
+		if (FIELD_SPLITID.equals(field))
+			{
+			split = new Split(readInt(p));
+			}
+		else if (FIELD_SPLITIDS.equals(field))
+			{
+			expectArray(p);
+			splits = new ArrayList<Split>();
+			while (p.nextToken() != JsonToken.END_ARRAY)
+				{
+				splits.add(new Split(readInt(p)));
+				}
+			}
+		else if (FIELD_BUCKET_RECORDS.equals(field))
+			{
+			records = readSizes(p);
+			}
+		else if (FIELD_BUCKET_BYTES.equals(field))
+			{
+			bytes = readSizes(p);
+			}
+		else
+			{
+			p.skipChildren();
+			}
+		}
 
-	Object o = map.get(FIELD_SPLITID);
-	if (o == null)
-		return null;
+	MapStatus ret = null;
+	if (splits != null && !splits.isEmpty())
+		ret = new MapStatus(splits);
+	else if (split != null)
+		ret = new MapStatus(split);
 
-	Split s = new Split(Util.getIntFromJSONObject(o));
-	return new MapStatus(s);
+	if (ret != null && records != null && bytes != null)
+		{
+		ret.bucketRecords = records;
+		ret.bucketBytes = bytes;
+		}
+
+	return ret;
+	}
+
+private static long[] readSizes(JsonParser p) throws IOException,
+		IllegalMessageException
+	{
+	expectArray(p);
+	long[] ret = new long[16];
+	int n = 0;
+	while (p.nextToken() != JsonToken.END_ARRAY)
+		{
+		if (n == ret.length)
+			{
+			long[] tmp = new long[n * 2];
+			System.arraycopy(ret, 0, tmp, 0, n);
+			ret = tmp;
+			}
+		ret[n++] = readLong(p);
+		}
+
+	long[] tmp = new long[n];
+	System.arraycopy(ret, 0, tmp, 0, n);
+	return tmp;
 	}
 
 public class ReduceStatus
 {
-public ReduceStatus(Bucket p, Split s, Set<Worker> l)
+public ReduceStatus(Bucket p, Split s, List<Worker> l)
 	{
 	this.bucket = p;
 	this.split = s;
@@ -501,12 +1061,16 @@ public Map<Object, Object> asMap()
 	Map<Object, Object> ret = new HashMap<Object, Object>();
 
 	ret.put(FIELD_BUCKETID, bucket.getId());
+	if (bucket.isPart())
+		ret.put(FIELD_PART, bucket.getPart());
+	if (bucket.getParts() > 0)
+		ret.put(FIELD_PARTS, bucket.getParts());
 	if (split != null)
 		ret.put(FIELD_SPLITID, split.getId());
 
 	if (location != null)
 		{
-		Set<String> tmp = new HashSet<String>();
+		List<String> tmp = new ArrayList<String>(location.size());
 		for (Worker w : location)
 			{
 			tmp.add(w.getSocketURL());
@@ -514,32 +1078,57 @@ public Map<Object, Object> asMap()
 		ret.put(FIELD_REDUCE_LOCATION, tmp);
 		}
 
+	if (retryAfter > 0)
+		ret.put(FIELD_RETRY_AFTER, retryAfter);
+
 	return ret;
 	}
 
 Bucket bucket;
 Split split;
-Set<Worker> location;
+List<Worker> location;
+long retryAfter;
 }
 
-public ReduceStatus createReduceStatus(Map<?, ?> map)
+public ReduceStatus createReduceStatus(JsonParser p) throws IOException,
+		IllegalMessageException
 	{
-	if (map == null)
-		return null;
+	if (p.getCurrentToken() != JsonToken.START_OBJECT)
+		{
+		throw new IllegalMessageException("reduceStatus is not an object");
+		}
 
 	Split s = null;
-	Bucket p = null;
+	Bucket b = null;
 
-	Object o1 = map.get(FIELD_SPLITID);
-	Object o2 = map.get(FIELD_BUCKETID);
+	int bucketId = -1;
+	int part = -1;
+	int parts = 0;
+	while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+		String field = p.getCurrentName();
+		if (p.nextToken() == JsonToken.VALUE_NULL)
+			{
+			continue;
+			}
+
+		if (FIELD_SPLITID.equals(field))
+			s = new Split(readInt(p));
+		else if (FIELD_BUCKETID.equals(field))
+			bucketId = readInt(p);
+		else if (FIELD_PART.equals(field))
+			part = readInt(p);
+		else if (FIELD_PARTS.equals(field))
+			parts = readInt(p);
+		else
+			p.skipChildren();
+		}
 
-	if (o1 != null)
-		s = new Split(Util.getIntFromJSONObject(o1));
-	if (o2 != null)
-		p = new Bucket(Util.getIntFromJSONObject(o2));
+	if (bucketId >= 0)
+		b = new Bucket(bucketId, part, parts);
 
 	// TODO: no locations in ACK messsages
 
-	return new ReduceStatus(p, s, null);
+	return new ReduceStatus(b, s, null);
 	}
 }
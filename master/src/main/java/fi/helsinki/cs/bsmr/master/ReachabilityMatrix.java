@@ -0,0 +1,177 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which workers could not reach which other workers. Reducers report the workers they
+ * could not fetch chunks from with every reduceChunk and reduceBucket ACK, the reports are kept 
+ * here so that the same worker is not offered to the reducer again on its next requests or in 
+ * its next jobs. 
+ * 
+ * Every worker has a row of bits keyed by worker ID. Reports age in two generations: every half 
+ * of the expiry time the current generation becomes the previous one and the previous one is 
+ * dropped. A report thus expires between half the expiry time and the expiry time after it was 
+ * last repeated, as the network between two workers may heal.
+ * 
+ * Each WorkerShard of the master has a matrix of the rows of its workers, which is used within
+ * the lock of the shard.
+ * 
+ * @see MasterStoreImpl#getUnreachableWorkers(Worker, java.util.Set)
+ * @see WorkerShard
+ */
+public class ReachabilityMatrix implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * How long a report is remembered at most, unless it is repeated.
+	 */
+	public static final long DEFAULT_EXPIRY = 120000;
+	
+	private final long generationLength;
+	private long generationStart;
+	
+	// Reporter worker ID -> IDs of the workers it could not reach
+	private Map<Integer, BitSet> current;
+	private Map<Integer, BitSet> previous;
+	
+	public ReachabilityMatrix()
+	{
+		this(DEFAULT_EXPIRY);
+	}
+	
+	/**
+	 * @param expiry How long a report is remembered at most in milliseconds
+	 */
+	public ReachabilityMatrix(long expiry)
+	{
+		this.generationLength = Math.max(1, expiry / 2);
+		this.generationStart = TimeContext.now();
+		this.current = new HashMap<Integer, BitSet>();
+		this.previous = new HashMap<Integer, BitSet>();
+	}
+	
+	/**
+	 * Record that a worker could not reach another worker.
+	 * 
+	 * @param from The ID of the reporting worker
+	 * @param to The ID of the worker it could not reach
+	 * @param now The current time
+	 */
+	public void report(int from, int to, long now)
+	{
+		expire(now);
+		
+		BitSet row = current.get(from);
+		if (row == null) {
+			row = new BitSet();
+			current.put(from, row);
+		}
+		row.set(to);
+	}
+	
+	/**
+	 * @param from The ID of a worker
+	 * @param to The ID of another worker
+	 * @param now The current time
+	 * @return True if the first worker has reported the other one unreachable recently
+	 */
+	public boolean isUnreachable(int from, int to, long now)
+	{
+		expire(now);
+		
+		BitSet row = current.get(from);
+		if (row != null && row.get(to)) {
+			return true;
+		}
+		row = previous.get(from);
+		return row != null && row.get(to);
+	}
+	
+	/**
+	 * @param from The ID of a worker
+	 * @param now The current time
+	 * @return The IDs of the workers the worker has reported unreachable recently
+	 */
+	public BitSet getUnreachable(int from, long now)
+	{
+		expire(now);
+		
+		BitSet ret = new BitSet();
+		BitSet row = current.get(from);
+		if (row != null) {
+			ret.or(row);
+		}
+		row = previous.get(from);
+		if (row != null) {
+			ret.or(row);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Forget the reports of and about a worker. This is done when the worker disconnects or 
+	 * moves to another address.
+	 * 
+	 * @param id The ID of the worker
+	 */
+	public void removeWorker(int id)
+	{
+		removeWorker(current, id);
+		removeWorker(previous, id);
+	}
+	
+	private static void removeWorker(Map<Integer, BitSet> generation, int id)
+	{
+		generation.remove(id);
+		for (BitSet row : generation.values()) {
+			row.clear(id);
+		}
+	}
+	
+	private void expire(long now)
+	{
+		if (now - generationStart < generationLength) {
+			return;
+		}
+		
+		if (now - generationStart < 2 * generationLength) {
+			previous = current;
+			generationStart += generationLength;
+		} else {
+			previous = new HashMap<Integer, BitSet>();
+			generationStart = now;
+		}
+		current = new HashMap<Integer, BitSet>();
+	}
+}
@@ -0,0 +1,167 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Controls when the master launches backup attempts for straggling splits and buckets. 
+ * Backups are considered only when there is no fresh work left in the phase, in the
+ * style of LATE scheduling: the task whose attempts are the most overdue compared to the
+ * expected task duration of the workers running them is backed up, backups are not given
+ * to slow workers and the number of concurrently backed up tasks is capped.
+ * 
+ * The policy is given per job in the "speculation" object of the ADDJOB payload.
+ * 
+ * @author stsavola
+ * @see TaskTimer
+ */
+public class SpeculationPolicy implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	public static final String FIELD_SPECULATION = "speculation";
+	
+	public static final String FIELD_ENABLED = "enabled";
+	public static final String FIELD_SLOW_TASK_FACTOR = "slowTaskFactor";
+	public static final String FIELD_SLOW_WORKER_FACTOR = "slowWorkerFactor";
+	public static final String FIELD_SPECULATIVE_CAP = "speculativeCap";
+	public static final String FIELD_MAX_ATTEMPTS = "maxAttempts";
+	
+	private final boolean enabled;
+	private final double slowTaskFactor;
+	private final double slowWorkerFactor;
+	private final double speculativeCap;
+	private final int maxAttempts;
+	
+	/**
+	 * Create a speculation policy.
+	 * 
+	 * @param enabled Whether backup attempts are launched at all
+	 * @param slowTaskFactor An attempt is straggling once it has run this many times longer than the
+	 *                       expected task duration of its worker
+	 * @param slowWorkerFactor Workers whose mean task duration is this many times the phase mean do
+	 *                         not get backup attempts
+	 * @param speculativeCap Maximum fraction of connected workers that may be running backups at once
+	 * @param maxAttempts Maximum number of concurrent attempts per task, including the original
+	 */
+	public SpeculationPolicy(boolean enabled, double slowTaskFactor, double slowWorkerFactor, double speculativeCap, int maxAttempts)
+	{
+		this.enabled = enabled;
+		this.slowTaskFactor = slowTaskFactor;
+		this.slowWorkerFactor = slowWorkerFactor;
+		this.speculativeCap = speculativeCap;
+		this.maxAttempts = maxAttempts;
+	}
+	
+	/**
+	 * @return The policy used when the ADDJOB message does not specify one.
+	 */
+	public static SpeculationPolicy defaultPolicy()
+	{
+		return new SpeculationPolicy(true, 1.5, 2.0, 0.1, 2);
+	}
+	
+	/**
+	 * Parse a policy from a JSON object. Missing fields get their default values.
+	 * 
+	 * @param map The speculation object from the ADDJOB payload, or null
+	 * @return The policy
+	 * @throws NumberFormatException If a field has an illegal value
+	 */
+	public static SpeculationPolicy fromJSON(Map<?, ?> map) throws NumberFormatException
+	{
+		SpeculationPolicy d = defaultPolicy();
+		if (map == null) {
+			return d;
+		}
+		
+		return new SpeculationPolicy(
+				map.containsKey(FIELD_ENABLED)            ? Util.getBooleanFromJSONObject(map.get(FIELD_ENABLED))           : d.enabled,
+				map.containsKey(FIELD_SLOW_TASK_FACTOR)   ? Util.getDoubleFromJSONObject(map.get(FIELD_SLOW_TASK_FACTOR))   : d.slowTaskFactor,
+				map.containsKey(FIELD_SLOW_WORKER_FACTOR) ? Util.getDoubleFromJSONObject(map.get(FIELD_SLOW_WORKER_FACTOR)) : d.slowWorkerFactor,
+				map.containsKey(FIELD_SPECULATIVE_CAP)    ? Util.getDoubleFromJSONObject(map.get(FIELD_SPECULATIVE_CAP))    : d.speculativeCap,
+				map.containsKey(FIELD_MAX_ATTEMPTS)       ? Util.getIntFromJSONObject(map.get(FIELD_MAX_ATTEMPTS))          : d.maxAttempts);
+	}
+	
+	/**
+	 * @return The policy as a JSON object accepted by fromJSON()
+	 */
+	public Map<Object, Object> toJSON()
+	{
+		Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+		ret.put(FIELD_ENABLED, enabled);
+		ret.put(FIELD_SLOW_TASK_FACTOR, slowTaskFactor);
+		ret.put(FIELD_SLOW_WORKER_FACTOR, slowWorkerFactor);
+		ret.put(FIELD_SPECULATIVE_CAP, speculativeCap);
+		ret.put(FIELD_MAX_ATTEMPTS, maxAttempts);
+		return ret;
+	}
+	
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	public double getSlowTaskFactor()
+	{
+		return slowTaskFactor;
+	}
+	
+	public double getSlowWorkerFactor()
+	{
+		return slowWorkerFactor;
+	}
+	
+	public double getSpeculativeCap()
+	{
+		return speculativeCap;
+	}
+	
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+	
+	/**
+	 * @param workers The number of connected workers
+	 * @return How many tasks may have backup attempts running at the same time
+	 */
+	public int getMaxBackedUpTasks(int workers)
+	{
+		return Math.max(1, (int)(speculativeCap * workers));
+	}
+	
+	public String toString()
+	{
+		return "SpeculationPolicy (enabled="+enabled+", slowTaskFactor="+slowTaskFactor+", slowWorkerFactor="+slowWorkerFactor+
+			", speculativeCap="+speculativeCap+", maxAttempts="+maxAttempts+")";
+	}
+}
@@ -0,0 +1,621 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The splits of a job which belong to one shard of the master. Split i belongs to shard i mod N
+ * of the N shards. The shard only ever sees its own splits, so its tables hold only those: split 
+ * i is in slot i / N of the tables, and the shards of a job together take the memory of one 
+ * SplitStore. The methods take and return split IDs.
+ * 
+ * Splits that no reachable worker can provide are kept in an index (a bit set plus a
+ * round-robin ready queue) which is updated when splits are acknowledged, when workers
+ * are removed and when the reachability of a worker who has done splits changes. This
+ * way selecting the next split does not need to scan all splits of the shard.
+ * 
+ * The methods are synchronized on the shard, so that the workers of different shards can 
+ * work on the splits of the same job at the same time.
+ * 
+ * @see SplitStore
+ * @see WorkerShard
+ */
+class SplitShard implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	private WorkerSetTable splitsDone;
+	private WorkerSetTable splitsQueued;
+	private Job job;
+	private MasterContext master;
+	
+	// The number of shards, split i is in slot i / count
+	private int count;
+	
+	// Number of reachable workers in splitsDone for each split
+	private int[] reachableProviders;
+	
+	// Splits that have no reachable provider, and the round-robin queue for them.
+	// A split might be in the ready queue even if it has been provided since it was
+	// queued, these are dropped lazily when they come up.
+	private BitSet needsWork;
+	private BitSet inReadyQueue;
+	private IntQueue readyQueue;
+	
+	// Reverse index: worker ID -> which splits of this shard the worker has done or has been queued
+	private Map<Integer, WorkerSplits> byWorker;
+	private long reachabilityCheckedAt;
+	
+	// Shared by all shards of the job
+	private TaskTimer timer;
+	private ChunkLocationService locations;
+	
+	// Ranked providers of each split, null when the providers have changed, see ChunkLocationService
+	private List<List<Worker>> replicas;
+	
+	// Worker ID -> the split the worker is copying, and the number of copies in progress per split
+	private Map<Integer, Integer> replicaForWorker;
+	private int[] replicasPending;
+	
+	/**
+	 * Create the shard with the given index for the job.
+	 * 
+	 * @param job The job
+	 * @param master The master the job runs on. Used to resolve worker IDs into workers.
+	 * @param timer The timer of the map phase of the job
+	 * @param locations The chunk location service of the job
+	 * @param index The index of this shard
+	 * @param count The number of shards the splits are divided into
+	 */
+	SplitShard(Job job, MasterContext master, TaskTimer timer, ChunkLocationService locations, int index, int count)
+	{
+		int m = job.getMapTasks();
+		int slots = (m - index + count - 1) / count;
+		
+		this.count = count;
+		this.splitsDone   = new WorkerSetTable(slots);
+		this.splitsQueued = new WorkerSetTable(slots);
+		
+		this.reachableProviders = new int[slots];
+		this.needsWork    = new BitSet(slots);
+		this.inReadyQueue = new BitSet(slots);
+		this.readyQueue   = new IntQueue(slots);
+		
+		this.byWorker = new HashMap<Integer, WorkerSplits>();
+		this.reachabilityCheckedAt = -1;
+		this.timer = timer;
+		this.locations = locations;
+		this.replicas = new ArrayList<List<Worker>>(Collections.<List<Worker>>nCopies(slots, null));
+		this.replicaForWorker = new HashMap<Integer, Integer>();
+		this.replicasPending = new int[slots];
+		
+		for (int i = index; i < m; i += count) {
+			markNeedsWork(i);
+		}
+		
+		this.job = job;
+		this.master = master;
+	}
+	
+	/**
+	 * @return The slot of a split of this shard in the tables of the shard
+	 */
+	private int slot(int id)
+	{
+		return id / count;
+	}
+	
+	/**
+	 * @see SplitStore#canProvideSplit(Split)
+	 */
+	synchronized Set<Worker> canProvideSplit(int id)
+	{
+		int slot = slot(id);
+		int n = splitsDone.size(slot);
+		Set<Worker> all = new HashSet<Worker>(n * 2);
+		
+		for (int i = 0; i < n; i++) {
+			Worker w = master.getWorkerById(splitsDone.get(slot, i));
+			if (w != null) {
+				all.add(w);
+			}
+		}
+		
+		return new ReachableWorkerSet(all, job);
+	}
+	
+	/**
+	 * @see SplitStore#getChunkLocations(Split, Worker, Set)
+	 */
+	synchronized List<Worker> getChunkLocations(int id, Worker reducer, Set<Worker> unreachableWorkers)
+	{
+		updateReachability();
+		
+		int slot = slot(id);
+		List<Worker> ranked = replicas.get(slot);
+		if (ranked == null) {
+			ranked = getReachableProviders(slot);
+			replicas.set(slot, ranked);
+		}
+		return locations.locate(ranked, reducer, unreachableWorkers);
+	}
+	
+	/**
+	 * @param slot The slot of the split
+	 * @return The reachable workers who have done the split in a new list
+	 */
+	private List<Worker> getReachableProviders(int slot)
+	{
+		int n = splitsDone.size(slot);
+		List<Worker> ret = new ArrayList<Worker>(n);
+		
+		for (int i = 0; i < n; i++) {
+			WorkerSplits p = byWorker.get(splitsDone.get(slot, i));
+			if (p != null && p.reachable) {
+				ret.add(p.worker);
+			}
+		}
+		return ret;
+	}
+	
+	synchronized boolean hasSplit(Worker w, int id)
+	{
+		return splitsDone.contains(slot(id), w.getId());
+	}
+	
+	/**
+	 * @return The number of splits of this shard done by the worker
+	 */
+	synchronized int getNumberOfSplitsDone(Worker w)
+	{
+		WorkerSplits p = byWorker.get(w.getId());
+		return p == null ? 0 : p.done.size();
+	}
+	
+	/**
+	 * Find a split which no reachable worker can provide and which is not being worked on by an 
+	 * available worker. These are handed out in round-robin order from the ready queue. Straggling 
+	 * splits passed on the way are recorded as candidates for a backup attempt.
+	 * 
+	 * @param toWhom The worker asking for a split. The selected split will be set as queued for this worker.
+	 * @param mayBackUp Whether the worker may be given backup attempts
+	 * @param now The current time
+	 * @param straggler The most overdue split of the shards searched so far, updated by this call
+	 * @return The split to work on or null if there is none in this shard
+	 * @see SplitStore#selectSplitToWorkOn(Worker, Set)
+	 */
+	synchronized Split selectSplitToWorkOn(Worker toWhom, boolean mayBackUp, long now, SplitStore.Straggler straggler)
+	{
+		updateReachability();
+		
+		SpeculationPolicy policy = job.getSpeculationPolicy();
+		
+		for (int n = readyQueue.size(); n > 0; n--) {
+			int id = readyQueue.poll();
+			int slot = slot(id);
+			
+			if (!needsWork.get(slot)) {
+				inReadyQueue.clear(slot);
+				continue;
+			}
+			
+			// The split stays in rotation until someone provides it
+			readyQueue.add(id);
+			
+			if (splitsDone.contains(slot, toWhom.getId())) continue;
+			
+			int attempts = TaskTimer.countLiveAttempts(slot, splitsQueued, toWhom, master, job);
+			if (attempts == 0) {
+				return queueSplit(toWhom, id, now);
+			}
+			
+			if (attempts > 1) {
+				straggler.backedUp++;
+			}
+			if (!mayBackUp || attempts >= policy.getMaxAttempts()) continue;
+			
+			long overdue = timer.getOverdueTime(id, splitsQueued, slot, toWhom, master, job, now);
+			if (overdue > straggler.overdue) {
+				straggler.shard = this;
+				straggler.id = id;
+				straggler.overdue = overdue;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Find a split whose every reachable provider is in the set of workers unreachable to the caller.
+	 * 
+	 * @param toWhom The worker asking for a split. The selected split will be set as queued for this worker.
+	 * @param unreachableWorkers Workers that the caller cannot contact.
+	 * @param now The current time
+	 * @return The split to work on or null if there is none in this shard
+	 */
+	synchronized Split selectUnreachableSplit(Worker toWhom, Set<Worker> unreachableWorkers, long now)
+	{
+		for (Worker unreachable : unreachableWorkers) {
+			WorkerSplits p = byWorker.get(unreachable.getId());
+			if (p == null || !p.reachable) continue;
+			
+			for (int i = 0; i < p.done.size(); i++) {
+				int id = p.done.get(i);
+				
+				if (!splitsDone.contains(slot(id), toWhom.getId()) && unreachableWorkers.containsAll(canProvideSplit(id))) {
+					return queueSplit(toWhom, id, now);
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Add splits of this shard nobody is working on to the given list until it has max splits.
+	 * 
+	 * @see SplitStore#selectUnattemptedSplits(Worker, int)
+	 */
+	synchronized void selectUnattemptedSplits(Worker toWhom, int max, List<Split> ret)
+	{
+		updateReachability();
+		
+		long now = TimeContext.now();
+		
+		for (int n = readyQueue.size(); n > 0 && ret.size() < max; n--) {
+			int id = readyQueue.poll();
+			int slot = slot(id);
+			
+			if (!needsWork.get(slot)) {
+				inReadyQueue.clear(slot);
+				continue;
+			}
+			readyQueue.add(id);
+			
+			if (splitsDone.contains(slot, toWhom.getId()) || splitsQueued.contains(slot, toWhom.getId())) continue;
+			
+			if (TaskTimer.countLiveAttempts(slot, splitsQueued, toWhom, master, job) == 0) {
+				ret.add(queueSplit(toWhom, id, now));
+			}
+		}
+	}
+	
+	/**
+	 * @see SplitStore#getNumberOfPendingSplits(Worker)
+	 */
+	synchronized int getNumberOfPendingSplits(Worker w)
+	{
+		WorkerSplits p = byWorker.get(w.getId());
+		if (p == null) {
+			return 0;
+		}
+		
+		updateReachability();
+		int ret = 0;
+		for (int i = 0; i < p.queued.size(); i++) {
+			if (needsWork.get(slot(p.queued.get(i)))) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return The number of splits of this shard which no reachable worker can provide
+	 */
+	synchronized int getNumberOfSplitsNeedingWork()
+	{
+		updateReachability();
+		return needsWork.cardinality();
+	}
+	
+	/**
+	 * @see SplitStore#isSplitBeingMapped(Split)
+	 */
+	synchronized boolean isSplitBeingMapped(int id)
+	{
+		updateReachability();
+		int slot = slot(id);
+		return needsWork.get(slot)
+				&& TaskTimer.countLiveAttempts(slot, splitsQueued, null, master, job) > 0;
+	}
+	
+	/**
+	 * Queue a specific split for a worker regardless of whether others are working on it.
+	 * 
+	 * @return The split
+	 */
+	synchronized Split queueSplit(Worker toWhom, int id, long now)
+	{
+		if (splitsQueued.add(slot(id), toWhom.getId())) {
+			getWorkerSplits(toWhom).queued.add(id);
+		}
+		timer.taskStarted(id, toWhom, now);
+		return new Split(id);
+	}
+	
+	private WorkerSplits getWorkerSplits(Worker w)
+	{
+		WorkerSplits ret = byWorker.get(w.getId());
+		if (ret == null) {
+			ret = new WorkerSplits(w, w.isReachable(job));
+			byWorker.put(w.getId(), ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @see SplitStore#acknowledgeWork(Worker, Split)
+	 */
+	synchronized void acknowledgeWork(Worker w, int id)
+	{
+		WorkerSplits p = getWorkerSplits(w);
+		addProvider(w, p, id);
+		
+		if (splitsQueued.remove(slot(id), w.getId())) {
+			p.queued.removeValue(id);
+			timer.taskFinished(id, w, TimeContext.now());
+		}
+	}
+	
+	private void addProvider(Worker w, WorkerSplits p, int id)
+	{
+		if (splitsDone.add(slot(id), w.getId())) {
+			if (p.done.isEmpty()) {
+				// Reachability is only kept up to date for workers who have done splits
+				p.reachable = w.isReachable(job);
+			}
+			p.done.add(id);
+			
+			if (p.reachable) {
+				addReachableProvider(id);
+			}
+		}
+	}
+	
+	/**
+	 * @see SplitStore#getNumberOfReplicasNeeded(Split)
+	 */
+	synchronized int getNumberOfReplicasNeeded(int id)
+	{
+		updateReachability();
+		int slot = slot(id);
+		return job.getReplication() - reachableProviders[slot] - replicasPending[slot];
+	}
+	
+	/**
+	 * Ask a worker to copy a split. The copy the worker was making before must have been cancelled.
+	 * 
+	 * @see SplitStore#assignReplica(Worker, Split, Set)
+	 */
+	synchronized List<Worker> assignReplica(Worker w, int id, Set<Worker> unreachableWorkers)
+	{
+		replicaForWorker.put(w.getId(), id);
+		replicasPending[slot(id)]++;
+		return getChunkLocations(id, w, unreachableWorkers);
+	}
+	
+	/**
+	 * @see SplitStore#cancelReplica(Worker)
+	 */
+	synchronized void cancelReplica(Worker w)
+	{
+		Integer id = replicaForWorker.remove(w.getId());
+		if (id != null) {
+			replicasPending[slot(id)]--;
+			locations.fetchCancelled(w.getId());
+		}
+	}
+	
+	/**
+	 * @see SplitStore#acknowledgeReplica(Worker, Split)
+	 */
+	synchronized void acknowledgeReplica(Worker w, int id)
+	{
+		Integer copying = replicaForWorker.get(w.getId());
+		if (copying != null && copying == id) {
+			replicaForWorker.remove(w.getId());
+			replicasPending[slot(id)]--;
+			locations.fetchFinished(w, Collections.<Worker>emptySet());
+		}
+		
+		addProvider(w, getWorkerSplits(w), id);
+	}
+	
+	/**
+	 * Add the splits of this shard the worker has mapped or copied to the given list.
+	 */
+	synchronized void getSplitsDone(Worker w, List<Split> ret)
+	{
+		WorkerSplits p = byWorker.get(w.getId());
+		if (p == null) {
+			return;
+		}
+		
+		for (int i = 0; i < p.done.size(); i++) {
+			ret.add(new Split(p.done.get(i)));
+		}
+	}
+	
+	/**
+	 * Remove all data marked for the worker. The durations and the fetches of the worker are kept in 
+	 * the shared timer and location service, so they are removed by the SplitStore.
+	 * 
+	 * @see SplitStore#removeWorkerInformation(Worker)
+	 */
+	synchronized void removeWorkerInformation(Worker w)
+	{
+		cancelReplica(w);
+		
+		WorkerSplits p = byWorker.remove(w.getId());
+		if (p == null) {
+			return;
+		}
+		
+		for (int i = 0; i < p.done.size(); i++) {
+			int id = p.done.get(i);
+			splitsDone.remove(slot(id), w.getId());
+			if (p.reachable) {
+				removeReachableProvider(id);
+			}
+		}
+		
+		for (int i = 0; i < p.queued.size(); i++) {
+			splitsQueued.remove(slot(p.queued.get(i)), w.getId());
+			timer.taskCancelled(p.queued.get(i), w);
+		}
+	}
+	
+	/**
+	 * Forget the splits queued for all workers and the copies in progress. The attempts in the 
+	 * shared timer are cancelled by the SplitStore.
+	 * 
+	 * @see SplitStore#cancelQueuedWork()
+	 */
+	synchronized void cancelQueuedWork()
+	{
+		for (WorkerSplits p : byWorker.values()) {
+			for (int i = 0; i < p.queued.size(); i++) {
+				splitsQueued.remove(slot(p.queued.get(i)), p.worker.getId());
+			}
+			p.queued.clear();
+		}
+		
+		for (Map.Entry<Integer, Integer> e : replicaForWorker.entrySet()) {
+			replicasPending[slot(e.getValue())]--;
+			locations.fetchCancelled(e.getKey());
+		}
+		replicaForWorker.clear();
+	}
+	
+	/**
+	 * Re-check the reachability of all workers who have done splits and update the index of splits
+	 * needing work for those whose reachability has changed. This costs one check per providing 
+	 * worker instead of one check per replica of every split. The check is done at most once per
+	 * TimeContext time.
+	 */
+	private void updateReachability()
+	{
+		long now = TimeContext.now();
+		if (now == reachabilityCheckedAt) {
+			return;
+		}
+		reachabilityCheckedAt = now;
+		
+		for (WorkerSplits p : byWorker.values()) {
+			if (p.done.isEmpty()) continue;
+			
+			boolean reachable = p.worker.isReachable(job);
+			
+			if (reachable == p.reachable) continue;
+			p.reachable = reachable;
+			
+			for (int i = 0; i < p.done.size(); i++) {
+				if (reachable) {
+					addReachableProvider(p.done.get(i));
+				} else {
+					removeReachableProvider(p.done.get(i));
+				}
+			}
+		}
+	}
+	
+	private void addReachableProvider(int id)
+	{
+		int slot = slot(id);
+		replicas.set(slot, null);
+		if (reachableProviders[slot]++ == 0) {
+			needsWork.clear(slot);
+		}
+	}
+	
+	private void removeReachableProvider(int id)
+	{
+		int slot = slot(id);
+		replicas.set(slot, null);
+		if (--reachableProviders[slot] == 0) {
+			markNeedsWork(id);
+		}
+	}
+	
+	private void markNeedsWork(int id)
+	{
+		int slot = slot(id);
+		needsWork.set(slot);
+		if (!inReadyQueue.get(slot)) {
+			inReadyQueue.set(slot);
+			readyQueue.add(id);
+		}
+	}
+	
+	synchronized boolean isSplitDone(int id)
+	{
+		return !splitsDone.isEmpty(slot(id));
+	}
+	
+	synchronized Set<Integer> getAllWorkersWhoHaveDoneSplit(int id)
+	{
+		return splitsDone.asSet(slot(id));
+	}
+	
+	synchronized Set<Integer> getAllQueuedWorkers(int id)
+	{
+		return splitsQueued.asSet(slot(id));
+	}
+	
+	/**
+	 * The splits done by and queued for a single worker and whether the worker was reachable 
+	 * when last checked.
+	 */
+	private static class WorkerSplits implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		Worker worker;
+		boolean reachable;
+		IntList done;
+		IntList queued;
+		
+		WorkerSplits(Worker worker, boolean reachable)
+		{
+			this.worker = worker;
+			this.reachable = reachable;
+			this.done = new IntList();
+			this.queued = new IntList();
+		}
+	}
+}
@@ -30,46 +30,70 @@ package fi.helsinki.cs.bsmr.master;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.logging.Logger;
 
 /**
- * Keeps the state of splits for a single job.
+ * Keeps the state of splits for a single job. Workers are stored by their IDs.
+ * 
+ * The splits are divided between the shards of the master, split i belongs to SplitShard i mod N.
+ * Each SplitShard is locked on its own, so workers of different shards select and acknowledge 
+ * splits of the same job at the same time. A worker looks for splits in the shard of its 
+ * WorkerShard first and takes splits from the other shards once its own shard has none to give,
+ * which moves unassigned work to the shards whose workers are free. With a single shard this is
+ * one index of all splits of the job.
+ * 
+ * Splits that are being worked on by an available worker are not handed out again
+ * unless the job's SpeculationPolicy decides they are straggling.
  * 
  * @author stsavola
- *
+ * @see SplitShard
+ * @see MasterStoreImpl#getShardCount()
  */
 public class SplitStore implements Serializable
 {
 	private static final long serialVersionUID = 1L;
 	
-	private List<Set<Worker>> splitsDone;
-	private List<Set<Worker>> splitsQueued;
-	private Job job;
+	private static Logger logger = Util.getLoggerForClass(SplitStore.class);
 	
-
-	private int workQueuePointer;
+	private Job job;
+	private MasterContext master;
+	private TaskTimer timer;
+	private ChunkLocationService locations;
+	private SplitShard[] shards;
 	
 	/**
 	 * Create a new SplitStore for the job. The Job controls the number of splits and the availability of workers.
+	 * The splits are divided into as many shards as the master has.
 	 *  
 	 * @param job The Job this SplitStore is created for
+	 * @param master The master the job runs on. Used to resolve worker IDs into workers.
 	 */
-	public SplitStore(Job job)
+	public SplitStore(Job job, MasterContext master)
 	{
+		this.job = job;
+		this.master = master;
+		this.timer = new TaskTimer();
+		this.locations = new ChunkLocationService();
+		this.shards = new SplitShard[Math.max(1, master.getShardCount())];
 		
-		this.splitsDone   = new ArrayList<Set<Worker>>();
-		this.splitsQueued = new ArrayList<Set<Worker>>();
-		
-		this.workQueuePointer = -1;
-		
-		for (int i = 0; i < job.getMapTasks(); ++i) {
-			splitsDone.add(new HashSet<Worker>());
-			splitsQueued.add(new HashSet<Worker>());
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new SplitShard(job, master, timer, locations, i, shards.length);
 		}
-		
-		this.job = job;
+	}
+	
+	private SplitShard shardOf(int splitId)
+	{
+		return shards[splitId % shards.length];
+	}
+	
+	/**
+	 * @return The i:th shard in the order the worker looks for splits in, its own shard first
+	 */
+	private SplitShard shardFor(Worker w, int i)
+	{
+		return shards[(w.getId() + i) % shards.length];
 	}
 	
 	/**
@@ -81,55 +105,231 @@ public class SplitStore implements Serializable
 	 */
 	public Set<Worker> canProvideSplit(Split s)
 	{
-		return new ReachableWorkerSet(splitsDone.get(s.getId()), job);
+		return shardOf(s.getId()).canProvideSplit(s.getId());
+	}
+	
+	/**
+	 * The workers a reducer should fetch a chunk of the split from, best first. Unlike 
+	 * canProvideSplit(), the providers are not looked up again for every chunk. 
+	 * 
+	 * @param s The split of the chunk
+	 * @param reducer The worker asking for the chunk
+	 * @param unreachableWorkers Workers the reducer cannot contact
+	 * @return The reachable providers, not including the unreachable workers
+	 * @see ChunkLocationService
+	 */
+	public List<Worker> getChunkLocations(Split s, Worker reducer, Set<Worker> unreachableWorkers)
+	{
+		return shardOf(s.getId()).getChunkLocations(s.getId(), reducer, unreachableWorkers);
+	}
+	
+	/**
+	 * Tell the location service that a reducer has stopped fetching chunks, e.g. as it has finished 
+	 * its bucket.
+	 * 
+	 * @param reducer The reducer
+	 * @param unreachableWorkers Workers the reducer reported unreachable
+	 */
+	public void chunkFetchFinished(Worker reducer, Set<Worker> unreachableWorkers)
+	{
+		locations.fetchFinished(reducer, unreachableWorkers);
 	}
 	
 	public boolean hasSplit(Worker w, Split s) {
-		Set<Worker> who = splitsDone.get(s.getId());
-		return who.contains(w);
+		return shardOf(s.getId()).hasSplit(w, s.getId());
+	}
+	
+	/**
+	 * Tells how many splits the worker has done. Every split produces one chunk for every bucket, so
+	 * this is also the number of chunks of any bucket the worker can read without fetching them 
+	 * from other workers.
+	 * 
+	 * @param w The worker
+	 * @return The number of splits done by the worker
+	 */
+	public int getNumberOfSplitsDone(Worker w)
+	{
+		int ret = 0;
+		for (SplitShard shard : shards) {
+			ret += shard.getNumberOfSplitsDone(w);
+		}
+		return ret;
 	}
 
 	/**
-	 * Finds next split to work on. It skips splits that have already been calculated by other workers. Workers who
-	 * have become unavailable (or dead) or workers specified as unreachable are taken into considered. The SplitStore
-	 * keeps a pointer to the work queue so that subsequent calls will provide different sets.
+	 * Finds next split to work on. Splits which no reachable worker can provide and which are not
+	 * being worked on by an available worker are handed out in round-robin order from the ready queue,
+	 * so that subsequent calls will provide different splits. If there are no such splits, a backup
+	 * attempt of a straggling split is considered according to the job's SpeculationPolicy. Finally, 
+	 * splits whose every reachable provider is in the set of workers unreachable to the caller are
+	 * considered. The shard of the worker is searched first in each step.
 	 * 
-	 * If all splits have been calculated by available and reachable workers, this method will return a null split. 
+	 * If there is no split the worker should work on, this method will return a null split. 
 	 * 
 	 * @param toWhom Which worker is asking for a split. The selected split will be set as queued for this worker.
 	 * @param unreachableWorkers Workers that the caller cannot contact. These workers need to be considered as unavailable.
-	 * @return The split to work on or null if all splits have been calculated.
+	 * @return The split to work on or null if there is nothing to do.
+	 * @see SplitStore#areAllSplitsProvided()
 	 */
 	public Split selectSplitToWorkOn(Worker toWhom, Set<Worker> unreachableWorkers)
 	{
-		int i = 0;
-		Split ret;
+		long now = TimeContext.now();
+		SpeculationPolicy policy = job.getSpeculationPolicy();
+		boolean mayBackUp = policy.isEnabled() && !timer.isSlowWorker(toWhom, policy);
 		
-		boolean foundGoodCandidate;
+		Straggler straggler = new Straggler();
 		
-		do {
-			workQueuePointer = (workQueuePointer + 1) % job.getMapTasks();
-			ret = new Split(workQueuePointer);
-			i++;
-			
-			if (hasSplit(toWhom, ret)) {
-				foundGoodCandidate = false;
-			} else {
-				Set<Worker> workersWhoHaveSplit = canProvideSplit(ret);
-				foundGoodCandidate = workersWhoHaveSplit.isEmpty() || unreachableWorkers.containsAll(workersWhoHaveSplit);
+		for (int i = 0; i < shards.length; i++) {
+			Split s = shardFor(toWhom, i).selectSplitToWorkOn(toWhom, mayBackUp, now, straggler);
+			if (s != null) {
+				return s;
 			}
-			
-		} while (!foundGoodCandidate && i < job.getMapTasks());
+		}
+		
+		if (straggler.shard != null && straggler.backedUp < policy.getMaxBackedUpTasks(master.getWorkers().size())) {
+			logger.fine("Backup attempt of split "+straggler.id+" (overdue "+straggler.overdue+" ms) for worker "+toWhom.getId());
+			return straggler.shard.queueSplit(toWhom, straggler.id, now);
+		}
+		
+		// The only splits left are the ones the caller cannot fetch
+		for (int i = 0; i < shards.length; i++) {
+			Split s = shardFor(toWhom, i).selectUnreachableSplit(toWhom, unreachableWorkers, now);
+			if (s != null) {
+				return s;
+			}
+		}
+		
+		return null;
+	}
 	
-		if (!foundGoodCandidate) {
-			return null;
+	/**
+	 * Finds a batch of splits to work on. The first split is selected as in selectSplitToWorkOn(), the rest
+	 * of the batch is filled with splits nobody is working on. Backup attempts are never batched.
+	 * 
+	 * @param toWhom Which worker is asking for splits. The selected splits will be set as queued for this worker.
+	 * @param unreachableWorkers Workers that the caller cannot contact.
+	 * @param max The maximum number of splits to select
+	 * @return The splits to work on, empty if there is nothing to do.
+	 * @see SplitStore#selectSplitToWorkOn(Worker, Set)
+	 */
+	public List<Split> selectSplitsToWorkOn(Worker toWhom, Set<Worker> unreachableWorkers, int max)
+	{
+		List<Split> ret = new ArrayList<Split>();
+		
+		Split first = selectSplitToWorkOn(toWhom, unreachableWorkers);
+		if (first == null) {
+			return ret;
 		}
+		ret.add(first);
 		
-		splitsQueued.get(ret.getId()).add(toWhom);
+		ret.addAll(selectUnattemptedSplits(toWhom, max - 1));
+		return ret;
+	}
+	
+	/**
+	 * Select splits nobody is working on for a worker, e.g. to top up the batch of a worker which
+	 * is still working on splits queued for it. The shard of the worker is searched first.
+	 * 
+	 * @param toWhom The worker. The selected splits will be set as queued for this worker.
+	 * @param max The maximum number of splits to select
+	 * @return The selected splits, empty if every split needing work is being worked on.
+	 */
+	public List<Split> selectUnattemptedSplits(Worker toWhom, int max)
+	{
+		List<Split> ret = new ArrayList<Split>();
 		
+		for (int i = 0; i < shards.length && ret.size() < max; i++) {
+			shardFor(toWhom, i).selectUnattemptedSplits(toWhom, max, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Count the splits the worker still has to map, i.e. the splits queued for the worker which 
+	 * no reachable worker can provide yet.
+	 * 
+	 * @param w The worker
+	 * @return The number of pending splits
+	 */
+	public int getNumberOfPendingSplits(Worker w)
+	{
+		int ret = 0;
+		for (SplitShard shard : shards) {
+			ret += shard.getNumberOfPendingSplits(w);
+		}
 		return ret;
 	}
 	
+	/**
+	 * @param w The worker
+	 * @return How long mapping a split is expected to take on the worker in milliseconds or -1 if 
+	 *         nothing is known yet.
+	 * @see TaskTimer#getExpectedDuration(Worker)
+	 */
+	public long getExpectedDuration(Worker w)
+	{
+		return timer.getExpectedDuration(w);
+	}
+	
+	/**
+	 * @return The mean time it took to map a split in milliseconds or -1 if no split has been mapped.
+	 */
+	public long getMeanDuration()
+	{
+		return timer.getPhaseMeanDuration();
+	}
+	
+	/**
+	 * Tests whether every split can be provided by a reachable worker, i.e. whether the map phase is complete.
+	 * 
+	 * @return True if all splits are provided.
+	 */
+	public boolean areAllSplitsProvided()
+	{
+		for (SplitShard shard : shards) {
+			if (shard.getNumberOfSplitsNeedingWork() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of splits which can be provided by a reachable worker.
+	 */
+	public int getNumberOfSplitsProvided()
+	{
+		int ret = job.getMapTasks();
+		for (SplitShard shard : shards) {
+			ret -= shard.getNumberOfSplitsNeedingWork();
+		}
+		return ret;
+	}
+
+	/**
+	 * Tests whether a split nobody reachable can provide yet is being mapped by an available worker.
+	 * A reducer asking for the chunk of such a split should come back later instead of mapping the
+	 * split itself.
+	 *
+	 * @param s The split
+	 * @return True if the split is not provided but is being mapped.
+	 */
+	public boolean isSplitBeingMapped(Split s)
+	{
+		return shardOf(s.getId()).isSplitBeingMapped(s.getId());
+	}
+
+	/**
+	 * Queue a specific split for a worker regardless of whether others are working on it.
+	 * 
+	 * @param toWhom The worker
+	 * @param s The split
+	 */
+	public void assignSplit(Worker toWhom, Split s)
+	{
+		shardOf(s.getId()).queueSplit(toWhom, s.getId(), TimeContext.now());
+	}
+	
 	/**
 	 * Mark split as calculated by worker and remove it from the queue.
 	 * 
@@ -138,49 +338,144 @@ public class SplitStore implements Serializable
 	 */
 	public void acknowledgeWork(Worker w, Split s)
 	{
-		Set<Worker> split = splitsDone.get(s.getId());
-		
-		if (!split.contains(w)) {
-			split.add(w);
+		shardOf(s.getId()).acknowledgeWork(w, s.getId());
+	}
+	
+	/**
+	 * Tells how many more reachable workers should hold a copy of the split to reach the replication
+	 * factor of the job. Copies in progress are counted as done.
+	 * 
+	 * @param s The split
+	 * @return The number of copies to make, zero or less if none
+	 * @see Job#getReplication()
+	 */
+	public int getNumberOfReplicasNeeded(Split s)
+	{
+		return shardOf(s.getId()).getNumberOfReplicasNeeded(s.getId());
+	}
+	
+	/**
+	 * Ask a worker to copy a split. A worker copies one split at a time, an earlier copy in progress 
+	 * is cancelled.
+	 * 
+	 * @param w The worker
+	 * @param s The split
+	 * @param unreachableWorkers Workers the worker cannot contact
+	 * @return The workers to copy the split from, best first
+	 */
+	public List<Worker> assignReplica(Worker w, Split s, Set<Worker> unreachableWorkers)
+	{
+		cancelReplica(w);
+		return shardOf(s.getId()).assignReplica(w, s.getId(), unreachableWorkers);
+	}
+	
+	/**
+	 * Forget the copy a worker was making, if any. This is done when the worker moves on to 
+	 * something else without acknowledging the copy.
+	 * 
+	 * @param w The worker
+	 */
+	public void cancelReplica(Worker w)
+	{
+		for (SplitShard shard : shards) {
+			shard.cancelReplica(w);
 		}
-		
-		splitsQueued.get(s.getId()).remove(w);
 	}
 	
 	/**
-	 * Remove all data marked for the worker.
+	 * Mark a split as copied by a worker. From now on the worker is a provider of the split like the
+	 * worker who mapped it.
+	 * 
+	 * @param w The worker
+	 * @param s The split
+	 */
+	public void acknowledgeReplica(Worker w, Split s)
+	{
+		shardOf(s.getId()).acknowledgeReplica(w, s.getId());
+	}
+	
+	/**
+	 * @param w The worker
+	 * @return The splits the worker has mapped or copied
+	 */
+	public List<Split> getSplitsDone(Worker w)
+	{
+		List<Split> ret = new ArrayList<Split>();
+		for (SplitShard shard : shards) {
+			shard.getSplitsDone(w, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Remove all data marked for the worker. This only touches the splits the worker has done
+	 * or has been queued.
 	 * 
 	 * @param w The worker to be removed
 	 */
 	public void removeWorkerInformation(Worker w)
 	{
-		for (int i = 0; i < job.getMapTasks(); ++i) {
-			splitsDone.get(i).remove(w);
-			splitsQueued.get(i).remove(w);
+		for (SplitShard shard : shards) {
+			shard.removeWorkerInformation(w);
+		}
+		locations.removeWorker(w);
+		timer.removeWorker(w);
+	}
+	
+	/**
+	 * Forget the splits queued for all workers and the copies in progress. This is done when the job 
+	 * is paused as the workers move on to other jobs. Splits which have been done are kept.
+	 */
+	public void cancelQueuedWork()
+	{
+		for (SplitShard shard : shards) {
+			shard.cancelQueuedWork();
 		}
+		timer.cancelAllAttempts();
 	}
 	
 	/**
-	 * Retrieve a set of workers who have calculated a split regardless of the status of the workers.
-	 * The returned set might contain unavailable or dead workers.
+	 * @param s The split in question
+	 * @return True if some worker has acknowledged the split
+	 */
+	public boolean isSplitDone(Split s)
+	{
+		return shardOf(s.getId()).isSplitDone(s.getId());
+	}
+	
+	/**
+	 * Retrieve the IDs of workers who have calculated a split regardless of the status of the workers.
+	 * The returned set might contain unavailable, dead or disconnected workers.
 	 * 
 	 * @param s The split we are interested in.
-	 * @return An unmodifiable set of workers.
+	 * @return A set of worker IDs.
 	 */
-	public Set<Worker> getAllWorkersWhoHaveDoneSplit(Split s)
+	public Set<Integer> getAllWorkersWhoHaveDoneSplit(Split s)
 	{
-		return Collections.unmodifiableSet(splitsDone.get(s.getId()));
+		return Collections.unmodifiableSet(shardOf(s.getId()).getAllWorkersWhoHaveDoneSplit(s.getId()));
 	}
 	
 	/**
-	 * Retrieve a set of workers for whom the split in question has been queued regardless of the status
+	 * Retrieve the IDs of workers for whom the split in question has been queued regardless of the status
 	 * of the workers. The returned set might contain unavailable or dead workers.
 	 * 
 	 * @param s The split we are interested in.
-	 * @return An unmodifiable set of workers.
+	 * @return A set of worker IDs.
+	 */
+	public Set<Integer> getAllQueuedWorkers(Split s)
+	{
+		return Collections.unmodifiableSet(shardOf(s.getId()).getAllQueuedWorkers(s.getId()));
+	}
+	
+	/**
+	 * The most overdue split found while searching the shards for a split to work on, and how many
+	 * splits already have a backup attempt.
 	 */
-	public Set<Worker> getAllQueuedWorkers(Split s)
+	static class Straggler
 	{
-		return Collections.unmodifiableSet(splitsQueued.get(s.getId()));
+		SplitShard shard;
+		int id = -1;
+		long overdue = -1;
+		int backedUp;
 	}
 }
@@ -0,0 +1,316 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records when tasks (splits or buckets) are assigned to and acknowledged by workers, and
+ * estimates how long tasks take on each worker. There is one TaskTimer per phase of a job
+ * as map and reduce tasks take different amounts of time. The shards of a SplitStore share
+ * the timer of the map phase, so the timer is synchronized.
+ * 
+ * @author stsavola
+ * @see SpeculationPolicy
+ */
+public class TaskTimer implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	// (task << 32 | worker ID) -> time the attempt was assigned
+	private Map<Long, Long> attemptStarted;
+	
+	// Worker ID -> durations of tasks the worker has completed
+	private Map<Integer, Durations> workerDurations;
+	// Worker ID -> times the worker last finished tasks, one per slot
+	private Map<Integer, FinishTimes> lastFinished;
+	private Durations phaseDurations;
+	
+	public TaskTimer()
+	{
+		this.attemptStarted = new HashMap<Long, Long>();
+		this.workerDurations = new HashMap<Integer, Durations>();
+		this.lastFinished = new HashMap<Integer, FinishTimes>();
+		this.phaseDurations = new Durations();
+	}
+	
+	private static long attempt(int task, Worker w)
+	{
+		return ((long)task << 32) | (w.getId() & 0xffffffffL);
+	}
+	
+	/**
+	 * Record that a task was assigned to a worker.
+	 */
+	public synchronized void taskStarted(int task, Worker w, long now)
+	{
+		attemptStarted.put(attempt(task, w), now);
+	}
+	
+	/**
+	 * When the worker started working on an attempt. A worker given a batch of tasks works on them
+	 * one at a time in each of its slots, so a task of the batch is started when the slot finishes
+	 * its previous task. The slots take turns, so that is the finish time one slot count ago.
+	 */
+	private long effectiveStart(long started, Worker w)
+	{
+		FinishTimes f = lastFinished.get(w.getId());
+		if (f == null) {
+			return started;
+		}
+		long finished = f.slotFreedAt(w.getSlots());
+		return finished > started ? finished : started;
+	}
+	
+	/**
+	 * Record that a worker acknowledged a task. If the attempt was started through this timer, the
+	 * duration of the attempt is used for estimating the speed of the worker.
+	 */
+	public synchronized void taskFinished(int task, Worker w, long now)
+	{
+		Long started = attemptStarted.remove(attempt(task, w));
+		if (started == null) {
+			return;
+		}
+		
+		long duration = now - effectiveStart(started, w);
+		
+		FinishTimes f = lastFinished.get(w.getId());
+		if (f == null) {
+			f = new FinishTimes();
+			lastFinished.put(w.getId(), f);
+		}
+		f.add(now, w.getSlots());
+		
+		Durations d = workerDurations.get(w.getId());
+		if (d == null) {
+			d = new Durations();
+			workerDurations.put(w.getId(), d);
+		}
+		d.add(duration);
+		phaseDurations.add(duration);
+	}
+	
+	/**
+	 * Forget an attempt without recording a duration, e.g. when the worker is removed.
+	 */
+	public synchronized void taskCancelled(int task, Worker w)
+	{
+		attemptStarted.remove(attempt(task, w));
+	}
+	
+	/**
+	 * Forget all running attempts, e.g. when the job is paused. Durations are kept.
+	 */
+	public synchronized void cancelAllAttempts()
+	{
+		attemptStarted.clear();
+	}
+	
+	/**
+	 * Forget the durations recorded for a worker.
+	 */
+	public synchronized void removeWorker(Worker w)
+	{
+		workerDurations.remove(w.getId());
+		lastFinished.remove(w.getId());
+	}
+	
+	/**
+	 * @return The mean duration of all tasks completed in this phase or -1 if no task has been completed.
+	 */
+	public synchronized long getPhaseMeanDuration()
+	{
+		return phaseDurations.mean();
+	}
+	
+	/**
+	 * The expected duration of a task on a worker. This is the mean duration of the tasks the worker has
+	 * completed or, if the worker has not completed any tasks, the phase mean.
+	 *  
+	 * @return The expected duration in milliseconds or -1 if nothing is known yet.
+	 */
+	public synchronized long getExpectedDuration(Worker w)
+	{
+		Durations d = workerDurations.get(w.getId());
+		if (d != null) {
+			return d.mean();
+		}
+		return phaseDurations.mean();
+	}
+	
+	/**
+	 * Whether a worker is too slow to be given backup attempts. Workers with no completed tasks
+	 * are not considered slow.
+	 */
+	public synchronized boolean isSlowWorker(Worker w, SpeculationPolicy policy)
+	{
+		Durations d = workerDurations.get(w.getId());
+		long phaseMean = phaseDurations.mean();
+		
+		if (d == null || phaseMean <= 0) {
+			return false;
+		}
+		return d.mean() > policy.getSlowWorkerFactor() * phaseMean;
+	}
+	
+	/**
+	 * How much longer than expected an attempt has been running.
+	 * 
+	 * @param task The task
+	 * @param w The worker running the attempt
+	 * @param now Current time
+	 * @param policy The policy defining what a straggling attempt is
+	 * @return The number of milliseconds the attempt is overdue, or -1 if the attempt is not straggling
+	 *         or there is not enough information to tell.
+	 */
+	public synchronized long getOverdueTime(int task, Worker w, long now, SpeculationPolicy policy)
+	{
+		Long started = attemptStarted.get(attempt(task, w));
+		long expected = getExpectedDuration(w);
+		
+		if (started == null || expected < 0) {
+			return -1;
+		}
+		
+		long elapsed = now - effectiveStart(started, w);
+		if (elapsed < policy.getSlowTaskFactor() * expected) {
+			return -1;
+		}
+		return elapsed - expected;
+	}
+	
+	/**
+	 * Count the attempts of a task that are being run by available workers.
+	 * 
+	 * @param slot The set of the task in attempts
+	 * @param attempts Workers the tasks have been queued for
+	 * @param except A worker whose attempt is not counted (the worker asking for new work is not working on its old tasks)
+	 * @param master The master used to resolve worker IDs
+	 * @param job The job whose timeouts define availability
+	 * @return The number of live attempts
+	 */
+	public static int countLiveAttempts(int slot, WorkerSetTable attempts, Worker except, MasterContext master, Job job)
+	{
+		int ret = 0;
+		for (int i = 0; i < attempts.size(slot); i++) {
+			Worker w = master.getWorkerById(attempts.get(slot, i));
+			if (w != null && w != except && w.isAvailable(job)) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * How overdue a task is. A task is straggling only when all of its live attempts are straggling.
+	 * 
+	 * @param task The task
+	 * @param attempts Workers the tasks have been queued for
+	 * @param slot The set of the task in attempts, which is the task itself unless the table 
+	 *             holds only some of the tasks
+	 * @return The smallest overdue time of the live attempts of the task or -1 if the task is not straggling.
+	 * @see TaskTimer#getOverdueTime(int, Worker, long, SpeculationPolicy)
+	 */
+	public synchronized long getOverdueTime(int task, WorkerSetTable attempts, int slot, Worker except, MasterContext master, Job job, long now)
+	{
+		long ret = -1;
+		for (int i = 0; i < attempts.size(slot); i++) {
+			Worker w = master.getWorkerById(attempts.get(slot, i));
+			if (w == null || w == except || !w.isAvailable(job)) continue;
+			
+			long overdue = getOverdueTime(task, w, now, job.getSpeculationPolicy());
+			if (overdue < 0) {
+				return -1;
+			}
+			if (ret == -1 || overdue < ret) {
+				ret = overdue;
+			}
+		}
+		return ret;
+	}
+	
+	private static class Durations implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		long total;
+		int count;
+		
+		void add(long duration)
+		{
+			total += duration;
+			count++;
+		}
+		
+		long mean()
+		{
+			if (count == 0) return -1;
+			return total / count;
+		}
+	}
+	
+	/**
+	 * The most recent finish times of a worker, as many as the worker has slots.
+	 */
+	private static class FinishTimes implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		long[] times = new long[1];
+		int next;
+		int count;
+		
+		void add(long time, int slots)
+		{
+			if (times.length != slots) {
+				// The worker announced a new slot count, start over
+				times = new long[slots];
+				next = 0;
+				count = 0;
+			}
+			times[next] = time;
+			next = (next + 1) % times.length;
+			if (count < times.length) count++;
+		}
+		
+		/**
+		 * @return The oldest of the recent finish times or -1 if the worker has not finished a task 
+		 *         in each of its slots.
+		 */
+		long slotFreedAt(int slots)
+		{
+			if (times.length != slots || count < slots) {
+				return -1;
+			}
+			return times[next];
+		}
+	}
+}
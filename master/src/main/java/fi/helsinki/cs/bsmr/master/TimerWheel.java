@@ -0,0 +1,197 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel. Timeouts are hashed into buckets by their deadline, one bucket per tick. 
+ * Scheduling and cancelling a timeout takes constant time and advancing the wheel only visits the 
+ * buckets of the ticks that have passed. Deadlines further away than one round of the wheel stay 
+ * in their bucket until the round they are due.
+ * 
+ * The wheel is not thread safe, the master uses it within the "big lock".
+ * 
+ * @see LivenessTracker
+ */
+public class TimerWheel
+{
+	/**
+	 * Something that happens at a deadline. A timeout can be scheduled in one wheel at a time.
+	 */
+	public static abstract class Timeout
+	{
+		private long deadline;
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+		
+		public boolean isScheduled()
+		{
+			return bucket >= 0;
+		}
+		
+		public long getDeadline()
+		{
+			return deadline;
+		}
+		
+		/**
+		 * Called when the wheel is advanced past the deadline. The timeout may reschedule itself.
+		 * 
+		 * @param now The time the wheel was advanced to
+		 */
+		protected abstract void expired(long now);
+	}
+	
+	private final long tickDuration;
+	private final Timeout[] buckets;
+	private final int mask;
+	
+	// Buckets of ticks up to this one have been fully processed
+	private long processedTick;
+	private int size;
+	
+	/**
+	 * Create a new timer wheel.
+	 * 
+	 * @param tickDuration The length of one tick in milliseconds
+	 * @param bucketCount The number of buckets, rounded up to a power of two
+	 * @param now The current time
+	 */
+	public TimerWheel(long tickDuration, int bucketCount, long now)
+	{
+		int n = 1;
+		while (n < bucketCount) {
+			n <<= 1;
+		}
+		
+		this.tickDuration = tickDuration;
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+		this.processedTick = now / tickDuration - 1;
+		this.size = 0;
+	}
+	
+	/**
+	 * Schedule a timeout, replacing its earlier deadline if it was already scheduled. A deadline 
+	 * which has already passed expires on the next call to advance().
+	 * 
+	 * @param t The timeout
+	 * @param deadline When the timeout expires
+	 */
+	public void schedule(Timeout t, long deadline)
+	{
+		cancel(t);
+		
+		long tick = Math.max(deadline / tickDuration, processedTick + 1);
+		int b = (int)(tick & mask);
+		
+		t.deadline = deadline;
+		t.bucket = b;
+		t.prev = null;
+		t.next = buckets[b];
+		if (t.next != null) {
+			t.next.prev = t;
+		}
+		buckets[b] = t;
+		size++;
+	}
+	
+	/**
+	 * Cancel a timeout. Nothing is done if the timeout is not scheduled.
+	 * 
+	 * @param t The timeout
+	 */
+	public void cancel(Timeout t)
+	{
+		if (!t.isScheduled()) {
+			return;
+		}
+		
+		if (t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			buckets[t.bucket] = t.next;
+		}
+		if (t.next != null) {
+			t.next.prev = t.prev;
+		}
+		
+		t.prev = t.next = null;
+		t.bucket = -1;
+		size--;
+	}
+	
+	/**
+	 * Expire all timeouts whose deadline is at or before the given time.
+	 * 
+	 * @param now The current time
+	 * @return The number of timeouts that expired
+	 */
+	public int advance(long now)
+	{
+		long nowTick = now / tickDuration;
+		if (nowTick <= processedTick) {
+			return 0;
+		}
+		
+		// After a full round every bucket has been visited
+		long ticks = Math.min(nowTick - processedTick, buckets.length);
+		List<Timeout> expired = new ArrayList<Timeout>();
+		
+		for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+			Timeout t = buckets[(int)(tick & mask)];
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.deadline <= now) {
+					cancel(t);
+					expired.add(t);
+				}
+				t = next;
+			}
+		}
+		
+		// The bucket of the current tick is visited again as it might get more due timeouts
+		processedTick = nowTick - 1;
+		
+		for (Timeout t : expired) {
+			t.expired(now);
+		}
+		return expired.size();
+	}
+	
+	/**
+	 * @return The number of scheduled timeouts
+	 */
+	public int size()
+	{
+		return size;
+	}
+}
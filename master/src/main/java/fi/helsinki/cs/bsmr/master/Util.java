@@ -27,6 +27,11 @@ package fi.helsinki.cs.bsmr.master;
  *
  */
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.logging.Logger;
 
 /**
@@ -79,4 +84,96 @@ public class Util
 		
 		throw new NumberFormatException("Object "+o+" cannot be parsed into an int!");
 	}
+	
+	/**
+	 * Turn an object stored in a JSON data structure into a double. Integers,
+	 * floating point numbers and Strings are accepted.
+	 * 
+	 * @param o The object to be parsed as a double
+	 * @return The object o as a double
+	 * @throws NumberFormatException If the object is null or not an instance of 
+	 *                               any of the supported classes.
+	 */
+	public static double getDoubleFromJSONObject(Object o) throws NumberFormatException
+	{
+		if (o instanceof Number) {
+			return ((Number)o).doubleValue();
+		}
+		
+		if (o instanceof String) {
+			return Double.parseDouble((String)o);
+		}
+		
+		if (o == null) {
+			throw new NumberFormatException("null is not a number!");
+		}
+		
+		throw new NumberFormatException("Object "+o+" cannot be parsed into a double!");
+	}
+	
+	/**
+	 * Turn an object stored in a JSON data structure into a boolean. Booleans and
+	 * the Strings "true" and "false" are accepted.
+	 * 
+	 * @param o The object to be parsed as a boolean
+	 * @return The object o as a boolean
+	 * @throws IllegalArgumentException If the object is not a boolean
+	 */
+	public static boolean getBooleanFromJSONObject(Object o) throws IllegalArgumentException
+	{
+		if (o instanceof Boolean) {
+			return ((Boolean)o).booleanValue();
+		}
+		
+		if ("true".equals(o)) return true;
+		if ("false".equals(o)) return false;
+		
+		throw new IllegalArgumentException("Object "+o+" cannot be parsed into a boolean!");
+	}
+	
+	/**
+	 * Turn an object stored in a JSON data structure into a collection. JSON arrays
+	 * are parsed either as arrays or as collections depending on the parser.
+	 * 
+	 * @param o The object to be used as a collection
+	 * @return The elements of o
+	 * @throws IllegalArgumentException If the object is not an array or a collection
+	 */
+	public static Collection<?> getListFromJSONObject(Object o) throws IllegalArgumentException
+	{
+		if (o instanceof Collection) {
+			return (Collection<?>)o;
+		}
+		
+		if (o instanceof Object[]) {
+			return Arrays.asList((Object[])o);
+		}
+		
+		throw new IllegalArgumentException("Object "+o+" cannot be parsed into a list!");
+	}
+	
+	/**
+	 * Compute the SHA-1 hash of a string as hex digits.
+	 * 
+	 * @param s The string, hashed as UTF-8
+	 * @return The hash in lower case hex
+	 */
+	public static String hash(String s)
+	{
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+		} catch(NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		} catch(UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not available", uee);
+		}
+		
+		StringBuilder ret = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			ret.append(Character.forDigit((b >> 4) & 0xf, 16));
+			ret.append(Character.forDigit(b & 0xf, 16));
+		}
+		return ret.toString();
+	}
 }
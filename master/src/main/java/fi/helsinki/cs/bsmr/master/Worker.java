@@ -29,6 +29,13 @@ package fi.helsinki.cs.bsmr.master;
 
 import java.io.IOException;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,18 +50,50 @@ import fi.helsinki.cs.bsmr.master.Message.Type;
  * @author stsavola
  *
  */
-public class Worker implements WebSocket, WebSocket.OnTextMessage 
+public class Worker implements WebSocket, WebSocket.OnTextMessage, WebSocket.OnBinaryMessage 
 {
 	private static Logger logger = Util.getLoggerForClass(Worker.class);
 	
+	/**
+	 * The liveness of a worker with respect to the timeouts of a job.
+	 * 
+	 * @see LivenessTracker
+	 */
+	public enum State 
+	{
+		ALIVE, UNAVAILABLE, DEAD
+	}
+	
 	private Connection out;
 	private MasterContext master;
 	private String workerRemoteAddr;
+	private int id;
+	
+	private volatile long lastHearbeat;
+	private volatile long lastProgress;
 	
-	private long lastHearbeat;
-	private long lastProgress;
+	private FailureDetector failureDetector;
+	
+	// The first task of a job given to the JobStartDispatcher but not sent yet
+	private volatile Message pendingStart;
+	
+	// The state of this worker for each started job, written by the LivenessTracker
+	private List<LivenessTracker.Entry> liveness;
 	
 	private long connectTime;
+	
+	private int maxBatch;
+	private int slots;
+	private double speed;
+	
+	// Hashes of the job code sent to this worker during this connection
+	private Set<String> codeSent;
+	
+	// Whether the worker connected with the binary subprotocol, and the URLs of the other workers
+	// sent to it by their IDs
+	private boolean binary;
+	private Map<Integer, String> urlsSent;
+	private Set<Integer> jobsSent;
 
 	
 	/**
@@ -64,15 +103,38 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 	 * @param remoteAddr The remote address (name or IP in decimal-dot format) of the worker
 	 */
 	Worker(MasterContext masterContext, String remoteAddr)
+	{
+		this(masterContext, remoteAddr, false);
+	}
+	
+	/**
+	 * Create a new worker for the master in question.
+	 * 
+	 * @param masterContext The master for which the worker is created for
+	 * @param remoteAddr The remote address (name or IP in decimal-dot format) of the worker
+	 * @param binary True if the worker uses the binary subprotocol
+	 * @see BinaryCodec
+	 */
+	Worker(MasterContext masterContext, String remoteAddr, boolean binary)
 	{
 		this.master = masterContext;
 		this.workerRemoteAddr = remoteAddr;
+		this.id = -1;
 		
 		// Before worker starts communicating, it should be "dead":
 		this.lastHearbeat = -1;
 		this.lastProgress = -1;
+		this.liveness = new CopyOnWriteArrayList<LivenessTracker.Entry>();
+		this.failureDetector = new FailureDetector();
 		
 		this.connectTime = TimeContext.now();
+		this.maxBatch = 1;
+		this.slots = 1;
+		this.speed = -1;
+		this.codeSent = Collections.synchronizedSet(new HashSet<String>());
+		this.binary = binary;
+		this.urlsSent = new HashMap<Integer, String>();
+		this.jobsSent = Collections.synchronizedSet(new HashSet<Integer>());
 	}
 	
 
@@ -84,6 +146,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 		// Make sure nobody relies on this worker anymore
 		lastHearbeat = -1;
 		lastProgress = -1;
+		master.refreshWorkerLiveness(this);
 		
 		out.disconnect();
 	}
@@ -133,11 +196,11 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 	 * function and the master. The following steps are parsed here: socket announcements, 
 	 * updating heart beat and acknowledgment timers. If the message contains data to be
 	 * acknowledged and/or new work should be allocated for the worker, the code calls the
-	 * master to do these tasks. These tasks are grouped into a synchronized block to handle
-	 * concurrency issues that would arise with multiple workers messaging at the same time.
+	 * master to do these tasks. The master handles them either within the shard of the worker
+	 * or within the "big lock" to handle concurrency issues that would arise with multiple 
+	 * workers messaging at the same time.
 	 * 
-	 * @see MasterContext#acknowledgeWork(Worker, Message)
-	 * @see MasterContext#selectTaskForWorker(Worker, Message)
+	 * @see MasterContext#handleWork(Worker, Message)
 	 */
 	@Override
 	public void onMessage(String jsonMsg) 
@@ -152,33 +215,80 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 		}	
 		
 		Message msg;
-		String reply;
 		
 		try {
 			// WARN: this might not be thread safe
 			msg = Message.parseMessage(jsonMsg, master, workerRemoteAddr);
 		} catch(IllegalMessageException ime) {
-			logger.log(Level.SEVERE,"Illegal message from worker", ime);
-			if (logger.isLoggable(Level.FINE)) {
-				logger.fine("illegal message contents: '"+ime.getProblematicMessage()+"'");
-			}
-			// there could be an error message to inform the worker
+			logIllegalMessage(ime);
 			return;
 		}
 		
+		onMessage(msg, hasQueuedMessage);
+	}
+	
+	/**
+	 * Parse and handle a binary frame from a worker using the binary subprotocol.
+	 * 
+	 * @see Worker#onMessage(String)
+	 * @see BinaryCodec
+	 */
+	@Override
+	public void onMessage(byte[] data, int offset, int length)
+	{
+		TimeContext.markTime();
+		
+		boolean hasQueuedMessage = hasQueuedMessage();
+		
+		Message msg;
+		
+		try {
+			msg = Message.parseMessage(data, offset, length, master, workerRemoteAddr);
+		} catch(IllegalMessageException ime) {
+			logIllegalMessage(ime);
+			return;
+		}
+		
+		onMessage(msg, hasQueuedMessage);
+	}
+	
+	private void logIllegalMessage(IllegalMessageException ime)
+	{
+		logger.log(Level.SEVERE,"Illegal message from worker", ime);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("illegal message contents: '"+ime.getProblematicMessage()+"'");
+		}
+		// there could be an error message to inform the worker
+	}
+	
+	private void onMessage(Message msg, boolean hasQueuedMessage)
+	{
+		Message reply;
+		
 		if (msg.getType() == Type.DO) {
 			logger.severe("Workers cannot send DO messages: "+msg);
 			return;
 		}
 		
 		if (msg.getType() == Type.HB) {
+			failureDetector.heartbeat(TimeContext.now());
+			
 			if (msg.getInterUrl() != null) {
 				master.setWorkerURL(this, msg.getInterUrl());
 			}
+			if (msg.getMaxBatch() > 0) {
+				maxBatch = msg.getMaxBatch();
+			}
+			if (msg.getSlots() > 0 && msg.getSlots() != slots) {
+				master.setWorkerSlots(this, msg.getSlots());
+			}
+			if (msg.getSpeed() >= 0) {
+				speed = msg.getSpeed();
+			}
 		}
 	
-		if (msg.getJob() != null && msg.getJob() != master.getActiveJob()) {
-			logger.warning("Worker used a non-active job");
+		if (msg.getJob() != null && msg.getJob().getState() == Job.State.FINISHED) {
+			logger.warning("Worker used a finished job");
 		}
 		
 		
@@ -190,6 +300,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 			
 			lastHearbeat = TimeContext.now();
 			lastProgress = TimeContext.now();
+			refreshLiveness();
 			
 			reply = null;
 			
@@ -202,6 +313,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 				// If just a pure heart beat, we do not reply
 				if (msg.getAction() != Message.Action.idle) {
 					logger.finest("heartbeat");
+					refreshLiveness();
 					return;
 				}
 
@@ -209,6 +321,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 				// Messages might still fall through the cracks (both the worker and master send out messages at the same time).
 				if (hasQueuedMessage) {
 					logger.fine("Worker idle and there's work to do. BUT! There's a queued message for this worker, so we wait...");
+					refreshLiveness();
 					return;
 				}
 				
@@ -218,20 +331,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 			lastProgress = TimeContext.now();
 			
 			
-			// If these two tasks are not grouped together, bad things will happen..
-			synchronized (master) {
-				
-				boolean moreToBeDone = master.acknowledgeWork(this, msg);
-				
-				if (moreToBeDone) {
-					Message tmp = master.selectTaskForWorker(this, msg);
-					reply = tmp.encodeMessage();
-				} else {
-					reply = null;
-				}
-
-			}
-
+			reply = master.handleWork(this, msg);
 		}
 	
 		
@@ -247,6 +347,42 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 
 	}
 
+	/**
+	 * @return How many splits this worker accepts in one message. Workers which have not announced
+	 *         a batch size take one split at a time.
+	 */
+	public int getMaxBatch()
+	{
+		return maxBatch;
+	}
+	
+	/**
+	 * @return How many tasks this worker runs in parallel, 1 unless the worker has announced more.
+	 */
+	public int getSlots()
+	{
+		return slots;
+	}
+	
+	/**
+	 * @return The speed the worker has announced for itself or a negative value if it has not.
+	 */
+	public double getSpeed()
+	{
+		return speed;
+	}
+	
+	/**
+	 * Set the slot count of this worker. The master keeps track of the total, so this is only
+	 * called by the master.
+	 * 
+	 * @see MasterContext#setWorkerSlots(Worker, int)
+	 */
+	void setSlots(int slots)
+	{
+		this.slots = slots;
+	}
+	
 	/**
 	 * Whether this worker has sent a heart beat message within the heart beat timeout specified
 	 * for this job. If the worker is dead, then it will not be available regardless when the
@@ -260,8 +396,7 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 	 */
 	public boolean isAvailable(Job job)
 	{
-		if (isDead(job)) return false;
-		return ( (TimeContext.now() - lastHearbeat)    < job.getWorkerHeartbeatTimeout());
+		return getState(job) == State.ALIVE;
 	}
 	
 	public boolean isReachable(Job job)
@@ -281,36 +416,208 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 	 */
 	public boolean isDead(Job job)
 	{
-		return ( (TimeContext.now() - lastProgress) > job.getWorkerAcknowledgeTimeout());
+		return getState(job) == State.DEAD;
+	}
+	
+	/**
+	 * The liveness state of this worker for a job. For started jobs this is the state kept by the
+	 * master's LivenessTracker, for other jobs it is computed from the timestamps of this worker.
+	 * 
+	 * @param job The job whose timeouts are used
+	 * @return The state of the worker
+	 * @see Worker#isAvailable(Job)
+	 * @see Worker#isDead(Job)
+	 */
+	public State getState(Job job)
+	{
+		LivenessTracker.Entry e = getLiveness(job);
+		if (e != null) {
+			return e.state;
+		}
+		return computeState(job, TimeContext.now());
+	}
+	
+	State computeState(Job job, long now)
+	{
+		if (now >= getAliveUntil(job)) return State.DEAD;
+		if (now >= getAvailableUntil(job)) return State.UNAVAILABLE;
+		return State.ALIVE;
+	}
+	
+	/**
+	 * @return The time at which this worker becomes unavailable for the job unless heard from. Once
+	 *         the failure detector of the worker is ready, this is when the suspicion level reaches
+	 *         the threshold of the job instead of the heart beat timeout.
+	 */
+	long getAvailableUntil(Job job)
+	{
+		if (lastHearbeat >= 0 && job.getUnavailablePhi() > 0 && failureDetector.isReady()) {
+			return failureDetector.getSuspicionTime(lastHearbeat, job.getUnavailablePhi());
+		}
+		return lastHearbeat + job.getWorkerHeartbeatTimeout();
+	}
+	
+	/**
+	 * @return The time at which this worker becomes dead for the job unless it acknowledges work, or
+	 *         earlier if the worker goes silent and the failure detector reaches the dead threshold
+	 *         of the job.
+	 */
+	long getAliveUntil(Job job)
+	{
+		long aliveUntil = lastProgress + job.getWorkerAcknowledgeTimeout() + 1;
+		if (lastHearbeat >= 0 && job.getDeadPhi() > 0 && failureDetector.isReady()) {
+			aliveUntil = Math.min(aliveUntil, failureDetector.getSuspicionTime(lastHearbeat, job.getDeadPhi()));
+		}
+		return aliveUntil;
+	}
+	
+	/**
+	 * @return The suspicion level of this worker right now, 0 until enough heart beats have arrived
+	 * @see FailureDetector
+	 */
+	public double getSuspicion()
+	{
+		if (lastHearbeat < 0) {
+			return 0;
+		}
+		return failureDetector.phi(lastHearbeat, TimeContext.now());
+	}
+	
+	FailureDetector getFailureDetector()
+	{
+		return failureDetector;
+	}
+	
+	LivenessTracker.Entry getLiveness(Job job)
+	{
+		for (LivenessTracker.Entry e : liveness) {
+			if (e.job == job) return e;
+		}
+		return null;
+	}
+	
+	void addLiveness(LivenessTracker.Entry e)
+	{
+		liveness.add(e);
+	}
+	
+	LivenessTracker.Entry removeLiveness(Job job)
+	{
+		LivenessTracker.Entry e = getLiveness(job);
+		if (e != null) {
+			liveness.remove(e);
+		}
+		return e;
+	}
+	
+	List<LivenessTracker.Entry> getLivenessEntries()
+	{
+		return liveness;
+	}
+	
+	/**
+	 * Let the master recompute the state of this worker if it was not ALIVE for some job, or if the
+	 * failure detector now suspects the worker earlier than its deadline. Deadlines which moved later 
+	 * are moved forward lazily by the LivenessTracker.
+	 */
+	void refreshLiveness()
+	{
+		for (LivenessTracker.Entry e : liveness) {
+			if (e.state != State.ALIVE 
+					|| Math.min(getAvailableUntil(e.job), getAliveUntil(e.job)) < e.getDeadline()) {
+				synchronized (master) {
+					master.refreshWorkerLiveness(this);
+				}
+				return;
+			}
+		}
 	}
 
 	/**
 	 * Send an asynchronous message to the worker. Asynchronous messages for workers are handled by a
-	 * separate thread sending the messages via a FIFO. Note that the message is encoded within this call.
-	 * Encoding messages needs to be done within the "big lock".
+	 * separate thread sending the messages via a FIFO. Note that the message is encoded within this call,
+	 * so that it is queued before any message sent after it. A message still pending in the 
+	 * JobStartDispatcher is overridden by this one.
 	 *  
 	 * @param msg The message to be sent
 	 */
 	public void sendAsyncMessage(Message msg) 
 	{
 		AsyncSender sender = AsyncSender.getSender(master);		
-		sender.sendAsyncMessage(msg.encodeMessage(), out);
+		synchronized (out) {
+			pendingStart = null;
+			if (binary) {
+				sender.sendAsyncMessage(msg.encodeBinary(this, false), out);
+			} else {
+				sender.sendAsyncMessage(msg.encodeMessage(this), out);
+			}
+		}
 	}
 	
 	/**
-	 * Send an asynchronous message to the worker. Asynchronous messages for workers are handled by a
-	 * separate thread sending the messages via a FIFO. Note that the message is encoded within this call.
-	 * Encoding messages needs to be done within the "big lock".
-	 *  
-	 * @param msg The message to be sent
-	 * @param cumulativeDelay When the sending thread processes this message, it will wait this many milliseconds
-	 *                        before sending out this message. This is only used for a ramp up time when starting
-	 *                        a new job.
+	 * Mark a message as the next one the JobStartDispatcher sends to this worker. 
+	 * 
+	 * @see JobStartDispatcher#dispatch(Worker, Message)
 	 */
-	public void sendAsyncMessage(Message msg, long cumulativeDelay)
+	void setPendingStart(Message msg)
 	{
-		AsyncSender sender = AsyncSender.getSender(master);		
-		sender.sendAsyncMessage(msg.encodeMessage(), out, cumulativeDelay);
+		pendingStart = msg;
+	}
+	
+	/**
+	 * Send the message given to the JobStartDispatcher, unless another message has been sent or 
+	 * queued for this worker since. The message is encoded before taking the connection.
+	 * 
+	 * @param msg The message given to the dispatcher
+	 * @return True if the message was sent
+	 * @throws IOException If the send fails
+	 */
+	boolean sendPendingStart(Message msg) throws IOException
+	{
+		if (binary) {
+			byte[] encoded = msg.encodeBinary(this, false);
+			synchronized (out) {
+				if (pendingStart != msg) {
+					return false;
+				}
+				pendingStart = null;
+				out.sendMessage(encoded, 0, encoded.length);
+			}
+		} else {
+			String encoded = msg.encodeMessage(this);
+			synchronized (out) {
+				if (pendingStart != msg) {
+					return false;
+				}
+				pendingStart = null;
+				out.sendMessage(encoded);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Encode the message in the subprotocol of this worker and send it synchronously in the 
+	 * current thread. The message is encoded before taking the connection, so this does not
+	 * need to be called within the "big lock".
+	 * 
+	 * @param msg The message to the worker
+	 * @throws IOException If the synchronous send fails for some reason.
+	 * @see Worker#sendSyncMessage(String)
+	 */
+	public void sendSyncMessage(Message msg) throws IOException
+	{
+		// A reply may carry the job code, so it is encoded here, outside the big lock, 
+		// to let other workers be scheduled meanwhile
+		if (binary) {
+			byte[] encoded = msg.encodeBinary(this, true);
+			synchronized (out) {
+				removeQueuedMessages();
+				out.sendMessage(encoded, 0, encoded.length);
+			}
+		} else {
+			sendSyncMessage(msg.encodeMessage(this));
+		}
 	}
 	
 	/**
@@ -326,23 +633,92 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 	{
 		
 		synchronized (out) { // See synchronization at AsyncSender$Task.run()
-			
-			// Remove all async messages bound for this connection as this latest message
-			// needs to override any previous ones.
-			
-			AsyncSender sender = AsyncSender.getSender(master);
-			sender.removeTasksFor(out);
-				
+			removeQueuedMessages();
 			out.sendMessage(msg);
 		}
 	}
+	
+	private void removeQueuedMessages()
+	{
+		pendingStart = null;
+		
+		// Remove all async messages bound for this connection as this latest message
+		// needs to override any previous ones.
+		
+		AsyncSender sender = AsyncSender.getSender(master);
+		sender.removeTasksFor(out);
+	}
+
+	/**
+	 * Record that a message with the job code is sent to this worker. Later messages of jobs with
+	 * the same code leave the code out. If the message is dropped before it is sent, the worker 
+	 * fetches the code from the CodeServlet.
+	 * 
+	 * @param codeHash The hash of the code
+	 * @return True if the code has not been sent to this worker before and needs to be included
+	 * @see Job#getCodeHash()
+	 */
+	boolean markCodeSent(String codeHash)
+	{
+		return codeSent.add(codeHash);
+	}
+	
+	/**
+	 * Check whether a message to this worker using the binary subprotocol needs to include the
+	 * URL of another worker. Messages name other workers by their IDs and include the URL of a
+	 * worker until it has been delivered.
+	 * 
+	 * @param other The other worker
+	 * @param delivered True if the message is sent right away, after that the URL is known
+	 * @return True if the message needs to include the URL
+	 */
+	boolean markUrlSent(Worker other, boolean delivered)
+	{
+		String url = other.getSocketURL();
+		synchronized (urlsSent) {
+			if (url != null && url.equals(urlsSent.get(other.getId()))) {
+				return false;
+			}
+			if (delivered && url != null) {
+				urlsSent.put(other.getId(), url);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Check whether a message to this worker using the binary subprotocol needs to describe the
+	 * job in full. Once a message describing the job has been delivered, the job ID is enough.
+	 * 
+	 * @param job The job of the message
+	 * @param delivered True if the message is sent right away
+	 * @return True if the message needs to describe the job
+	 */
+	boolean markJobSent(Job job, boolean delivered)
+	{
+		if (jobsSent.contains(job.getJobId())) {
+			return false;
+		}
+		if (delivered) {
+			jobsSent.add(job.getJobId());
+		}
+		return true;
+	}
+	
+	/**
+	 * @return True if this worker uses the binary subprotocol
+	 */
+	public boolean isBinary()
+	{
+		return binary;
+	}
 
 	public boolean hasQueuedMessage()
 	{
 		boolean ret;
 		synchronized (out) {
 			AsyncSender sender = AsyncSender.getSender(master);
-			ret = sender.hasTasksFor(out);
+			ret = pendingStart != null || sender.hasTasksFor(out);
 		}
 		return ret;
 	}
@@ -358,6 +734,23 @@ public class Worker implements WebSocket, WebSocket.OnTextMessage
 		return master.getWorkerURL(this);
 	}
 
+	/**
+	 * Get the ID of this worker. The master hands out dense IDs when workers are added and never
+	 * reuses them, so the ID identifies this worker even after it has disconnected.
+	 * 
+	 * @return The ID of this worker or -1 if the worker has not been added to the master.
+	 * @see MasterContext#getWorkerById(int)
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	void setId(int id)
+	{
+		this.id = id;
+	}
+	
 	/**
 	 * Get the time at when this worker connected.
 	 * 
@@ -0,0 +1,219 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A table of small sets of worker IDs, one set per split or bucket. Most splits and 
+ * buckets are done or queued by zero or one worker, so every slot stores a single ID 
+ * in a plain int array. Only slots with more than one worker get a separate list. A 
+ * job with a million splits thus needs a few megabytes instead of a million HashSets.
+ * 
+ * @author stsavola
+ * @see Worker#getId()
+ */
+public class WorkerSetTable implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	private static final int EMPTY    = -1;
+	private static final int MULTIPLE = -2;
+	
+	private int[] single;
+	private Map<Integer, IntList> multiple;
+	
+	/**
+	 * Create a table of empty sets.
+	 * 
+	 * @param slots Number of sets in the table
+	 */
+	public WorkerSetTable(int slots)
+	{
+		this.single = new int[slots];
+		this.multiple = new HashMap<Integer, IntList>();
+		
+		for (int i = 0; i < slots; i++) {
+			single[i] = EMPTY;
+		}
+	}
+	
+	/**
+	 * @return The number of sets in this table.
+	 */
+	public int slots()
+	{
+		return single.length;
+	}
+	
+	/**
+	 * Add empty sets to the end of the table.
+	 * 
+	 * @param slots The new number of sets, at least the current number
+	 */
+	public void grow(int slots)
+	{
+		int[] tmp = new int[slots];
+		System.arraycopy(single, 0, tmp, 0, single.length);
+		for (int i = single.length; i < slots; i++) {
+			tmp[i] = EMPTY;
+		}
+		single = tmp;
+	}
+	
+	/**
+	 * Add a worker to the set.
+	 * 
+	 * @param slot The set
+	 * @param workerId The worker ID
+	 * @return True if the worker was not already in the set
+	 */
+	public boolean add(int slot, int workerId)
+	{
+		int s = single[slot];
+		
+		if (s == EMPTY) {
+			single[slot] = workerId;
+			return true;
+		}
+		
+		if (s == MULTIPLE) {
+			IntList l = multiple.get(slot);
+			if (l.contains(workerId)) {
+				return false;
+			}
+			l.add(workerId);
+			return true;
+		}
+		
+		if (s == workerId) {
+			return false;
+		}
+		
+		IntList l = new IntList(2);
+		l.add(s);
+		l.add(workerId);
+		multiple.put(slot, l);
+		single[slot] = MULTIPLE;
+		return true;
+	}
+	
+	/**
+	 * Remove a worker from the set.
+	 * 
+	 * @param slot The set
+	 * @param workerId The worker ID
+	 * @return True if the worker was in the set
+	 */
+	public boolean remove(int slot, int workerId)
+	{
+		int s = single[slot];
+		
+		if (s == MULTIPLE) {
+			IntList l = multiple.get(slot);
+			if (!l.removeValue(workerId)) {
+				return false;
+			}
+			if (l.size() == 1) {
+				single[slot] = l.get(0);
+				multiple.remove(slot);
+			}
+			return true;
+		}
+		
+		if (s == workerId && s != EMPTY) {
+			single[slot] = EMPTY;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	public boolean contains(int slot, int workerId)
+	{
+		int s = single[slot];
+		
+		if (s == MULTIPLE) {
+			return multiple.get(slot).contains(workerId);
+		}
+		return s == workerId && s != EMPTY;
+	}
+	
+	public boolean isEmpty(int slot)
+	{
+		return single[slot] == EMPTY;
+	}
+	
+	public int size(int slot)
+	{
+		int s = single[slot];
+		
+		if (s == EMPTY) return 0;
+		if (s == MULTIPLE) return multiple.get(slot).size();
+		return 1;
+	}
+	
+	/**
+	 * Get a member of a set. The members of a set are iterated by calling this for
+	 * i = 0 .. size(slot)-1. The order is not specified and changes when the set is modified.
+	 * 
+	 * @param slot The set
+	 * @param i Index of the member
+	 * @return The worker ID
+	 */
+	public int get(int slot, int i)
+	{
+		int s = single[slot];
+		
+		if (s == MULTIPLE) {
+			return multiple.get(slot).get(i);
+		}
+		if (s == EMPTY || i != 0) {
+			throw new IndexOutOfBoundsException("Index: "+i+", size: "+size(slot));
+		}
+		return s;
+	}
+	
+	/**
+	 * @param slot The set
+	 * @return A copy of the set
+	 */
+	public Set<Integer> asSet(int slot)
+	{
+		int n = size(slot);
+		Set<Integer> ret = new HashSet<Integer>(n * 2);
+		for (int i = 0; i < n; i++) {
+			ret.add(get(slot, i));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,106 @@
+package fi.helsinki.cs.bsmr.master;
+
+/**
+ * The MIT License
+ * 
+ * Copyright (c) 2010   Department of Computer Science, University of Helsinki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * Author Sampo Savolainen
+ *
+ */
+
+/**
+ * A partition of the workers of the master. Worker i belongs to shard i mod N of the N shards.
+ * The map and reduce work messages of the workers of a shard are handled within the lock of 
+ * the shard instead of the "big lock", so that workers of different shards are served at the
+ * same time. The shard keeps the workers its workers have reported unreachable.
+ * 
+ * Messages which change the state of a job or of the master, such as acknowledging a bucket,
+ * handing out buckets or starting and finishing jobs, are escalated to the coordinator, which
+ * holds the "big lock".
+ * 
+ * @see MasterImpl#handleWork(Worker, Message)
+ * @see SplitShard
+ */
+public class WorkerShard
+{
+	private final int index;
+	
+	// Workers reported unreachable by the workers of this shard
+	private final ReachabilityMatrix reachability;
+	
+	private long messagesHandled;
+	private long messagesEscalated;
+	
+	/**
+	 * @param index The index of this shard
+	 */
+	public WorkerShard(int index)
+	{
+		this.index = index;
+		this.reachability = new ReachabilityMatrix();
+	}
+	
+	public int getIndex()
+	{
+		return index;
+	}
+	
+	/**
+	 * @return The workers reported unreachable by the workers of this shard
+	 */
+	public ReachabilityMatrix getReachability()
+	{
+		return reachability;
+	}
+	
+	/**
+	 * Count a message handled within the shard.
+	 */
+	synchronized void messageHandled()
+	{
+		messagesHandled++;
+	}
+	
+	/**
+	 * Count a message the shard escalated to the coordinator.
+	 */
+	synchronized void messageEscalated()
+	{
+		messagesEscalated++;
+	}
+	
+	/**
+	 * @return The number of work messages handled within the shard
+	 */
+	public synchronized long getMessagesHandled()
+	{
+		return messagesHandled;
+	}
+	
+	/**
+	 * @return The number of work messages the shard escalated to the coordinator
+	 */
+	public synchronized long getMessagesEscalated()
+	{
+		return messagesEscalated;
+	}
+}
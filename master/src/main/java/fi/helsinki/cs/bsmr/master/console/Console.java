@@ -27,6 +27,12 @@ package fi.helsinki.cs.bsmr.master.console;
  *
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import java.util.logging.Level;
@@ -113,8 +119,14 @@ public void onMessage(String msg)
 				{
 				logger.finest(" ADDJOB, payload: " + payload);
 				}
-			int jobId = addJob(payload);
-			sendJobAdded(jobId);
+			if (payload.get(Job.FIELD_STAGES) != null)
+				{
+				sendStagesAdded(addStages(payload));
+				}
+			else
+				{
+				sendJobAdded(addJob(payload));
+				}
 			
 			ok = true;
 			}
@@ -166,24 +178,152 @@ private void removeJob(Map<Object, Object> payload)
  * 
  * @param payload
  *            The payload part of the JSON message
- * @return 
+ * @return The ID of the new job
  */
 private int addJob(Map<Object, Object> payload)
 	{
-	int maptasks = Util.getIntFromJSONObject(payload
-			.get(Message.FIELD_NUM_MAPTASKS));
-	int reducetasks = Util.getIntFromJSONObject(payload
-			.get(Message.FIELD_NUM_REDUCETASKS));
+	Job newJob = createJob(payload);
+	queueJob(newJob);
+	startQueuedJobs();
+	return newJob.getJobId();
+	}
+
+/**
+ * Handle an ADDJOB message with "stages" from the console. Every stage is a
+ * job of its own, a stage lists the earlier stages whose output it reads in
+ * "after". The jobs of all stages are created before any of them is queued.
+ * If a stage is not valid, the jobs created so far are removed and nothing is
+ * queued.
+ * 
+ * @param payload
+ *            The payload part of the JSON message
+ * @return Stage name -> job ID, in the order of the stages
+ * @throws IllegalArgumentException
+ *             If a stage is not an object, has no name, comes after an
+ *             unknown stage or has invalid parameters
+ */
+private Map<Object, Object> addStages(Map<Object, Object> payload)
+		throws IllegalArgumentException
+	{
+	Collection<?> list = Util.getListFromJSONObject(payload
+			.get(Job.FIELD_STAGES));
+
+	// Stages may only come after earlier stages, so the stages form a DAG
+	List<Map<?, ?>> stages = new ArrayList<Map<?, ?>>();
+	List<String> names = new ArrayList<String>();
+	for (Object o : list)
+		{
+		if (!(o instanceof Map))
+			{
+			throw new IllegalArgumentException("A stage is not an object: " + o);
+			}
+		Map<?, ?> stage = (Map<?, ?>) o;
+		Object name = stage.get(Job.FIELD_NAME);
+		if (name == null || names.contains(name.toString()))
+			{
+			throw new IllegalArgumentException(
+					"Every stage needs a unique name: " + name);
+			}
+		for (Object after : getAfter(stage))
+			{
+			if (!names.contains(after.toString()))
+				{
+				throw new IllegalArgumentException("Stage " + name
+						+ " comes after " + after
+						+ ", which is not an earlier stage");
+				}
+			}
+		names.add(name.toString());
+		stages.add(stage);
+		}
+
+	List<Job> jobs = new ArrayList<Job>();
+	try
+		{
+		for (Map<?, ?> stage : stages)
+			{
+			jobs.add(createJob(stage));
+			}
+		}
+	catch (RuntimeException re)
+		{
+		for (Job job : jobs)
+			{
+			master.removeJob(job);
+			}
+		throw re;
+		}
+
+	Map<String, Job> jobForName = new HashMap<String, Job>();
+	Map<Object, Object> ret = new LinkedHashMap<Object, Object>();
+	for (int i = 0; i < stages.size(); i++)
+		{
+		Map<?, ?> stage = stages.get(i);
+		Job job = jobs.get(i);
+
+		List<Job> upstream = new ArrayList<Job>();
+		for (Object after : getAfter(stage))
+			{
+			upstream.add(jobForName.get(after.toString()));
+			}
+		job.setUpstreamJobs(upstream);
+
+		jobForName.put(stage.get(Job.FIELD_NAME).toString(), job);
+		ret.put(stage.get(Job.FIELD_NAME), job.getJobId());
+		queueJob(job);
+		}
+
+	startQueuedJobs();
+	return ret;
+	}
+
+private static Collection<?> getAfter(Map<?, ?> stage)
+	{
+	if (stage.get(Job.FIELD_AFTER) == null)
+		{
+		return Collections.emptyList();
+		}
+	return Util.getListFromJSONObject(stage.get(Job.FIELD_AFTER));
+	}
+
+/**
+ * Create a job from an ADDJOB payload or a stage of one. A job whose
+ * parameters are not valid is removed again.
+ * 
+ * @throws IllegalArgumentException
+ *             If the parameters are not valid
+ */
+private Job createJob(Map<?, ?> payload)
+	{
+	// The master chooses M and R left out of the payload
+	int maptasks = payload.get(Message.FIELD_NUM_MAPTASKS) == null ? 0
+			: Util.getIntFromJSONObject(payload
+					.get(Message.FIELD_NUM_MAPTASKS));
+	int reducetasks = payload.get(Message.FIELD_NUM_REDUCETASKS) == null ? 0
+			: Util.getIntFromJSONObject(payload
+					.get(Message.FIELD_NUM_REDUCETASKS));
 	int heartbeatTimeout = Util.getIntFromJSONObject(payload
-			.get("heartbeatTimeout"));
+			.get(Job.FIELD_HEARTBEAT_TIMEOUT));
 	int acknowledgeTimeout = Util.getIntFromJSONObject(payload
-			.get("progressTimeout"));
+			.get(Job.FIELD_PROGRESS_TIMEOUT));
 	Object code = payload.get(Message.FIELD_CODE);
 
 	Job newJob = master.createJob(maptasks, reducetasks, heartbeatTimeout,
 			acknowledgeTimeout, code);
-	int jobId = newJob.getJobId();
+	try
+		{
+		newJob.setParameters(payload);
+		}
+	catch (RuntimeException re)
+		{
+		master.removeJob(newJob);
+		throw re;
+		}
+	return newJob;
+	}
 
+private void queueJob(Job newJob)
+	{
 	logger.info("Adding new job: " + newJob);
 	try
 		{
@@ -196,19 +336,21 @@ private int addJob(Map<Object, Object> payload)
 						Level.SEVERE,
 						"This should never happen! A newly created job was already running/had already been ran on the master?!?",
 						jare);
-		return jobId;
 		}
+	}
 
+private void startQueuedJobs()
+	{
 	try
 		{
-		master.startNextJob();
+		while (master.startNextJob());
 		}
 	catch (JobAlreadyRunningException jare)
 		{
-		/* NOP, because this just means that there is a job already running */
+		/* NOP, because this just means that the maximum number of jobs are already running */
 		}
-		return jobId;
 	}
+
 /**
  * Create a new JobAdded message and send it to the console.
  * 
@@ -220,6 +362,30 @@ public void sendJobAdded(int jobId)
 	sendMessage(msg);
 	}
 
+/**
+ * Create a new JobAdded message for the stages of a job and send it to the
+ * console. The "id" is the job of the last stage.
+ * 
+ * @param stages
+ *            Stage name -> job ID
+ */
+public void sendStagesAdded(Map<Object, Object> stages)
+	{
+	Map<Object, Object> payload = new HashMap<Object, Object>();
+	Object last = null;
+	for (Object id : stages.values())
+		{
+		last = id;
+		}
+	payload.put("id", last);
+	payload.put(Job.FIELD_STAGES, stages);
+
+	Map<Object, Object> msg = new HashMap<Object, Object>();
+	msg.put("type", "JOBADDED");
+	msg.put(Message.FIELD_PAYLOAD, payload);
+	sendMessage(JSON.toString(msg));
+	}
+
 /**
  * Create a new ConsoleInformation message and send it to the console.
  * 
@@ -28,7 +28,6 @@ package fi.helsinki.cs.bsmr.master.console;
  */
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.List;
@@ -39,6 +38,7 @@ import fi.helsinki.cs.bsmr.master.Job;
 import fi.helsinki.cs.bsmr.master.MasterContext;
 import fi.helsinki.cs.bsmr.master.Message;
 import fi.helsinki.cs.bsmr.master.Bucket;
+import fi.helsinki.cs.bsmr.master.BucketSizes;
 import fi.helsinki.cs.bsmr.master.BucketStore;
 import fi.helsinki.cs.bsmr.master.Split;
 import fi.helsinki.cs.bsmr.master.SplitStore;
@@ -54,6 +54,9 @@ import fi.helsinki.cs.bsmr.master.Worker;
  */
 public class ConsoleInformation
 {
+	// Bins of the bucket size histogram of a running job
+	private static final int HISTOGRAM_BINS = 10;
+	
 	private String asString;
 	
 	/**
@@ -92,107 +95,61 @@ public class ConsoleInformation
 		payload.put("workers", workers);
 		for (Worker w : master.getWorkers()) {
 			Map<Object, Object> workerInfo = new HashMap<Object, Object>();
-			if (currentJob != null) {
-				workerInfo.put("status", w.isAvailable(currentJob) ? "available": (w.isDead(currentJob) ? "dead" : "unavailable"));
+			Job workerJob = master.getWorkerJob(w);
+			Job statusJob = workerJob != null ? workerJob : currentJob;
+			if (statusJob != null) {
+				switch (w.getState(statusJob)) {
+				case ALIVE:       workerInfo.put("status", "available");   break;
+				case UNAVAILABLE: workerInfo.put("status", "unavailable"); break;
+				default:          workerInfo.put("status", "dead");
+				}
 			} else {
 				workerInfo.put("status", "idle");
 			}
 			workerInfo.put("connectTime", timeToJson(w.getConnectTime()));
 			workerInfo.put("url", w.getSocketURL());
-			
-			workers.put(w.hashCode(), workerInfo);
-		}
-		
-		if (currentJob != null) {
-			// Job information
-			Map<Object, Object> jobMap = Message.getJSONMapForJob(currentJob);
-			jobMap.put("startTime", timeToJson(currentJob.getStartTime()));
-			boolean isFinished = currentJob.getState() == Job.State.FINISHED;
-			jobMap.put("finished", isFinished);
-			if (isFinished) {
-				jobMap.put("finishTime", timeToJson(currentJob.getFinishTime()));
-			}
-			payload.put(Message.FIELD_JOB_MAP, jobMap);
-		
-			// Job progress
-			SplitStore ss = currentJob.getSplitInformation();
-			BucketStore bs = currentJob.getBucketInformation();
-			
-			// Splits
-			Map<Object, Object> splitMap = new HashMap<Object, Object>();
-			payload.put("splits", splitMap);
-			
-			
-			Map<Object, Object> doneSplits = new HashMap<Object, Object>();
-			splitMap.put("done", doneSplits);
-			
-			Map<Object, Object> queuedSplits = new HashMap<Object, Object>();
-			splitMap.put("queued", queuedSplits);
-			
-			for (int i = 0; i < currentJob.getMapTasks(); i++) {
-				Split split = new Split(i);
-				
-				Set<Worker> tmp;
-				
-				tmp = ss.getAllWorkersWhoHaveDoneSplit(split);
-				if (!tmp.isEmpty()) {
-					
-					Set<Integer> who = new HashSet<Integer>();
-					for (Worker w : tmp) { who.add(w.hashCode()); }
-					doneSplits.put(i, who);
-				}
-				
-				tmp = ss.getAllQueuedWorkers(split);
-				if (!tmp.isEmpty()) {
-
-					Set<Integer> who = new HashSet<Integer>();
-					for (Worker w : tmp) { who.add(w.hashCode()); }
-					queuedSplits.put(i, who);
-				}
+			workerInfo.put(Message.FIELD_SLOTS, w.getSlots());
+			workerInfo.put("suspicion", w.getSuspicion());
+			if (w.getSpeed() >= 0) {
+				workerInfo.put(Message.FIELD_SPEED, w.getSpeed());
 			}
-			
-
-			// Buckets
-			Map<Object, Object> bucketMap = new HashMap<Object, Object>();
-			payload.put("buckets", bucketMap);
-			
-			// done buckets			
-			Map<Object, Object> doneBuckets = new HashMap<Object, Object>();
-			bucketMap.put("done", doneBuckets);
-			
-			for (int i = 0; i < currentJob.getReduceTasks(); i++) {
-				Bucket bucket = new Bucket(i);
-				
-				Set<Integer> who;
-				who = bs.getAllDoneWorkers(bucket);
-				if (!who.isEmpty()) {
-					doneBuckets.put(i, who);
-				}
+			if (workerJob != null) {
+				workerInfo.put("job", workerJob.getJobId());
 			}
 			
-			Map<Object, Object> queuedBuckets = new HashMap<Object, Object>();
-			bucketMap.put("queued", queuedBuckets);
+			workers.put(w.getId(), workerInfo);
+		}
+		
+		// Running jobs, the oldest running job is also reported on its own for
+		// consoles which do not know about running several jobs at once
+		List<Map<Object,Object>> runningJobs = new LinkedList<Map<Object, Object>>();
+		payload.put("runningJobs", runningJobs);
+		for (Job j : master.getRunningJobs()) {
+			Map<Object, Object> jobMap = createJobStatus(j);
+			runningJobs.add(jobMap);
 			
-			for (int i = 0; i < currentJob.getReduceTasks(); i++) {
-				Bucket bucket = new Bucket(i);
-				
-				Set<Worker> tmp;
-				tmp = bs.getAllQueuedWorkers(bucket);
-				if (!tmp.isEmpty()) {
-					Set<Integer> who = new HashSet<Integer>();
-					for (Worker w : tmp) { who.add(w.hashCode()); }
-					queuedBuckets.put(i, who);
-				}
+			if (j == currentJob) {
+				payload.put(Message.FIELD_JOB_MAP, jobMap);
+				payload.put("splits", jobMap.get("splits"));
+				payload.put("buckets", jobMap.get("buckets"));
 			}
-
 		}
 		
-		
 		// Job queue
 		List<Map<Object,Object>> jobQueue = new LinkedList<Map<Object, Object>>();
 		payload.put("jobQueue", jobQueue);
 		for (Job j : master.getJobQueue()) {
-			jobQueue.add( Message.getJSONMapForJob(j));
+			Map<Object, Object> tmp = Message.getJSONMapForJob(j);
+			tmp.put(Job.FIELD_PRIORITY, j.getPriority());
+			tmp.put("paused", j.getState() == Job.State.PAUSED);
+			jobQueue.add(tmp);
+		}
+		for (Job j : master.getWaitingJobs()) {
+			Map<Object, Object> tmp = Message.getJSONMapForJob(j);
+			tmp.put(Job.FIELD_PRIORITY, j.getPriority());
+			tmp.put("paused", false);
+			tmp.put("waiting", true);
+			jobQueue.add(tmp);
 		}
 		
 		// Job history
@@ -209,6 +166,116 @@ public class ConsoleInformation
 		return JSON.toString(msg);
 	}
 	
+	private Map<Object, Object> createJobStatus(Job job)
+	{
+		// Job information
+		Map<Object, Object> jobMap = Message.getJSONMapForJob(job);
+		jobMap.put("startTime", timeToJson(job.getStartTime()));
+		boolean isFinished = job.getState() == Job.State.FINISHED;
+		jobMap.put("finished", isFinished);
+		if (isFinished) {
+			jobMap.put("finishTime", timeToJson(job.getFinishTime()));
+		}
+		jobMap.put(Job.FIELD_WEIGHT, job.getWeight());
+		jobMap.put(Job.FIELD_MAX_SHARE, job.getMaxShare());
+		jobMap.put(Job.FIELD_PRIORITY, job.getPriority());
+		jobMap.put(Job.FIELD_REDUCE_SLOW_START, job.getReduceSlowStart());
+		jobMap.put(Job.FIELD_UNAVAILABLE_PHI, job.getUnavailablePhi());
+		jobMap.put(Job.FIELD_DEAD_PHI, job.getDeadPhi());
+		jobMap.put(Job.FIELD_REPLICATION, job.getReplication());
+		jobMap.put(Job.FIELD_SKEW_FACTOR, job.getSkewFactor());
+		jobMap.put("workers", job.getAssignedWorkers());
+	
+		// Job progress
+		SplitStore ss = job.getSplitInformation();
+		BucketStore bs = job.getBucketInformation();
+		
+		// Splits
+		Map<Object, Object> splitMap = new HashMap<Object, Object>();
+		jobMap.put("splits", splitMap);
+		
+		
+		Map<Object, Object> doneSplits = new HashMap<Object, Object>();
+		splitMap.put("done", doneSplits);
+		
+		Map<Object, Object> queuedSplits = new HashMap<Object, Object>();
+		splitMap.put("queued", queuedSplits);
+		
+		for (int i = 0; i < job.getMapTasks(); i++) {
+			Split split = new Split(i);
+			
+			Set<Integer> who;
+			
+			who = ss.getAllWorkersWhoHaveDoneSplit(split);
+			if (!who.isEmpty()) {
+				doneSplits.put(i, who);
+			}
+			
+			who = ss.getAllQueuedWorkers(split);
+			if (!who.isEmpty()) {
+				queuedSplits.put(i, who);
+			}
+		}
+		
+
+		// Buckets
+		Map<Object, Object> bucketMap = new HashMap<Object, Object>();
+		jobMap.put("buckets", bucketMap);
+		
+		// done buckets			
+		Map<Object, Object> doneBuckets = new HashMap<Object, Object>();
+		bucketMap.put("done", doneBuckets);
+		
+		for (int i = 0; i < job.getReduceTasks(); i++) {
+			Bucket bucket = new Bucket(i);
+			
+			Set<Integer> who;
+			who = bs.getAllDoneWorkers(bucket);
+			// Buckets restored from the journal are done without workers
+			if (!who.isEmpty() || bs.isBucketDone(bucket)) {
+				doneBuckets.put(i, who);
+			}
+		}
+		
+		Map<Object, Object> queuedBuckets = new HashMap<Object, Object>();
+		bucketMap.put("queued", queuedBuckets);
+		
+		Map<Object, Object> splitBuckets = new HashMap<Object, Object>();
+		
+		for (int i = 0; i < job.getReduceTasks(); i++) {
+			Bucket bucket = new Bucket(i);
+			
+			Set<Integer> who;
+			who = bs.getAllQueuedWorkers(bucket);
+			if (!who.isEmpty()) {
+				queuedBuckets.put(i, who);
+			}
+			
+			if (bs.getParts(bucket) > 0) {
+				splitBuckets.put(i, bs.getParts(bucket));
+			}
+		}
+		
+		// Sizes reported by the mappers
+		BucketSizes sizes = bs.getSizes();
+		Map<Object, Object> sizeMap = new HashMap<Object, Object>();
+		jobMap.put("bucketSizes", sizeMap);
+		
+		long binBytes = sizes.getBinBytes(HISTOGRAM_BINS);
+		List<Integer> histogram = new LinkedList<Integer>();
+		for (int n : sizes.getHistogram(HISTOGRAM_BINS, binBytes)) {
+			histogram.add(n);
+		}
+		sizeMap.put("splits", sizes.getSplitsCounted());
+		sizeMap.put("records", sizes.getTotalRecords());
+		sizeMap.put("bytes", sizes.getTotalBytes());
+		sizeMap.put("binBytes", binBytes);
+		sizeMap.put("histogram", histogram);
+		sizeMap.put("split", splitBuckets);
+		
+		return jobMap;
+	}
+	
 	public static long timeToJson(long millis)
 	{
 		return millis;
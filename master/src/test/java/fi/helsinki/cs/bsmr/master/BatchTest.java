@@ -0,0 +1,121 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class BatchTest
+{
+	private static Job startJob(MasterImpl master, int m) throws Exception
+	{
+		Job job = master.createJob(m, 1, 60000, 600000, "");
+		job.setSpeculationPolicy(new SpeculationPolicy(false, 1.5, 2.0, 0.1, 2));
+		master.queueJob(job);
+		master.startNextJob();
+		return job;
+	}
+	
+	private static Worker connectBatchWorker(MasterImpl master, String url, int maxBatch)
+	{
+		Worker w = TestWorkers.connect(master, url);
+		w.onMessage("{\"type\": \"HB\", \"payload\": {\"action\": \"mapSplit\", \"maxBatch\": " + maxBatch + "}}");
+		return w;
+	}
+	
+	/**
+	 * Acknowledge a split the way the worker does and return the reply of the master.
+	 */
+	private static Message ack(MasterImpl master, Worker w, Job job, Split s) throws Exception
+	{
+		TimeContext.markTime();
+		Message msg = Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": " + s.getId() + "}, \"jobId\": " + job.getJobId() + "}}", 
+				master, "127.0.0.1");
+		assertTrue(master.acknowledgeWork(w, msg));
+		return master.selectTaskForWorker(w, msg);
+	}
+	
+	@Test
+	public void testSingleSplitWorker() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 10);
+		Worker w = TestWorkers.connect(master, "ws://1");
+		
+		Split first = master.selectTaskForWorker(w, Message.pauseMessage()).getMapStatus().split;
+		Thread.sleep(20);
+		Message next = ack(master, w, job, first);
+		
+		assertEquals(1, next.getMapStatus().splits.size());
+		assertFalse(next.encodeMessage().contains(Message.FIELD_SPLITIDS));
+	}
+	
+	@Test
+	public void testBatchAndTopUp() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 100);
+		Worker w = connectBatchWorker(master, "ws://1", 4);
+		
+		// Nothing is known about the speed of the worker yet
+		Message msg = master.selectTaskForWorker(w, Message.pauseMessage());
+		assertEquals(1, msg.getMapStatus().splits.size());
+		
+		Thread.sleep(20);
+		msg = ack(master, w, job, msg.getMapStatus().split);
+		List<Split> batch = msg.getMapStatus().splits;
+		assertEquals(4, batch.size());
+		assertEquals(4, job.getSplitInformation().getNumberOfPendingSplits(w));
+		
+		// Acknowledging a split of the batch keeps the batch full
+		Message topUp = ack(master, w, job, batch.get(0));
+		assertNotNull(topUp);
+		assertEquals(1, topUp.getMapStatus().splits.size());
+		assertFalse(batch.contains(topUp.getMapStatus().split));
+		assertEquals(4, job.getSplitInformation().getNumberOfPendingSplits(w));
+	}
+	
+	@Test
+	public void testNoReplyWhenNothingToAdd() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 5);
+		Worker w = connectBatchWorker(master, "ws://1", 4);
+		
+		Message msg = master.selectTaskForWorker(w, Message.pauseMessage());
+		Thread.sleep(20);
+		msg = ack(master, w, job, msg.getMapStatus().split);
+		
+		List<Split> batch = msg.getMapStatus().splits;
+		Set<Split> distinct = new HashSet<Split>(batch);
+		assertEquals(4, distinct.size());
+		
+		assertNull(ack(master, w, job, batch.get(0)));
+		assertNull(ack(master, w, job, batch.get(1)));
+		assertNull(ack(master, w, job, batch.get(2)));
+		
+		// The batch is done, the worker moves on to reducing
+		assertEquals(Message.Action.reduceBucket, ack(master, w, job, batch.get(3)).getAction());
+	}
+	
+	@Test
+	public void testBatchedSplitsAreTimedFromPreviousSplit() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Worker w = TestWorkers.connect(master, "ws://1");
+		TaskTimer timer = new TaskTimer();
+		
+		timer.taskStarted(0, w, 1000);
+		timer.taskStarted(1, w, 1000);
+		timer.taskStarted(2, w, 1000);
+		timer.taskFinished(0, w, 1100);
+		timer.taskFinished(1, w, 1200);
+		timer.taskFinished(2, w, 1300);
+		
+		assertEquals(100, timer.getExpectedDuration(w));
+	}
+}
@@ -0,0 +1,153 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class BinaryCodecTest
+{
+	private static Map<?, ?> decode(byte[] frame) throws Exception
+	{
+		return new ObjectMapper().readValue(new BinaryParser(frame, 0, frame.length), Map.class);
+	}
+	
+	@Test
+	public void testAcknowledgementsDecodeLikeJson() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(4, 2, 60000, 600000, "");
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		
+		Map<Object, Object> reduceStatus = new LinkedHashMap<Object, Object>();
+		reduceStatus.put(Message.FIELD_BUCKETID, 1);
+		reduceStatus.put(Message.FIELD_PART, 0);
+		reduceStatus.put(Message.FIELD_PARTS, 2);
+		reduceStatus.put(Message.FIELD_SPLITID, 3);
+		Map<Object, Object> payload = new LinkedHashMap<Object, Object>();
+		payload.put(Message.FIELD_REDUCESTATUS, reduceStatus);
+		payload.put(Message.FIELD_UNREACHABLE, Arrays.asList(a.getId(), "ws://b"));
+		payload.put(Message.FIELD_JOBID, job.getJobId());
+		payload.put(Message.FIELD_SPEED, 2.5);
+		payload.put("somethingNew", Arrays.asList(true, null, -7L));
+		byte[] frame = BinaryCodec.encode(Message.Type.ACK, Message.Action.reduceChunk, payload);
+		
+		Message msg = Message.parseMessage(frame, 0, frame.length, master, "127.0.0.1");
+		assertEquals(Message.Type.ACK, msg.getType());
+		assertEquals(Message.Action.reduceChunk, msg.getAction());
+		assertSame(job, msg.getJob());
+		assertEquals(new Bucket(1, 0, 2), msg.getIncompleteReduceBucket());
+		assertEquals(new Split(3), msg.getReduceStatus().split);
+		assertEquals(2, msg.getUnareachableWorkers().size());
+		assertTrue(msg.getUnareachableWorkers().contains(a));
+		assertTrue(msg.getUnareachableWorkers().contains(b));
+		assertEquals(2.5, msg.getSpeed(), 0.0);
+	}
+	
+	@Test
+	public void testWorkersAreNamedById() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "function mapper() {}");
+		master.queueJob(job);
+		master.startNextJob();
+		Worker a = TestWorkers.connect(master, "ws://10.0.0.1:8081/chunks");
+		Worker b = TestWorkers.connect(master, "ws://10.0.0.2:8081/chunks");
+		Worker r = TestWorkers.connect(master, "ws://10.0.0.3:8081/chunks");
+		job.getSplitInformation().acknowledgeWork(a, new Split(0));
+		job.getSplitInformation().acknowledgeWork(b, new Split(0));
+		
+		Message msg = Message.findChunkAtMessage(new Bucket(0), new Split(0), job, r,
+				Collections.<Worker> emptySet());
+		
+		// Queued messages may be dropped, so they keep the URLs
+		Map<?, ?> queued = (Map<?, ?>)decode(msg.encodeBinary(r, false)).get(Message.FIELD_PAYLOAD);
+		assertEquals(4, ((List<?>)queued.get(Message.FIELD_WORKER_URLS)).size());
+		
+		Map<?, ?> payload = (Map<?, ?>)decode(msg.encodeBinary(r, true)).get(Message.FIELD_PAYLOAD);
+		List<?> ids = (List<?>)((Map<?, ?>)payload.get(Message.FIELD_REDUCESTATUS)).get(Message.FIELD_REDUCE_LOCATION);
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains(a.getId()));
+		List<?> urls = (List<?>)payload.get(Message.FIELD_WORKER_URLS);
+		assertEquals(urls.get(urls.indexOf(a.getId()) + 1), a.getSocketURL());
+		Map<?, ?> jobMap = (Map<?, ?>)payload.get(Message.FIELD_JOB_MAP);
+		assertEquals(job.getCodeHash(), jobMap.get(Message.FIELD_CODE_HASH));
+		assertFalse(jobMap.containsKey(Message.FIELD_CODE));
+		
+		payload = (Map<?, ?>)decode(msg.encodeBinary(r, true)).get(Message.FIELD_PAYLOAD);
+		assertNull(payload.get(Message.FIELD_WORKER_URLS));
+		assertEquals(Collections.singletonMap(Message.FIELD_JOBID, job.getJobId()), payload.get(Message.FIELD_JOB_MAP));
+		
+		// A worker moving to another address is sent its new URL
+		master.setWorkerURL(a, "ws://10.0.0.4:8081/chunks");
+		payload = (Map<?, ?>)decode(msg.encodeBinary(r, true)).get(Message.FIELD_PAYLOAD);
+		assertEquals(Arrays.asList(a.getId(), a.getSocketURL()), payload.get(Message.FIELD_WORKER_URLS));
+		
+		// Once the job and the URLs are known, chunk suggestions shrink the most
+		int json = msg.encodeMessage(r).getBytes("UTF-8").length;
+		int binary = msg.encodeBinary(r, true).length;
+		assertTrue("JSON "+json+", binary "+binary, binary * 5 <= json);
+	}
+	
+	@Test
+	public void testMalformedFrames() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Map<Object, Object> payload = new LinkedHashMap<Object, Object>();
+		payload.put(Message.FIELD_SLOTS, 2);
+		byte[] frame = BinaryCodec.encode(Message.Type.HB, Message.Action.idle, payload);
+		
+		byte[] truncated = new byte[frame.length - 1];
+		System.arraycopy(frame, 0, truncated, 0, truncated.length);
+		byte[] trailing = new byte[frame.length + 1];
+		System.arraycopy(frame, 0, trailing, 0, frame.length);
+		byte[] header = frame.clone();
+		header[0] = (byte)0xff;
+		byte[] count = frame.clone();
+		count[1] = 100;
+		
+		for (byte[] illegal : new byte[][] { truncated, trailing, header, count, new byte[0] }) {
+			try {
+				Message.parseMessage(illegal, 0, illegal.length, master, "127.0.0.1");
+				fail("Accepted "+BinaryCodec.toHex(illegal, 0, illegal.length));
+			} catch (IllegalMessageException ime) {
+				assertEquals(BinaryCodec.toHex(illegal, 0, illegal.length), ime.getProblematicMessage());
+			}
+		}
+		
+		Message msg = Message.parseMessage(frame, 0, frame.length, master, "127.0.0.1");
+		assertEquals(2, msg.getSlots());
+	}
+	
+	@Test
+	public void testBinaryWorkerIsAnsweredInBinary() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "function mapper() {}");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		List<Object> frames = new ArrayList<Object>();
+		Worker w = TestWorkers.connectBinary(master, "ws://w", TestWorkers.capturingConnection(frames));
+		
+		byte[] hb = BinaryCodec.encode(Message.Type.HB, Message.Action.idle, new LinkedHashMap<Object, Object>());
+		w.onMessage(hb, 0, hb.length);
+		
+		assertFalse(frames.isEmpty());
+		byte[] reply = (byte[])frames.get(frames.size() - 1);
+		Message.Type type = Message.Type.values()[(reply[0] & 0xff) >> 4];
+		Message.Action action = Message.Action.values()[reply[0] & 0xf];
+		assertEquals(Message.Type.DO, type);
+		assertEquals(Message.Action.mapSplit, action);
+		Map<?, ?> payload = (Map<?, ?>)decode(reply).get(Message.FIELD_PAYLOAD);
+		assertEquals(0, ((Map<?, ?>)payload.get(Message.FIELD_MAPSTATUS)).get(Message.FIELD_SPLITID));
+	}
+}
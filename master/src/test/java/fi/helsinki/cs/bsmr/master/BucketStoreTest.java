@@ -0,0 +1,49 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class BucketStoreTest
+{
+	@Test
+	public void testSelectionSkipsReducedBuckets() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(10, 5, 60000, 600000, "");
+		job.startJob(master);
+		
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		BucketStore store = job.getBucketInformation();
+		
+		store.acknowledgeWork(a, new Bucket(1));
+		store.acknowledgeWork(b, new Bucket(1));
+		store.acknowledgeWork(a, new Bucket(3));
+		assertFalse(store.areAllBucketsDone());
+		
+		Set<Bucket> seen = new HashSet<Bucket>();
+		for (int i = 0; i < 6; i++) {
+			seen.add(store.selectBucketToWorkOn(b));
+		}
+		assertEquals(3, seen.size());
+		assertFalse(seen.contains(new Bucket(1)));
+		assertFalse(seen.contains(new Bucket(3)));
+		
+		assertTrue(store.getAllQueuedWorkers(new Bucket(0)).contains(b.getId()));
+		store.removeWorkerInformation(b);
+		assertTrue(store.getAllQueuedWorkers(new Bucket(0)).isEmpty());
+		assertEquals(2, store.getAllDoneWorkers(new Bucket(1)).size());
+		
+		store.acknowledgeWork(b, new Bucket(0));
+		store.acknowledgeWork(b, new Bucket(4));
+		assertEquals(new Bucket(2), store.selectBucketToWorkOn(a));
+		
+		store.acknowledgeWork(a, new Bucket(2));
+		assertTrue(store.areAllBucketsDone());
+		assertNull(store.selectBucketToWorkOn(a));
+	}
+}
@@ -0,0 +1,112 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ChunkLocationTest
+{
+	private static final Set<Worker> NONE = Collections.emptySet();
+	
+	private static Worker connect(MasterImpl master, String url) throws InterruptedException
+	{
+		// Distinct connect times
+		Thread.sleep(2);
+		return TestWorkers.connect(master, url);
+	}
+	
+	@Test
+	public void testProvidersAreRanked() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(2, 2, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker a = connect(master, "ws://a");
+		Worker b = connect(master, "ws://b");
+		Worker c = connect(master, "ws://c");
+		Worker r1 = connect(master, "ws://r1");
+		Worker r2 = connect(master, "ws://r2");
+		Worker r3 = connect(master, "ws://r3");
+		
+		SplitStore splits = job.getSplitInformation();
+		Split s = new Split(0);
+		TimeContext.markTime();
+		splits.acknowledgeWork(c, s);
+		splits.acknowledgeWork(b, s);
+		splits.acknowledgeWork(a, s);
+		
+		// Oldest connection first when nobody is fetching
+		assertEquals(Arrays.asList(a, b, c), splits.getChunkLocations(s, r1, NONE));
+		
+		// The provider r1 is fetching from is ranked after the others
+		assertEquals(Arrays.asList(b, c, a), splits.getChunkLocations(s, r2, NONE));
+		
+		// r1 could not reach a, which counts against a after the fetch is over
+		List<Worker> l = splits.getChunkLocations(new Split(1), r1, Collections.singleton(a));
+		assertTrue(l.isEmpty());
+		assertEquals(Arrays.asList(c, b, a), splits.getChunkLocations(s, r3, NONE));
+		
+		// Disconnected providers are dropped
+		master.removeWorker(c);
+		assertEquals(Arrays.asList(b, a), splits.getChunkLocations(s, r3, NONE));
+	}
+	
+	@Test
+	public void testProvidersAreRankedAcrossShards() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setShardCount(2);
+		Job job = master.createJob(2, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker a = connect(master, "ws://a");
+		Worker b = connect(master, "ws://b");
+		Worker r1 = connect(master, "ws://r1");
+		Worker r2 = connect(master, "ws://r2");
+		
+		// Splits 0 and 1 are in different shards
+		SplitStore splits = job.getSplitInformation();
+		TimeContext.markTime();
+		for (int i = 0; i < 2; i++) {
+			splits.acknowledgeWork(a, new Split(i));
+			splits.acknowledgeWork(b, new Split(i));
+		}
+		
+		// The fetch from a in one shard counts against a in the other
+		assertEquals(Arrays.asList(a, b), splits.getChunkLocations(new Split(0), r1, NONE));
+		assertEquals(Arrays.asList(b, a), splits.getChunkLocations(new Split(1), r2, NONE));
+		
+		// r1 moves on to the other shard and could not reach a
+		assertEquals(Arrays.asList(b), splits.getChunkLocations(new Split(1), r1, Collections.singleton(a)));
+		assertEquals(Arrays.asList(b, a), splits.getChunkLocations(new Split(0), r2, NONE));
+	}
+	
+	@Test
+	public void testMessageListsBestProviderFirst() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker a = connect(master, "ws://a");
+		Worker b = connect(master, "ws://b");
+		Worker r = connect(master, "ws://r");
+		
+		TimeContext.markTime();
+		job.getSplitInformation().acknowledgeWork(b, new Split(0));
+		job.getSplitInformation().acknowledgeWork(a, new Split(0));
+		
+		Message msg = Message.findChunkAtMessage(new Bucket(0), new Split(0), job, r, NONE);
+		List<?> urls = (List<?>)msg.getReduceStatus().asMap().get(Message.FIELD_REDUCE_LOCATION);
+		assertEquals(Arrays.asList("ws://a", "ws://b"), urls);
+	}
+}
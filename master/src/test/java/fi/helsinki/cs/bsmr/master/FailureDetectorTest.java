@@ -0,0 +1,77 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FailureDetectorTest
+{
+	private static FailureDetector feed(long... intervals)
+	{
+		FailureDetector fd = new FailureDetector();
+		long t = 0;
+		fd.heartbeat(t);
+		for (long i : intervals) {
+			t += i;
+			fd.heartbeat(t);
+		}
+		return fd;
+	}
+	
+	@Test
+	public void testNotReadyWithoutHistory()
+	{
+		FailureDetector fd = feed(1000, 1000);
+		assertFalse(fd.isReady());
+		assertEquals(0, fd.phi(2000, 100000), 0);
+		assertEquals(Long.MAX_VALUE, fd.getSuspicionTime(2000, 8));
+	}
+	
+	@Test
+	public void testSuspicionTimeMatchesPhi()
+	{
+		FailureDetector fd = feed(1000, 1000, 1000, 1000);
+		assertTrue(fd.isReady());
+		
+		assertTrue(fd.phi(4000, 4500) < 1);
+		
+		long t = fd.getSuspicionTime(4000, 8);
+		assertTrue(t > 5000);
+		assertEquals(8, fd.phi(4000, t), 0.01);
+		assertTrue(fd.getSuspicionTime(4000, 12) > t);
+	}
+	
+	@Test
+	public void testJitteryWorkersGetMoreSlack()
+	{
+		FailureDetector stable = feed(1000, 1000, 1000, 1000);
+		FailureDetector jittery = feed(200, 1800, 200, 1800);
+		assertEquals(stable.getMean(), jittery.getMean(), 0.001);
+		
+		assertTrue(jittery.getSuspicionTime(0, 8) > stable.getSuspicionTime(0, 8));
+		assertTrue(jittery.phi(0, 3000) < stable.phi(0, 3000));
+	}
+	
+	@Test
+	public void testPhiReplacesHeartbeatTimeout() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(10, 1, 600000, 600000, "");
+		Worker w = TestWorkers.connect(master, "ws://1");
+		
+		// Heart beat timeout until the detector has seen enough heart beats
+		assertTrue(w.getAvailableUntil(job) >= TimeContext.now() + 600000);
+		for (int i = 0; i < FailureDetector.MIN_SAMPLES + 1; i++) {
+			w.onMessage("{\"type\": \"HB\", \"payload\": {\"action\": \"mapSplit\"}}");
+		}
+		
+		TimeContext.markTime();
+		long now = TimeContext.now();
+		assertTrue(w.getAvailableUntil(job) < now + 600000);
+		assertTrue(w.getAliveUntil(job) > w.getAvailableUntil(job));
+		assertTrue(w.getAliveUntil(job) < now + 600000);
+		
+		job.setUnavailablePhi(0);
+		assertTrue(w.getAvailableUntil(job) >= now + 600000 - 1000);
+	}
+}
@@ -0,0 +1,236 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobJournalTest
+{
+	private File dir;
+
+	@Before
+	public void createDirectory() throws Exception
+	{
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static Message mapAck(MasterImpl master, Job job, int splitId) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": " + splitId + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	private static Message reduceAck(MasterImpl master, Job job, int bucketId) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceBucket\", "
+				+ "\"reduceStatus\": {\"bucketId\": " + bucketId + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	private static int countLines(File f) throws Exception
+	{
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		int n = 0;
+		while (in.readLine() != null) {
+			n++;
+		}
+		in.close();
+		return n;
+	}
+
+	private static MasterImpl startMaster(JobJournal journal) throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.restoreJobs(journal.replay());
+		journal.start();
+		master.setJournal(journal);
+		return master;
+	}
+
+	@Test
+	public void testRestartResumesUnfinishedJobs() throws Exception
+	{
+		JobJournal journal = new JobJournal(dir);
+		MasterImpl master = startMaster(journal);
+
+		Job job = master.createJob(2, 3, 60000, 600000, "code");
+		job.setPriority(5);
+		job.setReplication(2);
+		master.queueJob(job);
+		Job removed = master.createJob(1, 1, 60000, 600000, "");
+		master.queueJob(removed);
+		Job finished = master.createJob(1, 1, 60000, 600000, "");
+		master.queueJob(finished);
+		master.startNextJob();
+		master.startNextJob();
+		master.startNextJob();
+
+		Worker w = TestWorkers.connect(master, "ws://w");
+		master.acknowledgeWork(w, mapAck(master, job, 0));
+		master.acknowledgeWork(w, reduceAck(master, job, 1));
+		master.acknowledgeWork(w, reduceAck(master, finished, 0));
+		master.removeJob(removed);
+		assertEquals(Job.State.FINISHED, finished.getState());
+		journal.stop();
+
+		JobJournal reopened = new JobJournal(dir);
+		List<JobJournal.JobRecord> records = reopened.replay();
+		assertEquals(1, records.size());
+		assertEquals(job.getJobId(), records.get(0).getJobId());
+		assertTrue(records.get(0).getSplitsDone().get(0));
+		assertEquals(1, records.get(0).getBucketsDone().cardinality());
+
+		MasterImpl restarted = startMaster(reopened);
+		Job restored = restarted.getJobById(job.getJobId());
+		assertNotNull(restored);
+		assertNull(restarted.getJobById(removed.getJobId()));
+		assertNull(restarted.getJobById(finished.getJobId()));
+		assertEquals(Job.State.RUNNING, restored.getState());
+		assertEquals("code", restored.getCode());
+		assertEquals(5, restored.getPriority());
+		assertEquals(2, restored.getReplication());
+
+		// The reduced bucket is not handed out again, the split is mapped again
+		BucketStore buckets = restored.getBucketInformation();
+		assertTrue(buckets.isBucketDone(new Bucket(1)));
+		assertFalse(buckets.isBucketDone(new Bucket(0)));
+		assertFalse(restored.getSplitInformation().isSplitDone(new Split(0)));
+
+		Worker w2 = TestWorkers.connect(restarted, "ws://w2");
+		restarted.acknowledgeWork(w2, reduceAck(restarted, restored, 0));
+		restarted.acknowledgeWork(w2, reduceAck(restarted, restored, 2));
+		assertEquals(Job.State.FINISHED, restored.getState());
+		reopened.stop();
+
+		assertTrue(new JobJournal(dir).replay().isEmpty());
+	}
+
+	@Test
+	public void testSnapshotReplacesJournal() throws Exception
+	{
+		JobJournal journal = new JobJournal(dir, 5);
+		MasterImpl master = startMaster(journal);
+
+		Job job = master.createJob(1, 20, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker w = TestWorkers.connect(master, "ws://w");
+		for (int i = 0; i < 12; i++) {
+			master.acknowledgeWork(w, reduceAck(master, job, i));
+		}
+		journal.stop();
+
+		// The queue record and four buckets, five buckets and the last three buckets
+		assertTrue(new File(dir, JobJournal.SNAPSHOT_FILE).exists());
+		assertEquals(3, countLines(new File(dir, JobJournal.JOURNAL_FILE)));
+
+		List<JobJournal.JobRecord> records = new JobJournal(dir).replay();
+		assertEquals(1, records.size());
+		assertEquals(12, records.get(0).getBucketsDone().cardinality());
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws Exception
+	{
+		JobJournal journal = new JobJournal(dir);
+		MasterImpl master = startMaster(journal);
+		Job job = master.createJob(1, 2, 60000, 600000, "");
+		master.queueJob(job);
+		journal.stop();
+
+		FileOutputStream out = new FileOutputStream(new File(dir, JobJournal.JOURNAL_FILE), true);
+		out.write(("{\"op\":\"finish\",\"id\":" + job.getJobId()).getBytes("UTF-8"));
+		out.close();
+
+		List<JobJournal.JobRecord> records = new JobJournal(dir).replay();
+		assertEquals(1, records.size());
+		assertFalse(records.get(0).isFinished());
+	}
+
+	@Test
+	public void testStagesAreRestored() throws Exception
+	{
+		JobJournal journal = new JobJournal(dir);
+		MasterImpl master = startMaster(journal);
+		Job first = master.createJob(1, 1, 60000, 600000, "");
+		Job second = master.createJob(1, 2, 60000, 600000, "");
+		Job third = master.createJob(1, 1, 60000, 600000, "");
+		second.setUpstreamJobs(Arrays.asList(first));
+		third.setUpstreamJobs(Arrays.asList(second));
+		master.queueJob(first);
+		master.queueJob(second);
+		master.queueJob(third);
+		master.startNextJob();
+
+		Worker w = TestWorkers.connect(master, "ws://w");
+		master.acknowledgeWork(w, reduceAck(master, first, 0));
+		assertEquals(Job.State.RUNNING, second.getState());
+		journal.stop();
+
+		JobJournal reopened = new JobJournal(dir);
+		MasterImpl restarted = startMaster(reopened);
+		reopened.stop();
+
+		// The finished first stage is known only by its ID and buckets
+		Job restored = restarted.getJobById(second.getJobId());
+		assertEquals(Job.State.RUNNING, restored.getState());
+		assertEquals(first.getJobId(), restored.getUpstreamJobs().get(0).getJobId());
+		assertEquals(1, restored.getUpstreamJobs().get(0).getReduceTasks());
+
+		Job waiting = restarted.getJobById(third.getJobId());
+		assertEquals(Arrays.asList(waiting), restarted.getWaitingJobs());
+		assertSame(restored, waiting.getUpstreamJobs().get(0));
+	}
+
+	@Test
+	public void testSizedJobKeepsItsSize() throws Exception
+	{
+		JobJournal journal = new JobJournal(dir);
+		MasterImpl master = startMaster(journal);
+		TestWorkers.connect(master, "ws://w1");
+		TestWorkers.connect(master, "ws://w2");
+		TestWorkers.connect(master, "ws://w3");
+		Job job = master.createJob(0, 0, 60000, 600000, "");
+		Map<Object, Object> parameters = new HashMap<Object, Object>();
+		parameters.put(Job.FIELD_INPUT, "input.txt");
+		parameters.put(Job.FIELD_SPLIT_DURATION, 1000);
+		job.setParameters(parameters);
+		master.queueJob(job);
+		master.startNextJob();
+		assertEquals(3, job.getMapTasks());
+		journal.stop();
+
+		// Sizing again after the restart could change the splits done so far
+		JobJournal reopened = new JobJournal(dir);
+		MasterImpl restarted = startMaster(reopened);
+		reopened.stop();
+		Job restored = restarted.getJobById(job.getJobId());
+		assertEquals(3, restored.getMapTasks());
+		assertEquals(3, restored.getReduceTasks());
+		assertEquals("input.txt", restored.getInput());
+	}
+}
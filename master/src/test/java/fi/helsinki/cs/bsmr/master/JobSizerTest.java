@@ -0,0 +1,122 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JobSizerTest
+{
+	private static JobSizer sizer(final long size)
+	{
+		return new JobSizer(new JobSizer.InputSizes() {
+			public long getSize(String filename) throws IOException
+			{
+				return size;
+			}
+		});
+	}
+
+	private static Job unsizedJob(MasterImpl master, int maptasks, int reducetasks) throws Exception
+	{
+		Job job = master.createJob(maptasks, reducetasks, 60000, 600000, "");
+		Map<Object, Object> parameters = new HashMap<Object, Object>();
+		parameters.put(Job.FIELD_INPUT, "input.txt");
+		parameters.put(Job.FIELD_SPLIT_DURATION, 1000);
+		parameters.put(Job.FIELD_INTER_RATIO, 0.5);
+		job.setParameters(parameters);
+		return job;
+	}
+
+	@Test
+	public void testMapTasksAreWholeWaves()
+	{
+		assertEquals(8, JobSizer.computeMapTasks(10000, 2000, 4));
+		assertEquals(4, JobSizer.computeMapTasks(100, 2000, 4));
+		assertEquals(1, JobSizer.computeMapTasks(0, 2000, 0));
+		assertEquals(3, JobSizer.computeMapTasks(3, 1, 4));
+	}
+
+	@Test
+	public void testReduceTasksAreAtMostSlots()
+	{
+		assertEquals(3, JobSizer.computeReduceTasks(5000, 2000, 4));
+		assertEquals(4, JobSizer.computeReduceTasks(50000, 2000, 4));
+		assertEquals(1, JobSizer.computeReduceTasks(0, 2000, 4));
+	}
+
+	@Test
+	public void testJobIsSizedWhenItStarts() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setJobSizer(sizer(5000000));
+		TestWorkers.connect(master, "ws://w1");
+		TestWorkers.connect(master, "ws://w2");
+
+		Job job = unsizedJob(master, 0, 0);
+		assertTrue(job.needsSizing());
+		master.queueJob(job);
+		master.startNextJob();
+
+		// 1000 bytes/ms for 1000 ms, 5 splits rounded up to 3 waves of 2 slots
+		assertEquals(Job.State.RUNNING, job.getState());
+		assertEquals(6, job.getMapTasks());
+		assertEquals(2, job.getReduceTasks());
+		assertEquals(5000000, job.getInputSize());
+		assertFalse(job.needsSizing());
+	}
+
+	@Test
+	public void testGivenTasksAreKept() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setJobSizer(sizer(5000000));
+		TestWorkers.connect(master, "ws://w1");
+
+		Job job = unsizedJob(master, 7, 0);
+		master.queueJob(job);
+		master.startNextJob();
+
+		// The input alone would give 5 splits
+		assertEquals(7, job.getMapTasks());
+		assertEquals(1, job.getReduceTasks());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsizedJobNeedsInput() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.createJob(0, 1, 60000, 600000, "").setParameters(new HashMap<Object, Object>());
+	}
+
+	@Test
+	public void testMapRateIsLearned() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		JobSizer sizer = sizer(10000);
+		master.setJobSizer(sizer);
+		Worker w = TestWorkers.connect(master, "ws://w1");
+
+		Job job = unsizedJob(master, 0, 1);
+		master.queueJob(job);
+		master.startNextJob();
+		assertEquals(1, job.getMapTasks());
+
+		TimeContext.markTime();
+		Message map = master.selectTaskForWorker(w, Message.pauseMessage());
+		assertSame(job, map.getJob());
+		Thread.sleep(50);
+		TimeContext.markTime();
+		master.acknowledgeWork(w, Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": 0}, \"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1"));
+		master.acknowledgeWork(w, Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceBucket\", "
+				+ "\"reduceStatus\": {\"bucketId\": 0}, \"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1"));
+		assertEquals(Job.State.FINISHED, job.getState());
+
+		// The split was mapped much slower than the default rate
+		assertTrue(sizer.getMapRate() < JobSizer.DEFAULT_MAP_RATE);
+	}
+}
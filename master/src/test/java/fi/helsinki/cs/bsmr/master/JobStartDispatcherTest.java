@@ -0,0 +1,84 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JobStartDispatcherTest
+{
+	private static List<Object> messages()
+	{
+		return Collections.synchronizedList(new ArrayList<Object>());
+	}
+	
+	private static Worker connect(MasterImpl master, List<Object> sent)
+	{
+		return TestWorkers.connect(master, null, TestWorkers.capturingConnection(sent));
+	}
+	
+	@Test
+	public void testAllWorkersGetTheirFirstTask() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		List<Object> sent = messages();
+		for (int i = 0; i < 50; i++) {
+			connect(master, sent);
+		}
+		
+		Job job = master.createJob(100, 10, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		long until = System.currentTimeMillis() + 2000;
+		while (sent.size() < 50 && System.currentTimeMillis() < until) {
+			Thread.sleep(10);
+		}
+		assertEquals(50, sent.size());
+	}
+	
+	@Test
+	public void testNewerMessageOverridesPendingStart() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		List<Object> sentA = messages();
+		List<Object> sentB = messages();
+		Worker a = connect(master, sentA);
+		Worker b = connect(master, sentB);
+		
+		// The second message waits for a token
+		JobStartDispatcher dispatcher = new JobStartDispatcher(0.1, 2);
+		dispatcher.dispatch(a, Message.pauseMessage());
+		long until = System.currentTimeMillis() + 2000;
+		while (sentA.size() < 1 && System.currentTimeMillis() < until) {
+			Thread.sleep(10);
+		}
+		dispatcher.dispatch(b, Message.pauseMessage());
+		assertTrue(b.hasQueuedMessage());
+		
+		b.sendSyncMessage(Message.pauseMessage().encodeMessage());
+		assertFalse(b.hasQueuedMessage());
+		
+		dispatcher.stop();
+		assertEquals(1, sentA.size());
+		assertEquals(1, sentB.size());
+	}
+	
+	@Test
+	public void testTokenBucketPacing() throws Exception
+	{
+		JobStartDispatcher.TokenBucket tokens = new JobStartDispatcher.TokenBucket(100, 10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			tokens.acquire();
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		// 10 in a burst and 20 more at 100 per second
+		assertTrue("elapsed "+elapsed, elapsed >= 180);
+		assertTrue("elapsed "+elapsed, elapsed < 1000);
+	}
+}
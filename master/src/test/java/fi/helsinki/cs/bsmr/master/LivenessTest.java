@@ -0,0 +1,92 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LivenessTest
+{
+	private static class Recorder extends TimerWheel.Timeout
+	{
+		private List<Long> fired = new ArrayList<Long>();
+		
+		@Override
+		protected void expired(long now)
+		{
+			fired.add(getDeadline());
+		}
+	}
+	
+	@Test
+	public void testTimerWheel()
+	{
+		TimerWheel wheel = new TimerWheel(10, 8, 1000);
+		Recorder a = new Recorder();
+		Recorder b = new Recorder();
+		Recorder c = new Recorder();
+		
+		wheel.schedule(a, 1015);
+		wheel.schedule(b, 1200); // more than one round away
+		wheel.schedule(c, 1030);
+		wheel.cancel(c);
+		assertEquals(2, wheel.size());
+		
+		assertEquals(0, wheel.advance(1010));
+		assertEquals(1, wheel.advance(1020));
+		assertEquals(1015L, (long)a.fired.get(0));
+		
+		// Visiting the bucket of b a round early does not expire it
+		assertEquals(0, wheel.advance(1120));
+		assertTrue(b.isScheduled());
+		assertEquals(1, wheel.advance(1205));
+		assertTrue(c.fired.isEmpty());
+		assertEquals(0, wheel.size());
+		
+		// Deadlines in the past expire on the next advance
+		wheel.schedule(a, 500);
+		assertEquals(1, wheel.advance(1205));
+	}
+	
+	@Test
+	public void testWorkerStates() throws Exception
+	{
+		final List<Worker.State> changes = new ArrayList<Worker.State>();
+		MasterImpl master = new MasterImpl() {
+			@Override
+			protected void workerStateChanged(Worker worker, Job job, Worker.State from, Worker.State to)
+			{
+				changes.add(to);
+				super.workerStateChanged(worker, job, from, to);
+			}
+		};
+		Job job = master.createJob(10, 1, 50, 150, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker w = TestWorkers.connect(master, "ws://1");
+		assertEquals(Worker.State.ALIVE, w.getState(job));
+		
+		Thread.sleep(80);
+		TimeContext.markTime();
+		master.checkWorkerLiveness();
+		assertEquals(Worker.State.UNAVAILABLE, w.getState(job));
+		assertFalse(w.isAvailable(job));
+		
+		// A heart beat makes the worker available again
+		w.onMessage("{\"type\": \"HB\", \"payload\": {\"action\": \"idle\"}}");
+		assertEquals(Worker.State.ALIVE, w.getState(job));
+		
+		Thread.sleep(200);
+		TimeContext.markTime();
+		master.checkWorkerLiveness();
+		assertEquals(Worker.State.DEAD, w.getState(job));
+		assertTrue(w.isDead(job));
+		
+		assertEquals(Worker.State.UNAVAILABLE, changes.get(0));
+		assertEquals(Worker.State.ALIVE, changes.get(1));
+		assertEquals(Worker.State.DEAD, changes.get(changes.size()-1));
+	}
+}
@@ -0,0 +1,89 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LocalityTest
+{
+	private static Message mapAck(MasterImpl master, Job job, Message task, String bytes) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": " + task.getMapStatus().split.getId()
+				+ ", \"bucketRecords\": [1], \"bucketBytes\": " + bytes + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	@Test
+	public void testBucketGoesToIdleWorkerWithLocalInput() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(2, 1, 60000, 600000, "");
+		job.setSpeculationPolicy(new SpeculationPolicy(false, 1.5, 2.0, 0.1, 2));
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		Worker c = TestWorkers.connect(master, "ws://c");
+
+		Message forA = master.selectTaskForWorker(a, Message.pauseMessage());
+		Message forB = master.selectTaskForWorker(b, Message.pauseMessage());
+		assertEquals(Message.Action.mapSplit, forA.getAction());
+		assertEquals(Message.Action.mapSplit, forB.getAction());
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(c, Message.pauseMessage()).getAction());
+
+		// b finishes first and idles while a is still mapping
+		job.getSplitInformation().acknowledgeWork(b, forB.getMapStatus().split);
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(b, Message.pauseMessage()).getAction());
+		assertTrue(master.getIdleWorkers().contains(b));
+
+		job.getSplitInformation().acknowledgeWork(a, forA.getMapStatus().split);
+
+		// c asks first, but b holds half of the bucket input
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(c, Message.pauseMessage()).getAction());
+		assertFalse(master.getIdleWorkers().contains(b));
+		assertTrue(master.getIdleWorkers().contains(c));
+
+		assertNull(job.getBucketInformation().selectBucketToWorkOn(a));
+		assertTrue(job.getBucketInformation().getAllQueuedWorkers(new Bucket(0)).contains(b.getId()));
+	}
+
+	@Test
+	public void testBucketGoesToWorkerWithMostLocalBytes() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(4, 1, 60000, 600000, "");
+		job.setSpeculationPolicy(new SpeculationPolicy(false, 1.5, 2.0, 0.1, 2));
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		Worker c = TestWorkers.connect(master, "ws://c");
+
+		Message forA = master.selectTaskForWorker(a, Message.pauseMessage());
+		Message forB = master.selectTaskForWorker(b, Message.pauseMessage());
+		Message forC = master.selectTaskForWorker(c, Message.pauseMessage());
+
+		// a maps two small splits, b one large split
+		master.acknowledgeWork(a, mapAck(master, job, forA, "[10]"));
+		forA = master.selectTaskForWorker(a, Message.pauseMessage());
+		assertEquals(Message.Action.mapSplit, forA.getAction());
+		master.acknowledgeWork(a, mapAck(master, job, forA, "[10]"));
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(a, Message.pauseMessage()).getAction());
+
+		master.acknowledgeWork(b, mapAck(master, job, forB, "[1000]"));
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(b, Message.pauseMessage()).getAction());
+
+		master.acknowledgeWork(c, mapAck(master, job, forC, "[10]"));
+		assertEquals(2, job.getSplitInformation().getNumberOfSplitsDone(a));
+		assertEquals(1000, job.getBucketInformation().getSizes().getLocalBytes(b, 0));
+
+		// a has mapped more splits, but b holds most of the bytes of the bucket
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(c, Message.pauseMessage()).getAction());
+		assertTrue(master.getIdleWorkers().contains(a));
+		assertFalse(master.getIdleWorkers().contains(b));
+		assertTrue(job.getBucketInformation().getAllQueuedWorkers(new Bucket(0)).contains(b.getId()));
+	}
+}
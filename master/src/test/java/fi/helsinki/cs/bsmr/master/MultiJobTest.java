@@ -0,0 +1,165 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MultiJobTest
+{
+	private static Job startJob(MasterImpl master, double weight, double maxShare) throws Exception
+	{
+		Job job = master.createJob(8, 1, 60000, 600000, "");
+		job.setWeight(weight);
+		job.setMaxShare(maxShare);
+		master.queueJob(job);
+		assertTrue(master.startNextJob());
+		return job;
+	}
+
+	private static Job ask(MasterImpl master, Worker w)
+	{
+		Message msg = master.selectTaskForWorker(w, Message.pauseMessage());
+		assertEquals(msg.getJob(), master.getWorkerJob(w));
+		return msg.getJob();
+	}
+
+	@Test
+	public void testEqualShares() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = startJob(master, 1.0, 1.0);
+		Job b = startJob(master, 1.0, 1.0);
+
+		assertEquals(a, ask(master, TestWorkers.connect(master, "ws://1")));
+		assertEquals(b, ask(master, TestWorkers.connect(master, "ws://2")));
+		assertEquals(a, ask(master, TestWorkers.connect(master, "ws://3")));
+		assertEquals(b, ask(master, TestWorkers.connect(master, "ws://4")));
+
+		assertEquals(2, a.getAssignedWorkers());
+		assertEquals(2, b.getAssignedWorkers());
+		assertEquals(2, master.getRunningJobs().size());
+		assertEquals(a, master.getActiveJob());
+	}
+
+	@Test
+	public void testWeightAndMaxShare() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = startJob(master, 1.0, 1.0);
+		Job b = startJob(master, 3.0, 1.0);
+		Job c = startJob(master, 10.0, 0.25);
+
+		for (int i = 0; i < 8; i++) {
+			ask(master, TestWorkers.connect(master, "ws://"+i));
+		}
+
+		assertEquals(2, c.getAssignedWorkers());
+		assertEquals(4, b.getAssignedWorkers());
+		assertEquals(2, a.getAssignedWorkers());
+	}
+
+	@Test
+	public void testWorkerMovesToStarvedJob() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = startJob(master, 1.0, 1.0);
+
+		Worker w1 = TestWorkers.connect(master, "ws://1");
+		Worker w2 = TestWorkers.connect(master, "ws://2");
+		assertEquals(a, ask(master, w1));
+		assertEquals(a, ask(master, w2));
+
+		Job b = startJob(master, 1.0, 1.0);
+
+		// w1 finishes its task and is shared with the new job
+		assertEquals(b, ask(master, w1));
+		assertEquals(1, a.getAssignedWorkers());
+		assertEquals(1, b.getAssignedWorkers());
+	}
+
+	@Test(expected = JobAlreadyRunningException.class)
+	public void testMaxRunningJobs() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setMaxRunningJobs(1);
+		startJob(master, 1.0, 1.0);
+
+		master.queueJob(master.createJob(1, 1, 60000, 600000, ""));
+		master.startNextJob();
+	}
+
+	@Test
+	public void testQueueOrderedByPriority() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job low = master.createJob(1, 1, 60000, 600000, "");
+		Job high = master.createJob(1, 1, 60000, 600000, "");
+		Job high2 = master.createJob(1, 1, 60000, 600000, "");
+		high.setPriority(5);
+		high2.setPriority(5);
+
+		master.queueJob(low);
+		master.queueJob(high);
+		master.queueJob(high2);
+
+		assertEquals(high, master.getJobQueue().get(0));
+		assertEquals(high2, master.getJobQueue().get(1));
+		assertEquals(low, master.getJobQueue().get(2));
+	}
+
+	@Test
+	public void testPreemptAndResume() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setMaxRunningJobs(1);
+		Job batch = startJob(master, 1.0, 1.0);
+		SplitStore batchSplits = batch.getSplitInformation();
+
+		Worker w1 = TestWorkers.connect(master, "ws://1");
+		Worker w2 = TestWorkers.connect(master, "ws://2");
+		Split done = master.selectTaskForWorker(w1, Message.pauseMessage()).getMapStatus().split;
+		Split queued = master.selectTaskForWorker(w2, Message.pauseMessage()).getMapStatus().split;
+		batchSplits.acknowledgeWork(w1, done);
+
+		Job urgent = master.createJob(1, 1, 60000, 600000, "");
+		urgent.setPriority(10);
+		master.queueJob(urgent);
+		assertTrue(master.startNextJob());
+
+		assertEquals(Job.State.PAUSED, batch.getState());
+		assertEquals(batch, master.getJobQueue().get(0));
+		assertEquals(urgent, master.getActiveJob());
+		assertEquals(0, batch.getAssignedWorkers());
+		assertTrue(master.getStartedJobs().contains(batch));
+
+		// Done work is kept, queued work is forgotten
+		assertTrue(batchSplits.hasSplit(w1, done));
+		assertTrue(batchSplits.getAllQueuedWorkers(queued).isEmpty());
+
+		master.removeJob(urgent);
+
+		assertEquals(Job.State.RUNNING, batch.getState());
+		assertSame(batchSplits, batch.getSplitInformation());
+		assertEquals(batch, master.getActiveJob());
+		assertTrue(master.getJobQueue().isEmpty());
+	}
+
+	@Test
+	public void testReplyEncodedAfterJobsChange() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = startJob(master, 1.0, 1.0);
+		Job b = startJob(master, 1.0, 1.0);
+		Worker w = TestWorkers.connect(master, "ws://1");
+
+		// Replies are encoded after the master lock is released
+		Message reply = master.selectTaskForWorker(w, Message.pauseMessage());
+		Job other = reply.getJob() == a ? b : a;
+		master.removeJob(other);
+
+		// The running jobs are the ones at the time the reply was made
+		String encoded = reply.encodeMessage();
+		assertTrue(encoded.contains(String.valueOf(other.getJobId())));
+		assertEquals("ws://1", w.getSocketURL());
+	}
+}
@@ -0,0 +1,78 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReachabilityTest
+{
+	private static Message chunkAck(MasterImpl master, Job job, String unreachable) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceChunk\", "
+				+ "\"reduceStatus\": {\"bucketId\": 0, \"splitId\": 0}, "
+				+ "\"unreachable\": " + unreachable + ", "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	@Test
+	public void testReportsExpire() throws Exception
+	{
+		TimeContext.markTime();
+		long t = TimeContext.now();
+		ReachabilityMatrix matrix = new ReachabilityMatrix(1000);
+
+		matrix.report(1, 2, t);
+		matrix.report(1, 3, t);
+		assertTrue(matrix.isUnreachable(1, 2, t + 400));
+		assertFalse(matrix.isUnreachable(2, 1, t + 400));
+
+		// A report is kept for the generation after its own
+		matrix.report(1, 3, t + 600);
+		assertTrue(matrix.isUnreachable(1, 2, t + 600));
+		assertEquals(2, matrix.getUnreachable(1, t + 600).cardinality());
+
+		// Repeated reports live longer
+		assertFalse(matrix.isUnreachable(1, 2, t + 1100));
+		assertTrue(matrix.isUnreachable(1, 3, t + 1100));
+
+		matrix.removeWorker(3);
+		assertTrue(matrix.getUnreachable(1, t + 1100).isEmpty());
+	}
+
+	@Test
+	public void testUnreachableProvidersAreNotOfferedAgain() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		Worker r = TestWorkers.connect(master, "ws://r");
+		job.getSplitInformation().acknowledgeWork(a, new Split(0));
+		job.getSplitInformation().acknowledgeWork(b, new Split(0));
+
+		Message reply = master.selectTaskForWorker(r, chunkAck(master, job, "[\"ws://a\"]"));
+		List<?> urls = (List<?>)reply.getReduceStatus().asMap().get(Message.FIELD_REDUCE_LOCATION);
+		assertEquals(Arrays.asList("ws://b"), urls);
+
+		// The next request does not repeat the report
+		reply = master.selectTaskForWorker(r, chunkAck(master, job, "[]"));
+		urls = (List<?>)reply.getReduceStatus().asMap().get(Message.FIELD_REDUCE_LOCATION);
+		assertEquals(Arrays.asList("ws://b"), urls);
+
+		// Other reducers are offered both
+		Worker r2 = TestWorkers.connect(master, "ws://r2");
+		reply = master.selectTaskForWorker(r2, chunkAck(master, job, "[]"));
+		urls = (List<?>)reply.getReduceStatus().asMap().get(Message.FIELD_REDUCE_LOCATION);
+		assertEquals(2, urls.size());
+
+		// A worker moving to another address may be reachable again
+		master.setWorkerURL(a, "ws://a2");
+		assertFalse(master.getReachability(r).isUnreachable(r.getId(), a.getId(), TimeContext.now()));
+	}
+}
@@ -0,0 +1,95 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ReplicationTest
+{
+	private static Message ack(MasterImpl master, Job job, String action, int splitId) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"" + action + "\", "
+				+ "\"mapStatus\": {\"splitId\": " + splitId + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+	
+	@Test
+	public void testMappedSplitIsCopiedToIdleWorker() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "");
+		job.setReplication(2);
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker mapper = TestWorkers.connect(master, "ws://m");
+		Worker idle = TestWorkers.connect(master, "ws://i");
+		
+		Message map = master.selectTaskForWorker(mapper, Message.pauseMessage());
+		assertEquals(Message.Action.mapSplit, map.getAction());
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(idle, Message.pauseMessage()).getAction());
+		
+		SplitStore splits = job.getSplitInformation();
+		Split s = new Split(0);
+		master.acknowledgeWork(mapper, ack(master, job, "mapSplit", 0));
+		
+		// The idle worker was asked to copy the split
+		assertSame(job, master.getWorkerJob(idle));
+		assertEquals(0, splits.getNumberOfReplicasNeeded(s));
+		
+		master.acknowledgeWork(idle, ack(master, job, "replicateSplit", 0));
+		assertTrue(splits.hasSplit(idle, s));
+		assertEquals(0, splits.getNumberOfReplicasNeeded(s));
+		
+		// The split survives the worker who mapped it
+		master.removeWorker(mapper);
+		assertTrue(splits.areAllSplitsProvided());
+		assertEquals(Collections.singletonList(idle), 
+				splits.getChunkLocations(s, idle, Collections.<Worker>emptySet()));
+	}
+	
+	@Test
+	public void testAbandonedCopyIsCancelled() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "");
+		job.setReplication(2);
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker mapper = TestWorkers.connect(master, "ws://m");
+		Worker idle = TestWorkers.connect(master, "ws://i");
+		
+		master.selectTaskForWorker(mapper, Message.pauseMessage());
+		master.selectTaskForWorker(idle, Message.pauseMessage());
+		master.acknowledgeWork(mapper, ack(master, job, "mapSplit", 0));
+		
+		SplitStore splits = job.getSplitInformation();
+		Split s = new Split(0);
+		assertEquals(0, splits.getNumberOfReplicasNeeded(s));
+		
+		// The worker asks for work instead of acknowledging the copy
+		master.selectTaskForWorker(idle, Message.pauseMessage());
+		assertEquals(1, splits.getNumberOfReplicasNeeded(s));
+		assertFalse(splits.hasSplit(idle, s));
+	}
+	
+	@Test
+	public void testNoCopiesByDefault() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(1, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker mapper = TestWorkers.connect(master, "ws://m");
+		Worker idle = TestWorkers.connect(master, "ws://i");
+		master.selectTaskForWorker(mapper, Message.pauseMessage());
+		master.selectTaskForWorker(idle, Message.pauseMessage());
+		master.acknowledgeWork(mapper, ack(master, job, "mapSplit", 0));
+		
+		assertNull(master.getWorkerJob(idle));
+	}
+}
@@ -0,0 +1,196 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ShardTest
+{
+	private static final int SPLITS = 400;
+	private static final int BUCKETS = 4;
+	private static final int WORKERS = 8;
+
+	@Test
+	public void testWorkersAreServedConcurrentlyInShards() throws Exception
+	{
+		final MasterImpl master = new MasterImpl();
+		master.setShardCount(4);
+		final Job job = master.createJob(SPLITS, BUCKETS, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+
+		final List<Worker> workers = new ArrayList<Worker>();
+		final List<List<Object>> sent = new ArrayList<List<Object>>();
+		for (int i = 0; i < WORKERS; i++) {
+			List<Object> s = Collections.synchronizedList(new ArrayList<Object>());
+			workers.add(TestWorkers.connect(master, "ws://"+i, TestWorkers.capturingConnection(s)));
+			sent.add(s);
+		}
+
+		// Every worker maps splits until it is given something else
+		final AtomicInteger mapAcks = new AtomicInteger();
+		runConcurrently(new Task() {
+			public void run(int i) throws Exception
+			{
+				Worker w = workers.get(i);
+				TimeContext.markTime();
+				Message msg = master.selectTaskForWorker(w, Message.pauseMessage());
+
+				while (msg.getAction() == Message.Action.mapSplit) {
+					sent.get(i).clear();
+					mapAcks.incrementAndGet();
+					w.onMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+							+ "\"mapStatus\": {\"splitId\": " + msg.getMapStatus().split.getId() + "}, "
+							+ "\"jobId\": " + job.getJobId() + "}}");
+					msg = Message.parseMessage((String)sent.get(i).get(0), master, "127.0.0.1");
+				}
+			}
+		});
+
+		assertTrue(job.getSplitInformation().areAllSplitsProvided());
+		assertEquals(SPLITS, job.getSplitInformation().getNumberOfSplitsProvided());
+
+		// Every worker asks for the chunks of a bucket
+		runConcurrently(new Task() {
+			public void run(int i) throws Exception
+			{
+				Worker w = workers.get(i);
+				sent.get(i).clear();
+				for (int s = 0; s < SPLITS; s++) {
+					w.onMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceChunk\", "
+							+ "\"reduceStatus\": {\"bucketId\": " + (i % BUCKETS) + ", \"splitId\": " + s + "}, "
+							+ "\"jobId\": " + job.getJobId() + "}}");
+				}
+			}
+		});
+
+		for (int i = 0; i < WORKERS; i++) {
+			int chunks = 0;
+			for (Object o : new ArrayList<Object>(sent.get(i))) {
+				Message msg = Message.parseMessage((String)o, master, "127.0.0.1");
+				if (msg.getAction() == Message.Action.reduceChunk) {
+					chunks++;
+				}
+			}
+			assertEquals(SPLITS, chunks);
+		}
+
+		Set<WorkerShard> shards = new HashSet<WorkerShard>();
+		for (Worker w : workers) {
+			shards.add(master.getShard(w));
+		}
+		assertEquals(4, shards.size());
+
+		long handled = 0;
+		long escalated = 0;
+		for (WorkerShard shard : shards) {
+			handled += shard.getMessagesHandled();
+			escalated += shard.getMessagesEscalated();
+		}
+
+		// Every map ACK and chunk request goes through a shard, and only a few per worker, such as
+		// the last map ACK when the worker runs out of splits, need the coordinator
+		long messages = mapAcks.get() + WORKERS * SPLITS;
+		assertEquals(messages, handled + escalated);
+		assertTrue("escalated " + escalated, escalated <= 2 * WORKERS);
+		assertTrue("handled " + handled + " of " + messages, handled >= messages - 2 * WORKERS);
+	}
+
+	@Test
+	public void testSplitsAreDividedBetweenShards() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setShardCount(2);
+		Job job = master.createJob(10, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+
+		// A worker is given the splits of its own shard first
+		SplitStore splits = job.getSplitInformation();
+		Set<Worker> none = Collections.<Worker>emptySet();
+		assertEquals(a.getId() % 2, splits.selectSplitToWorkOn(a, none).getId() % 2);
+		assertEquals(b.getId() % 2, splits.selectSplitToWorkOn(b, none).getId() % 2);
+
+		// and the splits of other shards once its own are taken
+		List<Split> rest = splits.selectUnattemptedSplits(a, 10);
+		assertEquals(8, rest.size());
+		for (int i = 0; i < rest.size(); i++) {
+			assertEquals(i < 4, rest.get(i).getId() % 2 == a.getId() % 2);
+		}
+	}
+
+	@Test
+	public void testSplitsAreMappedWhenShardsAreUneven() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		master.setShardCount(3);
+		Job job = master.createJob(10, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+
+		Worker w = TestWorkers.connect(master, "ws://1");
+		SplitStore splits = job.getSplitInformation();
+		List<Split> all = splits.selectUnattemptedSplits(w, 20);
+		assertEquals(10, all.size());
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Split s : all) {
+			ids.add(s.getId());
+			assertTrue(splits.isSplitBeingMapped(s));
+			splits.acknowledgeWork(w, s);
+			assertTrue(splits.hasSplit(w, s));
+		}
+		assertEquals(10, ids.size());
+		assertTrue(splits.areAllSplitsProvided());
+		assertEquals(10, splits.getNumberOfSplitsDone(w));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShardCountIsFixedOnceWorkersConnect()
+	{
+		MasterImpl master = new MasterImpl();
+		TestWorkers.connect(master, "ws://1");
+		master.setShardCount(2);
+	}
+
+	private interface Task
+	{
+		void run(int i) throws Exception;
+	}
+
+	private static void runConcurrently(final Task task) throws Exception
+	{
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[WORKERS];
+
+		for (int i = 0; i < WORKERS; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run()
+				{
+					try {
+						task.run(id);
+					} catch(Throwable t) {
+						failures.add(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+}
@@ -0,0 +1,118 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SkewTest
+{
+	private static Message mapAck(MasterImpl master, Job job, int splitId, String records, String bytes) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": " + splitId + ", \"bucketRecords\": " + records
+				+ ", \"bucketBytes\": " + bytes + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	private static Message reduceAck(MasterImpl master, Job job, String reduceStatus) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceBucket\", "
+				+ "\"reduceStatus\": " + reduceStatus + ", "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	private static Job startJob(MasterImpl master, int maptasks, int reducetasks, double skewFactor) throws Exception
+	{
+		Job job = master.createJob(maptasks, reducetasks, 60000, 600000, "");
+		job.setSkewFactor(skewFactor);
+		master.queueJob(job);
+		master.startNextJob();
+		return job;
+	}
+
+	@Test
+	public void testSizesAreCountedOncePerSplit() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 2, 3, 0);
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+
+		master.acknowledgeWork(a, mapAck(master, job, 0, "[1, 2, 3]", "[10, 20, 30]"));
+		master.acknowledgeWork(b, mapAck(master, job, 0, "[1, 2, 3]", "[10, 20, 30]"));
+		master.acknowledgeWork(b, mapAck(master, job, 1, "[0, 0, 3]", "[0, 0, 30]"));
+		// Sizes for the wrong number of buckets are ignored
+		master.acknowledgeWork(b, mapAck(master, job, 1, "[5]", "[50]"));
+
+		BucketSizes sizes = job.getBucketInformation().getSizes();
+		assertEquals(2, sizes.getSplitsCounted());
+		assertEquals(9, sizes.getTotalRecords());
+		assertEquals(90, sizes.getTotalBytes());
+		assertEquals(60, sizes.getBytes(2));
+		assertEquals(2.0, sizes.getSkew(2), 0.001);
+
+		// Bins of 16 bytes: 10, 20 and 60 bytes
+		long binBytes = sizes.getBinBytes(4);
+		assertEquals(16, binBytes);
+		assertTrue(Arrays.equals(new int[] { 1, 1, 0, 1 }, sizes.getHistogram(4, binBytes)));
+	}
+
+	@Test
+	public void testSkewedBucketIsSplitAndMerged() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 4, 2, 1.5);
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		Worker c = TestWorkers.connect(master, "ws://c");
+
+		for (int i = 0; i < 4; i++) {
+			master.acknowledgeWork(a, mapAck(master, job, i, "[90, 10]", "[900, 100]"));
+		}
+
+		// Bucket 0 is 1.8 times the mean bucket
+		BucketStore buckets = job.getBucketInformation();
+		assertEquals(new Bucket(0, 0, 2), buckets.selectBucketToWorkOn(a));
+		assertEquals(2, buckets.getParts(new Bucket(0)));
+		assertEquals(new Bucket(1), buckets.selectBucketToWorkOn(b));
+		assertEquals(new Bucket(0, 1, 2), buckets.selectBucketToWorkOn(c));
+		assertTrue(buckets.getAllQueuedWorkers(new Bucket(0)).contains(c.getId()));
+
+		master.acknowledgeWork(a, reduceAck(master, job, "{\"bucketId\": 0, \"part\": 0, \"parts\": 2}"));
+		master.acknowledgeWork(c, reduceAck(master, job, "{\"bucketId\": 0, \"part\": 1, \"parts\": 2}"));
+		assertFalse(buckets.isBucketDone(new Bucket(0)));
+
+		// The merge is handed out once the parts are done
+		Bucket merge = buckets.selectBucketToWorkOn(a);
+		assertEquals(new Bucket(0, -1, 2), merge);
+		Map<?, ?> status = (Map<?, ?>)Message.reduceThatMessage(merge, job).getReduceStatus().asMap();
+		assertEquals(2, status.get(Message.FIELD_PARTS));
+		assertNull(status.get(Message.FIELD_PART));
+
+		master.acknowledgeWork(a, reduceAck(master, job, "{\"bucketId\": 0, \"parts\": 2}"));
+		assertTrue(buckets.isBucketDone(new Bucket(0)));
+		master.acknowledgeWork(b, reduceAck(master, job, "{\"bucketId\": 1}"));
+		assertEquals(Job.State.FINISHED, job.getState());
+	}
+
+	@Test
+	public void testUnknownPartIsIgnored() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 2, 2, 1.5);
+		Worker a = TestWorkers.connect(master, "ws://a");
+
+		assertFalse(job.getBucketInformation().isKnownBucket(new Bucket(0, 0, 2)));
+		master.acknowledgeWork(a, reduceAck(master, job, "{\"bucketId\": 0, \"part\": 0, \"parts\": 2}"));
+		assertFalse(job.getBucketInformation().isBucketDone(new Bucket(0)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSkewFactorMustExceedOne() throws Exception
+	{
+		new MasterImpl().createJob(1, 1, 60000, 600000, "").setSkewFactor(0.5);
+	}
+}
@@ -0,0 +1,69 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SlotsTest
+{
+	@Test
+	public void testSlotsAreFilled() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(100, 1, 60000, 600000, "");
+		master.queueJob(job);
+		master.startNextJob();
+		
+		Worker w = TestWorkers.connect(master, "ws://1");
+		w.onMessage("{\"type\": \"HB\", \"payload\": {\"action\": \"mapSplit\", \"slots\": 3}}");
+		assertEquals(3, w.getSlots());
+		
+		// One split per slot while the speed of the worker is not known
+		Message msg = master.selectTaskForWorker(w, Message.pauseMessage());
+		assertEquals(3, msg.getMapStatus().splits.size());
+		
+		TimeContext.markTime();
+		job.getSplitInformation().acknowledgeWork(w, msg.getMapStatus().split);
+		Message ack = Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"mapSplit\", "
+				+ "\"mapStatus\": {\"splitId\": " + msg.getMapStatus().split.getId() + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+		
+		Message topUp = master.selectTaskForWorker(w, ack);
+		assertEquals(1, topUp.getMapStatus().splits.size());
+		assertEquals(3, job.getSplitInformation().getNumberOfPendingSplits(w));
+	}
+	
+	@Test
+	public void testTotalSlots() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		assertEquals(2, master.getTotalSlots());
+		
+		master.setWorkerSlots(b, 4);
+		assertEquals(5, master.getTotalSlots());
+		
+		master.removeWorker(a);
+		assertEquals(4, master.getTotalSlots());
+	}
+	
+	@Test
+	public void testParallelTasksAreTimedPerSlot() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Worker w = TestWorkers.connect(master, "ws://1");
+		master.setWorkerSlots(w, 2);
+		TaskTimer timer = new TaskTimer();
+		
+		for (int i = 0; i < 4; i++) {
+			timer.taskStarted(i, w, 1000);
+		}
+		timer.taskFinished(0, w, 1100);
+		timer.taskFinished(1, w, 1100);
+		timer.taskFinished(2, w, 1200);
+		timer.taskFinished(3, w, 1200);
+		
+		assertEquals(100, timer.getExpectedDuration(w));
+	}
+}
@@ -0,0 +1,93 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SlowStartTest
+{
+	private static Job startJob(MasterImpl master, double slowStart) throws Exception
+	{
+		Job job = master.createJob(4, 1, 60000, 600000, "");
+		job.setSpeculationPolicy(new SpeculationPolicy(false, 1.5, 2.0, 0.1, 2));
+		job.setReduceSlowStart(slowStart);
+		master.queueJob(job);
+		master.startNextJob();
+		return job;
+	}
+	
+	private static Message chunkRequest(MasterImpl master, Job job, int split) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceChunk\", "
+				+ "\"reduceStatus\": {\"bucketId\": 0, \"splitId\": " + split + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+	
+	/**
+	 * Map splits 0 and 1 on a and b, leaving splits 2 and 3 being mapped by c and d.
+	 */
+	private static Worker[] mapHalf(MasterImpl master, Job job)
+	{
+		Worker[] w = new Worker[4];
+		Split[] s = new Split[4];
+		for (int i = 0; i < 4; i++) {
+			w[i] = TestWorkers.connect(master, "ws://" + i);
+			s[i] = master.selectTaskForWorker(w[i], Message.pauseMessage()).getMapStatus().split;
+		}
+		job.getSplitInformation().acknowledgeWork(w[0], s[0]);
+		job.getSplitInformation().acknowledgeWork(w[1], s[1]);
+		return w;
+	}
+	
+	@Test
+	public void testNoOverlapByDefault() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 1.0);
+		Worker[] w = mapHalf(master, job);
+		
+		assertEquals(Message.Action.idle, master.selectTaskForWorker(w[0], Message.pauseMessage()).getAction());
+	}
+	
+	@Test
+	public void testReduceStartsAtThreshold() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 0.5);
+		Worker[] w = mapHalf(master, job);
+		
+		Message reduce = master.selectTaskForWorker(w[0], Message.pauseMessage());
+		assertEquals(Message.Action.reduceBucket, reduce.getAction());
+		
+		// The chunk of a mapped split is served right away
+		Message chunk = master.selectTaskForWorker(w[0], chunkRequest(master, job, 1));
+		assertEquals(Message.Action.reduceChunk, chunk.getAction());
+		assertEquals(0, chunk.getReduceStatus().retryAfter);
+		assertTrue(chunk.getReduceStatus().location.contains(w[1]));
+		
+		// The split being mapped by someone else is asked again later
+		Split pending = new Split(2);
+		Message retry = master.selectTaskForWorker(w[0], chunkRequest(master, job, pending.getId()));
+		assertEquals(Message.Action.reduceChunk, retry.getAction());
+		assertEquals(MasterImpl.CHUNK_RETRY_DELAY, retry.getReduceStatus().retryAfter);
+		assertFalse(job.getSplitInformation().getAllQueuedWorkers(pending).contains(w[0].getId()));
+	}
+	
+	@Test
+	public void testReducerMapsAbandonedSplit() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = startJob(master, 0.5);
+		Worker[] w = mapHalf(master, job);
+		assertEquals(Message.Action.reduceBucket, master.selectTaskForWorker(w[0], Message.pauseMessage()).getAction());
+		
+		// Nobody is mapping split 3 anymore
+		Split abandoned = new Split(3);
+		Worker mapper = master.getWorkerById(job.getSplitInformation().getAllQueuedWorkers(abandoned).iterator().next());
+		master.removeWorker(mapper);
+		
+		Message msg = master.selectTaskForWorker(w[0], chunkRequest(master, job, abandoned.getId()));
+		assertEquals(Message.Action.mapSplit, msg.getAction());
+		assertEquals(abandoned.getId(), msg.getMapStatus().split.getId());
+	}
+}
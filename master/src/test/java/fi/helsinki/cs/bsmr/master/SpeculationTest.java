@@ -0,0 +1,69 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SpeculationTest
+{
+	private static final Set<Worker> NONE = Collections.emptySet();
+	
+	@Test
+	public void testBackupOnlyForStraggler() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(2, 1, 60000, 600000, "");
+		job.startJob(master);
+		SplitStore store = job.getSplitInformation();
+		
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		Worker c = TestWorkers.connect(master, "ws://c");
+		
+		Split first = store.selectSplitToWorkOn(a, NONE);
+		Split second = store.selectSplitToWorkOn(b, NONE);
+		assertFalse(first.equals(second));
+		
+		// Both splits are being worked on and nothing is known about task durations
+		assertNull(store.selectSplitToWorkOn(c, NONE));
+		
+		Thread.sleep(20);
+		TimeContext.markTime();
+		store.acknowledgeWork(a, first);
+		
+		Thread.sleep(200);
+		TimeContext.markTime();
+		assertEquals(second, store.selectSplitToWorkOn(c, NONE));
+		
+		// maxAttempts is 2
+		assertNull(store.selectSplitToWorkOn(a, NONE));
+		assertFalse(store.areAllSplitsProvided());
+		
+		store.acknowledgeWork(c, second);
+		assertTrue(store.areAllSplitsProvided());
+	}
+	
+	@Test
+	public void testDisabled() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(2, 1, 60000, 600000, "");
+		job.setSpeculationPolicy(new SpeculationPolicy(false, 1.5, 2.0, 0.1, 2));
+		job.startJob(master);
+		SplitStore store = job.getSplitInformation();
+		
+		Worker a = TestWorkers.connect(master, "ws://a");
+		Worker b = TestWorkers.connect(master, "ws://b");
+		
+		Split first = store.selectSplitToWorkOn(a, NONE);
+		assertNotNull(store.selectSplitToWorkOn(b, NONE));
+		store.acknowledgeWork(a, first);
+		
+		Thread.sleep(50);
+		TimeContext.markTime();
+		assertNull(store.selectSplitToWorkOn(a, NONE));
+	}
+}
@@ -0,0 +1,102 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Compares split selection in the tail of a large map phase against the round-robin
+ * scan SplitStore used to do.
+ */
+public class SplitStoreBenchmarkTest
+{
+	private static final int M = 100000;
+	private static final int WORKERS = 50;
+	private static final int REMAINING = 20;
+	private static final int SELECTIONS = 1000;
+	
+	@Test
+	public void testSelectionInMapTail() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job job = master.createJob(M, 10, 60000, 600000, "");
+		job.startJob(master);
+		
+		Worker[] workers = new Worker[WORKERS];
+		for (int i = 0; i < WORKERS; i++) {
+			workers[i] = TestWorkers.connect(master, "ws://worker"+i);
+		}
+		
+		SplitStore store = job.getSplitInformation();
+		Set<Worker> none = Collections.emptySet();
+		
+		// Leave REMAINING splits evenly spread over the job unprovided
+		int stride = M / REMAINING;
+		for (int i = 0; i < M; i++) {
+			if (i % stride != 0) {
+				store.acknowledgeWork(workers[i % WORKERS], new Split(i));
+			}
+		}
+		
+		Worker asking = workers[0];
+		
+		long t0 = System.nanoTime();
+		for (int i = 0; i < SELECTIONS; i++) {
+			Split s = store.selectSplitToWorkOn(asking, none);
+			assertNotNull(s);
+			assertEquals(0, s.getId() % stride);
+		}
+		long indexed = System.nanoTime() - t0;
+		
+		int[] pointer = { -1 };
+		t0 = System.nanoTime();
+		for (int i = 0; i < SELECTIONS; i++) {
+			Split s = scan(store, job, pointer, asking, none);
+			assertNotNull(s);
+			assertEquals(0, s.getId() % stride);
+		}
+		long scanned = System.nanoTime() - t0;
+		
+		// Typically 100-200 times faster, the margin leaves room for noisy machines
+		assertTrue("index " + indexed + " ns, scan " + scanned + " ns", indexed * 10 < scanned);
+		
+		for (int i = 0; i < M; i += stride) {
+			store.acknowledgeWork(workers[1], new Split(i));
+		}
+		assertNull(store.selectSplitToWorkOn(asking, none));
+		
+		// Losing the provider puts its splits back into work
+		store.removeWorkerInformation(workers[1]);
+		Split s = store.selectSplitToWorkOn(asking, none);
+		assertNotNull(s);
+		assertTrue(store.canProvideSplit(s).isEmpty());
+	}
+	
+	/**
+	 * The previous SplitStore.selectSplitToWorkOn() implementation.
+	 */
+	private static Split scan(SplitStore store, Job job, int[] pointer, Worker toWhom, Set<Worker> unreachableWorkers)
+	{
+		int i = 0;
+		Split ret;
+		boolean foundGoodCandidate;
+		
+		do {
+			pointer[0] = (pointer[0] + 1) % job.getMapTasks();
+			ret = new Split(pointer[0]);
+			i++;
+			
+			if (store.hasSplit(toWhom, ret)) {
+				foundGoodCandidate = false;
+			} else {
+				Set<Worker> workersWhoHaveSplit = store.canProvideSplit(ret);
+				foundGoodCandidate = workersWhoHaveSplit.isEmpty() || unreachableWorkers.containsAll(workersWhoHaveSplit);
+			}
+		} while (!foundGoodCandidate && i < job.getMapTasks());
+		
+		return foundGoodCandidate ? ret : null;
+	}
+}
@@ -0,0 +1,81 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StageTest
+{
+	private static Message reduceAck(MasterImpl master, Job job, int bucketId) throws Exception
+	{
+		return Message.parseMessage("{\"type\": \"ACK\", \"payload\": {\"action\": \"reduceBucket\", "
+				+ "\"reduceStatus\": {\"bucketId\": " + bucketId + "}, "
+				+ "\"jobId\": " + job.getJobId() + "}}", master, "127.0.0.1");
+	}
+
+	@Test
+	public void testStageStartsWhenUpstreamFinishes() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job count = master.createJob(1, 2, 60000, 600000, "");
+		Job top = master.createJob(2, 1, 60000, 600000, "");
+		top.setUpstreamJobs(Arrays.asList(count));
+		master.queueJob(count);
+		master.queueJob(top);
+		while (master.startNextJob());
+
+		assertEquals(Arrays.asList(count), master.getRunningJobs());
+		assertEquals(Arrays.asList(top), master.getWaitingJobs());
+		assertTrue(master.getJobQueue().isEmpty());
+
+		Worker w = TestWorkers.connect(master, "ws://w");
+		master.acknowledgeWork(w, reduceAck(master, count, 0));
+		assertEquals(Job.State.NEW, top.getState());
+		master.acknowledgeWork(w, reduceAck(master, count, 1));
+
+		assertEquals(Job.State.FINISHED, count.getState());
+		assertEquals(Job.State.RUNNING, top.getState());
+		assertTrue(master.getWaitingJobs().isEmpty());
+
+		// The workers of the stage are told where its input is
+		Message map = master.selectTaskForWorker(w, Message.pauseMessage());
+		assertSame(top, map.getJob());
+		List<?> upstream = (List<?>)Message.getJSONMapForJob(top).get(Job.FIELD_UPSTREAM);
+		assertEquals(1, upstream.size());
+		assertEquals(count.getJobId(), ((Map<?, ?>)upstream.get(0)).get(Message.FIELD_JOBID));
+		assertEquals(2, ((Map<?, ?>)upstream.get(0)).get(Message.FIELD_NUM_REDUCETASKS));
+	}
+
+	@Test
+	public void testRemovingUpstreamRemovesWaitingStages() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = master.createJob(1, 1, 60000, 600000, "");
+		Job b = master.createJob(1, 1, 60000, 600000, "");
+		Job c = master.createJob(1, 1, 60000, 600000, "");
+		b.setUpstreamJobs(Arrays.asList(a));
+		c.setUpstreamJobs(Arrays.asList(b));
+		master.queueJob(a);
+		master.queueJob(b);
+		master.queueJob(c);
+		master.startNextJob();
+
+		master.removeJob(a);
+		assertTrue(master.getWaitingJobs().isEmpty());
+		assertNull(master.getJobById(b.getJobId()));
+		assertNull(master.getJobById(c.getJobId()));
+	}
+
+	@Test
+	public void testStagesCreatedAtOnceGetDistinctIds() throws Exception
+	{
+		MasterImpl master = new MasterImpl();
+		Job a = master.createJob(1, 1, 60000, 600000, "");
+		Job b = master.createJob(1, 1, 60000, 600000, "");
+		assertTrue(b.getJobId() > a.getJobId());
+	}
+}
@@ -0,0 +1,88 @@
+package fi.helsinki.cs.bsmr.master;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.WebSocket.Connection;
+
+/**
+ * Helpers for creating workers connected to a master without a running server.
+ */
+public class TestWorkers
+{
+	/**
+	 * Create a worker, open it against a connection that discards all messages
+	 * and announce the given socket URL for it.
+	 */
+	public static Worker connect(MasterImpl master, String url)
+	{
+		return connect(master, url, nullConnection());
+	}
+	
+	/**
+	 * Create a worker, open it against the given connection and announce the given
+	 * socket URL for it, unless the URL is null.
+	 */
+	public static Worker connect(MasterImpl master, String url, Connection out)
+	{
+		TimeContext.markTime();
+		return open(master, new Worker(master, "127.0.0.1"), url, out);
+	}
+	
+	/**
+	 * Create a worker using the binary subprotocol, open it against the given connection
+	 * and announce the given socket URL for it.
+	 */
+	public static Worker connectBinary(MasterImpl master, String url, Connection out)
+	{
+		TimeContext.markTime();
+		return open(master, new Worker(master, "127.0.0.1", true), url, out);
+	}
+	
+	private static Worker open(MasterImpl master, Worker w, String url, Connection out)
+	{
+		w.onOpen(out);
+		if (url != null) {
+			master.setWorkerURL(w, url);
+		}
+		return w;
+	}
+	
+	public static Connection nullConnection()
+	{
+		return capturingConnection(null);
+	}
+	
+	/**
+	 * Create a connection which adds every message sent through it to the given list, text 
+	 * messages as Strings and binary frames as byte arrays. The list needs to be synchronized
+	 * if messages are sent from several threads.
+	 * 
+	 * @param sent The list of sent messages or null to discard them
+	 */
+	public static Connection capturingConnection(final List<Object> sent)
+	{
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						if (sent != null && method.getName().equals("sendMessage")) {
+							if (args.length == 3) {
+								byte[] frame = new byte[(Integer)args[2]];
+								System.arraycopy(args[0], (Integer)args[1], frame, 0, frame.length);
+								sent.add(frame);
+							} else {
+								sent.add(args[0]);
+							}
+						}
+						Class<?> r = method.getReturnType();
+						if (r == Boolean.TYPE) return Boolean.TRUE;
+						if (r == Integer.TYPE) return Integer.valueOf(0);
+						return null;
+					}
+				});
+	}
+}
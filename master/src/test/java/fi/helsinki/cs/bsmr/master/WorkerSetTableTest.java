@@ -0,0 +1,34 @@
+package fi.helsinki.cs.bsmr.master;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class WorkerSetTableTest
+{
+	@Test
+	public void testAddRemove()
+	{
+		WorkerSetTable t = new WorkerSetTable(3);
+		
+		assertTrue(t.isEmpty(0));
+		assertTrue(t.add(0, 7));
+		assertFalse(t.add(0, 7));
+		assertTrue(t.add(0, 0));
+		assertTrue(t.add(0, 12));
+		assertEquals(3, t.size(0));
+		assertTrue(t.contains(0, 0));
+		assertFalse(t.contains(1, 0));
+		
+		assertTrue(t.remove(0, 7));
+		assertTrue(t.remove(0, 12));
+		assertFalse(t.remove(0, 12));
+		assertEquals(1, t.size(0));
+		assertEquals(0, t.get(0, 0));
+		
+		assertTrue(t.remove(0, 0));
+		assertTrue(t.isEmpty(0));
+		assertFalse(t.remove(2, -1));
+		assertFalse(t.contains(2, -1));
+	}
+}
@@ -192,7 +192,9 @@ function jobtab(id) {
 	var map = tools(maph) + mapg;
 	var redh = '<h4>reducing</h4>';
 	var redg = '<div id="red-' + id + '"></div>';
-	var red = tools(redh) + redg;
+	var sizesh = '<h4>bucket sizes</h4>';
+	var sizesg = '<div id="sizes-' + id + '"></div>';
+	var red = tools(redh) + redg + tools(sizesh) + sizesg;
 	var codeh = '<h4>code</h4>';
 	var codef = '<textarea disabled="disabled" id="code-' + id + '"></textarea>';
 	var code = tools(codeh) + codef;
@@ -260,6 +262,39 @@ function updatered(jobId, finished, R, buckets) {
 	}
 }
 
+// histogram of the bucket sizes reported by the mappers, split buckets are
+// listed with their number of parts
+function updatesizes(job) {
+	var sizes = job.bucketSizes;
+	var div = document.getElementById('sizes-' + job.jobId);
+	if (div == null || typeof(sizes) == typeof(undefined)) {
+		return;
+	}
+	var most = 1;
+	for (var i in sizes.histogram) {
+		most = Math.max(most, sizes.histogram[i]);
+	}
+	var html = '<table class="histogram">';
+	for (var i in sizes.histogram) {
+		var n = sizes.histogram[i];
+		var width = Math.round(100 * n / most);
+		html += '<tr><td class="number">' + (i * sizes.binBytes) + ' B</td>';
+		html += '<td class="number">' + n + '</td>';
+		html += '<td class="bar"><div style="width: ' + width + '%;"></div></td></tr>';
+	}
+	html += '</table>';
+	var split = [];
+	for (var bucketId in sizes.split) {
+		split.push(bucketId + ' (' + sizes.split[bucketId] + ' parts)');
+	}
+	html += '<p>' + sizes.records + ' records, ' + sizes.bytes + ' bytes from ' + sizes.splits + ' splits';
+	if (split.length > 0) {
+		html += ', split: ' + split.join(', ');
+	}
+	html += '</p>';
+	div.innerHTML = html;
+}
+
 function updatecode(job) {
 	var id = job.jobId;
 	var code = document.getElementById('code-' + id);
@@ -277,6 +312,7 @@ function updatetab(job, buckets, splits) {
 	}
 	updatemap(jobId, finished, M, splits);
 	updatered(jobId, finished, R, buckets);
+	updatesizes(job);
 	updatecode(job);
 	tabs[jobId] = true;
 }
@@ -292,7 +328,11 @@ function updatetabs(buckets, splits) {
 	}
 	for (var i in running) {
 		var job = running[i];
-		updatetab(job, buckets, splits);
+		if (typeof(job.splits) != typeof(undefined)) {
+			updatetab(job, job.buckets, job.splits);
+		} else {
+			updatetab(job, buckets, splits);
+		}
 	}
 	for (var i in queued) {
 	  	var job = queued[i];
@@ -349,7 +389,9 @@ function updatejobs(msg) {
 		completed.push(job);
 	}
 	var current = [];
-	if (typeof(msg.job) != typeof(undefined)) {
+	if (typeof(msg.runningJobs) != typeof(undefined)) {
+		current = msg.runningJobs;
+	} else if (typeof(msg.job) != typeof(undefined)) {
 		current.push(msg.job);
 	}
 	for (var i in current) {
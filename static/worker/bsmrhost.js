@@ -27,7 +27,8 @@ var library = ["lib/boringbucket.js",
                "lib/debug/sesameinput.js",
                "lib/debug/nointer.js",
                "lib/petrifs/petrifsout.js",
-               "lib/petrifs/wordinput.js"];
+               "lib/petrifs/wordinput.js",
+               "lib/petrifs/stageinput.js"];
 
 var host = ["host/chunk.js",
             "host/mapresult.js",
@@ -38,9 +39,12 @@ var host = ["host/chunk.js",
             "host/rtask.js",
             "host/iengine.js",
             "host/rengine.js",
+            "host/merger.js",
             "host/cengine.js",
+            "host/replicator.js",
             "host/mengine.js",
             "host/job.js",
+            "host/bincodec.js",
             "host/worker.js",
             "host/main.js"];
 
@@ -0,0 +1,207 @@
+// The binary subprotocol of the master, see BinaryCodec.java. Messages are
+// encoded from and decoded to the same objects as in the JSON protocol. The
+// header byte holds the type and the action, the rest of the payload follows
+// as a map. Known field names are sent as indexes into FIELDS. Byte strings
+// are decoded to hex strings.
+function BinCodec() {
+}
+
+BinCodec.PROTOCOL = "worker-binary";
+
+// the order is part of the protocol, new entries go to the end
+BinCodec.TYPES = ["DO", "ACK", "HB"];
+BinCodec.ACTIONS = ["mapSplit", "reduceBucket", "reduceChunk", "replicateSplit", "idle"];
+BinCodec.FIELDS = ["jobId", "job", "runningJobIds", "mapStatus", "reduceStatus",
+                   "unreachable", "R", "M", "splitId", "splitIds", "bucketId", "part",
+                   "parts", "bucketRecords", "bucketBytes", "locations", "retryAfter",
+                   "code", "codeHash", "interUrl", "maxBatch", "slots", "speed",
+                   "upstream", "workerUrls"];
+
+BinCodec.NULL = 0;
+BinCodec.FALSE = 1;
+BinCodec.TRUE = 2;
+BinCodec.INT = 3;
+BinCodec.DOUBLE = 4;
+BinCodec.STRING = 5;
+BinCodec.BYTES = 6;
+BinCodec.LIST = 7;
+BinCodec.MAP = 8;
+
+BinCodec.prototype.encode = function(msg) {
+    var out = [];
+    var payload = {};
+    for (var key in msg.payload) {
+        if (key != "action") {
+            payload[key] = msg.payload[key];
+        }
+    }
+    out.push(BinCodec.TYPES.indexOf(msg.type) << 4 | BinCodec.ACTIONS.indexOf(msg.payload.action));
+    this._writeMapBody(out, payload);
+    var bytes = new Uint8Array(out.length);
+    for (var i = 0; i < out.length; i++) {
+        bytes[i] = out[i];
+    }
+    return bytes.buffer;
+};
+
+BinCodec.prototype.decode = function(buffer) {
+    this._bytes = new Uint8Array(buffer);
+    this._pos = 0;
+    var header = this._readByte();
+    var payload = this._readMapBody();
+    payload.action = BinCodec.ACTIONS[header & 15];
+    return {type: BinCodec.TYPES[header >> 4], payload: payload};
+};
+
+// encoding
+
+BinCodec.prototype._writeValue = function(out, value) {
+    if (value === null || typeof(value) == typeof(undefined)) {
+        out.push(BinCodec.NULL);
+    } else if (typeof(value) == "boolean") {
+        out.push(value ? BinCodec.TRUE : BinCodec.FALSE);
+    } else if (typeof(value) == "number") {
+        if (Math.floor(value) == value && Math.abs(value) < 4503599627370496) {
+            out.push(BinCodec.INT);
+            this._writeVarint(out, value >= 0 ? value * 2 : -value * 2 - 1);
+        } else {
+            out.push(BinCodec.DOUBLE);
+            var view = new DataView(new ArrayBuffer(8));
+            view.setFloat64(0, value);
+            for (var i = 0; i < 8; i++) {
+                out.push(view.getUint8(i));
+            }
+        }
+    } else if (typeof(value) == "string") {
+        out.push(BinCodec.STRING);
+        this._writeString(out, value);
+    } else if (value instanceof Array) {
+        out.push(BinCodec.LIST);
+        this._writeVarint(out, value.length);
+        for (var j = 0; j < value.length; j++) {
+            this._writeValue(out, value[j]);
+        }
+    } else {
+        out.push(BinCodec.MAP);
+        this._writeMapBody(out, value);
+    }
+};
+
+BinCodec.prototype._writeMapBody = function(out, map) {
+    var keys = [];
+    for (var key in map) {
+        // like JSON.stringify, undefined fields are left out
+        if (typeof(map[key]) != typeof(undefined)) {
+            keys.push(key);
+        }
+    }
+    this._writeVarint(out, keys.length);
+    for (var i = 0; i < keys.length; i++) {
+        var index = BinCodec.FIELDS.indexOf(keys[i]);
+        if (index >= 0) {
+            this._writeVarint(out, index + 1);
+        } else {
+            out.push(0);
+            this._writeString(out, keys[i]);
+        }
+        this._writeValue(out, map[keys[i]]);
+    }
+};
+
+BinCodec.prototype._writeString = function(out, s) {
+    var utf8 = unescape(encodeURIComponent(s));
+    this._writeVarint(out, utf8.length);
+    for (var i = 0; i < utf8.length; i++) {
+        out.push(utf8.charCodeAt(i));
+    }
+};
+
+// bitwise operators are 32 bit, so varints are done with arithmetic
+BinCodec.prototype._writeVarint = function(out, n) {
+    while (n >= 128) {
+        out.push(n % 128 + 128);
+        n = Math.floor(n / 128);
+    }
+    out.push(n);
+};
+
+// decoding
+
+BinCodec.prototype._readValue = function() {
+    var type = this._readByte();
+    switch (type) {
+    case BinCodec.NULL:
+        return null;
+    case BinCodec.FALSE:
+        return false;
+    case BinCodec.TRUE:
+        return true;
+    case BinCodec.INT:
+        var n = this._readVarint();
+        return n % 2 == 0 ? n / 2 : -(n + 1) / 2;
+    case BinCodec.DOUBLE:
+        var view = new DataView(this._bytes.buffer, this._bytes.byteOffset + this._pos, 8);
+        this._pos += 8;
+        return view.getFloat64(0);
+    case BinCodec.STRING:
+        return this._readString();
+    case BinCodec.BYTES:
+        var length = this._readVarint();
+        var hex = "";
+        for (var i = 0; i < length; i++) {
+            var b = this._readByte();
+            hex += (b < 16 ? "0" : "") + b.toString(16);
+        }
+        return hex;
+    case BinCodec.LIST:
+        var count = this._readVarint();
+        var list = [];
+        for (var j = 0; j < count; j++) {
+            list.push(this._readValue());
+        }
+        return list;
+    case BinCodec.MAP:
+        return this._readMapBody();
+    default:
+        throw 'unknown value type ' + type;
+    }
+};
+
+BinCodec.prototype._readMapBody = function() {
+    var count = this._readVarint();
+    var map = {};
+    for (var i = 0; i < count; i++) {
+        var index = this._readVarint();
+        var key = index == 0 ? this._readString() : BinCodec.FIELDS[index - 1];
+        map[key] = this._readValue();
+    }
+    return map;
+};
+
+BinCodec.prototype._readString = function() {
+    var length = this._readVarint();
+    var utf8 = "";
+    for (var i = 0; i < length; i++) {
+        utf8 += String.fromCharCode(this._readByte());
+    }
+    return decodeURIComponent(escape(utf8));
+};
+
+BinCodec.prototype._readVarint = function() {
+    var n = 0;
+    var scale = 1;
+    var b;
+    do {
+        b = this._readByte();
+        n += (b % 128) * scale;
+        scale *= 128;
+    } while (b >= 128);
+    return n;
+};
+
+BinCodec.prototype._readByte = function() {
+    if (this._pos >= this._bytes.length) {
+        throw 'message ends unexpectedly';
+    }
+    return this._bytes[this._pos++];
+};
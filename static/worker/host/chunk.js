@@ -1,9 +1,20 @@
 function Chunk() {
     this.pairs = [];
+    this._bytes = 0;
 }
 
 Chunk.prototype.write = function(pair) {
     this.pairs.push(pair);
+    this._bytes = -1;
+};
+
+// serialized size of the pairs without the array brackets and commas, measured
+// once for the whole chunk when it is asked for after writes
+Chunk.prototype.bytes = function() {
+    if (this._bytes < 0) {
+        this._bytes = JSON.stringify(this.pairs).length - this.pairs.length - 1;
+    }
+    return this._bytes;
 };
 
 Chunk.prototype.feed = function(splitId, bucketId, target) {
@@ -1,6 +1,12 @@
-function ChunkRegistrar(chunks) {
+// A part of a split bucket only needs the chunks of every parts-th split
+function ChunkRegistrar(chunks, part, parts) {
 	this.chunks = chunks;
 	this.done = [];
+	if (parts) {
+		for (var i = 0; i < chunks; i++) {
+			this.done[i] = (i % parts != part);
+		}
+	}
 }
 
 ChunkRegistrar.prototype.allDone = function() {
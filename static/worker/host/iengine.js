@@ -13,6 +13,12 @@ Iengine.prototype.write = function(splitId, pairs, more) {
     }
 };
 
+Iengine.prototype.close = function() {
+    if (typeof(this.inter.close) != typeof(undefined)) {
+        this.inter.close();
+    }
+};
+
 Iengine.prototype.feed = function(splitId, bucketId, interUrls, target) {
     if (this.local.canhaz(splitId, bucketId)) {
         this.local.feed(splitId, bucketId, target);
@@ -11,7 +11,7 @@ function Job(description, worker) {
     this.mengine;
     this.rengine;
     this.cengine;
-    this.input = description.input(this.M);
+    this.input = description.input(this.M, description.upstream);
     this.local =  new Localstore(description.chooseBucket, this.R);
     this.iengine = new Iengine(this, description.inter);
     this.output = description.output(this);
@@ -19,6 +19,10 @@ function Job(description, worker) {
 
 // events from worker
 
+Job.prototype.close = function() {
+    this.iengine.close();
+};
+
 Job.prototype.onMap = function(splitId) {
 	this.rengine = undefined;
     var mengineout = this.iengine;
@@ -30,10 +34,27 @@ Job.prototype.onMap = function(splitId) {
     this.input.feed(splitId, this.mengine);
 };
 
-Job.prototype.onReduceBucket = function(bucketId) {
+// reduceStatus has part and parts for a part of a split bucket, and only
+// parts for merging the parts
+Job.prototype.onReduceBucket = function(reduceStatus) {
+	var bucketId = reduceStatus.bucketId;
 	this.cengine = undefined;
 	this.mengine = undefined;
-	this.rengine = new Rengine(this.reducer, this.output, this, bucketId);
+	this.reduceStatus = {bucketId: bucketId, part: reduceStatus.part, parts: reduceStatus.parts};
+	if (reduceStatus.parts && typeof(reduceStatus.part) == typeof(undefined)) {
+		this.rengine = new Merger(this.reducer, this.output, this, bucketId, reduceStatus.parts);
+	} else {
+		this.rengine = new Rengine(this.reducer, this.output, this, bucketId,
+				reduceStatus.part, reduceStatus.parts);
+	}
+};
+
+Job.prototype.onReplicate = function(splitId, urls) {
+	if (this.local.canhaz(splitId)) {
+		this.worker.replicaComplete(splitId, this.id);
+		return;
+	}
+	this.replicator = new Replicator(this, splitId, urls);
 };
 
 Job.prototype.onReduceChunk = function(splitId, bucketId, someUrls) {
@@ -49,6 +70,17 @@ Job.prototype.onReduceChunk = function(splitId, bucketId, someUrls) {
     this.iengine.feed(splitId, bucketId, someUrls, this.rengine);
 };
 
+// the split is still being mapped by someone else
+Job.prototype.onChunkNotReady = function(splitId, bucketId, retryAfter) {
+	if (typeof(this.rengine) == typeof(undefined)) {
+		return;
+	}
+	if (bucketId != this.rengine.bucketId) {
+		return;
+	}
+	this.rengine.retryLater(bucketId, retryAfter);
+};
+
 //events from inter
 
 Job.prototype.setOwnInterUrl = function(url) {
@@ -63,6 +95,10 @@ Job.prototype.markUnreachable = function(url) {
 };
 
 Job.prototype.onChunkFail = function(splitId, bucketId) {
+	if (this.replicator && this.replicator.splitId == splitId) {
+		this.replicator.onChunkFail(splitId, bucketId);
+		return;
+	}
 	if(typeof(this.rengine) == typeof(undefined)) {
 		return;
 	}
@@ -77,21 +113,34 @@ Job.prototype.onChunkFail = function(splitId, bucketId) {
 Job.prototype.onMapComplete = function(splitId) {
 	this.cengine = undefined;
 	this.mengine = undefined;
-    this.worker.mapComplete(splitId);
+    this.worker.mapComplete(splitId, this.id, this.local.sizes(splitId));
+};
+
+//events from replicator
+
+Job.prototype.onReplicaComplete = function(splitId) {
+	this.replicator = undefined;
+	this.worker.replicaComplete(splitId, this.id);
+};
+
+Job.prototype.onReplicaFail = function(splitId) {
+	this.replicator = undefined;
+	this.worker.replicaFailed(splitId, this.id);
 };
 
 //events from rengine
 
 Job.prototype.suggestChunk = function(splitId, bucketId) {
     var broken = this.unreachable;
-	this.worker.suggestChunk(splitId, bucketId, broken);
+	this.worker.suggestChunk(splitId, this.reduceStatus, broken, this.id);
 };
 
 //events from output
 
+// bucketId is the name of the output, the reduced bucket is in reduceStatus
 Job.prototype.onBucketComplete = function(bucketId) {
 	this.rengine = undefined;
     var broken = this.unreachable;
-    this.worker.bucketComplete(bucketId, broken);
+    this.worker.bucketComplete(this.reduceStatus, broken, this.id);
 };
 
@@ -37,6 +37,10 @@ Localstore.prototype.splitcount = function() {
 	return this.results.splitcount();
 };
 
+Localstore.prototype.sizes = function(splitId) {
+	return this.results.get(splitId).sizes();
+};
+
 Localstore.prototype.feed = function(splitId, bucketId, target) {
 	var mapresult = this.results.get(splitId);
     mapresult.feed(splitId, bucketId, target);
@@ -23,6 +23,17 @@ Mapresult.prototype.write = function(splitId, pairs, more) {
     }
 };
 
+// records and bytes in each bucket, reported to the master to find skewed buckets
+Mapresult.prototype.sizes = function() {
+	var sizes = {records: [], bytes: []};
+	for (var bucketId = 0; bucketId < this.R; bucketId++) {
+		var chunk = this.chunks[bucketId];
+		sizes.records.push(chunk ? chunk.pairs.length : 0);
+		sizes.bytes.push(chunk ? chunk.bytes() : 0);
+	}
+	return sizes;
+};
+
 Mapresult.prototype.feed = function(splitId, bucketId, target) {
 	var chunk = this._getchunk(bucketId);
 	chunk.feed(splitId, bucketId, target);
@@ -0,0 +1,28 @@
+// Merges the parts of a bucket the master split because of skew. The output
+// of every part is read back and reduced again into the output of the bucket,
+// so the reducer must be able to reduce its own output.
+function Merger(reducer, output, job, bucketId, parts) {
+    this.output = output;
+    this.bucketId = bucketId;
+    this.job = job;
+    this.rtask = new Rtask(reducer);
+    this.left = parts;
+    if (typeof(output.read) == typeof(undefined)) {
+        throw 'output can not read back the parts of bucket ' + bucketId;
+    }
+    for (var i = 0; i < parts; i++) {
+        output.read(bucketId + '.' + i, this);
+    }
+}
+
+// events from output
+
+Merger.prototype.write = function(name, pairs, more) {
+    this.rtask.reduceSome(pairs);
+    if (!more) {
+        this.left -= 1;
+        if (this.left == 0) {
+            this.rtask.feed(this.bucketId, this.output);
+        }
+    }
+};
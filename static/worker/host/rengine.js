@@ -1,22 +1,35 @@
-function Rengine(reducer, output, job, bucketId) {
+// part and parts are given for a part of a bucket split by the master, the
+// output of part i is named bucketId.i
+function Rengine(reducer, output, job, bucketId, part, parts) {
   this.output = output;
   this.bucketId = bucketId;
+  this.name = parts ? bucketId + '.' + part : bucketId;
   this.job = job;
   this.buffer = [];
   this.rtask = new Rtask(reducer);
-  this.chunkreg = new ChunkRegistrar(this.job.M);
+  this.chunkreg = new ChunkRegistrar(this.job.M, part, parts);
   this._nextChunk(bucketId);
 }
 
 Rengine.prototype._nextChunk = function(bucketId) {
     if (this.chunkreg.allDone()) {
-        this.rtask.feed(bucketId, this.output);
+        this.rtask.feed(this.name, this.output);
     } else {
     	var nextId = this.chunkreg.nextChunkID();
     	this.job.suggestChunk(nextId, bucketId);
     }
 };
 
+// Ask again later, possibly for another chunk that has been mapped meanwhile
+Rengine.prototype.retryLater = function(bucketId, delay) {
+	var rengine = this;
+	setTimeout(function() {
+		if (rengine.job.rengine === rengine) {
+			rengine._nextChunk(bucketId);
+		}
+	}, delay);
+};
+
 Rengine.prototype.onChunkFail = function(splitId, bucketId) {
 	this.buffer = [];
     //this._nextChunk(bucketId);
@@ -0,0 +1,35 @@
+// Copies all chunks of a split mapped by another worker into the local store,
+// one bucket at a time, so that this worker can serve them to reducers too.
+function Replicator(job, splitId, urls) {
+    this.job = job;
+    this.splitId = splitId;
+    this.urls = urls;
+    this.bucketId = 0;
+    this._nextBucket();
+}
+
+Replicator.prototype._nextBucket = function() {
+    if (this.bucketId >= this.job.R) {
+        // commit the copy
+        this.job.local.write(this.splitId, [], false);
+        this.job.onReplicaComplete(this.splitId);
+    } else {
+        this.job.iengine.inter.feed(this.splitId, this.bucketId, this.urls, this);
+    }
+};
+
+Replicator.prototype.onChunkFail = function(splitId, bucketId) {
+    // forget the partial copy
+    this.job.local.temporary.set(splitId, undefined);
+    this.job.onReplicaFail(splitId);
+};
+
+// events from inter
+
+Replicator.prototype.write = function(splitId, bucketId, pairs, more) {
+    this.job.local.write(splitId, pairs, true);
+    if (!more) {
+        this.bucketId++;
+        this._nextBucket();
+    }
+};
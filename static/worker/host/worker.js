@@ -1,8 +1,16 @@
 function Worker(masterUrl) {
     var HB_INTERVAL = 15 * 1000; //10s
+    this.MAX_BATCH = 4; // splits accepted in one message
+    this.SLOTS = 1; // a job maps one split at a time
     this.masterUrl = masterUrl;
     this._previousAction;
     this._job = {};
+    this._jobs = {};
+    this._codes = {}; // job code by its hash
+    this._messages = 0;
+    this._codec = new BinCodec();
+    this._mapQueue = [];
+    this._mapping = false;
     this._callMaster();
     this._previousAction = "idle";
     this._sendHeartbeats(HB_INTERVAL);
@@ -10,76 +18,189 @@ function Worker(masterUrl) {
 
 Worker.prototype._callMaster = function() {
     var PROTOCOL = "worker";
-    this.ws = new WebSocket(this.masterUrl, PROTOCOL);
+    // the master picks the binary subprotocol when it knows it
+    this.ws = new WebSocket(this.masterUrl, [BinCodec.PROTOCOL, PROTOCOL]);
+    this.ws.binaryType = "arraybuffer";
+    this._workerUrls = {}; // other workers by their ID in this connection
+    this._workerIds = {};
+    this._sentInterUrl = null;
     var worker = this;
     this.ws.onmessage = function(m) {
-        var msg = JSON.parse(m.data);
+        var msg;
+        if (typeof(m.data) == "string") {
+            msg = JSON.parse(m.data);
+        } else {
+            msg = worker._codec.decode(m.data);
+            worker._resolveWorkers(msg.payload);
+        }
         worker._react(msg);
     };
 };
 
+Worker.prototype._isBinary = function() {
+    return this.ws.protocol == BinCodec.PROTOCOL;
+};
+
+Worker.prototype._send = function(msg) {
+    if (this._isBinary()) {
+        var unreachable = msg.payload.unreachable;
+        if (unreachable) {
+            var ids = [];
+            for (var i = 0; i < unreachable.length; i++) {
+                var id = this._workerIds[unreachable[i]];
+                ids.push(typeof(id) == typeof(undefined) ? unreachable[i] : id);
+            }
+            msg.payload.unreachable = ids;
+        }
+        this.ws.send(this._codec.encode(msg));
+    } else {
+        this.ws.send(JSON.stringify(msg));
+    }
+};
+
+// In the binary subprotocol other workers are named by their ID, the master
+// sends the URL of an ID once in workerUrls as [id, url, id, url, ...]
+Worker.prototype._resolveWorkers = function(payload) {
+    var urls = payload.workerUrls || [];
+    for (var i = 0; i + 1 < urls.length; i += 2) {
+        this._workerUrls[urls[i]] = urls[i + 1];
+        this._workerIds[urls[i + 1]] = urls[i];
+    }
+    var statuses = [payload.mapStatus, payload.reduceStatus];
+    for (var s = 0; s < statuses.length; s++) {
+        var status = statuses[s];
+        if (status && status.locations) {
+            var locations = [];
+            for (var j = 0; j < status.locations.length; j++) {
+                var url = this._workerUrls[status.locations[j]];
+                if (typeof(url) != typeof(undefined)) {
+                    locations.push(url);
+                }
+            }
+            status.locations = locations;
+        }
+    }
+};
+
 Worker.prototype._react = function(msg) {
     var payload = msg.payload;
     var action = payload.action;
+    this._messages++;
+    if (payload.job && !this._jobs[payload.job.jobId]
+            && typeof(payload.job.code) == typeof(undefined)
+            && typeof(this._codes[payload.job.codeHash]) == typeof(undefined)) {
+        this._fetchCode(msg);
+        return;
+    }
     this._previousAction = action;
     if (payload.job) {
         this._initjob(payload.job);
     }
+    if (payload.runningJobIds) {
+        this._dropjobs(payload.runningJobIds);
+    }
     if (action == "mapSplit") {
-        var splitId = payload.mapStatus.splitId;
-        this._job.onMap(splitId);
+        var splitIds = payload.mapStatus.splitIds || [payload.mapStatus.splitId];
+        for (var i = 0; i < splitIds.length; i++) {
+            this._mapQueue.push({job: this._job, splitId: splitIds[i]});
+        }
+        this._nextMap();
     }
     if (action == "reduceBucket") {
-        var bucketId = payload.reduceStatus.bucketId;
-        this._job.onReduceBucket(bucketId);
+        this._mapQueue = [];
+        this._job.onReduceBucket(payload.reduceStatus);
+    }
+    if (action == "replicateSplit") {
+        this._mapQueue = [];
+        this._job.onReplicate(payload.mapStatus.splitId, payload.mapStatus.locations);
     }
     if (action == "reduceChunk") {
         var bucketId = payload.reduceStatus.bucketId;
         var splitId = payload.reduceStatus.splitId;
         var urls = payload.reduceStatus.locations;
-        this._job.onReduceChunk(splitId, bucketId, urls);
+        var retryAfter = payload.reduceStatus.retryAfter;
+        if (retryAfter) {
+            this._job.onChunkNotReady(splitId, bucketId, retryAfter);
+        } else {
+            this._job.onReduceChunk(splitId, bucketId, urls);
+        }
     }
     if (action == "idle") {
+        this._mapQueue = [];
         //console.log('worker idle');
     }
 };
 
+// Splits of a batch are mapped one at a time
+Worker.prototype._nextMap = function() {
+    if (this._mapping) {
+        return;
+    }
+    var next = this._mapQueue.shift();
+    if (typeof(next) == typeof(undefined)) {
+        return;
+    }
+    this._mapping = true;
+    next.job.onMap(next.splitId);
+};
+
 Worker.prototype._sendACK = function(payload) {
     var msg = {};
     msg.type =  "ACK";
     msg.payload = payload;
-    this.ws.send(JSON.stringify(msg));	
+    this._send(msg);
 };
 
-Worker.prototype.suggestChunk = function(splitId, bucketId, unreachable) {
+Worker.prototype.suggestChunk = function(splitId, bucket, unreachable, jobId) {
 		var reduceStatus = {};
-		reduceStatus.bucketId = bucketId;
+		reduceStatus.bucketId = bucket.bucketId;
+		reduceStatus.part = bucket.part;
+		reduceStatus.parts = bucket.parts;
 		reduceStatus.splitId = splitId;
 		var payload = {};
 		payload.action = "reduceChunk";
 		payload.reduceStatus = reduceStatus;
 		payload.unreachable = unreachable;
-		payload.jobId = this._job.id;
+		payload.jobId = jobId;
 		this._sendACK(payload);
 };
 
-Worker.prototype.bucketComplete = function(bucketId, unreachable) {
+Worker.prototype.bucketComplete = function(bucket, unreachable, jobId) {
 	var payload = {};
 	payload.action = "reduceBucket";
-	payload.reduceStatus = {bucketId: bucketId};
+	payload.reduceStatus = bucket;
 	payload.unreachable = unreachable;
-	payload.jobId = this._job.id;
+	payload.jobId = jobId;
 	this._sendACK(payload);    
 };
 
-Worker.prototype.mapComplete = function(splitId) {
+Worker.prototype.mapComplete = function(splitId, jobId, sizes) {
 	var payload = {};
 	payload.action = "mapSplit";
+	payload.mapStatus = {splitId: splitId, bucketRecords: sizes.records, bucketBytes: sizes.bytes};
+	payload.jobId = jobId;
+	this._mapping = false;
+	if (this._mapQueue.length == 0) {
+		// the master might have nothing to add to the batch, ask again on the next heartbeat
+		this._previousAction = "idle";
+	}
+	this._sendACK(payload);
+	this._nextMap();
+};
+
+Worker.prototype.replicaComplete = function(splitId, jobId) {
+	var payload = {};
+	payload.action = "replicateSplit";
 	payload.mapStatus = {splitId: splitId};
-	payload.jobId = this._job.id;
+	payload.jobId = jobId;
 	this._sendACK(payload);
 };
 
+Worker.prototype.replicaFailed = function(splitId, jobId) {
+	// the master gives up on the copy when we ask for work on the next heartbeat
+	this._previousAction = "idle";
+};
+
 Worker.prototype.hb = function() {
 	var worker = this;
 	var interUrl = null;
@@ -91,11 +212,21 @@ Worker.prototype.hb = function() {
 	payload.action = worker._previousAction;
 	payload.jobId = worker.jobId;
 	payload.interUrl = interUrl;
+	payload.maxBatch = worker.MAX_BATCH;
+	payload.slots = worker.SLOTS;
     var msg = {};
     msg.type = "HB";
     msg.payload = payload;
     //console.log(msg);
-    worker.ws.send(JSON.stringify(msg));
+    var binary = worker._isBinary();
+    if (binary && interUrl === worker._sentInterUrl) {
+        // the master keeps the URL of the connection
+        delete payload.interUrl;
+    }
+    worker._send(msg);
+    if (binary) {
+        worker._sentInterUrl = interUrl;
+    }
 };
 
 
@@ -107,8 +238,17 @@ Worker.prototype._sendHeartbeats = function(interval) {
     setInterval(hb, interval);
 };
 
+// Jobs are kept while they are running, so that chunks mapped for an earlier
+// job can still be served to its reducers after moving on to another job.
 Worker.prototype._initjob = function(requested) {
-    if (this._job.id != requested.jobId) {
+    var job = this._jobs[requested.jobId];
+    if (typeof(job) == typeof(undefined)) {
+        // the master sends the code of a job once, later messages only carry its hash
+        if (typeof(requested.code) == typeof(undefined)) {
+            requested.code = this._codes[requested.codeHash];
+        } else {
+            this._codes[requested.codeHash] = requested.code;
+        }
         eval(requested.code);
         requested.mapper = mapper;
         requested.reducer = reducer;
@@ -120,7 +260,53 @@ Worker.prototype._initjob = function(requested) {
             requested.combiner = combiner;
         }
 
-        this._job = new Job(requested, this);
+        job = new Job(requested, this);
+        this._jobs[requested.jobId] = job;
+    }
+    this._job = job;
+};
+
+// The message which carried the code was dropped in favour of a later one,
+// so the code is fetched by its hash. A message received meanwhile wins.
+Worker.prototype._fetchCode = function(msg) {
+    var worker = this;
+    var hash = msg.payload.job.codeHash;
+    if (typeof(hash) == typeof(undefined)) {
+        // a job we do not know, ask for work again on the next heartbeat
+        this._previousAction = "idle";
+        return;
+    }
+    var seq = this._messages;
+    var url = this.masterUrl.replace(/^ws/, "http").replace(/\/bsmr$/, "/code/") + hash;
+    var xhr = new XMLHttpRequest();
+    xhr.open("GET", url, true);
+    xhr.onreadystatechange = function() {
+        if (xhr.readyState != 4) {
+            return;
+        }
+        if (xhr.status == 200) {
+            worker._codes[hash] = xhr.responseText;
+            if (worker._messages == seq) {
+                worker._react(msg);
+            }
+        } else {
+            // ask for work again on the next heartbeat
+            worker._previousAction = "idle";
+        }
+    };
+    xhr.send(null);
+};
+
+Worker.prototype._dropjobs = function(runningJobIds) {
+    var running = {};
+    for (var i in runningJobIds) {
+        running[runningJobIds[i]] = true;
+    }
+    for (var id in this._jobs) {
+        if (!running[id] && this._jobs[id] != this._job) {
+            this._jobs[id].close();
+            delete this._jobs[id];
+        }
     }
 };
 
@@ -106,6 +106,20 @@ function FlashCommunicator()
 		{
 	   	notFoundListeners.push(listener);
 		};
+   
+   this.removeListener = function(listener)
+		{
+	   	var all = [responseListeners, requestListeners, errorListeners, idChangeListeners, notFoundListeners];
+	   	for (var i=0; i<all.length; i++)
+	   		{
+	   		var listeners = all[i];
+	   		for (var j=listeners.length-1; j>=0; j--)
+	   			{
+	   			if (listeners[j] == listener)
+	   				listeners.splice(j, 1);
+	   			}
+	   		}
+		};
    //Private helper functions
    
    
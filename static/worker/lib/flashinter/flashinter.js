@@ -1,3 +1,18 @@
+// One peer connection is shared by the jobs of a worker, so that the chunks of
+// every running job are served from the same peer id.
+var sharedFlashCommunicator = null;
+var sharedFlashPeerId = null;
+
+function getSharedFlashCommunicator()
+	{
+	if (sharedFlashCommunicator == null)
+		{
+		sharedFlashCommunicator = new FlashCommunicator();
+		sharedFlashCommunicator.addIdChangeListener(function(id) {sharedFlashPeerId = id;});
+		}
+	return sharedFlashCommunicator;
+	}
+
 function FlashInter(job)
 {
 var self = this;	
@@ -12,7 +27,7 @@ var currentBucketId = null;
 var jobId = job.id;
 var localStorage = job.local;
 
-var flashCommunicator= new FlashCommunicator();
+var flashCommunicator = getSharedFlashCommunicator();
 
 var requestTimeout = null;
 
@@ -57,8 +72,11 @@ function Responder(peerId)
 		};
 	}
 
-this.onRequest = function(peerId, jobId, splitId, bucketId)
+this.onRequest = function(peerId, requestJobId, splitId, bucketId)
 	{
+	if (requestJobId != jobId)
+		return;
+	
 	console.log("FlashInter::onRequest() "+peerId+" ,"+jobId+" ,"+splitId+" ,"+bucketId);
 	if (localStorage.canhaz(splitId,bucketId))
 		{
@@ -77,13 +95,19 @@ this.onRequest = function(peerId, jobId, splitId, bucketId)
 	};
 
 
-this.onNotFound = function(peerId, jobId, splitId, bucketId)
+this.onNotFound = function(peerId, responseJobId, splitId, bucketId)
 	{
+	if (responseJobId != jobId)
+		return;
+	
 	self.onError("Requested Data Not Found");
 	};
 
-this.onResponse = function(peerId, jobId, splitId, bucketId, data)
+this.onResponse = function(peerId, responseJobId, splitId, bucketId, data)
 	{
+	if (responseJobId != jobId)
+		return;
+	
 	console.log("FlashInter::onResponse()");
 	
 	if (requestTimeout!=null)
@@ -98,6 +122,10 @@ this.onResponse = function(peerId, jobId, splitId, bucketId, data)
 
 this.onError = function(status)
 	{
+	//errors are only relevant if this job has requested something
+	if (peerUrls == null)
+		return;
+	
 	console.log("FlashInter::onError "+status);
 	
 	job.markUnreachable(peerUrls[peerUrlIndex]);
@@ -123,6 +151,22 @@ flashCommunicator.addResponseListener(this.onResponse);
 flashCommunicator.addErrorListener(this.onError);
 flashCommunicator.addIdChangeListener(this.onIdChange);
 flashCommunicator.addNotFoundListener(this.onNotFound);
+
+// Stop serving chunks of this job
+this.close = function()
+	{
+	flashCommunicator.removeListener(self.onRequest);
+	flashCommunicator.removeListener(self.onResponse);
+	flashCommunicator.removeListener(self.onError);
+	flashCommunicator.removeListener(self.onIdChange);
+	flashCommunicator.removeListener(self.onNotFound);
+	};
+
+if (sharedFlashPeerId != null)
+	{
+	//the peer id was assigned before this job was created
+	setTimeout(function() {job.setOwnInterUrl(sharedFlashPeerId);}, 0);
+	}
 }
 
 
@@ -24,6 +24,28 @@ function petriFSOut() {
         }
     };
     
+    // Reads back the output written under a name, used to merge the parts of
+    // a split bucket
+    Output.prototype.read = function(name, target) {
+        var URL = "http://localhost:8080/fs/filesystem";
+        var filename = this.job.id + '-' + name + ".json";
+        var sizeof = new XMLHttpRequest();
+        sizeof.open("GET", URL + "?operation=sizeof&filename=" + filename, true);
+        sizeof.onload = function() {
+            var xhr = new XMLHttpRequest();
+            xhr.open("GET", URL + "?operation=read&filename=" + filename + "&begin=0&length=" + sizeof.responseText, true);
+            xhr.onload = function() {
+                if (xhr.status == 200) {
+                    target.write(name, JSON.parse(xhr.responseText), false);
+                } else {
+                    throw 'Failed to read results!';
+                }
+            };
+            xhr.send(null);
+        };
+        sizeof.send(null);
+    };
+    
     var factory = function(job) {
     	return new Output(job);    	
     };
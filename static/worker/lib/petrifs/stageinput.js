@@ -0,0 +1,71 @@
+// Reads the output of earlier stages of a job. The master tells a job the
+// stages it comes after in "upstream"; each of them wrote one file per
+// bucket. Split i reads the files i, i + M, i + 2M, ...
+function stageInput() {
+
+	var URL = 'http://localhost:8080/fs/filesystem';
+
+    function Input(M, upstream) {
+        this.M = M;
+        this.files = [];
+        if (typeof(upstream) == typeof(undefined)) {
+        	console.error('stageinput error: The job does not come after another stage!');
+        	return;
+        }
+        for (var i in upstream) {
+            for (var b = 0; b < upstream[i].R; b++) {
+                this.files.push(upstream[i].jobId + '-' + b + '.json');
+            }
+        }
+    }
+
+    Input.prototype.feed = function(splitId, target) {
+        var files = [];
+        for (var f = splitId; f < this.files.length; f += this.M) {
+            files.push(this.files[f]);
+        }
+        this.feedFiles(splitId, files, target);
+    };
+
+    Input.prototype.feedFiles = function(splitId, files, target) {
+        if (files.length == 0) {
+            target.write(splitId, [], false);
+            return;
+        }
+
+        var input = this;
+        var filename = files.shift();
+        var read = function(size) {
+            var request = new XMLHttpRequest();
+            request.open('GET', URL + '?operation=read&filename=' + filename + '&begin=0&length=' + size, true);
+            request.onreadystatechange = function() {
+                if (request.readyState == 4) {
+                    if (request.status == 200) {
+                        target.write(splitId, JSON.parse(request.responseText), files.length > 0);
+                        if (files.length > 0) {
+                            input.feedFiles(splitId, files, target);
+                        }
+                    }
+                }
+            };
+            request.send(null);
+        };
+
+        var request = new XMLHttpRequest();
+        request.open('GET', URL + '?operation=sizeof&filename=' + filename, true);
+        request.onreadystatechange = function() {
+            if (request.readyState == 4) {
+                if (request.status == 200) {
+                    read(JSON.parse(request.responseText));
+                }
+            }
+        };
+        request.send(null);
+    };
+
+	var factory = function(M, upstream) {
+	    return new Input(M, upstream);
+	};
+
+	return factory;
+}